@@ -0,0 +1,67 @@
+package tech.stdev.core2;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes and decodes a small object the way send(Serializable) and the OPCODE_OBJECT branch of
+ * directMessage do, once per codec.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark{
+	
+	/**
+	 * Same shape as the tests' TestSerializer.
+	 */
+	public static class Message implements Serializable{
+		int i = 41368;
+		String s = "Hi World!";
+	}
+	
+	public record Update(long id, double x, double y, String name) implements Serializable{
+	}
+	
+	@Param({"java", "binary"})
+	String codecName;
+	
+	Codec codec;
+	
+	Message message = new Message();
+	
+	Update update = new Update(1, 2.5, -3.5, "player");
+	
+	ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+	
+	@Setup
+	public void setup(){
+		this.codec = codecName.equals("java") ? Codec.JAVA : new BinaryCodec()
+				.register(1, Message.class)
+				.register(2, Update.class);
+	}
+	
+	@Benchmark
+	public Object message() throws IOException, ClassNotFoundException{
+		return roundTrip(message);
+	}
+	
+	@Benchmark
+	public Object record() throws IOException, ClassNotFoundException{
+		return roundTrip(update);
+	}
+	
+	private Object roundTrip(Object object) throws IOException, ClassNotFoundException{
+		out.reset();
+		codec.encode(object, out);
+		return codec.decode(new ByteArrayInputStream(out.toByteArray()));
+	}
+}
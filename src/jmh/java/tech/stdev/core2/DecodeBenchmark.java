@@ -0,0 +1,106 @@
+package tech.stdev.core2;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The read() path: a burst of frames of one kind read off a stream, decoded and directed to the policy,
+ * the same way RichSocket does it for bytes arriving from the connection. Scores are per frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecodeBenchmark{
+	
+	final static int FRAMES = 64;
+	
+	@Param({"64", "1024"})
+	int messageSize;
+	
+	ByteArrayInputStream bytes;
+	
+	ByteArrayInputStream strings;
+	
+	ByteArrayInputStream objects;
+	
+	RichSocket socket;
+	
+	Object last;
+	
+	@Setup
+	public void setup() throws IOException{
+		this.bytes = frames((byte) 0, new byte[messageSize]);
+		this.strings = frames((byte) 1, "x".repeat(messageSize).getBytes(StandardCharsets.UTF_8));
+		ByteArrayOutputStream object = new ByteArrayOutputStream();
+		Codec.JAVA.encode(new CodecBenchmark.Message(), object);
+		this.objects = frames((byte) 3, object.toByteArray());
+		
+		this.socket = new RichSocket(new Socket(), new RichSocketDataForwardingPolicy(){
+			@Override
+			public void receive(String string){
+				last = string;
+			}
+			
+			@Override
+			public void receive(Object deserialized){
+				last = deserialized;
+			}
+			
+			@Override
+			public void receive(byte[] payload){
+				last = payload;
+			}
+		});
+		socket.setPingTime(Integer.MAX_VALUE);
+		socket.setKeepAliveTime(Integer.MAX_VALUE);
+	}
+	
+	private static ByteArrayInputStream frames(byte opcode, byte[] payload){
+		ByteBuffer buffer = ByteBuffer.allocate(FRAMES * (Frame.HEADER_SIZE + payload.length));
+		for(int i = 0; i < FRAMES; i++){
+			buffer.putInt(payload.length).put(opcode).put(payload);
+		}
+		return new ByteArrayInputStream(buffer.array());
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(FRAMES)
+	public Object readBytes() throws IOException{
+		return read(bytes);
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(FRAMES)
+	public Object readStrings() throws IOException{
+		return read(strings);
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(FRAMES)
+	public Object readObjects() throws IOException{
+		return read(objects);
+	}
+	
+	private Object read(ByteArrayInputStream in) throws IOException{
+		in.reset();
+		while(socket.decoder.read(in) > 0){
+			socket.decode();
+		}
+		return last;
+	}
+	
+	@TearDown
+	public void teardown(){
+		socket.kill();
+	}
+}
@@ -0,0 +1,71 @@
+package tech.stdev.core2;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of packing each kind of message into a frame and queueing it, without the write. The socket under
+ * test throws its queue away instead of flushing it, so frames go straight back to the pool.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FramingBenchmark{
+	
+	@Param({"64", "1024"})
+	int messageSize;
+	
+	byte[] payload;
+	
+	String string;
+	
+	CodecBenchmark.Message message = new CodecBenchmark.Message();
+	
+	RichSocket socket;
+	
+	@Setup
+	public void setup(){
+		this.payload = new byte[messageSize];
+		this.string = "x".repeat(messageSize);
+		this.socket = new DiscardingSocket();
+		socket.setPingTime(Integer.MAX_VALUE);
+		socket.setKeepAliveTime(Integer.MAX_VALUE);
+	}
+	
+	@Benchmark
+	public boolean sendBytes(){
+		return socket.send(payload);
+	}
+	
+	@Benchmark
+	public boolean sendString(){
+		return socket.send(string);
+	}
+	
+	@Benchmark
+	public void sendObject(){
+		socket.send(message);
+	}
+	
+	@TearDown
+	public void teardown(){
+		socket.kill();
+	}
+	
+	static class DiscardingSocket extends RichSocket{
+		
+		DiscardingSocket(){
+			super(new Socket(), new WriteBenchmark.NullPolicy());
+		}
+		
+		@Override
+		protected void flush(){
+			outbound.clear();
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package tech.stdev.core2;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * End to end over loopback: a RichSocketBuilder client sends to a DefaultServer which echoes every payload
+ * straight back. roundTrip measures the latency of one message at a time, pipelined keeps WINDOW messages
+ * in flight and measures throughput. With sharedMemory the connection switches from TCP to rings shared
+ * between client and server, which compares the two transports.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark{
+	
+	final static int WINDOW = 32;
+	
+	@Param({"64", "4096"})
+	int messageSize;
+	
+	@Param({"false", "true"})
+	boolean sharedMemory;
+	
+	byte[] payload;
+	
+	DefaultServer server;
+	
+	RichSocket socket;
+	
+	BlockingQueue<byte[]> echoes = new LinkedBlockingQueue<>();
+	
+	@Setup
+	public void setup() throws InterruptedException{
+		Logger.getGlobal().setLevel(Level.WARNING);
+		this.payload = new byte[messageSize];
+		this.server = new DefaultServer(ServerDependencyFactory.localServerSocket(), s -> {
+			EchoPolicy policy = new EchoPolicy();
+			policy.socket = new RichSocket(s, policy);
+			policy.socket.setPingTime(Integer.MAX_VALUE);
+			policy.socket.setKeepAliveTime(Integer.MAX_VALUE);
+			return policy.socket;
+		});
+		new Thread(server).start();
+		Thread.sleep(20);
+		
+		RichSocketBuilder builder = RichSocketBuilder.start(ServerDependencyFactory.localSocket())
+				.setForwardingPolicy(new WriteBenchmark.NullPolicy(){
+					@Override
+					public void receive(byte[] payload){
+						echoes.add(payload);
+					}
+				});
+		builder.setPingTime(Integer.MAX_VALUE);
+		builder.setKeepAliveTime(Integer.MAX_VALUE);
+		builder.setSharedMemory(sharedMemory);
+		this.socket = builder.buildAndRun();
+		
+		for(int i = 0; i < 100 && sharedMemory && !socket.isSharedMemory(); i++){
+			Thread.sleep(10);
+		}
+		if(sharedMemory != socket.isSharedMemory()){
+			throw new IllegalStateException("Connection didn't switch to shared memory.");
+		}
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public byte[] roundTrip() throws InterruptedException{
+		socket.send(payload);
+		return echoes.take();
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@OperationsPerInvocation(WINDOW)
+	public byte[] pipelined() throws InterruptedException{
+		for(int i = 0; i < WINDOW; i++){
+			socket.send(payload);
+		}
+		byte[] echo = null;
+		for(int i = 0; i < WINDOW; i++){
+			echo = echoes.take();
+		}
+		return echo;
+	}
+	
+	@TearDown
+	public void teardown(){
+		socket.kill();
+		server.shutdown();
+	}
+	
+	static class EchoPolicy extends WriteBenchmark.NullPolicy{
+		
+		RichSocket socket;
+		
+		@Override
+		public void receive(byte[] payload){
+			socket.send(payload);
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package tech.stdev.core2;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A single request to a DefaultServer which answers with the request itself. connectPerCall opens a new
+ * connection for every request the way RichSocketBuilder.start does, pooled leases one from a
+ * RichSocketPool, so the difference between the two is what connection setup costs a request.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PoolBenchmark{
+	
+	DefaultServer server;
+	
+	RichSocketPool pool;
+	
+	InetSocketAddress address = new InetSocketAddress("127.0.0.1", ServerDependencyFactory.DEFAULT_PORT);
+	
+	@Setup
+	public void setup() throws InterruptedException{
+		Logger.getGlobal().setLevel(Level.WARNING);
+		this.server = new DefaultServer(ServerDependencyFactory.localServerSocket(), s -> {
+			RichSocket socket = new RichSocket(s, new WriteBenchmark.NullPolicy(){
+				@Override
+				public Object respond(Object request){
+					return request;
+				}
+			});
+			socket.setPingTime(Integer.MAX_VALUE);
+			socket.setKeepAliveTime(Integer.MAX_VALUE);
+			return socket;
+		});
+		new Thread(server).start();
+		Thread.sleep(20);
+		
+		this.pool = new RichSocketPool(4, PoolBenchmark::configure);
+	}
+	
+	private static RichSocketBuilder configure(RichSocketBuilder builder){
+		builder.setPingTime(Integer.MAX_VALUE);
+		builder.setKeepAliveTime(Integer.MAX_VALUE);
+		return builder;
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public Object connectPerCall() throws IOException, InterruptedException, ExecutionException, TimeoutException{
+		RichSocket socket = configure(RichSocketBuilder.start(new Socket(address.getAddress(), address.getPort()))).buildAndRun();
+		try{
+			return socket.request("ping").get(1, TimeUnit.SECONDS);
+		}finally{
+			socket.kill();
+		}
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public Object pooled() throws IOException, InterruptedException, ExecutionException, TimeoutException{
+		try(RichSocketPool.Lease lease = pool.acquire(address)){
+			return lease.getSocket().request("ping").get(1, TimeUnit.SECONDS);
+		}
+	}
+	
+	@TearDown
+	public void teardown(){
+		pool.close();
+		server.shutdown();
+	}
+}
@@ -0,0 +1,152 @@
+package tech.stdev.core2;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.net.ssl.SSLEngine;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * TLS over loopback against a DefaultServer, using the self-signed certificate the tests use.
+ * <p>
+ * handshake measures how many connections a client can set up a second, either with a full handshake
+ * every time or resuming the session cached by the first. transfer sends WINDOW messages at a time and
+ * waits for the server to have received them all, with and without encryption.
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TlsBenchmark{
+	
+	final static int WINDOW = 32;
+	
+	static TlsContext load(){
+		try(InputStream is = TlsBenchmark.class.getResourceAsStream("/tls/test.p12")){
+			return TlsContext.load(is, "changeit".toCharArray());
+		}catch(Exception e){
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	static DefaultServer start(TlsContext tls, RichSocketDataForwardingPolicy policy) throws IOException, InterruptedException{
+		DefaultServer server = new DefaultServer(ServerDependencyFactory.localServerSocket(1024), s -> {
+			RichSocket socket = new RichSocket(s, policy);
+			socket.setPingTime(Integer.MAX_VALUE);
+			socket.setKeepAliveTime(Integer.MAX_VALUE);
+			return socket;
+		}, true);
+		server.setTls(tls);
+		new Thread(server).start();
+		Thread.sleep(20);
+		return server;
+	}
+	
+	@State(Scope.Benchmark)
+	public static class Handshakes{
+		
+		@Param({"false", "true"})
+		boolean resume;
+		
+		TlsContext tls;
+		
+		DefaultServer server;
+		
+		@Setup
+		public void setup() throws Exception{
+			Logger.getGlobal().setLevel(Level.WARNING);
+			this.tls = load();
+			this.server = start(tls, new WriteBenchmark.NullPolicy());
+		}
+		
+		SSLEngine engine(){
+			if(resume){
+				return tls.clientEngine("localhost", ServerDependencyFactory.DEFAULT_PORT);
+			}
+			//Without a peer to key it by nothing is cached, let alone resumed
+			SSLEngine engine = tls.getContext().createSSLEngine();
+			engine.setUseClientMode(true);
+			return engine;
+		}
+		
+		@TearDown
+		public void teardown(){
+			server.shutdown();
+		}
+	}
+	
+	@State(Scope.Benchmark)
+	public static class Transfer{
+		
+		@Param({"false", "true"})
+		boolean secure;
+		
+		@Param({"1024", "65536"})
+		int messageSize;
+		
+		byte[] payload;
+		
+		DefaultServer server;
+		
+		RichSocket socket;
+		
+		Semaphore received = new Semaphore(0);
+		
+		@Setup
+		public void setup() throws Exception{
+			Logger.getGlobal().setLevel(Level.WARNING);
+			this.payload = new byte[messageSize];
+			TlsContext tls = load();
+			this.server = start(secure ? tls : null, new WriteBenchmark.NullPolicy(){
+				@Override
+				public void receive(byte[] payload){
+					received.release();
+				}
+			});
+			
+			RichSocketBuilder builder = RichSocketBuilder.start(ServerDependencyFactory.DEFAULT_PORT).setForwardingPolicy(new WriteBenchmark.NullPolicy());
+			if(secure){
+				builder.setTls(tls);
+			}
+			builder.setPingTime(Integer.MAX_VALUE);
+			builder.setKeepAliveTime(Integer.MAX_VALUE);
+			this.socket = builder.buildAndRun();
+		}
+		
+		@TearDown
+		public void teardown(){
+			socket.kill();
+			server.shutdown();
+		}
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public void handshake(Handshakes state) throws IOException{
+		RichSocket socket = new RichSocket(ServerDependencyFactory.localSocket(), new WriteBenchmark.NullPolicy());
+		try{
+			socket.startTls(state.engine());
+			socket.tls().handshake();
+			//Takes in the session ticket the server follows the handshake with, which later connections resume
+			socket.tls().read(ByteBuffer.allocate(0));
+		}finally{
+			socket.kill();
+		}
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@OperationsPerInvocation(WINDOW)
+	public void transfer(Transfer state) throws InterruptedException{
+		for(int i = 0; i < WINDOW; i++){
+			state.socket.send(state.payload);
+		}
+		state.received.acquire(WINDOW);
+	}
+}
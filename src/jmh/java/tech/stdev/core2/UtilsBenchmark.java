@@ -0,0 +1,52 @@
+package tech.stdev.core2;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The byte level helpers every frame goes through at least once.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilsBenchmark{
+	
+	int value = 41368;
+	
+	byte[] bytes = Utils.intToBytes(value);
+	
+	String string = "Hello Wörld! {\"id\":41368,\"name\":\"player\"}";
+	
+	ByteBuffer buffer = ByteBuffer.allocate(256);
+	
+	@Benchmark
+	public byte[] intToBytes(){
+		return Utils.intToBytes(value);
+	}
+	
+	@Benchmark
+	public int bytesToInt(){
+		return Utils.bytesToInt(bytes);
+	}
+	
+	@Benchmark
+	public ByteBuffer putUtf8(){
+		buffer.clear();
+		Utils.putUtf8(buffer, string);
+		return buffer;
+	}
+	
+	@Benchmark
+	public int varInt() throws ProtocolException{
+		buffer.clear();
+		Utils.putVarInt(buffer, value);
+		buffer.flip();
+		return Utils.getVarInt(buffer);
+	}
+}
@@ -0,0 +1,92 @@
+package tech.stdev.core2;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of small frames sent through a single RichSocket by several threads at once. The foreign end
+ * is a plain socket that throws everything away, so only the sending side is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriteBenchmark{
+	
+	@Param({"64"})
+	int messageSize;
+	
+	byte[] payload;
+	
+	ServerSocket sink;
+	
+	RichSocket socket;
+	
+	@Setup
+	public void setup() throws IOException{
+		this.payload = new byte[messageSize];
+		this.sink = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		Thread drain = new Thread(() -> {
+			try(Socket s = sink.accept(); InputStream is = s.getInputStream()){
+				byte[] buffer = new byte[1 << 16];
+				while(is.read(buffer) != -1);
+			}catch(IOException ignored){
+			}
+		}, "Sink");
+		drain.setDaemon(true);
+		drain.start();
+		
+		this.socket = new RichSocket(new Socket(InetAddress.getLoopbackAddress(), sink.getLocalPort()), new NullPolicy());
+		socket.setPingTime(Integer.MAX_VALUE);
+		socket.setKeepAliveTime(Integer.MAX_VALUE);
+	}
+	
+	@Benchmark
+	@Threads(1)
+	public boolean send1(){
+		return socket.send(payload);
+	}
+	
+	@Benchmark
+	@Threads(4)
+	public boolean send4(){
+		return socket.send(payload);
+	}
+	
+	@Benchmark
+	@Threads(16)
+	public boolean send16(){
+		return socket.send(payload);
+	}
+	
+	@TearDown
+	public void teardown() throws IOException{
+		socket.kill();
+		sink.close();
+	}
+	
+	static class NullPolicy implements RichSocketDataForwardingPolicy{
+		@Override
+		public void receive(String string){
+		
+		}
+		
+		@Override
+		public void receive(Object deserialized){
+		
+		}
+		
+		@Override
+		public void receive(byte[] payload){
+		
+		}
+	}
+}
@@ -0,0 +1,294 @@
+package tech.stdev.core2;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Soak test of a DefaultServer over loopback, run through gradle loadtest. Options are passed as
+ * -PloadtestArgs='--connections=200 --rate=50000 --duration=600', every one of them has a default:
+ * <ul>
+ * <li>connections: Clients connected at once (100)</li>
+ * <li>rate: Messages per second over all clients together (20000)</li>
+ * <li>duration: Seconds to run for (180)</li>
+ * <li>mix: Relative weights of byte[], String and Serializable messages (bytes:1,string:1,object:1)</li>
+ * <li>size: Bytes of filler in every message (256)</li>
+ * <li>churn: Clients replaced by a fresh connection every second (2)</li>
+ * <li>report: Seconds between progress reports (10)</li>
+ * </ul>
+ * Every client sends on a fixed schedule, and every message carries the time it was due rather than the
+ * time it went out. Latency is measured from then until the server's handler receives it, so a client
+ * held up by a stall counts the stall against every message it was late with (correcting for coordinated
+ * omission) rather than quietly sending less.
+ * <p>
+ * Besides throughput and latency it reports how long replacing a connection takes, and how many
+ * connections were closed by their heartbeats (missed pongs or shutdowns never confirmed) instead of on
+ * purpose.
+ */
+public class LoadTest{
+	
+	private final int connections, rate, duration, size, churn, report;
+	
+	private final int[] mix = new int[3];
+	
+	private final static int BYTES = 0, STRING = 1, OBJECT = 2;
+	
+	private DefaultServer server;
+	
+	private final List<Client> clients = new ArrayList<>();
+	
+	private final LatencyHistogram total = new LatencyHistogram();
+	
+	//Swapped out every report
+	private final AtomicReference<LatencyHistogram> interval = new AtomicReference<>(new LatencyHistogram());
+	
+	private final LatencyHistogram connectTime = new LatencyHistogram();
+	
+	private final LongAdder sent = new LongAdder(), dropped = new LongAdder(), received = new LongAdder();
+	
+	/**
+	 * Close reasons of clients which weren't churned, keyed by reason.
+	 */
+	private final Map<CloseReason, LongAdder> clientCloses = new ConcurrentHashMap<>();
+	
+	LoadTest(Map<String, String> options){
+		this.connections = Integer.parseInt(options.getOrDefault("connections", "100"));
+		this.rate = Integer.parseInt(options.getOrDefault("rate", "20000"));
+		this.duration = Integer.parseInt(options.getOrDefault("duration", "180"));
+		this.size = Integer.parseInt(options.getOrDefault("size", "256"));
+		this.churn = Integer.parseInt(options.getOrDefault("churn", "2"));
+		this.report = Integer.parseInt(options.getOrDefault("report", "10"));
+		for(String weight : options.getOrDefault("mix", "bytes:1,string:1,object:1").split(",")){
+			String[] parts = weight.split(":");
+			int kind = switch(parts[0]){
+				case "bytes" -> BYTES;
+				case "string" -> STRING;
+				case "object" -> OBJECT;
+				default -> throw new IllegalArgumentException("Unknown message kind " + parts[0] + ".");
+			};
+			mix[kind] = Integer.parseInt(parts[1]);
+		}
+	}
+	
+	public static void main(String[] args) throws Exception{
+		Map<String, String> options = new TreeMap<>();
+		for(String arg : args){
+			if(!arg.startsWith("--") || !arg.contains("=")){
+				throw new IllegalArgumentException("Options are given as --name=value, not " + arg + ".");
+			}
+			options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+		}
+		new LoadTest(options).run();
+	}
+	
+	void run() throws InterruptedException{
+		Logger.getGlobal().setLevel(Level.WARNING);
+		this.server = new DefaultServer(ServerDependencyFactory.localServerSocket(1024), s -> new RichSocket(s, new Receiver()), true);
+		new Thread(server).start();
+		Thread.sleep(50);
+		
+		System.out.printf("%d connections, %d msg/s, %ds, mix bytes:%d string:%d object:%d, %d byte messages, %d reconnects/s%n",
+				connections, rate, duration, mix[BYTES], mix[STRING], mix[OBJECT], size, churn);
+		for(int i = 0; i < connections; i++){
+			clients.add(connect());
+		}
+		
+		long start = System.nanoTime();
+		long end = start + TimeUnit.SECONDS.toNanos(duration);
+		long nextReport = start + TimeUnit.SECONDS.toNanos(report);
+		long nextChurn = start;
+		long lastReceived = 0;
+		long lastReport = start;
+		while(System.nanoTime() < end){
+			long now = System.nanoTime();
+			if(churn > 0 && now >= nextChurn){
+				replace(ThreadLocalRandom.current().nextInt(clients.size()));
+				nextChurn += TimeUnit.SECONDS.toNanos(1) / churn;
+			}
+			if(now >= nextReport){
+				long received = this.received.sum();
+				report(now - start, (received - lastReceived) / ((now - lastReport) / 1e9), interval.getAndSet(new LatencyHistogram()));
+				lastReceived = received;
+				lastReport = now;
+				nextReport += TimeUnit.SECONDS.toNanos(report);
+			}
+			LockSupport.parkNanos(Math.min(nextReport, churn > 0 ? nextChurn : nextReport) - now);
+		}
+		
+		for(Client client : clients){
+			client.stop();
+		}
+		Thread.sleep(500);
+		summarize((System.nanoTime() - start) / 1e9);
+		for(Client client : clients){
+			client.socket.shutdown();
+		}
+		Thread.sleep(500);
+		server.shutdown();
+	}
+	
+	/**
+	 * Opens a new client, timing how long the connection takes until it can send.
+	 */
+	private Client connect(){
+		long start = System.nanoTime();
+		RichSocket socket = RichSocketBuilder.start(ServerDependencyFactory.DEFAULT_PORT).setForwardingPolicy(new Receiver()).buildAndRun();
+		connectTime.record(System.nanoTime() - start);
+		Client client = new Client(socket);
+		Thread.ofVirtual().name("Client-", 0).start(client);
+		return client;
+	}
+	
+	/**
+	 * Closes a client on purpose and connects a new one in its place, or just replaces it if it already died.
+	 */
+	private void replace(int index){
+		Client client = clients.get(index);
+		client.stop();
+		if(client.socket.isRunning()){
+			client.socket.shutdown();
+		}else{
+			closed(client.socket);
+		}
+		clients.set(index, connect());
+	}
+	
+	private void closed(RichSocket socket){
+		String reason = socket.getMetrics().getCloseReason();
+		if(reason != null){
+			clientCloses.computeIfAbsent(CloseReason.valueOf(reason), r -> new LongAdder()).increment();
+		}
+	}
+	
+	private void report(long elapsed, double throughput, LatencyHistogram latency){
+		System.out.printf("%5ds %9.0f msg/s  p50 %s  p99 %s  p99.9 %s  max %s  connections %d%n", TimeUnit.NANOSECONDS.toSeconds(elapsed), throughput,
+				millis(latency.getValueAtPercentile(50)), millis(latency.getValueAtPercentile(99)), millis(latency.getValueAtPercentile(99.9)),
+				millis(latency.getMax()), server.getMetrics().getActiveConnections());
+	}
+	
+	private void summarize(double seconds){
+		System.out.println();
+		System.out.printf("Sent %d (%d dropped), received %d, %.0f msg/s%n", sent.sum(), dropped.sum(), received.sum(), received.sum() / seconds);
+		System.out.printf("Latency   p50 %s  p99 %s  p99.9 %s  max %s%n", millis(total.getValueAtPercentile(50)), millis(total.getValueAtPercentile(99)),
+				millis(total.getValueAtPercentile(99.9)), millis(total.getMax()));
+		System.out.printf("Connect   p50 %s  p99 %s  max %s over %d connections%n", millis(connectTime.getValueAtPercentile(50)),
+				millis(connectTime.getValueAtPercentile(99)), millis(connectTime.getMax()), connectTime.getCount());
+		
+		for(Client client : clients){
+			if(!client.socket.isRunning()){
+				closed(client.socket);
+			}
+		}
+		Map<String, Long> serverCloses = server.getMetrics().getClosedConnections();
+		long heartbeat = serverCloses.getOrDefault(CloseReason.MISSED_PONG.name(), 0L) + serverCloses.getOrDefault(CloseReason.SHUTDOWN_TIMEOUT.name(), 0L);
+		for(CloseReason reason : List.of(CloseReason.MISSED_PONG, CloseReason.SHUTDOWN_TIMEOUT)){
+			LongAdder count = clientCloses.get(reason);
+			heartbeat += count != null ? count.sum() : 0;
+		}
+		System.out.printf("Heartbeat kills %d, server closes %s, unexpected client closes %s%n", heartbeat, serverCloses, clientCloses);
+	}
+	
+	private static String millis(long nanos){
+		return String.format("%.2fms", nanos / 1e6);
+	}
+	
+	/**
+	 * Records how late every message arrived, measured from when it was due.
+	 */
+	private void arrived(long due){
+		long latency = System.nanoTime() - due;
+		total.record(latency);
+		interval.get().record(latency);
+		received.increment();
+	}
+	
+	/**
+	 * Sends its share of the rate on a fixed schedule, however late that makes it.
+	 */
+	private class Client implements Runnable{
+		
+		Client(RichSocket socket){
+			this.socket = socket;
+		}
+		
+		final RichSocket socket;
+		
+		private volatile boolean running = true;
+		
+		private final byte[] filler = new byte[size];
+		
+		@Override
+		public void run(){
+			long period = TimeUnit.SECONDS.toNanos(connections) / rate;
+			long due = System.nanoTime() + ThreadLocalRandom.current().nextLong(period);
+			int weights = mix[BYTES] + mix[STRING] + mix[OBJECT];
+			while(running && socket.isRunning()){
+				long now = System.nanoTime();
+				if(now < due){
+					LockSupport.parkNanos(due - now);
+					continue;
+				}
+				
+				int pick = ThreadLocalRandom.current().nextInt(weights);
+				//Objects don't say whether they were dropped
+				boolean ok = true;
+				if(pick < mix[BYTES]){
+					ok = socket.send(ByteBuffer.allocate(8 + size).putLong(due).put(filler).array());
+				}else if(pick < mix[BYTES] + mix[STRING]){
+					ok = socket.send(due + ":" + new String(filler, StandardCharsets.ISO_8859_1));
+				}else{
+					socket.send(new Message(due, filler));
+				}
+				sent.increment();
+				if(!ok){
+					dropped.increment();
+				}
+				due += period;
+			}
+		}
+		
+		void stop(){
+			running = false;
+		}
+	}
+	
+	/**
+	 * Object sent in the mix, carrying the time it was due.
+	 */
+	private record Message(long due, byte[] filler) implements Serializable{
+	
+	}
+	
+	/**
+	 * Receives every message on the server, and ignores whatever clients are sent.
+	 */
+	private class Receiver implements RichSocketDataForwardingPolicy{
+		
+		@Override
+		public void receive(String string){
+			arrived(Long.parseLong(string, 0, string.indexOf(':'), 10));
+		}
+		
+		@Override
+		public void receive(Object deserialized){
+			arrived(((Message) deserialized).due());
+		}
+		
+		@Override
+		public void receive(byte[] payload){
+			arrived(ByteBuffer.wrap(payload).getLong());
+		}
+	}
+}
@@ -1,26 +1,70 @@
 package tech.stdev.core2;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 
 public abstract class AbstractServer implements Runnable{
 	
 	public AbstractServer(ServerSocket serverSocket){
 		this.serverSocket = serverSocket;
+		this.serverChannel = null;
 	}
 	
+	/**
+	 * Accepts connections from a bound channel, which unlike a ServerSocket may be bound to a Unix domain
+	 * socket path as well as a TCP port. The path is deleted again once the server shuts down.
+	 *
+	 * @see ServerDependencyFactory#localUnixServerSocket()
+	 */
+	public AbstractServer(ServerSocketChannel serverChannel){
+		this.serverSocket = null;
+		this.serverChannel = serverChannel;
+	}
+	
+	//Exactly one of the two is set
 	private final ServerSocket serverSocket;
 	
+	private final ServerSocketChannel serverChannel;
+	
+	/**
+	 * Thread blocked accepting sockets, the listening port is only released once it has left accept().
+	 */
+	private volatile Thread acceptor;
+	
+	private final ServerMetrics metrics = new ServerMetrics();
+	
+	/**
+	 * Every attached RichSocket which hasn't been killed yet.
+	 */
+	private final Set<RichSocket> connections = ConcurrentHashMap.newKeySet();
+	
+	private final ConcurrentHashMap<String, Set<RichSocket>> topics = new ConcurrentHashMap<>();
+	
+	private volatile SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.SKIP;
+	
+	private volatile TlsContext tls;
+	
 	@Override
 	public void run(){
-		Log.log(Level.INFO, "Server up and running! Listening on " + serverSocket.getInetAddress().getHostName() + ":" + serverSocket.getLocalPort() + ".");
+		acceptor = Thread.currentThread();
+		Log.log(Level.INFO, "Server up and running! Listening on " + address() + ".");
+		metrics.register(address());
 		
-		while(!serverSocket.isClosed()){
+		while(serverSocket != null ? !serverSocket.isClosed() : serverChannel.isOpen()){
 			try{
-				Socket socket = serverSocket.accept();
+				Socket socket = serverSocket != null ? serverSocket.accept() : UnixDomainSocket.of(serverChannel.accept());
 				Log.log(Level.INFO, "New Socket accepted from " + socket.getInetAddress().getHostAddress() + ".");
+				metrics.accepted();
 				onNewSocket(socket);
 			}catch(IOException e){
 				Log.log(Level.INFO, "Server shut down while listening for sockets.");
@@ -28,13 +72,183 @@ public abstract class AbstractServer implements Runnable{
 		}
 	}
 	
+	/**
+	 * @return Host and port listened on, or the path for Unix domain sockets
+	 */
+	private String address(){
+		if(serverSocket != null){
+			return serverSocket.getInetAddress().getHostAddress() + ":" + serverSocket.getLocalPort();
+		}
+		SocketAddress address = localAddress();
+		return address instanceof InetSocketAddress inet ? inet.getAddress().getHostAddress() + ":" + inet.getPort() : String.valueOf(address);
+	}
+	
+	private SocketAddress localAddress(){
+		try{
+			return serverChannel.getLocalAddress();
+		}catch(IOException e){
+			return null;
+		}
+	}
+	
 	protected abstract void onNewSocket(Socket socket);
 	
+	/**
+	 * Should be called by subclasses with every socket they create for an accepted connection, before
+	 * it's ran. RichSockets have their metrics folded into the server's, and are encrypted if the server is.
+	 */
+	protected void attach(AbstractSocket socket){
+		if(socket instanceof RichSocket){
+			RichSocket richSocket = (RichSocket) socket;
+			TlsContext tls = this.tls;
+			if(tls != null && !richSocket.isSecure()){
+				richSocket.startTls(tls.serverEngine());
+			}
+			connections.add(richSocket);
+			richSocket.attach(this);
+		}
+	}
+	
+	/**
+	 * Forgets a socket once it's been killed, including every topic it subscribed to.
+	 */
+	void detach(RichSocket socket){
+		connections.remove(socket);
+		for(Set<RichSocket> subscribers : topics.values()){
+			subscribers.remove(socket);
+		}
+	}
+	
+	/**
+	 * Sends the string to every connection the server has accepted.
+	 *
+	 * @return Amount of connections the message was queued on
+	 * @see #publish(String, ByteBuffer)
+	 */
+	public int broadcast(String message){
+		return fanOut(connections, RichSocket.packShared(message));
+	}
+	
+	public int broadcast(byte[] payload){
+		return fanOut(connections, RichSocket.packShared(RichSocket.OPCODE_NONE, ByteBuffer.wrap(payload)));
+	}
+	
+	/**
+	 * Subscribes a socket created by this server to a topic, until it unsubscribes or is killed.
+	 */
+	public void subscribe(String topic, RichSocket socket){
+		Set<RichSocket> subscribers = topics.computeIfAbsent(topic, t -> ConcurrentHashMap.newKeySet());
+		subscribers.add(socket);
+		//Killed in the meantime, it's already been detached
+		if(!socket.isRunning()){
+			subscribers.remove(socket);
+		}
+	}
+	
+	public void unsubscribe(String topic, RichSocket socket){
+		Set<RichSocket> subscribers = topics.get(topic);
+		if(subscribers != null){
+			subscribers.remove(socket);
+		}
+	}
+	
+	public int publish(String topic, String message){
+		Set<RichSocket> subscribers = topics.get(topic);
+		if(subscribers == null || subscribers.isEmpty()){
+			return 0;
+		}
+		return fanOut(subscribers, RichSocket.packShared(message));
+	}
+	
+	/**
+	 * Sends the payload's remaining bytes to every subscriber of the topic, received by them as a byte array.
+	 * <p>
+	 * The frame is packed once, however many subscribers there are, and every subscriber writes from its
+	 * own read-only view of it. Sending never blocks on a subscriber: subscribers which aren't writable are
+	 * dealt with according to the slow consumer policy, and everybody else writes on their own time.
+	 *
+	 * @return Amount of subscribers the message was queued on
+	 */
+	public int publish(String topic, ByteBuffer payload){
+		Set<RichSocket> subscribers = topics.get(topic);
+		if(subscribers == null || subscribers.isEmpty()){
+			return 0;
+		}
+		return fanOut(subscribers, RichSocket.packShared(RichSocket.OPCODE_NONE, payload));
+	}
+	
+	private int fanOut(Set<RichSocket> sockets, ByteBuffer packed){
+		SlowConsumerPolicy policy = slowConsumerPolicy;
+		int sent = 0;
+		for(RichSocket socket : sockets){
+			if(!socket.isWritable()){
+				if(policy == SlowConsumerPolicy.DISCONNECT && socket.isRunning()){
+					Log.log(Level.WARNING, "Disconnecting subscriber " + socket.socket.getRemoteSocketAddress() + ", it's fallen too far behind.");
+					socket.kill(CloseReason.SLOW_CONSUMER);
+				}
+				continue;
+			}
+			if(socket.sendShared(packed)){
+				sent++;
+			}
+		}
+		return sent;
+	}
+	
+	public SlowConsumerPolicy getSlowConsumerPolicy(){
+		return slowConsumerPolicy;
+	}
+	
+	/**
+	 * Sets what broadcasts and publishes do with subscribers that aren't writable, SKIP by default.
+	 */
+	public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy){
+		this.slowConsumerPolicy = slowConsumerPolicy;
+	}
+	
+	public TlsContext getTls(){
+		return tls;
+	}
+	
+	/**
+	 * Encrypts every connection accepted from now on with TLS, presenting the context's key. Each
+	 * connection handshakes on its own thread (or event loop), never the accepting one.
+	 */
+	public void setTls(TlsContext tls){
+		this.tls = tls;
+	}
+	
+	/**
+	 * @return Totals over every connection the server has accepted, also registered with JMX while the server runs
+	 */
+	public ServerMetrics getMetrics(){
+		return metrics;
+	}
+	
 	public void shutdown(){
 		try{
-			serverSocket.close();
+			if(serverSocket != null){
+				serverSocket.close();
+			}else{
+				SocketAddress address = localAddress();
+				serverChannel.close();
+				//Nobody else would clean up the socket file, and binding it again fails while it's there
+				if(address instanceof UnixDomainSocketAddress path){
+					Files.deleteIfExists(path.getPath());
+				}
+			}
 		}catch(IOException e){
 			e.printStackTrace();
 		}
+		
+		Thread acceptor = this.acceptor;
+		if(acceptor != null && acceptor != Thread.currentThread()){
+			try{
+				acceptor.join(1000);
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+		}
+		metrics.unregister();
 	}
 }
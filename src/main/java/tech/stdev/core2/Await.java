@@ -1,7 +1,5 @@
 package tech.stdev.core2;
 
-import java.util.concurrent.ScheduledExecutorService;
-
 /**
  * Await is a simple system used to verify any sort of input. It's used slightly more in internal
  * situations, if attempting to read data for outside reasons then using a SocketDataFormattingPolicy
@@ -11,10 +9,34 @@ import java.util.concurrent.ScheduledExecutorService;
  * to inform the other side of a shutdown, on the first one it'll wait to see if the other side response
  * so it can ensure both sides are aware of the shutdown. However after the second one it'll shut
  * down after giving time for a response.
+ *
+ * Every frame received is offered to the awaits registered for its opcode, on the thread reading the
+ * connection, until one satisfies them. A satisfied await has its timeout cancelled and is forgotten.
  */
 public interface Await{
 	
+	/**
+	 * Returned by opcode() for awaits interested in every frame.
+	 */
+	int ANY_OPCODE = -1;
+	
+	/**
+	 * @return True if the frame satisfies the await
+	 */
 	boolean await(byte[] payload, byte opcode);
 	
-	void schedule(ScheduledExecutorService service);
+	/**
+	 * The only opcode whose frames are offered to await. Awaits which leave this as ANY_OPCODE are offered
+	 * every frame, which costs every frame a call, so narrow it down wherever possible.
+	 */
+	default int opcode(){
+		return ANY_OPCODE;
+	}
+	
+	/**
+	 * Schedules whatever should happen if the await isn't satisfied in time.
+	 *
+	 * @return The scheduled timeout, cancelled if the await is satisfied or the socket is killed first
+	 */
+	HashedWheelTimer.Timeout schedule(HashedWheelTimer timer);
 }
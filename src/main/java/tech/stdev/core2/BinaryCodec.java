@@ -0,0 +1,391 @@
+package tech.stdev.core2;
+
+import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.RecordComponent;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * BinaryCodec writes objects of registered classes as a small class ID followed by their fields, with
+ * none of the class descriptors Java serialization repeats in every message.
+ * <p>
+ * Classes are registered up front under an ID both ends agree on, at which point their fields (or
+ * components, for records) are looked up once and cached as method handles. Fields of primitive types are
+ * written raw, anything else is written as a tagged value which may itself be a registered object. Boxed
+ * primitives, strings and byte arrays are handled directly, any other Serializable falls back to Java
+ * serialization unless that's been disabled.
+ * <p>
+ * Plain classes need a no argument constructor (of any visibility), static and transient fields are
+ * skipped. Registration isn't thread-safe, finish it before the codec is handed to any socket.
+ */
+public class BinaryCodec implements Codec{
+	
+	//Tags written in front of every value which isn't a primitive field
+	private final static int NULL = 0;
+	private final static int OBJECT = 1;
+	private final static int SERIALIZED = 2;
+	private final static int STRING = 3;
+	private final static int BYTES = 4;
+	private final static int INTEGER = 5;
+	private final static int LONG = 6;
+	private final static int DOUBLE = 7;
+	private final static int FLOAT = 8;
+	private final static int SHORT = 9;
+	private final static int BYTE = 10;
+	private final static int CHARACTER = 11;
+	private final static int BOOLEAN = 12;
+	
+	private final Map<Class<?>, Type> byClass = new ConcurrentHashMap<>();
+	
+	private final Map<Integer, Type> byId = new ConcurrentHashMap<>();
+	
+	private boolean javaFallback = true;
+	
+	/**
+	 * Registers a class under the given ID, which has to be the same on both ends of the connection.
+	 *
+	 * @throws IllegalArgumentException If the ID is taken, or the class can't be handled
+	 */
+	public BinaryCodec register(int id, Class<?> type){
+		if(id < 0){
+			throw new IllegalArgumentException("Class IDs can't be negative.");
+		}
+		if(byId.containsKey(id)){
+			throw new IllegalArgumentException("Class ID " + id + " is already registered to " + byId.get(id).type.getName() + ".");
+		}
+		
+		Type t;
+		try{
+			t = type.isRecord() ? Type.ofRecord(id, type) : Type.ofClass(id, type);
+		}catch(ReflectiveOperationException e){
+			throw new IllegalArgumentException("Unable to register " + type.getName() + ".", e);
+		}
+		byClass.put(type, t);
+		byId.put(id, t);
+		return this;
+	}
+	
+	/**
+	 * Sets whether unregistered Serializables may be written and read using Java serialization. Turning
+	 * this off means ObjectInputStream is never ran on anything a foreign socket sends.
+	 */
+	public BinaryCodec setJavaFallback(boolean javaFallback){
+		this.javaFallback = javaFallback;
+		return this;
+	}
+	
+	@Override
+	public void encode(Object object, OutputStream out) throws IOException{
+		writeValue(new DataOutputStream(out), object);
+	}
+	
+	@Override
+	public Object decode(InputStream in) throws IOException, ClassNotFoundException{
+		//The stream holds exactly one encoded value, which lets every length be checked against what's left
+		try{
+			return readValue(ByteBuffer.wrap(in.readAllBytes()));
+		}catch(BufferUnderflowException e){
+			throw new EOFException("Value ends past the end of the payload.");
+		}
+	}
+	
+	private void writeValue(DataOutputStream out, Object value) throws IOException{
+		if(value == null){
+			out.writeByte(NULL);
+			return;
+		}
+		
+		Type type = byClass.get(value.getClass());
+		if(type != null){
+			out.writeByte(OBJECT);
+			out.write(varInt(type.id));
+			type.write(this, out, value);
+		}else if(value instanceof String){
+			out.writeByte(STRING);
+			writeBytes(out, ((String) value).getBytes(StandardCharsets.UTF_8));
+		}else if(value instanceof byte[]){
+			out.writeByte(BYTES);
+			writeBytes(out, (byte[]) value);
+		}else if(value instanceof Integer){
+			out.writeByte(INTEGER);
+			out.writeInt((Integer) value);
+		}else if(value instanceof Long){
+			out.writeByte(LONG);
+			out.writeLong((Long) value);
+		}else if(value instanceof Double){
+			out.writeByte(DOUBLE);
+			out.writeDouble((Double) value);
+		}else if(value instanceof Float){
+			out.writeByte(FLOAT);
+			out.writeFloat((Float) value);
+		}else if(value instanceof Short){
+			out.writeByte(SHORT);
+			out.writeShort((Short) value);
+		}else if(value instanceof Byte){
+			out.writeByte(BYTE);
+			out.writeByte((Byte) value);
+		}else if(value instanceof Character){
+			out.writeByte(CHARACTER);
+			out.writeChar((Character) value);
+		}else if(value instanceof Boolean){
+			out.writeByte(BOOLEAN);
+			out.writeBoolean((Boolean) value);
+		}else if(javaFallback && value instanceof Serializable){
+			out.writeByte(SERIALIZED);
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			JAVA.encode(value, baos);
+			writeBytes(out, baos.toByteArray());
+		}else{
+			throw new NotSerializableException(value.getClass().getName() + " isn't registered with the codec.");
+		}
+	}
+	
+	private Object readValue(ByteBuffer in) throws IOException, ClassNotFoundException{
+		int tag = in.get() & 0xFF;
+		switch(tag){
+			case NULL:
+				return null;
+			case OBJECT:
+				int id = Utils.getVarInt(in);
+				Type type = byId.get(id);
+				if(type == null){
+					throw new ClassNotFoundException("No class registered under ID " + id + ".");
+				}
+				return type.read(this, in);
+			case STRING:
+				return new String(readBytes(in), StandardCharsets.UTF_8);
+			case BYTES:
+				return readBytes(in);
+			case INTEGER:
+				return in.getInt();
+			case LONG:
+				return in.getLong();
+			case DOUBLE:
+				return in.getDouble();
+			case FLOAT:
+				return in.getFloat();
+			case SHORT:
+				return in.getShort();
+			case BYTE:
+				return in.get();
+			case CHARACTER:
+				return in.getChar();
+			case BOOLEAN:
+				return in.get() != 0;
+			case SERIALIZED:
+				if(!javaFallback){
+					throw new InvalidObjectException("Java serialized object received, but the fallback is disabled.");
+				}
+				return JAVA.decode(new ByteArrayInputStream(readBytes(in)));
+			default:
+				throw new StreamCorruptedException("Unknown value tag " + tag + ".");
+		}
+	}
+	
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException{
+		out.write(varInt(bytes.length));
+		out.write(bytes);
+	}
+	
+	/**
+	 * @throws ProtocolException If the length read is negative or more than what's left of the payload, checked
+	 *                           before anything is allocated for it
+	 */
+	private static byte[] readBytes(ByteBuffer in) throws ProtocolException{
+		int length = Utils.getVarInt(in);
+		if(length < 0 || length > in.remaining()){
+			throw new ProtocolException("Length of " + length + " bytes with only " + in.remaining() + " left.");
+		}
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return bytes;
+	}
+	
+	private static byte[] varInt(int value){
+		ByteBuffer buffer = ByteBuffer.allocate(Utils.varIntLength(value));
+		Utils.putVarInt(buffer, value);
+		return buffer.array();
+	}
+	
+	/**
+	 * Everything needed to write and read a single registered class, looked up once at registration.
+	 */
+	private static final class Type{
+		
+		private final static MethodType GETTER = MethodType.methodType(Object.class, Object.class);
+		
+		private final static MethodType SETTER = MethodType.methodType(void.class, Object.class, Object.class);
+		
+		static Type ofRecord(int id, Class<?> type) throws ReflectiveOperationException{
+			RecordComponent[] components = type.getRecordComponents();
+			Class<?>[] types = new Class<?>[components.length];
+			MethodHandle[] getters = new MethodHandle[components.length];
+			for(int i = 0; i < components.length; i++){
+				Method accessor = components[i].getAccessor();
+				accessor.setAccessible(true);
+				types[i] = components[i].getType();
+				getters[i] = LOOKUP.unreflect(accessor).asType(GETTER);
+			}
+			
+			Constructor<?> constructor = type.getDeclaredConstructor(types);
+			constructor.setAccessible(true);
+			MethodHandle canonical = LOOKUP.unreflectConstructor(constructor)
+					.asSpreader(Object[].class, components.length)
+					.asType(MethodType.methodType(Object.class, Object[].class));
+			return new Type(id, type, types, getters, null, canonical);
+		}
+		
+		static Type ofClass(int id, Class<?> type) throws ReflectiveOperationException{
+			//Superclass fields first, each level sorted by name so both ends agree on the order
+			List<Field> fields = new ArrayList<>();
+			for(Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()){
+				Field[] declared = c.getDeclaredFields();
+				Arrays.sort(declared, Comparator.comparing(Field::getName));
+				List<Field> level = new ArrayList<>();
+				for(Field field : declared){
+					if(!Modifier.isStatic(field.getModifiers()) && !Modifier.isTransient(field.getModifiers())){
+						level.add(field);
+					}
+				}
+				fields.addAll(0, level);
+			}
+			
+			Class<?>[] types = new Class<?>[fields.size()];
+			MethodHandle[] getters = new MethodHandle[fields.size()];
+			MethodHandle[] setters = new MethodHandle[fields.size()];
+			for(int i = 0; i < fields.size(); i++){
+				Field field = fields.get(i);
+				field.setAccessible(true);
+				types[i] = field.getType();
+				getters[i] = LOOKUP.unreflectGetter(field).asType(GETTER);
+				setters[i] = LOOKUP.unreflectSetter(field).asType(SETTER);
+			}
+			
+			Constructor<?> constructor = type.getDeclaredConstructor();
+			constructor.setAccessible(true);
+			MethodHandle noArgs = LOOKUP.unreflectConstructor(constructor).asType(MethodType.methodType(Object.class));
+			return new Type(id, type, types, getters, setters, noArgs);
+		}
+		
+		private final static MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+		
+		private Type(int id, Class<?> type, Class<?>[] types, MethodHandle[] getters, MethodHandle[] setters, MethodHandle constructor){
+			this.id = id;
+			this.type = type;
+			this.types = types;
+			this.getters = getters;
+			this.setters = setters;
+			this.constructor = constructor;
+		}
+		
+		final int id;
+		
+		final Class<?> type;
+		
+		private final Class<?>[] types;
+		
+		private final MethodHandle[] getters;
+		
+		/**
+		 * Null for records, which are built from all their components at once instead.
+		 */
+		private final MethodHandle[] setters;
+		
+		private final MethodHandle constructor;
+		
+		void write(BinaryCodec codec, DataOutputStream out, Object object) throws IOException{
+			try{
+				for(int i = 0; i < getters.length; i++){
+					Object value = (Object) getters[i].invokeExact(object);
+					if(types[i].isPrimitive()){
+						writePrimitive(out, types[i], value);
+					}else{
+						codec.writeValue(out, value);
+					}
+				}
+			}catch(IOException | RuntimeException | Error e){
+				throw e;
+			}catch(Throwable t){
+				throw new IOException("Unable to write " + type.getName() + ".", t);
+			}
+		}
+		
+		Object read(BinaryCodec codec, ByteBuffer in) throws IOException, ClassNotFoundException{
+			Object[] values = new Object[types.length];
+			for(int i = 0; i < types.length; i++){
+				values[i] = types[i].isPrimitive() ? readPrimitive(in, types[i]) : codec.readValue(in);
+			}
+			
+			try{
+				if(setters == null){
+					return (Object) constructor.invokeExact(values);
+				}
+				Object object = (Object) constructor.invokeExact();
+				for(int i = 0; i < setters.length; i++){
+					setters[i].invokeExact(object, values[i]);
+				}
+				return object;
+			}catch(IOException | Error e){
+				throw e;
+			}catch(Throwable t){
+				//Values of the wrong type for a field, or rejected by a record's constructor, are the peer's fault
+				throw new InvalidObjectException("Unable to create " + type.getName() + ": " + t);
+			}
+		}
+		
+		private static void writePrimitive(DataOutputStream out, Class<?> type, Object value) throws IOException{
+			if(type == int.class){
+				out.writeInt((Integer) value);
+			}else if(type == long.class){
+				out.writeLong((Long) value);
+			}else if(type == double.class){
+				out.writeDouble((Double) value);
+			}else if(type == float.class){
+				out.writeFloat((Float) value);
+			}else if(type == boolean.class){
+				out.writeBoolean((Boolean) value);
+			}else if(type == short.class){
+				out.writeShort((Short) value);
+			}else if(type == byte.class){
+				out.writeByte((Byte) value);
+			}else{
+				out.writeChar((Character) value);
+			}
+		}
+		
+		private static Object readPrimitive(ByteBuffer in, Class<?> type){
+			if(type == int.class){
+				return in.getInt();
+			}else if(type == long.class){
+				return in.getLong();
+			}else if(type == double.class){
+				return in.getDouble();
+			}else if(type == float.class){
+				return in.getFloat();
+			}else if(type == boolean.class){
+				return in.get() != 0;
+			}else if(type == short.class){
+				return in.getShort();
+			}else if(type == byte.class){
+				return in.get();
+			}else{
+				return in.getChar();
+			}
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package tech.stdev.core2;
+
+/**
+ * Why a RichSocket's connection ended. Only the first reason is kept, so a shutdown started because the
+ * keep alive time ran out is reported as SUBSTANCE even though it ends with the usual handshake.
+ */
+public enum CloseReason{
+	
+	/**
+	 * Shutdown handshake, started by either end.
+	 */
+	SHUTDOWN,
+	
+	/**
+	 * Shut down once the socket's life cycle time was up.
+	 */
+	LIFE_CYCLE,
+	
+	/**
+	 * Shut down after the keep alive time passed without a message of substance.
+	 */
+	SUBSTANCE,
+	
+	/**
+	 * Foreign socket stopped answering pings.
+	 */
+	MISSED_PONG,
+	
+	/**
+	 * Foreign socket never confirmed a shutdown.
+	 */
+	SHUTDOWN_TIMEOUT,
+	
+	/**
+	 * Foreign socket closed the connection without a shutdown handshake.
+	 */
+	CLOSED,
+	
+	/**
+	 * Foreign socket sent something that isn't valid.
+	 */
+	PROTOCOL,
+	
+	/**
+	 * TLS handshake failed, such as over a certificate that isn't trusted.
+	 */
+	HANDSHAKE,
+	
+	/**
+	 * Reading from or writing to the connection failed.
+	 */
+	ERROR,
+	
+	/**
+	 * Dropped by the server for falling too far behind on a broadcast.
+	 */
+	SLOW_CONSUMER,
+	
+	/**
+	 * Killed locally without a handshake.
+	 */
+	KILLED
+}
@@ -0,0 +1,26 @@
+package tech.stdev.core2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Codec decides how objects sent through RichSocket.send(Serializable) are turned into bytes and back.
+ * <p>
+ * Both ends of a connection have to use equivalent codecs. A single codec is typically shared by every
+ * socket, so implementations must be thread-safe.
+ */
+public interface Codec{
+	
+	/**
+	 * Plain Java serialization, what every socket uses unless told otherwise.
+	 */
+	Codec JAVA = new JavaSerializationCodec();
+	
+	void encode(Object object, OutputStream out) throws IOException;
+	
+	/**
+	 * @param in Stream over exactly the bytes a single call to encode wrote
+	 */
+	Object decode(InputStream in) throws IOException, ClassNotFoundException;
+}
@@ -0,0 +1,136 @@
+package tech.stdev.core2;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Running totals of how well a single RichSocket's compression is paying off, in both directions.
+ * <p>
+ * Times are the CPU time the compressing or decompressing thread spent, where the JVM can measure it for
+ * that thread, otherwise the wall clock time.
+ */
+public final class CompressionStats{
+	
+	private final static ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+	
+	private final static boolean CPU_TIME = THREADS.isCurrentThreadCpuTimeSupported() && THREADS.isThreadCpuTimeEnabled();
+	
+	private final LongAdder framesCompressed = new LongAdder();
+	
+	private final LongAdder framesIncompressible = new LongAdder();
+	
+	private final LongAdder bytesBeforeCompression = new LongAdder();
+	
+	private final LongAdder bytesAfterCompression = new LongAdder();
+	
+	private final LongAdder compressionNanos = new LongAdder();
+	
+	private final LongAdder framesDecompressed = new LongAdder();
+	
+	private final LongAdder bytesBeforeDecompression = new LongAdder();
+	
+	private final LongAdder bytesAfterDecompression = new LongAdder();
+	
+	private final LongAdder decompressionNanos = new LongAdder();
+	
+	/**
+	 * Current thread's CPU time, or the wall clock for threads (such as virtual threads) it's unavailable for.
+	 * Only meaningful compared against another call from the same thread.
+	 */
+	static long time(){
+		if(CPU_TIME){
+			long time = THREADS.getCurrentThreadCpuTime();
+			if(time != -1){
+				return time;
+			}
+		}
+		return System.nanoTime();
+	}
+	
+	void compressed(int before, int after, long nanos){
+		framesCompressed.increment();
+		bytesBeforeCompression.add(before);
+		bytesAfterCompression.add(after);
+		compressionNanos.add(nanos);
+	}
+	
+	/**
+	 * A frame over the threshold that didn't come out any smaller, and was sent as is.
+	 */
+	void incompressible(long nanos){
+		framesIncompressible.increment();
+		compressionNanos.add(nanos);
+	}
+	
+	void decompressed(int before, int after, long nanos){
+		framesDecompressed.increment();
+		bytesBeforeDecompression.add(before);
+		bytesAfterDecompression.add(after);
+		decompressionNanos.add(nanos);
+	}
+	
+	public long getFramesCompressed(){
+		return framesCompressed.sum();
+	}
+	
+	public long getFramesIncompressible(){
+		return framesIncompressible.sum();
+	}
+	
+	public long getBytesBeforeCompression(){
+		return bytesBeforeCompression.sum();
+	}
+	
+	public long getBytesAfterCompression(){
+		return bytesAfterCompression.sum();
+	}
+	
+	/**
+	 * Time spent compressing, including frames that turned out incompressible.
+	 */
+	public long getCompressionNanos(){
+		return compressionNanos.sum();
+	}
+	
+	public long getFramesDecompressed(){
+		return framesDecompressed.sum();
+	}
+	
+	public long getBytesBeforeDecompression(){
+		return bytesBeforeDecompression.sum();
+	}
+	
+	public long getBytesAfterDecompression(){
+		return bytesAfterDecompression.sum();
+	}
+	
+	public long getDecompressionNanos(){
+		return decompressionNanos.sum();
+	}
+	
+	/**
+	 * @return Compressed size of sent frames as a fraction of their original size, 1 if nothing's been compressed
+	 */
+	public double getSentRatio(){
+		return ratio(getBytesAfterCompression(), getBytesBeforeCompression());
+	}
+	
+	/**
+	 * @return Compressed size of received frames as a fraction of their original size, 1 if nothing's been decompressed
+	 */
+	public double getReceivedRatio(){
+		return ratio(getBytesBeforeDecompression(), getBytesAfterDecompression());
+	}
+	
+	private static double ratio(long compressed, long original){
+		return original == 0 ? 1 : (double) compressed / original;
+	}
+	
+	@Override
+	public String toString(){
+		return String.format("sent %d frames at %.3f (%d incompressible, %d us), received %d frames at %.3f (%d us)",
+				getFramesCompressed(), getSentRatio(), getFramesIncompressible(), getCompressionNanos() / 1000,
+				getFramesDecompressed(), getReceivedRatio(), getDecompressionNanos() / 1000);
+	}
+}
@@ -2,6 +2,7 @@ package tech.stdev.core2;
 
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -12,9 +13,37 @@ public class DefaultServer extends AbstractServer{
 	private static int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors() * 2;
 	
 	public DefaultServer(ServerSocket serverSocket, SocketFactory factory){
+		this(serverSocket, factory, ServerDependencyFactory.VIRTUAL_THREADS);
+	}
+	
+	/**
+	 * @param virtualThreads If true every connection gets its own virtual thread rather than sharing the
+	 *                       fixed pool, which otherwise caps the server at DEFAULT_THREADS live connections.
+	 */
+	public DefaultServer(ServerSocket serverSocket, SocketFactory factory, boolean virtualThreads){
 		super(serverSocket);
 		this.factory = factory;
-		this.executor = Executors.newFixedThreadPool(DEFAULT_THREADS);
+		this.executor = executor(virtualThreads);
+	}
+	
+	/**
+	 * Accepts from a bound channel instead, see ServerDependencyFactory#localUnixServerSocket() for one
+	 * listening on a Unix domain socket.
+	 */
+	public DefaultServer(ServerSocketChannel serverChannel, SocketFactory factory){
+		this(serverChannel, factory, ServerDependencyFactory.VIRTUAL_THREADS);
+	}
+	
+	public DefaultServer(ServerSocketChannel serverChannel, SocketFactory factory, boolean virtualThreads){
+		super(serverChannel);
+		this.factory = factory;
+		this.executor = executor(virtualThreads);
+	}
+	
+	private static ExecutorService executor(boolean virtualThreads){
+		return virtualThreads
+				? Executors.newThreadPerTaskExecutor(ServerDependencyFactory.connectionThreadFactory(true))
+				: Executors.newFixedThreadPool(DEFAULT_THREADS);
 	}
 	
 	private final ExecutorService executor;
@@ -23,6 +52,16 @@ public class DefaultServer extends AbstractServer{
 	
 	@Override
 	protected void onNewSocket(Socket socket){
-		executor.submit(() -> factory.create(socket).run());
+		executor.submit(() -> {
+			AbstractSocket created = factory.create(socket);
+			attach(created);
+			created.run();
+		});
+	}
+	
+	@Override
+	public void shutdown(){
+		super.shutdown();
+		executor.shutdown();
 	}
 }
@@ -0,0 +1,127 @@
+package tech.stdev.core2;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+
+/**
+ * EventLoop multiplexes any number of NioRichSockets over a single Selector and a single thread.
+ * <p>
+ * Every read, write and registration for a socket happens on the loop's thread, other threads only
+ * ever hand it work through execute(Runnable). Since the thread is never blocked on a single connection
+ * a handful of loops is enough to service thousands of sockets.
+ */
+public class EventLoop implements Runnable{
+	
+	public EventLoop() throws IOException{
+		this.selector = Selector.open();
+	}
+	
+	private final Selector selector;
+	
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	
+	private volatile Thread thread;
+	
+	private volatile boolean running = true;
+	
+	@Override
+	public void run(){
+		thread = Thread.currentThread();
+		
+		while(running){
+			try{
+				selector.select();
+			}catch(IOException e){
+				Log.log(Level.SEVERE, "Event loop selector failed!");
+				e.printStackTrace();
+				break;
+			}
+			
+			runTasks();
+			
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while(keys.hasNext()){
+				SelectionKey key = keys.next();
+				keys.remove();
+				
+				NioRichSocket socket = (NioRichSocket) key.attachment();
+				if(key.isValid() && key.isReadable()){
+					socket.read();
+				}
+				if(key.isValid() && key.isWritable()){
+					socket.writeOutbound();
+				}
+			}
+		}
+		
+		for(SelectionKey key : selector.keys()){
+			((NioRichSocket) key.attachment()).kill();
+		}
+		runTasks();
+		
+		try{
+			selector.close();
+		}catch(IOException e){
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Starts listening to the socket's channel. The channel is switched to non-blocking mode.
+	 */
+	public void register(NioRichSocket socket){
+		execute(() -> {
+			try{
+				socket.channel().configureBlocking(false);
+				socket.registered(socket.channel().register(selector, SelectionKey.OP_READ, socket));
+			}catch(ClosedChannelException e){
+				socket.kill(CloseReason.CLOSED);
+			}catch(IOException e){
+				Log.log(Level.WARNING, "Unable to register socket with event loop.");
+				e.printStackTrace();
+				socket.kill(CloseReason.ERROR);
+			}
+		});
+	}
+	
+	/**
+	 * Runs the task on the loop's thread, immediately if called from it.
+	 */
+	void execute(Runnable task){
+		if(inEventLoop()){
+			task.run();
+		}else{
+			tasks.add(task);
+			selector.wakeup();
+		}
+	}
+	
+	boolean inEventLoop(){
+		return Thread.currentThread() == thread;
+	}
+	
+	private void runTasks(){
+		Runnable task;
+		while((task = tasks.poll()) != null){
+			task.run();
+		}
+	}
+	
+	public boolean isRunning(){
+		return running;
+	}
+	
+	/**
+	 * Stops the loop, killing every socket registered with it.
+	 */
+	public void shutdown(){
+		running = false;
+		selector.wakeup();
+	}
+}
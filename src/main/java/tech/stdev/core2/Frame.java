@@ -0,0 +1,41 @@
+package tech.stdev.core2;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A single packed frame on its way out: the buffer holding its header and payload, plus the link used to
+ * queue it up for the writer. Both are recycled together through a FramePool once the frame is written.
+ */
+final class Frame{
+	
+	final static int HEADER_SIZE = 5;
+	
+	Frame(ByteBuffer buffer, int sizeClass){
+		this.buffer = buffer;
+		this.sizeClass = sizeClass;
+	}
+	
+	final ByteBuffer buffer;
+	
+	/**
+	 * Index of the pool's size class the buffer came from, -1 if it doesn't belong to the pool.
+	 */
+	final int sizeClass;
+	
+	volatile Frame next;
+	
+	/**
+	 * Completed once the frame has been written, null unless it was sent asynchronously.
+	 */
+	CompletableFuture<Void> promise;
+	
+	/**
+	 * Writes the header in place, leaving the buffer positioned for size bytes of payload.
+	 */
+	Frame header(byte opcode, int size){
+		buffer.putInt(size);
+		buffer.put(opcode);
+		return this;
+	}
+}
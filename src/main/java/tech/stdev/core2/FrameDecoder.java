@@ -0,0 +1,234 @@
+package tech.stdev.core2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * FrameDecoder turns a stream of bytes back into the frames RichSocket packed them into.
+ * <p>
+ * Bytes are read into a single reusable buffer, from either a blocking InputStream or a (possibly
+ * non-blocking) channel, however many happen to be available. next() then hands out every frame that has
+ * fully arrived, anything left over from a partial header or payload stays buffered until the next read
+ * completes it. Frames larger than the buffer grow it for as long as they're being read.
+ * <p>
+ * File frames (those with the raw opcode, if one is set) are the exception, only their stream ID is
+ * decoded. The file itself is left to the caller to pass on as raw bytes, whatever's already buffered
+ * through rawBuffered() and the rest straight from the connection, so it's never held in memory whole
+ * and isn't bound by the maximum frame size.
+ * <p>
+ * A decoder belongs to a single connection and must only be used by the thread reading from it.
+ */
+public class FrameDecoder{
+	
+	/**
+	 * Size (in bytes) of the buffer incoming frames are accumulated in.
+	 */
+	public static int DEFAULT_BUFFER_SIZE = 8192;
+	
+	/**
+	 * Largest payload (in bytes) accepted by default. Anything claiming to be larger is treated as a
+	 * broken or hostile peer rather than allocated.
+	 */
+	public static int DEFAULT_MAX_FRAME_SIZE = 16 * 1024 * 1024;
+	
+	//Stream ID leading every file frame's payload
+	final static int FILE_PREFIX = 4;
+	
+	public FrameDecoder(){
+		this(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_FRAME_SIZE);
+	}
+	
+	public FrameDecoder(int bufferSize, int maxFrameSize){
+		this.bufferSize = Math.max(bufferSize, Frame.HEADER_SIZE);
+		this.maxFrameSize = maxFrameSize;
+		this.buffer = ByteBuffer.allocate(this.bufferSize);
+	}
+	
+	private final int bufferSize;
+	
+	private int maxFrameSize;
+	
+	/**
+	 * Always left in write mode, everything between start and position is buffered but not yet decoded.
+	 */
+	private ByteBuffer buffer;
+	
+	private int start = 0;
+	
+	private byte opcode;
+	
+	private byte[] payload;
+	
+	/**
+	 * Opcode of frames passed through raw, -1 for none.
+	 */
+	private int rawOpcode = -1;
+	
+	/**
+	 * Bytes of the current file frame the caller has yet to pass on.
+	 */
+	private long rawRemaining;
+	
+	/**
+	 * Reads whatever the stream has available, blocking until at least one byte arrives.
+	 *
+	 * @return Amount of bytes read, -1 if the stream has ended
+	 */
+	public int read(InputStream is) throws IOException{
+		int read = is.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		if(read > 0){
+			buffer.position(buffer.position() + read);
+		}
+		return read;
+	}
+	
+	/**
+	 * Reads whatever the channel has available. Non-blocking channels may read nothing at all.
+	 *
+	 * @return Amount of bytes read, -1 if the channel has reached end-of-stream
+	 */
+	public int read(ReadableByteChannel channel) throws IOException{
+		return channel.read(buffer);
+	}
+	
+	/**
+	 * Decodes the next complete frame out of what's been read so far. Should be called until it returns
+	 * false before reading again.
+	 *
+	 * @return True if a frame was decoded, its opcode and payload are then available until the next call.
+	 * False as well while the raw bytes of a file frame haven't all been passed on.
+	 * @throws ProtocolException If the next frame is larger than the maximum frame size, or claims a negative size
+	 */
+	public boolean next() throws ProtocolException{
+		while(rawRemaining == 0){
+			int available = buffer.position() - start;
+			if(available < Frame.HEADER_SIZE){
+				break;
+			}
+			
+			int size = buffer.getInt(start);
+			if(size < 0){
+				//Nothing that follows can be trusted to start where a frame does
+				throw new ProtocolException("Frame of negative size " + size + ".");
+			}
+			if(size == 0){
+				//Header only
+				start += Frame.HEADER_SIZE;
+				continue;
+			}
+			if((buffer.get(start + 4) & 0xFF) == rawOpcode){
+				if(size < FILE_PREFIX){
+					throw new ProtocolException("File frame of " + size + " bytes is missing its stream ID.");
+				}
+				if(available < Frame.HEADER_SIZE + FILE_PREFIX){
+					break;
+				}
+				this.opcode = (byte) rawOpcode;
+				this.payload = new byte[FILE_PREFIX];
+				buffer.get(start + Frame.HEADER_SIZE, payload);
+				this.rawRemaining = size - FILE_PREFIX;
+				start += Frame.HEADER_SIZE + FILE_PREFIX;
+				return true;
+			}
+			if(size > maxFrameSize){
+				throw new ProtocolException("Frame of " + size + " bytes exceeds the maximum of " + maxFrameSize + ".");
+			}
+			
+			if(available < Frame.HEADER_SIZE + size){
+				ensureCapacity(Frame.HEADER_SIZE + size);
+				break;
+			}
+			
+			this.opcode = buffer.get(start + 4);
+			this.payload = new byte[size];
+			buffer.get(start + Frame.HEADER_SIZE, payload);
+			start += Frame.HEADER_SIZE + size;
+			return true;
+		}
+		
+		compact();
+		return false;
+	}
+	
+	/**
+	 * @return Bytes of the current file frame still to be passed on, 0 once it's done
+	 */
+	public long rawRemaining(){
+		return rawRemaining;
+	}
+	
+	/**
+	 * Hands out whatever of the current file frame has already been read, counting it as passed on.
+	 *
+	 * @return Buffered raw bytes, only valid until the next read
+	 */
+	public ByteBuffer rawBuffered(){
+		int length = (int) Math.min(buffer.position() - start, rawRemaining);
+		ByteBuffer raw = buffer.duplicate().limit(start + length).position(start).slice();
+		start += length;
+		rawRemaining -= length;
+		if(start == buffer.position()){
+			compact();
+		}
+		return raw;
+	}
+	
+	/**
+	 * Counts bytes the caller moved straight from the connection as passed on. Only valid once nothing of
+	 * the frame is left buffered.
+	 */
+	public void rawTransferred(long count){
+		rawRemaining -= count;
+	}
+	
+	/**
+	 * @param opcode Opcode of frames to decode as file frames, -1 for none
+	 */
+	public void setRawOpcode(int opcode){
+		this.rawOpcode = opcode;
+	}
+	
+	public byte opcode(){
+		return opcode;
+	}
+	
+	public byte[] payload(){
+		return payload;
+	}
+	
+	public int getMaxFrameSize(){
+		return maxFrameSize;
+	}
+	
+	public void setMaxFrameSize(int maxFrameSize){
+		this.maxFrameSize = maxFrameSize;
+	}
+	
+	/**
+	 * Moves the undecoded bytes to the front of the buffer, shrinking it back down once an oversized
+	 * frame has been handled.
+	 */
+	private void compact(){
+		if(start == buffer.position() && buffer.capacity() > bufferSize){
+			buffer = ByteBuffer.allocate(bufferSize);
+		}else if(start > 0){
+			buffer.limit(buffer.position()).position(start);
+			buffer.compact();
+		}
+		start = 0;
+	}
+	
+	private void ensureCapacity(int frameSize){
+		if(buffer.capacity() >= frameSize){
+			return;
+		}
+		ByteBuffer larger = ByteBuffer.allocate(frameSize);
+		buffer.limit(buffer.position()).position(start);
+		larger.put(buffer);
+		buffer = larger;
+		start = 0;
+	}
+}
@@ -0,0 +1,154 @@
+package tech.stdev.core2;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * FramePool recycles the direct buffers frames are packed into, so a socket sending steadily never
+ * allocates.
+ * <p>
+ * Buffers come in power of two size classes from MIN_SIZE up to MAX_SIZE, a frame gets the smallest
+ * class it fits in. Each class keeps its free frames in a bounded lock-free ring, so acquiring and
+ * releasing never block or allocate, whichever threads they happen on. Frames bigger than MAX_SIZE are
+ * too rare to be worth holding on to and get a plain heap buffer which is simply dropped once written.
+ */
+final class FramePool{
+	
+	final static int MIN_SIZE = 64;
+	
+	final static int MAX_SIZE = 65536;
+	
+	/**
+	 * Rough upper bound (in bytes) on how much idle memory each size class holds on to.
+	 */
+	private final static int CLASS_BYTES = 1 << 20;
+	
+	private final static int MAX_FRAMES_PER_CLASS = 1024;
+	
+	static FramePool shared(){
+		return Shared.POOL;
+	}
+	
+	private static class Shared{
+		private final static FramePool POOL = new FramePool();
+	}
+	
+	FramePool(){
+		int classes = Integer.numberOfTrailingZeros(MAX_SIZE) - Integer.numberOfTrailingZeros(MIN_SIZE) + 1;
+		this.rings = new Ring[classes];
+		for(int i = 0; i < classes; i++){
+			rings[i] = new Ring(Math.min(MAX_FRAMES_PER_CLASS, Math.max(16, CLASS_BYTES / classSize(i))));
+		}
+	}
+	
+	private final Ring[] rings;
+	
+	/**
+	 * @param size Amount of bytes the frame has to hold, header included
+	 * @return A cleared frame whose buffer holds at least size bytes
+	 */
+	Frame acquire(int size){
+		if(size > MAX_SIZE){
+			return new Frame(ByteBuffer.allocate(size), -1);
+		}
+		
+		int sizeClass = sizeClass(size);
+		Frame frame = rings[sizeClass].poll();
+		if(frame == null){
+			frame = new Frame(ByteBuffer.allocateDirect(classSize(sizeClass)), sizeClass);
+		}
+		return frame;
+	}
+	
+	/**
+	 * Hands a written frame back. If its class is already holding as many frames as it's allowed the
+	 * frame is left to the garbage collector.
+	 */
+	void release(Frame frame){
+		if(frame.sizeClass < 0){
+			return;
+		}
+		frame.buffer.clear();
+		frame.next = null;
+		rings[frame.sizeClass].offer(frame);
+	}
+	
+	private static int sizeClass(int size){
+		int bits = 32 - Integer.numberOfLeadingZeros(Math.max(size, MIN_SIZE) - 1);
+		return bits - Integer.numberOfTrailingZeros(MIN_SIZE);
+	}
+	
+	private static int classSize(int sizeClass){
+		return MIN_SIZE << sizeClass;
+	}
+	
+	/**
+	 * Bounded multi producer, multi consumer ring. Every slot carries a sequence number telling producers
+	 * and consumers whose turn it is, so claiming a slot is a single CAS on the matching position counter.
+	 */
+	private static final class Ring{
+		
+		Ring(int capacity){
+			int size = Integer.highestOneBit(capacity - 1) << 1;
+			this.frames = new AtomicReferenceArray<>(size);
+			this.sequences = new AtomicLongArray(size);
+			this.mask = size - 1;
+			for(int i = 0; i < size; i++){
+				sequences.set(i, i);
+			}
+		}
+		
+		private final AtomicReferenceArray<Frame> frames;
+		
+		private final AtomicLongArray sequences;
+		
+		private final int mask;
+		
+		private final AtomicLong head = new AtomicLong();
+		
+		private final AtomicLong tail = new AtomicLong();
+		
+		boolean offer(Frame frame){
+			long pos = tail.get();
+			while(true){
+				int slot = (int) (pos & mask);
+				long diff = sequences.get(slot) - pos;
+				if(diff == 0){
+					if(tail.compareAndSet(pos, pos + 1)){
+						frames.lazySet(slot, frame);
+						sequences.set(slot, pos + 1);
+						return true;
+					}
+					pos = tail.get();
+				}else if(diff < 0){
+					return false; //Full
+				}else{
+					pos = tail.get();
+				}
+			}
+		}
+		
+		Frame poll(){
+			long pos = head.get();
+			while(true){
+				int slot = (int) (pos & mask);
+				long diff = sequences.get(slot) - (pos + 1);
+				if(diff == 0){
+					if(head.compareAndSet(pos, pos + 1)){
+						Frame frame = frames.get(slot);
+						frames.lazySet(slot, null);
+						sequences.set(slot, pos + mask + 1);
+						return frame;
+					}
+					pos = head.get();
+				}else if(diff < 0){
+					return null; //Empty
+				}else{
+					pos = head.get();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package tech.stdev.core2;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free multi producer, single consumer queue of packed frames waiting to be written.
+ * <p>
+ * Any thread may offer a frame, offering is a single atomic swap of the tail so producers never wait on
+ * each other or on the writer. Everything else (filling a batch and removing) may only be done by
+ * whichever thread is currently acting as the socket's writer.
+ * <p>
+ * Frames are their own queue nodes, so queueing doesn't allocate either. The most recently removed frame
+ * stays behind as the queue's head and is only handed back to the pool once the next one is removed.
+ */
+final class FrameQueue{
+	
+	private final static VarHandle TAIL;
+	
+	static{
+		try{
+			TAIL = MethodHandles.lookup().findVarHandle(FrameQueue.class, "tail", Frame.class);
+		}catch(ReflectiveOperationException e){
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+	
+	FrameQueue(FramePool pool){
+		Frame stub = new Frame(null, -1);
+		this.pool = pool;
+		this.head = stub;
+		this.tail = stub;
+	}
+	
+	private final FramePool pool;
+	
+	/**
+	 * Frame the consumer last removed, the next frame to write is always head.next.
+	 */
+	private volatile Frame head;
+	
+	@SuppressWarnings("unused") //Updated through TAIL
+	private volatile Frame tail;
+	
+	private final AtomicInteger size = new AtomicInteger();
+	
+	private final AtomicLong bytes = new AtomicLong();
+	
+	/**
+	 * @param frame Frame flipped and ready to be written, its limit is taken as its size until removed
+	 */
+	void offer(Frame frame){
+		frame.next = null;
+		size.incrementAndGet();
+		bytes.addAndGet(frame.buffer.limit());
+		Frame prev = (Frame) TAIL.getAndSet(this, frame);
+		prev.next = frame;
+	}
+	
+	/**
+	 * @return Amount of frames offered but not yet removed
+	 */
+	int size(){
+		return size.get();
+	}
+	
+	/**
+	 * @return Amount of bytes offered but not yet removed
+	 */
+	long bytes(){
+		return bytes.get();
+	}
+	
+	/**
+	 * May briefly return true while a frame is being offered, the offering thread always tries to flush
+	 * afterwards so the frame can't be missed.
+	 */
+	boolean isEmpty(){
+		return head.next == null;
+	}
+	
+	/**
+	 * Copies up to batch.length buffers from the front of the queue into the batch, without removing them.
+	 *
+	 * @return Amount of buffers copied
+	 */
+	int fill(ByteBuffer[] batch){
+		int count = 0;
+		Frame frame = head.next;
+		while(frame != null && count < batch.length){
+			batch[count++] = frame.buffer;
+			frame = frame.next;
+		}
+		return count;
+	}
+	
+	/**
+	 * Removes the first frame in the queue once it's been written, completing its promise.
+	 *
+	 * @return False if the queue was empty
+	 */
+	boolean poll(){
+		return poll(null);
+	}
+	
+	/**
+	 * @param failure Why the frame couldn't be written, null if it was
+	 */
+	private boolean poll(Throwable failure){
+		Frame prev = head;
+		Frame next = prev.next;
+		if(next == null){
+			return false;
+		}
+		head = next;
+		size.decrementAndGet();
+		bytes.addAndGet(-next.buffer.limit());
+		CompletableFuture<Void> promise = next.promise;
+		if(promise != null){
+			next.promise = null;
+			if(failure == null){
+				promise.complete(null);
+			}else{
+				promise.completeExceptionally(failure);
+			}
+		}
+		//Nothing can reach prev anymore, the producer which linked next to it is done with it as well
+		pool.release(prev);
+		return true;
+	}
+	
+	void remove(int count){
+		for(int i = 0; i < count; i++){
+			poll();
+		}
+	}
+	
+	/**
+	 * Drops every frame without writing it.
+	 */
+	void clear(){
+		clear(new SocketException("Socket closed before the frame was written."));
+	}
+	
+	/**
+	 * @param failure Why the frames couldn't be written, handed to the promise of each
+	 */
+	void clear(Throwable failure){
+		while(poll(failure));
+	}
+}
@@ -0,0 +1,325 @@
+package tech.stdev.core2;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+/**
+ * HashedWheelTimer keeps every pending deadline of every socket on a single thread.
+ * <p>
+ * Deadlines are hashed into a fixed ring of buckets by the tick they expire on. Each tick the worker
+ * only looks at a single bucket, so scheduling and cancelling a Timeout are both constant time no
+ * matter how many sockets are alive. The trade off is precision, a deadline fires on the first tick
+ * after it expires, which is more than good enough for heartbeats and keep alive checks.
+ * <p>
+ * Expired tasks are handed to an Executor rather than ran on the worker, so a task stuck writing to a
+ * slow socket can't hold up every other socket's deadlines.
+ */
+public class HashedWheelTimer{
+	
+	/**
+	 * Process-wide timer used by every RichSocket unless told otherwise. Ticks every 100ms, one full
+	 * turn of the wheel covers ~51 seconds and longer deadlines simply take multiple turns.
+	 */
+	public static HashedWheelTimer shared(){
+		return Shared.TIMER;
+	}
+	
+	private static class Shared{
+		private final static HashedWheelTimer TIMER = new HashedWheelTimer(100, TimeUnit.MILLISECONDS, 512,
+				Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("Timeout-", 0).factory()));
+	}
+	
+	/**
+	 * @param tickDuration  Length of a single tick, the timer's resolution
+	 * @param ticksPerWheel Amount of buckets, rounded up to a power of two
+	 * @param executor      Executor expired tasks run on when none is given to schedule. If null they run
+	 *                      directly on the timer's own thread.
+	 */
+	public HashedWheelTimer(long tickDuration, TimeUnit unit, int ticksPerWheel, Executor executor){
+		this.tickNanos = unit.toNanos(tickDuration);
+		this.executor = executor;
+		
+		int size = Integer.highestOneBit(Math.max(1, ticksPerWheel - 1)) << 1;
+		this.wheel = new Bucket[size];
+		this.mask = size - 1;
+		for(int i = 0; i < size; i++){
+			wheel[i] = new Bucket();
+		}
+		
+		this.worker = new Thread(this::run, "HashedWheelTimer");
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+	
+	private final long tickNanos;
+	
+	private final Bucket[] wheel;
+	
+	private final int mask;
+	
+	private final Executor executor;
+	
+	private final Thread worker;
+	
+	private final long startTime = System.nanoTime();
+	
+	/**
+	 * Timeouts scheduled from any thread, moved into their bucket by the worker on its next tick.
+	 */
+	private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+	
+	/**
+	 * Timeouts cancelled from any thread, unlinked from their bucket by the worker on its next tick.
+	 */
+	private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+	
+	//Only ever touched by the worker
+	private long tick = 0;
+	
+	private volatile boolean running = true;
+	
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit){
+		return schedule(task, delay, unit, null);
+	}
+	
+	/**
+	 * Schedules the task to be ran once the delay has passed.
+	 *
+	 * @param executor Executor the task is ran on, the timer's own executor is used if null
+	 * @return Handle which can be used to cancel the task before it runs
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit, Executor executor){
+		long deadline = System.nanoTime() - startTime + unit.toNanos(Math.max(0, delay));
+		Timeout timeout = new Timeout(this, task, deadline, executor != null ? executor : this.executor);
+		pending.add(timeout);
+		return timeout;
+	}
+	
+	void cancelled(Timeout timeout){
+		cancelled.add(timeout);
+	}
+	
+	private void run(){
+		while(running){
+			long now = waitForNextTick();
+			
+			Timeout timeout;
+			while((timeout = cancelled.poll()) != null){
+				if(timeout.bucket != null){
+					timeout.bucket.remove(timeout);
+				}
+			}
+			
+			while((timeout = pending.poll()) != null){
+				if(timeout.isCancelled()){
+					continue;
+				}
+				long expiresOn = timeout.deadline / tickNanos;
+				timeout.remainingRounds = (expiresOn - tick) / wheel.length;
+				
+				//Deadlines that were already missed go into the current bucket
+				wheel[(int) (Math.max(expiresOn, tick) & mask)].add(timeout);
+			}
+			
+			wheel[(int) (tick & mask)].expire(now);
+			tick++;
+		}
+	}
+	
+	private long waitForNextTick(){
+		long target = tickNanos * (tick + 1);
+		while(true){
+			long now = System.nanoTime() - startTime;
+			if(now >= target){
+				return now;
+			}
+			LockSupport.parkNanos(target - now);
+		}
+	}
+	
+	/**
+	 * Stops the timer. Anything still pending never runs.
+	 */
+	public void stop(){
+		running = false;
+		LockSupport.unpark(worker);
+	}
+	
+	/**
+	 * Doubly linked list of the timeouts hashed into a single slot of the wheel, only touched by the worker.
+	 */
+	private static class Bucket{
+		
+		private Timeout head;
+		
+		private Timeout tail;
+		
+		void add(Timeout timeout){
+			timeout.bucket = this;
+			if(head == null){
+				head = tail = timeout;
+			}else{
+				tail.next = timeout;
+				timeout.prev = tail;
+				tail = timeout;
+			}
+		}
+		
+		void expire(long now){
+			Timeout timeout = head;
+			while(timeout != null){
+				Timeout next = timeout.next;
+				if(timeout.remainingRounds <= 0 && timeout.deadline <= now){
+					remove(timeout);
+					timeout.expire();
+				}else if(timeout.isCancelled()){
+					remove(timeout);
+				}else if(timeout.remainingRounds > 0){
+					timeout.remainingRounds--;
+				}
+				timeout = next;
+			}
+		}
+		
+		void remove(Timeout timeout){
+			if(timeout.bucket != this){
+				return;
+			}
+			if(timeout.prev != null){
+				timeout.prev.next = timeout.next;
+			}else{
+				head = timeout.next;
+			}
+			if(timeout.next != null){
+				timeout.next.prev = timeout.prev;
+			}else{
+				tail = timeout.prev;
+			}
+			timeout.prev = timeout.next = null;
+			timeout.bucket = null;
+		}
+	}
+	
+	private static void execute(Runnable task, Executor executor){
+		if(executor == null){
+			try{
+				task.run();
+			}catch(Throwable t){
+				Log.log(Level.WARNING, "Timeout task threw an exception.");
+				t.printStackTrace();
+			}
+			return;
+		}
+		
+		try{
+			executor.execute(task);
+		}catch(RejectedExecutionException e){
+			Log.log(Level.WARNING, "Timeout expired but its executor rejected the task.");
+		}
+	}
+	
+	/**
+	 * Handle to a task scheduled on a HashedWheelTimer.
+	 */
+	public static final class Timeout{
+		
+		private final static int INIT = 0;
+		private final static int CANCELLED = 1;
+		private final static int EXPIRED = 2;
+		
+		private final static AtomicIntegerFieldUpdater<Timeout> STATE = AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+		
+		private final static AtomicReferenceFieldUpdater<Timeout, Runnable> CLEANUP = AtomicReferenceFieldUpdater.newUpdater(Timeout.class, Runnable.class, "cleanup");
+		
+		Timeout(HashedWheelTimer timer, Runnable task, long deadline, Executor executor){
+			this.timer = timer;
+			this.task = task;
+			this.deadline = deadline;
+			this.executor = executor;
+		}
+		
+		private final HashedWheelTimer timer;
+		
+		private final Runnable task;
+		
+		private final long deadline;
+		
+		private final Executor executor;
+		
+		private volatile int state = INIT;
+		
+		private volatile Runnable cleanup;
+		
+		//Only ever touched by the worker
+		private long remainingRounds;
+		
+		private Bucket bucket;
+		
+		private Timeout prev;
+		
+		private Timeout next;
+		
+		/**
+		 * Cancels the task if it hasn't already ran.
+		 *
+		 * @return True if the task was stopped from running
+		 */
+		public boolean cancel(){
+			if(!STATE.compareAndSet(this, INIT, CANCELLED)){
+				return false;
+			}
+			timer.cancelled(this);
+			return true;
+		}
+		
+		public boolean isCancelled(){
+			return state == CANCELLED;
+		}
+		
+		public boolean isExpired(){
+			return state == EXPIRED;
+		}
+		
+		/**
+		 * @return True once the task has either ran or been cancelled
+		 */
+		public boolean isDone(){
+			return state != INIT;
+		}
+		
+		/**
+		 * Runs the cleanup on the timer's thread once the task has been handed off, or straight away if it
+		 * already has. Runs exactly once if the timeout expires and never if it's cancelled, so should be quick.
+		 */
+		void whenExpired(Runnable cleanup){
+			this.cleanup = cleanup;
+			if(state == EXPIRED){
+				runCleanup();
+			}
+		}
+		
+		private void runCleanup(){
+			Runnable cleanup = CLEANUP.getAndSet(this, null);
+			if(cleanup != null){
+				cleanup.run();
+			}
+		}
+		
+		private void expire(){
+			if(STATE.compareAndSet(this, INIT, EXPIRED)){
+				HashedWheelTimer.execute(task, executor);
+				if(cleanup != null){
+					runCleanup();
+				}
+			}
+		}
+	}
+}
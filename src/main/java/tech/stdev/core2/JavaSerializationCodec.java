@@ -0,0 +1,22 @@
+package tech.stdev.core2;
+
+import java.io.*;
+
+/**
+ * Codec backed by ObjectOutputStream/ObjectInputStream. Works for any Serializable with no setup, at the
+ * cost of writing out full class descriptors with every object.
+ */
+public class JavaSerializationCodec implements Codec{
+	
+	@Override
+	public void encode(Object object, OutputStream out) throws IOException{
+		ObjectOutputStream oos = new ObjectOutputStream(out);
+		oos.writeObject(object);
+		oos.flush();
+	}
+	
+	@Override
+	public Object decode(InputStream in) throws IOException, ClassNotFoundException{
+		return new ObjectInputStream(in).readObject();
+	}
+}
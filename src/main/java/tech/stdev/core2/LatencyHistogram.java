@@ -0,0 +1,199 @@
+package tech.stdev.core2;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations (in nanoseconds) in a fixed amount of memory, however many are recorded.
+ * <p>
+ * Like an HDR histogram, values are counted in buckets that double in width every power of two, each
+ * split into 32 sub-buckets, so anything it reports is within about 3% of the value actually recorded.
+ * Values from 0 up to MAX_VALUE (around 68 seconds) are tracked, anything larger is counted as
+ * MAX_VALUE.
+ * <p>
+ * Any thread may record at once. Counts are striped over a few copies of the buckets picked by thread,
+ * so threads recording similar values don't all contend on the same counter.
+ */
+public class LatencyHistogram{
+	
+	final static int SUB_BUCKET_BITS = 5;
+	
+	private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	
+	/**
+	 * Largest value tracked, in nanoseconds.
+	 */
+	public final static long MAX_VALUE = (1L << 36) - 1;
+	
+	final static int BUCKETS = index(MAX_VALUE) + 1;
+	
+	private final static int STRIPES = Math.min(8, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+	
+	public LatencyHistogram(){
+		this(STRIPES);
+	}
+	
+	/**
+	 * @param stripes Copies of the buckets to spread threads over, a power of two. Histograms only ever
+	 *                recorded to by a single thread need just the one.
+	 */
+	LatencyHistogram(int stripes){
+		this.stripes = stripes;
+		this.counts = new AtomicLongArray(BUCKETS * stripes);
+	}
+	
+	private final int stripes;
+	
+	private final AtomicLongArray counts;
+	
+	private final LongAdder total = new LongAdder();
+	
+	private final LongAdder count = new LongAdder();
+	
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+	
+	public void record(long nanos){
+		long value = Math.max(0, Math.min(nanos, MAX_VALUE));
+		int stripe = (int) Thread.currentThread().threadId() & (stripes - 1);
+		counts.getAndIncrement(stripe * BUCKETS + index(value));
+		total.add(value);
+		count.increment();
+		max.accumulate(value);
+	}
+	
+	public long getCount(){
+		return count.sum();
+	}
+	
+	public long getMax(){
+		return max.get();
+	}
+	
+	public double getMean(){
+		long count = getCount();
+		return count == 0 ? 0 : (double) total.sum() / count;
+	}
+	
+	/**
+	 * @param percentile Between 0 and 100
+	 * @return Value at or below which the percentile of recorded values fall, 0 if nothing's been recorded
+	 */
+	public long getValueAtPercentile(double percentile){
+		long[] buckets = buckets();
+		long recorded = 0;
+		for(long bucket : buckets){
+			recorded += bucket;
+		}
+		if(recorded == 0){
+			return 0;
+		}
+		
+		long target = Math.max(1, (long) Math.ceil(percentile / 100 * recorded));
+		long seen = 0;
+		for(int i = 0; i < buckets.length; i++){
+			seen += buckets[i];
+			if(seen >= target){
+				return Math.min(highestValue(i), getMax());
+			}
+		}
+		return getMax();
+	}
+	
+	/**
+	 * Counts of every bucket, summed over the stripes.
+	 */
+	private long[] buckets(){
+		long[] buckets = new long[BUCKETS];
+		for(int stripe = 0; stripe < stripes; stripe++){
+			for(int i = 0; i < BUCKETS; i++){
+				buckets[i] += counts.get(stripe * BUCKETS + i);
+			}
+		}
+		return buckets;
+	}
+	
+	/**
+	 * Values below twice SUB_BUCKETS get a bucket each, above that the top SUB_BUCKET_BITS + 1 bits of the
+	 * value decide the bucket.
+	 */
+	static int index(long value){
+		if(value < SUB_BUCKETS << 1){
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+	}
+	
+	/**
+	 * @return Largest value counted in the bucket
+	 */
+	static long highestValue(int index){
+		if(index < SUB_BUCKETS << 1){
+			return index;
+		}
+		int shift = (index >>> SUB_BUCKET_BITS) - 1;
+		long lowest = (long) (index & (SUB_BUCKETS - 1) | SUB_BUCKETS) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+	
+	/**
+	 * @return Point in time summary of the histogram, in microseconds
+	 */
+	public Snapshot snapshot(){
+		return new Snapshot(this);
+	}
+	
+	/**
+	 * Summary of a histogram in microseconds, shaped to be exposed as a JMX attribute.
+	 */
+	public static class Snapshot{
+		
+		Snapshot(LatencyHistogram histogram){
+			this.count = histogram.getCount();
+			this.mean = histogram.getMean() / 1000;
+			this.p50 = histogram.getValueAtPercentile(50) / 1000d;
+			this.p90 = histogram.getValueAtPercentile(90) / 1000d;
+			this.p99 = histogram.getValueAtPercentile(99) / 1000d;
+			this.p999 = histogram.getValueAtPercentile(99.9) / 1000d;
+			this.max = histogram.getMax() / 1000d;
+		}
+		
+		private final long count;
+		
+		private final double mean, p50, p90, p99, p999, max;
+		
+		public long getCount(){
+			return count;
+		}
+		
+		public double getMean(){
+			return mean;
+		}
+		
+		public double getP50(){
+			return p50;
+		}
+		
+		public double getP90(){
+			return p90;
+		}
+		
+		public double getP99(){
+			return p99;
+		}
+		
+		public double getP999(){
+			return p999;
+		}
+		
+		public double getMax(){
+			return max;
+		}
+		
+		@Override
+		public String toString(){
+			return String.format("count=%d mean=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus", count, mean, p50, p90, p99, p999, max);
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package tech.stdev.core2;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+/**
+ * Policy routing everything received to handlers registered by type, instead of every application
+ * writing its own instanceof chain in receive(Object).
+ * <p>
+ * Objects, strings and byte arrays go to the handler registered for their class, or failing that the
+ * closest of its superclasses and then its interfaces (so a handler for Object catches everything). Which
+ * handler a class resolves to is worked out once and cached in a ClassValue, after that routing is a
+ * single lookup. Frames sent with sendUser go to the handler registered for their opcode, straight out of
+ * an array.
+ * <p>
+ * Handlers are best registered before the router is given to any socket. Registering one later works,
+ * but throws away every class resolved so far. Requests, streams and the like are handled as by any other
+ * policy, by overriding their methods.
+ */
+public class MessageRouter implements RichSocketDataForwardingPolicy{
+	
+	private final Map<Class<?>, Consumer<Object>> handlers = new ConcurrentHashMap<>();
+	
+	//Indexed by opcode - FIRST_USER_OPCODE, replaced whole on every registration
+	private volatile Consumer<byte[]>[] opcodes = newOpcodes();
+	
+	private volatile Consumer<Object> fallback = message -> Log.log(Level.WARNING, "No handler for " + message.getClass().getName() + ", dropped.");
+	
+	private volatile ClassValue<Consumer<Object>> resolved = newResolved();
+	
+	/**
+	 * Routes messages of the type and its subtypes to the handler, unless a closer type has a handler of
+	 * its own.
+	 *
+	 * @return This router
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> MessageRouter on(Class<T> type, Consumer<? super T> handler){
+		handlers.put(type, (Consumer<Object>) handler);
+		this.resolved = newResolved();
+		return this;
+	}
+	
+	/**
+	 * Routes frames sent through sendUser with the opcode to the handler.
+	 *
+	 * @return This router
+	 */
+	public MessageRouter on(byte opcode, Consumer<byte[]> handler){
+		RichSocket.checkUserOpcode(opcode);
+		synchronized(this){
+			Consumer<byte[]>[] opcodes = this.opcodes.clone();
+			opcodes[opcode - RichSocket.FIRST_USER_OPCODE] = handler;
+			this.opcodes = opcodes;
+		}
+		return this;
+	}
+	
+	/**
+	 * Handles whatever no handler has been registered for, by default it's logged and dropped.
+	 *
+	 * @return This router
+	 */
+	public MessageRouter otherwise(Consumer<Object> fallback){
+		this.fallback = fallback;
+		this.resolved = newResolved();
+		return this;
+	}
+	
+	/**
+	 * Passes the message to the handler its class resolves to.
+	 */
+	public void route(Object message){
+		resolved.get(message.getClass()).accept(message);
+	}
+	
+	@Override
+	public void receive(String string){
+		route(string);
+	}
+	
+	@Override
+	public void receive(Object deserialized){
+		route(deserialized);
+	}
+	
+	@Override
+	public void receive(byte[] payload){
+		route(payload);
+	}
+	
+	@Override
+	public void receiveUser(byte opcode, byte[] payload){
+		Consumer<byte[]> handler = opcodes[opcode - RichSocket.FIRST_USER_OPCODE];
+		if(handler != null){
+			handler.accept(payload);
+		}else{
+			Log.log(Level.WARNING, "No handler for opcode " + opcode + ", dropped.");
+		}
+	}
+	
+	/**
+	 * Finds the handler for the class itself, else its closest superclass, else the first of its
+	 * interfaces (breadth first, superclasses' interfaces after its own).
+	 */
+	private Consumer<Object> resolve(Class<?> type){
+		for(Class<?> c = type; c != null; c = c.getSuperclass()){
+			Consumer<Object> handler = handlers.get(c);
+			if(handler != null){
+				return handler;
+			}
+		}
+		
+		Deque<Class<?>> interfaces = new ArrayDeque<>();
+		Set<Class<?>> seen = new HashSet<>();
+		for(Class<?> c = type; c != null; c = c.getSuperclass()){
+			for(Class<?> i : c.getInterfaces()){
+				interfaces.add(i);
+			}
+		}
+		while(!interfaces.isEmpty()){
+			Class<?> i = interfaces.poll();
+			if(!seen.add(i)){
+				continue;
+			}
+			Consumer<Object> handler = handlers.get(i);
+			if(handler != null){
+				return handler;
+			}
+			for(Class<?> parent : i.getInterfaces()){
+				interfaces.add(parent);
+			}
+		}
+		
+		return fallback;
+	}
+	
+	private ClassValue<Consumer<Object>> newResolved(){
+		return new ClassValue<>(){
+			@Override
+			protected Consumer<Object> computeValue(Class<?> type){
+				return resolve(type);
+			}
+		};
+	}
+	
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static Consumer<byte[]>[] newOpcodes(){
+		return new Consumer[RichSocket.LAST_USER_OPCODE - RichSocket.FIRST_USER_OPCODE + 1];
+	}
+}
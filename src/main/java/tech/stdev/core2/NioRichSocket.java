@@ -0,0 +1,275 @@
+package tech.stdev.core2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+import javax.net.ssl.SSLException;
+
+/**
+ * NioRichSocket speaks exactly the same protocol as RichSocket, but never blocks a thread of its own.
+ * <p>
+ * Instead of looping on a blocking InputStream the socket is registered with an EventLoop, which calls
+ * read() whenever the channel has data. Frames sent from any thread are queued and written out by the
+ * loop as the channel becomes writable, up to WRITE_BATCH at a time in a single gathering write.
+ * <p>
+ * Encrypted sockets handshake on the loop as well, a step at a time whenever the channel is read or written.
+ */
+public class NioRichSocket extends RichSocket{
+	
+	public NioRichSocket(SocketChannel channel, EventLoop loop, RichSocketDataForwardingPolicy policy){
+		this(channel, loop, policy, null);
+	}
+	
+	public NioRichSocket(SocketChannel channel, EventLoop loop, RichSocketDataForwardingPolicy policy, Executor executor){
+		super(UnixDomainSocket.of(channel), policy, executor);
+		this.channel = channel;
+		this.loop = loop;
+	}
+	
+	private final SocketChannel channel;
+	
+	private final EventLoop loop;
+	
+	private SelectionKey key;
+	
+	private final ByteBuffer[] batch = new ByteBuffer[WRITE_BATCH];
+	
+	/**
+	 * Set while a flush has been handed to the loop but not yet ran, so bursts of sends only wake it once.
+	 */
+	private final AtomicBoolean flushPending = new AtomicBoolean();
+	
+	private volatile boolean closing = false;
+	
+	/**
+	 * Registers the socket with its event loop. Unlike RichSocket this returns immediately, all reading
+	 * happens on the loop's thread.
+	 */
+	@Override
+	public void run(){
+		loop.register(this);
+		sendHello();
+	}
+	
+	SocketChannel channel(){
+		return channel;
+	}
+	
+	void registered(SelectionKey key){
+		this.key = key;
+		if(closing || !outbound.isEmpty()){
+			writeOutbound();
+		}
+	}
+	
+	/**
+	 * Wakes the loop to write out the queue, unless it's already been asked to.
+	 */
+	@Override
+	protected void flush(){
+		if(flushPending.compareAndSet(false, true)){
+			loop.execute(this::writeOutbound);
+		}
+	}
+	
+	/**
+	 * The loop's own thread drains the queue, so sends made from it (by policies, say) can't wait for it.
+	 */
+	@Override
+	protected boolean canBlock(){
+		return !loop.inEventLoop();
+	}
+	
+	/**
+	 * Writing always happens on the loop's thread, so sends never block either way.
+	 */
+	@Override
+	protected void flushAsync(){
+		flush();
+	}
+	
+	/**
+	 * Writes as many queued frames as the channel will take. Must be called from the loop's thread.
+	 */
+	void writeOutbound(){
+		flushPending.set(false);
+		if(key == null){
+			return; //Not registered yet, flushed once it is
+		}
+		
+		TlsChannel tls = tls();
+		if(closing && tls != null && tls.isHandshaking()){
+			//Nothing queued can be sent without a handshake
+			closeChannel();
+			return;
+		}
+		GatheringByteChannel target = tls != null ? tls : channel;
+		try{
+			if(tls != null && !tls.flush()){
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				return;
+			}
+			
+			int count;
+			while((count = outbound.fill(batch)) > 0){
+				target.write(batch, 0, count);
+				
+				for(int i = 0; i < count; i++){
+					if(batch[i].hasRemaining()){
+						break;
+					}
+					getMetrics().sent(batch[i]);
+					outbound.poll();
+				}
+				drained();
+				
+				if(batch[count - 1].hasRemaining() || (tls != null && tls.hasPendingOutput())){
+					Arrays.fill(batch, 0, count, null);
+					if(tls != null && tls.isHandshaking() && !tls.hasPendingOutput()){
+						//Handshake is waiting on the foreign socket, reading picks the writes back up
+						key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+					}else{
+						//Channel is full, wait for the selector to report it writable again
+						key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+					}
+					return;
+				}
+				Arrays.fill(batch, 0, count, null);
+			}
+		}catch(IOException e){
+			if(!closing){
+				Log.log(Level.SEVERE, "Socket unexpectedly closed!");
+				e.printStackTrace();
+			}
+			outbound.clear(e);
+			kill(CloseReason.ERROR);
+			return;
+		}
+		
+		if(key.isValid()){
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		}
+		if(closing){
+			closeChannel();
+		}
+	}
+	
+	/**
+	 * Reads whatever the channel has available and passes every complete frame on. Must be called from
+	 * the loop's thread.
+	 */
+	@Override
+	protected void read(){
+		TlsChannel tls = tls();
+		do{
+			try{
+				if(decoder.read(tls != null ? tls : channel) == -1){
+					//Foreign socket closed without a shutdown handshake
+					kill(CloseReason.CLOSED);
+					return;
+				}
+			}catch(IOException e){
+				if(isRunning()){
+					Log.log(Level.WARNING, "Socket unexpectedly closed while reading!");
+					e.printStackTrace();
+				}
+				kill(tls != null && tls.isHandshaking() && e instanceof SSLException ? CloseReason.HANDSHAKE : CloseReason.ERROR);
+				return;
+			}
+			
+			decode();
+			//Records already taken off the channel won't have the selector report it readable again
+		}while(tls != null && isRunning() && tls.hasBuffered());
+		
+		//Reading may have moved the handshake along, or finished it with frames still waiting on it
+		if(tls != null && isRunning() && (tls.hasPendingOutput() || !outbound.isEmpty())){
+			writeOutbound();
+		}
+	}
+	
+	/**
+	 * The loop can't block, it stops reading this socket's channel instead until resumeReads.
+	 */
+	@Override
+	protected void pauseReads(){
+		readsPaused = true;
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		//The handlers may have caught up before reading stopped, without anyone to resume it
+		if(handlersCaughtUp()){
+			resumeReads();
+		}
+	}
+	
+	@Override
+	protected void resumeReads(){
+		loop.execute(() -> {
+			if(readsPaused && key.isValid()){
+				readsPaused = false;
+				key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+			}
+		});
+	}
+	
+	/**
+	 * Rings are read by blocking, which the event loop can't afford.
+	 */
+	@Override
+	boolean canShareMemory(){
+		return false;
+	}
+	
+	@Override
+	ReadableByteChannel source(){
+		TlsChannel tls = tls();
+		return tls != null ? tls : channel;
+	}
+	
+	/**
+	 * The loop can't be held up for a whole segment, so files are sent as an ordinary stream of chunks
+	 * instead. The foreign socket receives them just the same.
+	 */
+	@Override
+	public CompletableFuture<Void> sendFile(Path path){
+		try{
+			return sendStream(FileChannel.open(path, StandardOpenOption.READ));
+		}catch(IOException e){
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+	
+	/**
+	 * Closing is deferred until every queued frame (such as a KILL_RET) has been written out.
+	 */
+	@Override
+	protected void close(){
+		closing = true;
+		loop.execute(this::writeOutbound);
+	}
+	
+	private void closeChannel(){
+		TlsChannel tls = tls();
+		if(tls != null){
+			tls.close();
+		}
+		if(key != null){
+			key.cancel();
+		}
+		try{
+			channel.close();
+		}catch(IOException e){
+			e.printStackTrace();
+		}
+	}
+}
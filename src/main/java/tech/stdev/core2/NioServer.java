@@ -0,0 +1,61 @@
+package tech.stdev.core2;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * Server which multiplexes every accepted connection over a small, fixed set of EventLoops instead of
+ * dedicating a blocked thread to each one.
+ * <p>
+ * Connections are accepted on the server's own thread exactly as in DefaultServer, and then handed out
+ * to the event loops round robin.
+ */
+public class NioServer extends AbstractServer{
+	
+	private static int DEFAULT_EVENT_LOOPS = Runtime.getRuntime().availableProcessors();
+	
+	public NioServer(ServerSocketChannel serverChannel, NioSocketFactory factory){
+		this(serverChannel, factory, DEFAULT_EVENT_LOOPS);
+	}
+	
+	public NioServer(ServerSocketChannel serverChannel, NioSocketFactory factory, int eventLoops){
+		super(serverChannel);
+		this.factory = factory;
+		this.loops = new EventLoop[eventLoops];
+		
+		for(int i = 0; i < eventLoops; i++){
+			try{
+				loops[i] = new EventLoop();
+			}catch(IOException e){
+				throw new UncheckedIOException(e);
+			}
+			new Thread(loops[i], "EventLoop-" + i).start();
+		}
+	}
+	
+	private final NioSocketFactory factory;
+	
+	private final EventLoop[] loops;
+	
+	//Only ever touched by the accepting thread
+	private int next = 0;
+	
+	@Override
+	protected void onNewSocket(Socket socket){
+		EventLoop loop = loops[next];
+		next = (next + 1) % loops.length;
+		NioRichSocket created = factory.create(socket.getChannel(), loop);
+		attach(created);
+		created.run();
+	}
+	
+	@Override
+	public void shutdown(){
+		super.shutdown();
+		for(EventLoop loop : loops){
+			loop.shutdown();
+		}
+	}
+}
@@ -0,0 +1,9 @@
+package tech.stdev.core2;
+
+import java.nio.channels.SocketChannel;
+
+public interface NioSocketFactory{
+	
+	NioRichSocket create(SocketChannel channel, EventLoop loop);
+	
+}
@@ -0,0 +1,12 @@
+package tech.stdev.core2;
+
+/**
+ * Failure of a request sent through RichSocket.request, thrown by the foreign socket's policy while
+ * responding. Only the description of what went wrong crosses the connection, not the exception itself.
+ */
+public class RemoteException extends Exception{
+	
+	public RemoteException(String message){
+		super(message);
+	}
+}
@@ -1,14 +1,48 @@
 package tech.stdev.core2;
 
 import java.io.*;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.net.SocketException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.ScheduledExecutorService;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
 
 /**
  * RichSocket is a direct descendent of ConcurrentSocket.
@@ -23,14 +57,77 @@ import java.util.logging.Level;
 public class RichSocket extends AbstractSocket{
 	
 	//Opcodes for sending/receiving messsages
-	private final static byte OPCODE_NONE = 0b0;
-	private final static byte OPCODE_STRING = 0b1;
+	final static byte OPCODE_NONE = 0b0;
+	final static byte OPCODE_STRING = 0b1;
 	private final static byte OPCODE_STRING_ENC = 0b10;
 	private final static byte OPCODE_OBJECT = 0b11;
 	final static byte OPCODE_PING = 0b100;
 	final static byte OPCODE_PONG = 0b101;
 	final static byte OPCODE_KILL = 0b110;
 	final static byte OPCODE_KILL_RET = 0b111;
+	final static byte OPCODE_HELLO = 0b1000;
+	final static byte OPCODE_REQUEST = 0b1001;
+	final static byte OPCODE_RESPONSE = 0b1010;
+	final static byte OPCODE_STREAM_CHUNK = 0b1011;
+	final static byte OPCODE_STREAM_END = 0b1100;
+	final static byte OPCODE_FILE = 0b1101;
+	/**
+	 * Sent over TCP as the last frame before switching to shared memory, or to turn down the ring offered.
+	 */
+	final static byte OPCODE_UPGRADE = 0b1110;
+	
+	/**
+	 * Range of opcodes left to applications, sent through sendUser and received through the policy's
+	 * receiveUser. Everything below is reserved for the socket's own frames.
+	 */
+	public final static byte FIRST_USER_OPCODE = 0x40, LAST_USER_OPCODE = 0x7F;
+	
+	//First byte of a response after its correlation ID
+	private final static byte RESPONSE_OK = 0;
+	private final static byte RESPONSE_FAILED = 1;
+	
+	//Only byte of an upgrade
+	private final static byte UPGRADE_SWITCHED = 0;
+	private final static byte UPGRADE_REFUSED = 1;
+	
+	//Only byte of a stream's end after its ID
+	private final static byte STREAM_COMPLETE = 0;
+	private final static byte STREAM_ABORTED = 1;
+	
+	/**
+	 * Largest amount of bytes a stream sends in a single chunk, as much as still fits a pooled frame.
+	 */
+	public final static int STREAM_CHUNK_SIZE = FramePool.MAX_SIZE - Frame.HEADER_SIZE - 5;
+	
+	/**
+	 * Largest amount of bytes sendFile writes in a single frame, the connection is held for as long as one
+	 * takes to write.
+	 */
+	public static int FILE_SEGMENT_SIZE = 1 << 30;
+	
+	/**
+	 * Most bytes of a file moved from the connection at once, in between the socket counts as assured.
+	 */
+	private final static int FILE_TRANSFER_SIZE = 1 << 23;
+	
+	/**
+	 * Flag set on the opcode of a frame whose payload has been deflated.
+	 */
+	final static byte OPCODE_COMPRESSED = (byte) 0b10000000;
+	
+	//Capabilities offered in OPCODE_HELLO, each is only used once both ends have offered it
+	final static int CAPABILITY_STRING_DICTIONARY = 1;
+	final static int CAPABILITY_COMPRESSION = 0b10;
+	final static int CAPABILITY_SHARED_MEMORY = 0b100;
+	final static int CAPABILITY_REQUESTS = 0b1000;
+	
+	/**
+	 * Capabilities new sockets offer the foreign socket. Shared memory is only offered by sockets which can
+	 * use it, see canShareMemory().
+	 */
+	static int CAPABILITIES = CAPABILITY_STRING_DICTIONARY | CAPABILITY_COMPRESSION | CAPABILITY_SHARED_MEMORY | CAPABILITY_REQUESTS;
+	
+	private final static byte PROTOCOL_VERSION = 1;
 	
 	/**
 	 * Maximum amount of time (in MS) allotted for the foreign socket to confirm a shutdown.
@@ -38,10 +135,73 @@ public class RichSocket extends AbstractSocket{
 	public static int SHUTDOWN_TIME = 5000;
 	
 	/**
-	 * Maximum amount of time (in MS) to receive a pong after pinging
+	 * Maximum amount of time (in MS) to receive a pong after pinging, unless the connection's round trips
+	 * are slow enough to need longer.
 	 */
 	public static int PONG_ACCEPTANCE_TIME = 8000;
 	
+	/**
+	 * How many of the longest round trips a connection can be expected to take (see SocketMetrics) pings are
+	 * at least spaced apart and pongs at least waited on. Only matters on connections slow enough for that
+	 * to be longer than the ping time or PONG_ACCEPTANCE_TIME.
+	 */
+	public static int RTT_MULTIPLIER = 4;
+	
+	/**
+	 * Maximum amount of time (in MS) to wait on a response to request(Serializable) before failing it.
+	 */
+	public static int REQUEST_TIMEOUT = 30000;
+	
+	/**
+	 * Pongs claiming a longer round trip than this (in NS) didn't come from one of this socket's pings.
+	 */
+	private final static long MAX_PING_RTT = TimeUnit.MINUTES.toNanos(1);
+	
+	/**
+	 * Maximum amount of queued frames handed to the connection in a single write.
+	 */
+	final static int WRITE_BATCH = 64;
+	
+	/**
+	 * Default amount of queued bytes past which a socket stops being writable, and blocking sends start
+	 * waiting for the writer to catch up.
+	 */
+	public final static int DEFAULT_HIGH_WATERMARK = 65536;
+	
+	/**
+	 * Default amount of queued bytes an unwritable socket has to drain to before it's writable again.
+	 */
+	public final static int DEFAULT_LOW_WATERMARK = 32768;
+	
+	/**
+	 * Default amount of bytes that may be queued on a socket at most. Async sends past it are rejected,
+	 * blocking ones wait for the queue to drain.
+	 */
+	public final static int DEFAULT_MAX_QUEUED_BYTES = 16 * 1024 * 1024;
+	
+	/**
+	 * Default amount of bytes received but still waiting on the socket's handlers, past which the socket
+	 * stops reading until they've caught up halfway.
+	 */
+	public final static int DEFAULT_MAX_HANDLER_BACKLOG = 4 * 1024 * 1024;
+	
+	/**
+	 * Longest a blocked sender (or paused reader) parks before checking for itself, in case it missed being
+	 * woken.
+	 */
+	private final static long BLOCKED_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+	
+	/**
+	 * Size (in bytes) of the buffer small frames are coalesced into when the socket has no channel to
+	 * gather them with.
+	 */
+	private final static int WRITE_BUFFER_SIZE = 16384;
+	
+	/**
+	 * Deflater level frames over a socket's compression threshold are compressed at.
+	 */
+	public static int COMPRESSION_LEVEL = Deflater.DEFAULT_COMPRESSION;
+	
 	/**
 	 * Await ran when shutdown is called. This waits for a SHUTDOWN_ACK in order to ensure both
 	 * sides gracefully shut down. It'll try twice to shut down, and if no SHUTDOWN_ACK is heard
@@ -54,21 +214,18 @@ public class RichSocket extends AbstractSocket{
 		}
 		
 		@Override
-		public void schedule(ScheduledExecutorService service){
-			try{
-				service.schedule(() -> {
-					if(RichSocket.this.running){
-						sendShutdown();
-						try{
-							Thread.sleep(SHUTDOWN_TIME / 2);
-						}catch(InterruptedException ignored){
-						}
-						kill();
-					}
-				}, SHUTDOWN_TIME / 2, TimeUnit.MILLISECONDS);
-			}catch(RejectedExecutionException e){
-				Log.log(Level.WARNING, "Shutdown await execution terminated early.");
-			}
+		public int opcode(){
+			return OPCODE_KILL_RET;
+		}
+		
+		@Override
+		public HashedWheelTimer.Timeout schedule(HashedWheelTimer timer){
+			return timer.schedule(() -> {
+				if(RichSocket.this.running){
+					packAndSend(OPCODE_KILL, new byte[8]);
+					track(timer.schedule(() -> kill(CloseReason.SHUTDOWN_TIMEOUT), SHUTDOWN_TIME / 2, TimeUnit.MILLISECONDS, executor));
+				}
+			}, SHUTDOWN_TIME / 2, TimeUnit.MILLISECONDS, executor);
 		}
 	};
 	
@@ -79,25 +236,23 @@ public class RichSocket extends AbstractSocket{
 		}
 		
 		@Override
-		public void schedule(ScheduledExecutorService service){
-			try{
-				service.schedule(() -> {
-					if(overAssurance()){
-						System.out.println("Over assurance");
-						sendPing(true);
-						try{
-							Thread.sleep(PONG_ACCEPTANCE_TIME / 2);
-						}catch(InterruptedException e){
-							e.printStackTrace();
-						}
+		public int opcode(){
+			return OPCODE_PONG;
+		}
+		
+		@Override
+		public HashedWheelTimer.Timeout schedule(HashedWheelTimer timer){
+			long half = pongAcceptanceTime() / 2;
+			return timer.schedule(() -> {
+				if(overAssurance()){
+					sendPing(true);
+					track(timer.schedule(() -> {
 						if(overAssurance()){
-							kill();
+							kill(CloseReason.MISSED_PONG);
 						}
-					}
-				}, PONG_ACCEPTANCE_TIME / 2, TimeUnit.MILLISECONDS);
-			}catch(RejectedExecutionException e){
-				Log.log(Level.WARNING, "Delayed execution of PONG_AWAIT never ran.");
-			}
+					}, half, TimeUnit.MILLISECONDS, executor));
+				}
+			}, half, TimeUnit.MILLISECONDS, executor);
 		}
 	};
 	
@@ -107,6 +262,7 @@ public class RichSocket extends AbstractSocket{
 	 */
 	private final Runnable ENSURE_CONN = () -> {
 		if(overLifeCycleTime() || overSubstance()){
+			this.metrics.reason(overLifeCycleTime() ? CloseReason.LIFE_CYCLE : CloseReason.SUBSTANCE);
 			shutdown();
 			return;
 		}
@@ -116,11 +272,34 @@ public class RichSocket extends AbstractSocket{
 		}
 	};
 	
-	public RichSocket(Socket socket, RichSocketDataForwardingPolicy policy, ScheduledExecutorService executor){
+	/**
+	 * Creates a socket whose keep alive, ping and shutdown deadlines all live on the shared HashedWheelTimer.
+	 */
+	public RichSocket(Socket socket, RichSocketDataForwardingPolicy policy){
+		this(socket, policy, null);
+	}
+	
+	/**
+	 * @param executor Executor the socket's timer callbacks (pings, keep alive checks and shutdowns) run
+	 *                 on. If null they run on the timer's own executor.
+	 */
+	public RichSocket(Socket socket, RichSocketDataForwardingPolicy policy, Executor executor){
+		this(socket, policy, executor, HashedWheelTimer.shared());
+	}
+	
+	public RichSocket(Socket socket, RichSocketDataForwardingPolicy policy, Executor executor, HashedWheelTimer timer){
 		super(socket);
 		this.policy = policy;
 		this.executor = executor;
-		executor.scheduleWithFixedDelay(ENSURE_CONN, pingTime, 1000, TimeUnit.MILLISECONDS);
+		this.timer = timer;
+		decoder.setRawOpcode(OPCODE_FILE);
+		try{
+			//Small frames are already coalesced by the writer, Nagle would only hold them back waiting on ACKs
+			socket.setTcpNoDelay(true);
+		}catch(SocketException e){
+			e.printStackTrace();
+		}
+		scheduleEnsureConn(pingTime);
 	}
 	
 	
@@ -156,178 +335,1824 @@ public class RichSocket extends AbstractSocket{
 	 */
 	private long lastSubstance = System.currentTimeMillis();
 	
+	/**
+	 * Tracks time since the last substantial message sent.
+	 */
+	private long lastSent = System.currentTimeMillis();
+	
 	private final RichSocketDataForwardingPolicy policy;
 	
-	private boolean running = true;
+	private Codec codec = Codec.JAVA;
+	
+	/**
+	 * Capabilities both this and the foreign socket offered, 0 until the foreign socket's HELLO arrives.
+	 */
+	private volatile int negotiated = 0;
+	
+	/**
+	 * Set once the foreign socket's HELLO arrived, from then on negotiated is final.
+	 */
+	private volatile boolean greeted = false;
+	
+	private final StringDictionary dictionary = new StringDictionary();
+	
+	/**
+	 * Payload size (in bytes) from which frames are compressed, -1 to never compress.
+	 */
+	private volatile int compressionThreshold = -1;
+	
+	private final CompressionStats compressionStats = new CompressionStats();
+	
+	//Only touched by the reading thread, created once the first compressed frame arrives
+	private Inflater inflater;
+	
+	private volatile boolean running = true;
+	
+	/**
+	 * Server which accepted the socket, null for client sockets.
+	 */
+	private volatile AbstractServer server;
+	
+	private final Executor executor;
+	
+	/**
+	 * Runs the policy's handlers in place of the reading thread, null to run them inline.
+	 */
+	private volatile Executor handlers;
+	
+	/**
+	 * Bytes of frames handed to the handlers which they haven't finished with, bounded by maxHandlerBacklog.
+	 */
+	private final AtomicLong handlerBacklog = new AtomicLong();
+	
+	private volatile int maxHandlerBacklog = DEFAULT_MAX_HANDLER_BACKLOG;
+	
+	/**
+	 * Set while reading has stopped for the handlers to catch up.
+	 */
+	volatile boolean readsPaused = false;
+	
+	private final HashedWheelTimer timer;
+	
+	/**
+	 * Next run of ENSURE_CONN, cancelled when the socket is killed.
+	 */
+	private volatile HashedWheelTimer.Timeout ensureConn;
+	
+	/**
+	 * Pending timeouts of every outstanding await, cancelled when the socket is killed.
+	 */
+	private final Set<HashedWheelTimer.Timeout> timeouts = ConcurrentHashMap.newKeySet();
+	
+	/**
+	 * Outstanding awaits, a queue per opcode plus one more (at AWAIT_ANY) for awaits offered every frame.
+	 * Created by the first await, most sockets only ever register a handful and many none at all.
+	 */
+	private volatile AtomicReferenceArray<Queue<PendingAwait>> awaits;
+	
+	private final static int AWAIT_ANY = 256;
+	
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private final static AtomicReferenceFieldUpdater<RichSocket, AtomicReferenceArray<Queue<PendingAwait>>> AWAITS =
+			AtomicReferenceFieldUpdater.newUpdater(RichSocket.class, (Class) AtomicReferenceArray.class, "awaits");
+	
+	/**
+	 * Requests sent that haven't been answered yet, keyed by correlation ID.
+	 */
+	private final ConcurrentHashMap<Integer, Call> calls = new ConcurrentHashMap<>();
+	
+	private final AtomicInteger nextCallId = new AtomicInteger();
+	
+	private final AtomicInteger nextStreamId = new AtomicInteger();
+	
+	/**
+	 * Streams being received, keyed by the ID the foreign socket gave them. Streams the policy didn't want
+	 * are kept as DISCARD until they end.
+	 */
+	private final ConcurrentHashMap<Integer, StreamHandler> streams = new ConcurrentHashMap<>();
+	
+	private final FramePool pool = FramePool.shared();
+	
+	//Only touched by the reading thread
+	final FrameDecoder decoder = new FrameDecoder();
+	
+	//Stream the file frame being read belongs to, also only touched by the reading thread
+	private int fileStream;
+	
+	private StreamHandler file;
+	
+	private ReadableByteChannel source;
+	
+	/**
+	 * Encrypts everything sent and received, null for plain connections.
+	 */
+	private volatile TlsChannel tls;
+	
+	/**
+	 * Rings shared with a foreign socket on the same host, null unless one end offered them. Frames only go
+	 * through them once the ends switched over, each direction on its own.
+	 */
+	private volatile SharedMemoryChannel shared;
+	
+	//Set under writing once OPCODE_UPGRADE has been written, by the reading thread once it's been read
+	private volatile boolean writeShared, readShared;
+	
+	/**
+	 * Frames waiting to be written, offered by any thread sending on this socket.
+	 */
+	final FrameQueue outbound = new FrameQueue(pool);
+	
+	private final SocketMetrics metrics = new SocketMetrics(outbound::size);
+	
+	/**
+	 * Held by whichever thread is currently draining outbound, every other thread just queues its frame.
+	 */
+	private final AtomicBoolean writing = new AtomicBoolean();
+	
+	//Only touched while holding writing
+	private final ByteBuffer[] batch = new ByteBuffer[WRITE_BATCH];
+	
+	private byte[] writeBuffer;
+	
+	/**
+	 * Set while a drain has been handed to WRITERS but not yet ran, so bursts of async sends only start one.
+	 */
+	private final AtomicBoolean drainPending = new AtomicBoolean();
+	
+	/**
+	 * Drains the queues of blocking sockets on behalf of async sends, which mustn't write on the caller's
+	 * thread, and reads the sources of outgoing streams.
+	 */
+	private final static Executor WRITERS = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("Writer-", 0).factory());
+	
+	private volatile int highWatermark = DEFAULT_HIGH_WATERMARK;
+	
+	private volatile int lowWatermark = DEFAULT_LOW_WATERMARK;
+	
+	private volatile int maxQueuedBytes = DEFAULT_MAX_QUEUED_BYTES;
 	
-	private final ScheduledExecutorService executor;
+	private final AtomicBoolean writable = new AtomicBoolean(true);
 	
-	private final List<Await> awaits = new ArrayList<>();
+	/**
+	 * Blocking senders waiting for the queue to drain park on belowLowWatermark, which drained() signals.
+	 * Virtual threads park on it without pinning their carrier.
+	 */
+	private final ReentrantLock backpressure = new ReentrantLock();
+	
+	private final Condition belowLowWatermark = backpressure.newCondition();
+	
+	private final Condition handlersCaughtUp = backpressure.newCondition();
+	
+	//Lets drained() skip the lock while nobody is waiting, which is nearly always
+	private final AtomicInteger blockedSenders = new AtomicInteger();
 	
 	public boolean packAndSend(byte opcode, byte[] payload){
 		if(!isRunning()){
 			return false; //False if can't be sent
 		}
 		
-		int size = payload.length; //1 + for opcode
-		byte[] sizeBytes = Utils.intToBytes(size);
+		Frame frame = pool.acquire(payload.length + Frame.HEADER_SIZE).header(opcode, payload.length);
+		frame.buffer.put(payload);
+		return send(frame, opcode);
+	}
+	
+	/**
+	 * Sends the buffer's remaining bytes, leaving its position at its limit. The bytes are copied into a
+	 * pooled frame before this returns, so the buffer may be reused straight away.
+	 */
+	public boolean packAndSend(byte opcode, ByteBuffer payload){
+		if(!isRunning()){
+			return false;
+		}
 		
-		ByteBuffer bb = ByteBuffer.allocate(size + 5); // + 5 for the actual size param itself and the opcode
+		int size = payload.remaining();
+		Frame frame = pool.acquire(size + Frame.HEADER_SIZE).header(opcode, size);
+		frame.buffer.put(payload);
+		return send(frame, opcode);
+	}
+	
+	/**
+	 * Like packAndSend, but never blocks on the connection. The returned future completes once the frame
+	 * has been written, on the writing thread, and fails if the socket closes first or the frame would take
+	 * the queue past its maximum size.
+	 */
+	public CompletableFuture<Void> packAndSendAsync(byte opcode, ByteBuffer payload){
+		CompletableFuture<Void> promise = new CompletableFuture<>();
+		if(!isRunning()){
+			promise.completeExceptionally(new SocketException("Socket is closed."));
+			return promise;
+		}
 		
-		bb.put(sizeBytes); //Content size
-		bb.put(opcode);
-		bb.put(payload);
+		int size = payload.remaining();
+		Frame frame = pool.acquire(size + Frame.HEADER_SIZE).header(opcode, size);
+		frame.buffer.put(payload);
+		send(frame, opcode, promise);
+		return promise;
+	}
+	
+	/**
+	 * Queues a frame packed by one of the packAndSend methods and flushes it.
+	 */
+	private boolean send(Frame frame, byte opcode){
+		return send(frame, opcode, null);
+	}
+	
+	/**
+	 * @param promise Completed once the frame is written, null for blocking sends which flush on the
+	 *                calling thread
+	 * @return False if the socket closed first, or the frame couldn't wait for room in the queue
+	 */
+	private boolean send(Frame frame, byte opcode, CompletableFuture<Void> promise){
+		int threshold = compressionThreshold;
+		if(threshold != -1 && frame.buffer.position() - Frame.HEADER_SIZE >= threshold
+				&& opcode != OPCODE_HELLO && isNegotiated(CAPABILITY_COMPRESSION)){
+			frame = compress(frame, opcode);
+		}
+		frame.buffer.flip();
+		if(!queue(frame, opcode, promise, promise != null)){
+			if(promise == null && running){
+				Log.log(Level.WARNING, "Frame dropped, outbound queue is full and the sending thread can't wait.");
+			}
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Queues a frame whose buffer is flipped and ready to be written, and flushes it. Blocking sends wait
+	 * while the queue is full or over the high watermark, async ones fail instead. Control frames are never
+	 * held back, the connection depends on them getting through however much data is queued.
+	 *
+	 * @param async If true the frame is never written on the calling thread
+	 * @return False if the socket closed first or the frame was rejected for taking the queue past
+	 * maxQueuedBytes
+	 */
+	private boolean queue(Frame frame, byte opcode, CompletableFuture<Void> promise, boolean async){
+		boolean control = isControl(opcode);
+		boolean blocking = !async && !control && canBlock();
+		//Only roughly bounded, concurrent senders may all squeeze in. A single frame always fits an empty queue
+		long queued = outbound.bytes();
+		if(!control && queued > 0 && queued + frame.buffer.limit() > maxQueuedBytes){
+			if(blocking){
+				awaitDrained();
+			}
+			if(!blocking || !running){
+				pool.release(frame);
+				if(promise != null){
+					promise.completeExceptionally(running
+							? new IOException("Outbound queue is full, " + queued + " bytes are waiting to be written.")
+							: new SocketException("Socket is closed."));
+				}
+				return false;
+			}
+		}
 		
-		try{
-			socket.getOutputStream().write(bb.array());
-		}catch(IOException e){
-			//should never execute
-			Log.log(Level.SEVERE, "Socket unexpectedly closed!");
-			e.printStackTrace();
+		frame.promise = promise;
+		outbound.offer(frame);
+		if(outbound.bytes() > highWatermark && writable.compareAndSet(true, false)){
+			policy.writabilityChanged(false);
+			//The writer may have drained the queue in the meantime without noticing
+			drained();
+		}
+		if(async){
+			flushAsync();
+		}else{
+			flush();
+		}
+		//Once the writer falls too far behind sends block like a plain stream write would, instead of queueing without limit
+		if(blocking && outbound.bytes() > highWatermark){
+			awaitDrained();
 		}
 		if(opcode != OPCODE_PING && opcode != OPCODE_PONG){
-			lastSubstance = System.currentTimeMillis();
+			lastSubstance = lastSent = System.currentTimeMillis();
 		}
 		
 		return true;
 	}
 	
-	@Override
-	public boolean send(byte[] bytes){
-		return packAndSend(OPCODE_NONE, bytes);
+	/**
+	 * Packs a frame once into a read-only buffer, to be sent to any number of sockets through sendShared.
+	 */
+	static ByteBuffer packShared(String string){
+		int size = Utils.utf8Length(string);
+		ByteBuffer packed = ByteBuffer.allocate(Frame.HEADER_SIZE + size);
+		packed.putInt(size).put(OPCODE_STRING);
+		Utils.putUtf8(packed, string);
+		return packed.flip().asReadOnlyBuffer();
 	}
 	
-	public boolean send(String string){
-		return packAndSend(OPCODE_STRING, string.getBytes());
+	static ByteBuffer packShared(byte opcode, ByteBuffer payload){
+		ByteBuffer packed = ByteBuffer.allocate(Frame.HEADER_SIZE + payload.remaining());
+		packed.putInt(payload.remaining()).put(opcode).put(payload).flip();
+		return packed.asReadOnlyBuffer();
 	}
 	
-	public void send(Serializable serializable){
-		try{
-			var baos = new ByteArrayOutputStream();
-			var oos = new ObjectOutputStream(baos);
-			oos.writeObject(serializable);
-			packAndSend(OPCODE_OBJECT, baos.toByteArray());
-		}catch(IOException e){
-			e.printStackTrace();
+	/**
+	 * Queues a frame packed by packShared. The socket writes from its own view of the buffer, so the
+	 * frame is neither copied nor compressed, and it's never written on the calling thread.
+	 *
+	 * @return False if the socket isn't running or the frame would take the queue past maxQueuedBytes
+	 */
+	boolean sendShared(ByteBuffer packed){
+		if(!isRunning()){
+			return false;
 		}
+		return queue(new Frame(packed.duplicate(), -1), packed.get(4), null, true);
 	}
 	
-	public void sendPing(){
-		sendPing(false);
-	}
-	
-	private void sendPing(boolean lastTry){
-		byte[] bytes = new byte[8];
-		packAndSend(OPCODE_PING, bytes);
-		if(!lastTry){
-			await(PONG_AWAIT);
+	/**
+	 * Frames the connection itself depends on, which are queued however full the queue is and never
+	 * wait for it to drain. Stream ends are tiny, and without one the foreign socket holds the stream (and
+	 * its handler's channel) open until the connection dies.
+	 */
+	private static boolean isControl(byte opcode){
+		switch(opcode){
+			case OPCODE_PING:
+			case OPCODE_PONG:
+			case OPCODE_KILL:
+			case OPCODE_KILL_RET:
+			case OPCODE_HELLO:
+			case OPCODE_RESPONSE:
+			case OPCODE_STREAM_END:
+			case OPCODE_UPGRADE:
+				return true;
+			default:
+				return false;
 		}
 	}
 	
-	public void sendPong(byte[] payload){
-		packAndSend(OPCODE_PONG, payload);
+	/**
+	 * @return False if the calling thread mustn't wait for the queue to drain, such as the thread that
+	 * drains it
+	 */
+	protected boolean canBlock(){
+		return true;
 	}
 	
-	public void sendShutdown(){
-		byte[] bytes = new byte[8];
-		packAndSend(OPCODE_KILL, bytes);
-		SHUTDOWN_AWAIT.schedule(executor);
+	/**
+	 * Parks the calling thread until the queue is down to the low watermark or the socket closes, writing
+	 * it out on this thread if no other thread is.
+	 */
+	private void awaitDrained(){
+		blockedSenders.incrementAndGet();
+		try{
+			while(running && outbound.bytes() > lowWatermark){
+				flush();
+				backpressure.lock();
+				try{
+					if(running && outbound.bytes() > lowWatermark){
+						belowLowWatermark.awaitNanos(BLOCKED_PARK_NANOS);
+					}
+				}finally{
+					backpressure.unlock();
+				}
+			}
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}finally{
+			blockedSenders.decrementAndGet();
+		}
+	}
+	
+	/**
+	 * Called by the writer after removing written frames, makes the socket writable again and wakes any
+	 * blocked senders once the queue is down to the low watermark.
+	 */
+	void drained(){
+		if(outbound.bytes() > lowWatermark){
+			return;
+		}
+		if(!writable.get() && writable.compareAndSet(false, true)){
+			policy.writabilityChanged(true);
+		}
+		if(blockedSenders.get() > 0){
+			wakeBlockedSenders();
+		}
+	}
+	
+	private void wakeBlockedSenders(){
+		backpressure.lock();
+		try{
+			belowLowWatermark.signalAll();
+		}finally{
+			backpressure.unlock();
+		}
+	}
+	
+	/**
+	 * Deflates a packed frame's payload into a new frame flagged with OPCODE_COMPRESSED, whose payload is
+	 * the original size as a varint followed by the deflated bytes. Frames which don't come out any smaller
+	 * are handed back as they were.
+	 */
+	private Frame compress(Frame frame, byte opcode){
+		long start = CompressionStats.time();
+		ByteBuffer payload = frame.buffer;
+		int size = payload.position() - Frame.HEADER_SIZE;
+		payload.limit(payload.position()).position(Frame.HEADER_SIZE);
+		
+		Frame compressed = pool.acquire(Frame.HEADER_SIZE + size);
+		ByteBuffer buffer = compressed.buffer;
+		buffer.position(Frame.HEADER_SIZE);
+		Utils.putVarInt(buffer, size);
+		buffer.limit(Frame.HEADER_SIZE + size);
+		
+		Deflater deflater = DEFLATER.get();
+		deflater.setLevel(COMPRESSION_LEVEL);
+		deflater.setInput(payload);
+		deflater.finish();
+		while(!deflater.finished() && buffer.hasRemaining()){
+			deflater.deflate(buffer);
+		}
+		boolean smaller = deflater.finished() && buffer.hasRemaining();
+		deflater.reset();
+		long time = CompressionStats.time() - start;
+		
+		if(!smaller){
+			pool.release(compressed);
+			payload.limit(payload.capacity()).position(Frame.HEADER_SIZE + size);
+			compressionStats.incompressible(time);
+			return frame;
+		}
+		
+		int compressedSize = buffer.position() - Frame.HEADER_SIZE;
+		buffer.putInt(0, compressedSize).put(4, (byte) (opcode | OPCODE_COMPRESSED));
+		buffer.limit(buffer.capacity());
+		pool.release(frame);
+		compressionStats.compressed(size, compressedSize, time);
+		return compressed;
+	}
+	
+	/**
+	 * Deflaters are only used for the length of a single compress, so every thread sending keeps one around.
+	 */
+	private final static ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(COMPRESSION_LEVEL));
+	
+	/**
+	 * Writes out everything queued so far. Any thread may call this, but only one at a time ever writes:
+	 * the first to arrive keeps draining the queue, including frames queued by others while it's writing,
+	 * and everybody else returns straight away. Under contention this turns many small sends into a few
+	 * large writes. Subclasses which don't own a blocking connection (such as NioRichSocket) override this
+	 * to hand the queue off to their own writer.
+	 */
+	protected void flush(){
+		drain();
+	}
+	
+	/**
+	 * Writes out everything queued so far without ever blocking the calling thread. If no thread is
+	 * currently writing, a virtual thread is started to drain the queue.
+	 */
+	protected void flushAsync(){
+		if(!writing.get() && drainPending.compareAndSet(false, true)){
+			WRITERS.execute(() -> {
+				drainPending.set(false);
+				drain();
+			});
+		}
+	}
+	
+	private void drain(){
+		//Rechecked after letting go of writing, a frame queued just before that would otherwise be stranded
+		while(!outbound.isEmpty() && writing.compareAndSet(false, true)){
+			try{
+				writeQueued();
+			}catch(IOException e){
+				writeFailed(e);
+			}finally{
+				writing.set(false);
+			}
+		}
+	}
+	
+	/**
+	 * Writes out everything queued. Must hold writing.
+	 */
+	private void writeQueued() throws IOException{
+		int count;
+		while((count = outbound.fill(batch)) > 0){
+			write(batch, count);
+			for(int i = 0; i < count; i++){
+				metrics.sent(batch[i]);
+			}
+			outbound.remove(count);
+			Arrays.fill(batch, 0, count, null);
+			drained();
+		}
+	}
+	
+	/**
+	 * Fails everything queued and kills the socket, once a write broke the connection. Must hold writing.
+	 */
+	private void writeFailed(IOException e){
+		Arrays.fill(batch, null);
+		outbound.clear(e);
+		if(running){
+			TlsChannel tls = this.tls;
+			if(tls != null && tls.handshakeFailed()){
+				//A sender got to the failed handshake before the reader did
+				Log.log(Level.WARNING, "TLS handshake failed, " + e.getMessage());
+				kill(CloseReason.HANDSHAKE);
+				return;
+			}
+			Log.log(Level.SEVERE, "Socket unexpectedly closed!");
+			e.printStackTrace();
+			kill(CloseReason.ERROR);
+		}
+	}
+	
+	/**
+	 * Blocks until every frame in the batch has been written. Sockets backed by a channel gather the
+	 * frames in a single call, otherwise frames are copied into one buffer and written to the stream
+	 * together.
+	 */
+	private void write(ByteBuffer[] frames, int count) throws IOException{
+		GatheringByteChannel channel = writeShared ? shared : tls != null ? tls : socket.getChannel();
+		if(channel != null){
+			while(frames[count - 1].hasRemaining()){
+				channel.write(frames, 0, count);
+			}
+			return;
+		}
+		
+		int total = 0;
+		for(int i = 0; i < count; i++){
+			total += frames[i].remaining();
+		}
+		//Grown only as far as the traffic needs, idle connections shouldn't each hold on to the full size
+		if(writeBuffer == null || writeBuffer.length < Math.min(total, WRITE_BUFFER_SIZE)){
+			writeBuffer = new byte[Math.min(WRITE_BUFFER_SIZE, Math.max(256, Integer.highestOneBit(total - 1) << 1))];
+		}
+		OutputStream os = socket.getOutputStream();
+		int length = 0;
+		for(int i = 0; i < count; i++){
+			ByteBuffer frame = frames[i];
+			int remaining = frame.remaining();
+			if(length + remaining > writeBuffer.length){
+				if(length > 0){
+					os.write(writeBuffer, 0, length);
+					length = 0;
+				}
+				if(remaining > writeBuffer.length){
+					writeLarge(os, frame);
+					continue;
+				}
+			}
+			frame.get(writeBuffer, length, remaining);
+			length += remaining;
+		}
+		if(length > 0){
+			os.write(writeBuffer, 0, length);
+		}
+	}
+	
+	/**
+	 * Writes a frame too big to be worth coalescing. Heap frames are written as is, pooled direct frames
+	 * have no array to hand the stream and go through the write buffer a piece at a time.
+	 */
+	private void writeLarge(OutputStream os, ByteBuffer frame) throws IOException{
+		if(frame.hasArray()){
+			os.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+			frame.position(frame.limit());
+			return;
+		}
+		while(frame.hasRemaining()){
+			int length = Math.min(frame.remaining(), writeBuffer.length);
+			frame.get(writeBuffer, 0, length);
+			os.write(writeBuffer, 0, length);
+		}
+	}
+	
+	@Override
+	public boolean send(byte[] bytes){
+		return packAndSend(OPCODE_NONE, bytes);
+	}
+	
+	public boolean send(ByteBuffer buffer){
+		return packAndSend(OPCODE_NONE, buffer);
+	}
+	
+	public CompletableFuture<Void> sendAsync(byte[] bytes){
+		return packAndSendAsync(OPCODE_NONE, ByteBuffer.wrap(bytes));
+	}
+	
+	public CompletableFuture<Void> sendAsync(ByteBuffer buffer){
+		return packAndSendAsync(OPCODE_NONE, buffer);
+	}
+	
+	public CompletableFuture<Void> sendAsync(String string){
+		CompletableFuture<Void> promise = new CompletableFuture<>();
+		if(!isRunning()){
+			promise.completeExceptionally(new SocketException("Socket is closed."));
+			return promise;
+		}
+		
+		int size = Utils.utf8Length(string);
+		Frame frame = pool.acquire(size + Frame.HEADER_SIZE).header(OPCODE_STRING, size);
+		Utils.putUtf8(frame.buffer, string);
+		send(frame, OPCODE_STRING, promise);
+		return promise;
+	}
+	
+	public CompletableFuture<Void> sendAsync(Serializable serializable){
+		SerializationBuffer buffer = SERIALIZATION_BUFFER.get();
+		try{
+			codec.encode(serializable, buffer);
+			return packAndSendAsync(OPCODE_OBJECT, buffer.wrap());
+		}catch(IOException e){
+			return CompletableFuture.failedFuture(e);
+		}finally{
+			buffer.reset();
+		}
+	}
+	
+	/**
+	 * Sends the string UTF-8 encoded, straight into the frame without an intermediate byte array.
+	 */
+	public boolean send(String string){
+		if(!isRunning()){
+			return false;
+		}
+		
+		int size = Utils.utf8Length(string);
+		Frame frame = pool.acquire(size + Frame.HEADER_SIZE).header(OPCODE_STRING, size);
+		Utils.putUtf8(frame.buffer, string);
+		return send(frame, OPCODE_STRING);
+	}
+	
+	/**
+	 * Sends a string the foreign socket keeps in its dictionary for this connection. The first time a
+	 * string is sent it goes out in full, after that only its ID is sent and the foreign socket receives the
+	 * same String instance it decoded the first time. Meant for the handful of strings (topic names, status
+	 * codes) sent over and over, anything else should use send(String).
+	 * <p>
+	 * Until the foreign socket has agreed to keep a dictionary, or once the dictionary is full, this is
+	 * the same as send(String).
+	 */
+	public boolean sendCached(String string){
+		StringDictionary.Entry entry = isNegotiated(CAPABILITY_STRING_DICTIONARY) ? dictionary.entry(string) : null;
+		if(entry == null){
+			return send(string);
+		}
+		if(!isRunning()){
+			return false;
+		}
+		
+		boolean define = !entry.defined;
+		int id = entry.id << 1 | (define ? 1 : 0);
+		int size = Utils.varIntLength(id) + (define ? Utils.utf8Length(string) : 0);
+		Frame frame = pool.acquire(size + Frame.HEADER_SIZE).header(OPCODE_STRING_ENC, size);
+		Utils.putVarInt(frame.buffer, id);
+		if(define){
+			Utils.putUtf8(frame.buffer, string);
+		}
+		boolean sent = send(frame, OPCODE_STRING_ENC);
+		//Referring to a string whose definition was never queued would get this socket killed
+		if(define && sent){
+			entry.defined = true;
+		}
+		return sent;
+	}
+	
+	/**
+	 * Sends the payload as a frame of the application's own, passed as is to the foreign socket's policy
+	 * through receiveUser.
+	 *
+	 * @param opcode Between FIRST_USER_OPCODE and LAST_USER_OPCODE
+	 */
+	public boolean sendUser(byte opcode, byte[] payload){
+		checkUserOpcode(opcode);
+		return packAndSend(opcode, payload);
+	}
+	
+	public boolean sendUser(byte opcode, ByteBuffer payload){
+		checkUserOpcode(opcode);
+		return packAndSend(opcode, payload);
+	}
+	
+	static void checkUserOpcode(byte opcode){
+		if(opcode < FIRST_USER_OPCODE || opcode > LAST_USER_OPCODE){
+			throw new IllegalArgumentException("Opcode " + opcode + " isn't a user opcode, they range from " + FIRST_USER_OPCODE + " to " + LAST_USER_OPCODE + ".");
+		}
+	}
+	
+	public void send(Serializable serializable){
+		SerializationBuffer buffer = SERIALIZATION_BUFFER.get();
+		try{
+			codec.encode(serializable, buffer);
+			packAndSend(OPCODE_OBJECT, buffer.wrap());
+		}catch(IOException e){
+			e.printStackTrace();
+		}finally{
+			buffer.reset();
+		}
+	}
+	
+	/**
+	 * Sends a request the foreign socket's policy answers through respond, waiting at most REQUEST_TIMEOUT.
+	 *
+	 * @see #request(Serializable, long, TimeUnit)
+	 */
+	public <T> CompletableFuture<T> request(Serializable request){
+		return request(request, REQUEST_TIMEOUT, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Sends a request the foreign socket's policy answers through respond. Every request carries its own
+	 * correlation ID, so any amount of them can be in flight on the one connection at once and answered in
+	 * whatever order the foreign socket gets to them.
+	 * <p>
+	 * The future completes on the thread reading the connection, anything slow chained onto it should use
+	 * the async variants. It fails with a RemoteException if the foreign socket couldn't answer, a
+	 * TimeoutException if no response arrived in time (to within a tick of the timer) and a SocketException
+	 * if the socket closed first. A foreign socket which doesn't answer requests fails them all with a
+	 * ProtocolException, straight away once its HELLO has arrived.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> CompletableFuture<T> request(Serializable request, long timeout, TimeUnit unit){
+		if(!isRunning()){
+			return CompletableFuture.failedFuture(new SocketException("Socket is closed."));
+		}
+		
+		Call call = new Call();
+		int id;
+		do{
+			id = nextCallId.getAndIncrement() & Integer.MAX_VALUE;
+		}while(calls.putIfAbsent(id, call) != null);
+		
+		int callId = id;
+		call.timeout = timer.schedule(() -> {
+			if(calls.remove(callId, call)){
+				call.completeExceptionally(new TimeoutException("No response within " + timeout + " " + unit + "."));
+			}
+		}, timeout, unit, executor);
+		
+		//Checked once the call is registered, a HELLO arriving in the meantime fails it through refuseRequests
+		if(greeted && !isNegotiated(CAPABILITY_REQUESTS)){
+			fail(id, refusal());
+			return (CompletableFuture<T>) call;
+		}
+		
+		SerializationBuffer buffer = SERIALIZATION_BUFFER.get();
+		try{
+			codec.encode(request, buffer);
+			if(!packAndSend(OPCODE_REQUEST, id, buffer.wrap())){
+				fail(id, new SocketException("Socket is closed."));
+			}
+		}catch(IOException e){
+			fail(id, e);
+		}finally{
+			buffer.reset();
+		}
+		
+		//Killed while the request was being sent, kill may already have gone past it
+		if(!running){
+			fail(id, new SocketException("Socket is closed."));
+		}
+		return (CompletableFuture<T>) call;
+	}
+	
+	/**
+	 * Sends the answer to a request, either the object the policy returned or why it couldn't.
+	 */
+	private void respond(int id, Object response, Throwable failure){
+		SerializationBuffer buffer = SERIALIZATION_BUFFER.get();
+		try{
+			if(failure == null){
+				buffer.write(RESPONSE_OK);
+				try{
+					codec.encode(response, buffer);
+				}catch(IOException e){
+					buffer.reset();
+					failure = e;
+				}
+			}
+			if(failure != null){
+				buffer.write(RESPONSE_FAILED);
+				buffer.writeBytes(String.valueOf(failure).getBytes(StandardCharsets.UTF_8));
+			}
+			packAndSend(OPCODE_RESPONSE, id, buffer.wrap());
+		}finally{
+			buffer.reset();
+		}
+	}
+	
+	/**
+	 * Sends a payload prefixed with a correlation ID.
+	 */
+	private boolean packAndSend(byte opcode, int id, ByteBuffer payload){
+		if(!isRunning()){
+			return false;
+		}
+		
+		int size = Utils.varIntLength(id) + payload.remaining();
+		Frame frame = pool.acquire(size + Frame.HEADER_SIZE).header(opcode, size);
+		Utils.putVarInt(frame.buffer, id);
+		frame.buffer.put(payload);
+		return send(frame, opcode);
+	}
+	
+	/**
+	 * Fails every request sent before the foreign socket's HELLO showed it would never answer them.
+	 */
+	private void refuseRequests(){
+		for(Integer id : calls.keySet()){
+			fail(id, refusal());
+		}
+	}
+	
+	private static ProtocolException refusal(){
+		return new ProtocolException("Foreign socket doesn't answer requests.");
+	}
+	
+	private void fail(int id, Throwable failure){
+		Call call = calls.remove(id);
+		if(call != null){
+			call.cancelTimeout();
+			call.completeExceptionally(failure);
+		}
+	}
+	
+	/**
+	 * A request waiting on its response.
+	 */
+	private static class Call extends CompletableFuture<Object>{
+		
+		//Null until scheduled, the socket may be killed in between
+		private volatile HashedWheelTimer.Timeout timeout;
+		
+		void cancelTimeout(){
+			HashedWheelTimer.Timeout timeout = this.timeout;
+			if(timeout != null){
+				timeout.cancel();
+			}
+		}
+	}
+	
+	public CompletableFuture<Void> sendStream(InputStream in){
+		return sendStream(Channels.newChannel(in));
+	}
+	
+	/**
+	 * Sends everything the channel holds as a stream of chunks of at most STREAM_CHUNK_SIZE bytes, which the
+	 * foreign socket's policy receives through receiveStream. The channel is read on a virtual thread, never
+	 * faster than the connection writes, and closed once it's been read to its end. Since every chunk is a
+	 * frame of its own, other messages (heartbeats included) go out in between chunks rather than waiting
+	 * on the whole stream.
+	 *
+	 * @param channel Blocking channel, read until it reports its end
+	 * @return Completed once the whole stream has been written, failed if the channel couldn't be read or
+	 * the socket closed first
+	 */
+	public CompletableFuture<Void> sendStream(ReadableByteChannel channel){
+		CompletableFuture<Void> sent = new CompletableFuture<>();
+		if(!isRunning()){
+			sent.completeExceptionally(new SocketException("Socket is closed."));
+			return sent;
+		}
+		
+		int id = nextStreamId.getAndIncrement() & Integer.MAX_VALUE;
+		WRITERS.execute(() -> {
+			try(channel){
+				sendChunks(id, channel);
+			}catch(IOException e){
+				endStream(id, STREAM_ABORTED);
+				sent.completeExceptionally(e);
+				return;
+			}
+			endStream(id, sent);
+		});
+		return sent;
+	}
+	
+	/**
+	 * Sends a file as a stream, received through the foreign socket's receiveStream like any other. Rather
+	 * than being read into chunks, the file is written in frames of up to FILE_SEGMENT_SIZE bytes by
+	 * FileChannel.transferTo. Sockets backed by a channel then have the kernel send it straight out of the
+	 * page cache (sendfile), others still never copy it onto the heap. Encrypted sockets can't skip the
+	 * engine, and copy it through a buffer like any other write. On the receiving end, handlers from
+	 * StreamHandler.to(FileChannel) move it into their file with transferFrom.
+	 * <p>
+	 * Whatever was queued before a segment is written first, but anything sent during one (heartbeats
+	 * included) waits for it to finish.
+	 *
+	 * @return Completed once the whole file has been written, failed if it couldn't be read or the socket
+	 * closed first
+	 */
+	public CompletableFuture<Void> sendFile(Path path){
+		CompletableFuture<Void> sent = new CompletableFuture<>();
+		if(!isRunning()){
+			sent.completeExceptionally(new SocketException("Socket is closed."));
+			return sent;
+		}
+		
+		int id = nextStreamId.getAndIncrement() & Integer.MAX_VALUE;
+		WRITERS.execute(() -> {
+			try(FileChannel file = FileChannel.open(path, StandardOpenOption.READ)){
+				long size = file.size();
+				for(long position = 0; position < size; position += FILE_SEGMENT_SIZE){
+					sendSegment(id, file, position, (int) Math.min(size - position, FILE_SEGMENT_SIZE));
+				}
+			}catch(IOException e){
+				endStream(id, STREAM_ABORTED);
+				sent.completeExceptionally(e);
+				return;
+			}
+			endStream(id, sent);
+		});
+		return sent;
+	}
+	
+	/**
+	 * Writes part of a file as a single frame, holding writing until it's done. The header promises the
+	 * foreign socket the whole segment, so failing partway through breaks the connection.
+	 */
+	private void sendSegment(int id, FileChannel file, long position, int count) throws IOException{
+		while(!writing.compareAndSet(false, true)){
+			if(!running){
+				throw new SocketException("Socket closed mid file.");
+			}
+			LockSupport.parkNanos(100_000);
+		}
+		try{
+			if(!running){
+				throw new SocketException("Socket closed mid file.");
+			}
+			writeQueued();
+			
+			WritableByteChannel target = writeShared ? shared : tls != null ? tls : socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getOutputStream());
+			ByteBuffer header = ByteBuffer.allocate(Frame.HEADER_SIZE + FrameDecoder.FILE_PREFIX);
+			header.putInt(FrameDecoder.FILE_PREFIX + count).put(OPCODE_FILE).putInt(id).flip();
+			while(header.hasRemaining()){
+				target.write(header);
+			}
+			for(long sent = 0; sent < count; ){
+				long transferred = file.transferTo(position + sent, count - sent, target);
+				if(transferred <= 0){
+					throw new EOFException("File shrank while being sent.");
+				}
+				sent += transferred;
+			}
+			metrics.sent(OPCODE_FILE, header.limit() + count);
+			lastSubstance = lastSent = System.currentTimeMillis();
+		}catch(IOException e){
+			writeFailed(e);
+			throw e;
+		}finally{
+			writing.set(false);
+		}
+		//Frames queued in the meantime only had the chance to ask for a drain while writing was held
+		drain();
+	}
+	
+	/**
+	 * Reads the channel straight into pooled frames, one chunk at a time.
+	 */
+	private void sendChunks(int id, ReadableByteChannel channel) throws IOException{
+		int prefix = Utils.varIntLength(id);
+		boolean end = false;
+		while(!end){
+			if(!running){
+				throw new SocketException("Socket closed mid stream.");
+			}
+			
+			Frame frame = pool.acquire(Frame.HEADER_SIZE + prefix + STREAM_CHUNK_SIZE);
+			ByteBuffer buffer = frame.buffer;
+			buffer.position(Frame.HEADER_SIZE);
+			Utils.putVarInt(buffer, id);
+			buffer.limit(Frame.HEADER_SIZE + prefix + STREAM_CHUNK_SIZE);
+			try{
+				while(buffer.hasRemaining() && !end){
+					end = channel.read(buffer) == -1;
+				}
+			}catch(IOException e){
+				pool.release(frame);
+				throw e;
+			}
+			buffer.limit(buffer.capacity());
+			
+			int size = buffer.position() - Frame.HEADER_SIZE;
+			if(size == prefix){
+				pool.release(frame);
+				continue;
+			}
+			buffer.putInt(0, size).put(4, OPCODE_STREAM_CHUNK);
+			//Held back past the high watermark like any other blocking send
+			if(!send(frame, OPCODE_STREAM_CHUNK)){
+				throw new SocketException("Socket closed mid stream.");
+			}
+		}
+	}
+	
+	private void endStream(int id, CompletableFuture<Void> sent){
+		endStream(id, STREAM_COMPLETE).whenComplete((result, failure) -> {
+			if(failure == null){
+				sent.complete(null);
+			}else{
+				sent.completeExceptionally(failure);
+			}
+		});
+	}
+	
+	private CompletableFuture<Void> endStream(int id, byte status){
+		ByteBuffer end = ByteBuffer.allocate(Utils.varIntLength(id) + 1);
+		Utils.putVarInt(end, id);
+		end.put(status).flip();
+		return packAndSendAsync(OPCODE_STREAM_END, end);
+	}
+	
+	private final static ThreadLocal<SerializationBuffer> SERIALIZATION_BUFFER = ThreadLocal.withInitial(SerializationBuffer::new);
+	
+	/**
+	 * Per thread buffer objects are encoded into before being copied into their frame, instead of a new
+	 * ByteArrayOutputStream (and a copy out of it) for every object.
+	 */
+	private static class SerializationBuffer extends ByteArrayOutputStream{
+		
+		/**
+		 * Buffers grown past this by a large object are let go of afterwards rather than kept around.
+		 */
+		private final static int RETAINED_SIZE = 65536;
+		
+		private ByteBuffer view = ByteBuffer.wrap(buf);
+		
+		ByteBuffer wrap(){
+			if(view.array() != buf){
+				view = ByteBuffer.wrap(buf);
+			}
+			view.limit(count).position(0);
+			return view;
+		}
+		
+		@Override
+		public void reset(){
+			super.reset();
+			if(buf.length > RETAINED_SIZE){
+				buf = new byte[32];
+			}
+		}
+	}
+	
+	public void sendPing(){
+		sendPing(false);
+	}
+	
+	/**
+	 * Tells the foreign socket which capabilities this socket offers, sent once as the connection starts.
+	 */
+	void sendHello(){
+		int capabilities = capabilities();
+		SharedMemoryChannel shared = this.shared;
+		byte[] ring = shared != null && (capabilities & CAPABILITY_SHARED_MEMORY) != 0
+				? shared.file().getFileName().toString().getBytes(StandardCharsets.UTF_8)
+				: null;
+		ByteBuffer hello = ByteBuffer.allocate(ring != null ? 6 + ring.length : 5);
+		hello.put(PROTOCOL_VERSION);
+		hello.putInt(capabilities);
+		if(ring != null){
+			//Name of the ring file offered
+			hello.put((byte) ring.length).put(ring);
+		}
+		hello.flip();
+		packAndSend(OPCODE_HELLO, hello);
+	}
+	
+	/**
+	 * @return Capabilities this socket offers
+	 */
+	private int capabilities(){
+		return canShareMemory() ? CAPABILITIES : CAPABILITIES & ~CAPABILITY_SHARED_MEMORY;
+	}
+	
+	/**
+	 * @return True if both ends offered the capability
+	 */
+	boolean isNegotiated(int capability){
+		return (negotiated & capability) != 0;
+	}
+	
+	/**
+	 * Pings carry the time they were sent, which the foreign socket echoes back in its pong.
+	 */
+	private void sendPing(boolean lastTry){
+		ByteBuffer ping = ByteBuffer.allocate(8);
+		ping.putLong(System.nanoTime()).flip();
+		packAndSend(OPCODE_PING, ping);
+		if(!lastTry){
+			await(PONG_AWAIT);
+		}
+	}
+	
+	public void sendPong(byte[] payload){
+		packAndSend(OPCODE_PONG, payload);
+	}
+	
+	public void sendShutdown(){
+		byte[] bytes = new byte[8];
+		packAndSend(OPCODE_KILL, bytes);
+		await(SHUTDOWN_AWAIT);
 	}
 	
 	public void confirmShutdown(){
 		byte[] bytes = new byte[8];
 		packAndSend(OPCODE_KILL_RET, bytes);
-		kill();
+		kill(CloseReason.SHUTDOWN);
 	}
 	
+	/**
+	 * Registers an await and schedules its timeout. Any thread may register awaits.
+	 */
 	public void await(Await await){
-		await.schedule(executor);
-		awaits.add(await);
+		int opcode = await.opcode();
+		int slot = opcode == Await.ANY_OPCODE ? AWAIT_ANY : opcode & 0xFF;
+		
+		AtomicReferenceArray<Queue<PendingAwait>> awaits = this.awaits;
+		if(awaits == null){
+			AWAITS.compareAndSet(this, null, new AtomicReferenceArray<>(AWAIT_ANY + 1));
+			awaits = this.awaits;
+		}
+		Queue<PendingAwait> queue = awaits.get(slot);
+		if(queue == null){
+			awaits.compareAndSet(slot, null, new ConcurrentLinkedQueue<>());
+			queue = awaits.get(slot);
+		}
+		
+		PendingAwait pending = new PendingAwait(await, queue);
+		queue.offer(pending);
+		pending.schedule(timer);
+		track(pending.timeout);
+	}
+	
+	/**
+	 * @return Amount of awaits registered on the opcode which are still waiting
+	 */
+	int pendingAwaits(int opcode){
+		AtomicReferenceArray<Queue<PendingAwait>> awaits = this.awaits;
+		Queue<PendingAwait> queue = awaits == null ? null : awaits.get(opcode == Await.ANY_OPCODE ? AWAIT_ANY : opcode & 0xFF);
+		return queue == null ? 0 : queue.size();
+	}
+	
+	/**
+	 * Offers a received frame to the awaits waiting on its opcode and on any opcode.
+	 */
+	private void resolveAwaits(byte opcode, byte[] payload){
+		AtomicReferenceArray<Queue<PendingAwait>> awaits = this.awaits;
+		if(awaits != null){
+			resolveAwaits(awaits.get(opcode & 0xFF), opcode, payload);
+			resolveAwaits(awaits.get(AWAIT_ANY), opcode, payload);
+		}
+	}
+	
+	private void resolveAwaits(Queue<PendingAwait> queue, byte opcode, byte[] payload){
+		if(queue == null || queue.isEmpty()){
+			return;
+		}
+		for(Iterator<PendingAwait> iterator = queue.iterator(); iterator.hasNext(); ){
+			PendingAwait pending = iterator.next();
+			if(pending.isDone()){
+				iterator.remove();
+			}else if(pending.await.await(payload, opcode)){
+				iterator.remove();
+				pending.satisfy();
+			}
+		}
+	}
+	
+	/**
+	 * A registered await along with its timeout.
+	 */
+	private static class PendingAwait{
+		
+		PendingAwait(Await await, Queue<PendingAwait> queue){
+			this.await = await;
+			this.queue = queue;
+		}
+		
+		private final Await await;
+		
+		//Where it waits, left as soon as it times out so opcodes that never arrive again don't keep it
+		private final Queue<PendingAwait> queue;
+		
+		private volatile boolean satisfied;
+		
+		//Null until scheduled, the await may already be satisfied by then
+		private volatile HashedWheelTimer.Timeout timeout;
+		
+		void schedule(HashedWheelTimer timer){
+			HashedWheelTimer.Timeout timeout = await.schedule(timer);
+			this.timeout = timeout;
+			timeout.whenExpired(() -> queue.remove(this));
+			if(satisfied){
+				timeout.cancel();
+			}
+		}
+		
+		void satisfy(){
+			satisfied = true;
+			HashedWheelTimer.Timeout timeout = this.timeout;
+			if(timeout != null){
+				timeout.cancel();
+			}
+		}
+		
+		boolean isDone(){
+			HashedWheelTimer.Timeout timeout = this.timeout;
+			return satisfied || timeout != null && timeout.isDone();
+		}
+	}
+	
+	private void track(HashedWheelTimer.Timeout timeout){
+		timeouts.removeIf(HashedWheelTimer.Timeout::isDone);
+		timeouts.add(timeout);
+		if(!running){
+			timeout.cancel();
+		}
+	}
+	
+	private void scheduleEnsureConn(long delay){
+		ensureConn = timer.schedule(() -> {
+			ENSURE_CONN.run();
+			if(running){
+				scheduleEnsureConn(1000);
+			}
+		}, delay, TimeUnit.MILLISECONDS, executor);
+		if(!running){
+			ensureConn.cancel();
+		}
 	}
 	
 	@Override
 	public void run(){
 		Log.log(Level.INFO, "Socket connection opened, listening to " + socket.getInetAddress().getHostName() + ".");
+		TlsChannel tls = this.tls;
+		if(tls != null){
+			try{
+				tls.handshake();
+			}catch(IOException e){
+				if(running){
+					Log.log(Level.WARNING, "TLS handshake failed, " + e.getMessage());
+					kill(e instanceof SSLException ? CloseReason.HANDSHAKE : CloseReason.ERROR);
+				}
+				return;
+			}
+		}
+		sendHello();
+		
+		while(running){
+			read();
+		}
+	}
+	
+	/**
+	 * @return True once the connection has been established longer than its life cycle time allows
+	 */
+	boolean overLifeCycleTime(){
+		return socketLifeCycleTime != -1 && System.currentTimeMillis() - socketLifeCycleTime > creationTime;
+	}
+	
+	private boolean overAssurance(){
+		//Nothing can assure a socket that isn't reading, it's holding the connection up itself
+		return !readsPaused && System.currentTimeMillis() - pingInterval() > lastAssurance;
+	}
+	
+	/**
+	 * Anything received assures the socket the connection is alive, so it only pings once nothing has been
+	 * for the ping time, or a few round trips on slow connections. While the socket is sending substance of
+	 * its own, and the connection keeps taking it (the socket stays writable), it waits as long as a pong
+	 * would be waited on instead. Busy links aren't heartbeat on every few seconds, yet a dead connection
+	 * is still noticed, just a little later.
+	 *
+	 * @return Time (in MS) without receiving anything after which the socket pings
+	 */
+	long pingInterval(){
+		long interval = Math.max(pingTime, RTT_MULTIPLIER * rttTimeout());
+		if(System.currentTimeMillis() - lastSent < interval && writable.get()){
+			interval = Math.max(interval, pongAcceptanceTime());
+		}
+		return interval;
+	}
+	
+	/**
+	 * @return Time (in MS) a ping is given to be answered, PONG_ACCEPTANCE_TIME unless a few round trips
+	 * take longer
+	 */
+	long pongAcceptanceTime(){
+		return Math.max(PONG_ACCEPTANCE_TIME, RTT_MULTIPLIER * rttTimeout());
+	}
+	
+	/**
+	 * @return Longest (in MS) a round trip can reasonably be expected to take, 0 before the first pong
+	 */
+	private long rttTimeout(){
+		return Math.max(0, TimeUnit.NANOSECONDS.toMillis(metrics.rttTimeout()));
+	}
+	
+	private boolean overSubstance(){
+		return System.currentTimeMillis() - keepAliveTime > lastSubstance;
+	}
+	
+	/**
+	 * Reads whatever the stream has available and passes every complete frame on.
+	 */
+	@Override
+	protected void read(){
+		try{
+			TlsChannel tls = this.tls;
+			int read = readShared ? decoder.read(shared) : tls != null ? decoder.read(tls) : decoder.read(socket.getInputStream());
+			if(read == -1){
+				//Foreign socket closed without a shutdown handshake
+				kill(CloseReason.CLOSED);
+				return;
+			}
+			
+			decode();
+		}catch(IOException e){
+			if(running){
+				Log.log(Level.WARNING, "Socket unexpectedly closed while reading!");
+				e.printStackTrace();
+				kill(CloseReason.ERROR);
+			}
+		}
+	}
+	
+	/**
+	 * Directs every frame the decoder has buffered so far, stopping early if one of them kills the socket.
+	 */
+	void decode(){
+		LatencyHistogram handlerTime = metrics.handlerTime();
+		try{
+			while(running){
+				if(decoder.rawRemaining() > 0){
+					if(!receiveFile()){
+						break;
+					}
+					continue;
+				}
+				if(!decoder.next()){
+					break;
+				}
+				
+				byte opcode = decoder.opcode();
+				byte[] payload = decoder.payload();
+				if(opcode == OPCODE_FILE){
+					metrics.received(opcode, payload.length + decoder.rawRemaining());
+					openFile(payload);
+					continue;
+				}
+				metrics.received(opcode, payload.length);
+				if((opcode & OPCODE_COMPRESSED) != 0){
+					opcode &= ~OPCODE_COMPRESSED;
+					payload = decompress(payload);
+				}
+				
+				if(handlerTime == null || handlers != null){
+					directMessage(opcode, payload);
+				}else{
+					long start = System.nanoTime();
+					directMessage(opcode, payload);
+					handlerTime.record(System.nanoTime() - start);
+				}
+			}
+		}catch(ProtocolException e){
+			Log.log(Level.WARNING, "Closing socket, " + e.getMessage());
+			kill(CloseReason.PROTOCOL);
+		}
+	}
+	
+	/**
+	 * Inflates the payload of a frame flagged with OPCODE_COMPRESSED.
+	 *
+	 * @throws ProtocolException If the payload is malformed or would inflate past the maximum frame size
+	 */
+	private byte[] decompress(byte[] payload) throws ProtocolException{
+		long start = CompressionStats.time();
+		ByteBuffer buffer = ByteBuffer.wrap(payload);
+		int size = Utils.getVarInt(buffer);
+		if(size < 0 || size > decoder.getMaxFrameSize()){
+			throw new ProtocolException("Compressed frame of " + size + " bytes exceeds the maximum of " + decoder.getMaxFrameSize() + ".");
+		}
+		
+		if(inflater == null){
+			inflater = new Inflater();
+		}
+		byte[] inflated = new byte[size];
+		try{
+			inflater.setInput(buffer);
+			int length = 0;
+			while(!inflater.finished()){
+				int read = inflater.inflate(inflated, length, size - length);
+				if(read == 0 && !inflater.finished()){
+					throw new ProtocolException("Compressed frame doesn't inflate to its stated " + size + " bytes.");
+				}
+				length += read;
+			}
+			if(length != size){
+				throw new ProtocolException("Compressed frame doesn't inflate to its stated " + size + " bytes.");
+			}
+		}catch(DataFormatException e){
+			throw new ProtocolException("Malformed compressed frame, " + e.getMessage());
+		}finally{
+			inflater.reset();
+		}
+		
+		compressionStats.decompressed(payload.length, size, CompressionStats.time() - start);
+		return inflated;
+	}
+	
+	/**
+	 * Handles a frame's control opcodes right away, everything else is handed to the policy through
+	 * handle(), on the handler executor if the socket has one.
+	 */
+	void directMessage(byte opcode, byte[] payload){
+		this.lastAssurance = System.currentTimeMillis();
+		resolveAwaits(opcode, payload);
+		
+		switch(opcode){
+			case OPCODE_KILL:
+				confirmShutdown();
+				break;
+			case OPCODE_KILL_RET:
+				kill(CloseReason.SHUTDOWN);
+				break;
+			case OPCODE_PING:
+				sendPong(payload);
+				break;
+			case OPCODE_PONG:
+				if(payload.length == 8){
+					long rtt = System.nanoTime() - ByteBuffer.wrap(payload).getLong();
+					if(rtt >= 0 && rtt < MAX_PING_RTT){
+						metrics.pinged(rtt);
+					}
+				}
+				break;
+			case OPCODE_HELLO:
+				//Newer versions may add to the payload, only the capabilities and ring are understood here
+				if(payload.length >= 5){
+					negotiated = ByteBuffer.wrap(payload, 1, 4).getInt() & capabilities();
+					greeted = true;
+					if(!isNegotiated(CAPABILITY_REQUESTS)){
+						refuseRequests();
+					}
+					negotiateSharedMemory(payload);
+				}
+				break;
+			case OPCODE_UPGRADE:
+				upgraded(payload);
+				break;
+			default:
+				setLastSubstance();
+				Executor handlers = this.handlers;
+				if(handlers == null){
+					handle(opcode, payload);
+				}else{
+					int size = Frame.HEADER_SIZE + payload.length;
+					handlerBacklog.addAndGet(size);
+					handlers.execute(() -> {
+						try{
+							timeHandler(opcode, payload);
+						}finally{
+							handled(size);
+						}
+					});
+					//A slow handler would otherwise have every frame the foreign socket sends buffered here
+					if(handlerBacklog.get() > maxHandlerBacklog){
+						pauseReads();
+					}
+				}
+				return;
+		}
+		
+		policy.receive(opcode, payload);
+	}
+	
+	private void handled(int size){
+		if(handlerBacklog.addAndGet(-size) <= maxHandlerBacklog / 2 && readsPaused){
+			resumeReads();
+		}
+	}
+	
+	/**
+	 * @return True once the handlers are far enough behind for reading to pick up again
+	 */
+	boolean handlersCaughtUp(){
+		return handlerBacklog.get() <= maxHandlerBacklog / 2;
+	}
+	
+	/**
+	 * Called on the reading thread once the handlers are more than maxHandlerBacklog behind. Blocks until
+	 * they've caught up halfway, which leaves whatever the foreign socket sends in the meantime to TCP,
+	 * holding the foreign socket back in turn. Pongs aren't read either, so they aren't missed meanwhile.
+	 */
+	protected void pauseReads(){
+		readsPaused = true;
+		backpressure.lock();
+		try{
+			while(running && !handlersCaughtUp()){
+				handlersCaughtUp.awaitNanos(BLOCKED_PARK_NANOS);
+			}
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}finally{
+			readsPaused = false;
+			backpressure.unlock();
+		}
+	}
+	
+	/**
+	 * Called by a handler once pauseReads may return, or when the socket is killed.
+	 */
+	protected void resumeReads(){
+		backpressure.lock();
+		try{
+			handlersCaughtUp.signalAll();
+		}finally{
+			backpressure.unlock();
+		}
+	}
+	
+	/**
+	 * Handles a frame on the handler executor, counting the time it took as the reading thread would have.
+	 */
+	private void timeHandler(byte opcode, byte[] payload){
+		LatencyHistogram handlerTime = metrics.handlerTime();
+		if(handlerTime == null){
+			handle(opcode, payload);
+		}else{
+			long start = System.nanoTime();
+			handle(opcode, payload);
+			handlerTime.record(System.nanoTime() - start);
+		}
+	}
+	
+	/**
+	 * Passes a frame of substance on to the policy.
+	 */
+	private void handle(byte opcode, byte[] payload){
+		switch(opcode){
+			case OPCODE_NONE:
+				policy.receive(payload);
+				break;
+			case OPCODE_STRING:
+				policy.receive(new String(payload, StandardCharsets.UTF_8));
+				break;
+			case OPCODE_STRING_ENC:
+				try{
+					policy.receive(dictionary.decode(payload));
+				}catch(ProtocolException e){
+					Log.log(Level.WARNING, "Improper string received, " + e.getMessage());
+				}
+				break;
+			case OPCODE_REQUEST:
+				receiveRequest(payload);
+				break;
+			case OPCODE_RESPONSE:
+				receiveResponse(payload);
+				break;
+			case OPCODE_STREAM_CHUNK:
+				receiveChunk(payload);
+				break;
+			case OPCODE_STREAM_END:
+				receiveStreamEnd(payload);
+				break;
+			case OPCODE_OBJECT:
+				try{
+					policy.receive(codec.decode(new ByteArrayInputStream(payload)));
+				}catch(IOException e){
+					e.printStackTrace();
+				}catch(ClassNotFoundException e){
+					Log.log(Level.WARNING, "Improper object received.");
+					e.printStackTrace();
+				}
+				break;
+			default:
+				if(opcode >= FIRST_USER_OPCODE){
+					policy.receiveUser(opcode, payload);
+				}
+				break;
+		}
+		
+		policy.receive(opcode, payload);
+	}
+	
+	/**
+	 * Hands a request to the policy and sends back whatever it answers with.
+	 */
+	private void receiveRequest(byte[] payload){
+		int id;
+		Object request;
+		try{
+			ByteBuffer buffer = ByteBuffer.wrap(payload);
+			id = Utils.getVarInt(buffer);
+			request = codec.decode(new ByteArrayInputStream(payload, buffer.position(), buffer.remaining()));
+		}catch(IOException | ClassNotFoundException e){
+			Log.log(Level.WARNING, "Improper request received.");
+			e.printStackTrace();
+			return;
+		}
+		
+		Object response;
+		try{
+			response = policy.respond(request);
+		}catch(Exception e){
+			respond(id, null, e);
+			return;
+		}
+		if(response instanceof CompletionStage<?> stage){
+			stage.whenComplete((result, failure) -> respond(id, result, failure));
+		}else{
+			respond(id, response, null);
+		}
+	}
+	
+	/**
+	 * Completes the request a response answers, responses to requests which already timed out are dropped.
+	 */
+	private void receiveResponse(byte[] payload){
+		ByteBuffer buffer = ByteBuffer.wrap(payload);
+		Call call;
+		try{
+			call = calls.remove(Utils.getVarInt(buffer));
+		}catch(ProtocolException e){
+			Log.log(Level.WARNING, "Improper response received, " + e.getMessage());
+			return;
+		}
+		if(call == null){
+			return;
+		}
+		
+		call.cancelTimeout();
+		if(!buffer.hasRemaining()){
+			call.completeExceptionally(new ProtocolException("Empty response."));
+			return;
+		}
+		byte status = buffer.get();
+		if(status == RESPONSE_FAILED){
+			call.completeExceptionally(new RemoteException(new String(payload, buffer.position(), buffer.remaining(), StandardCharsets.UTF_8)));
+			return;
+		}
+		if(status != RESPONSE_OK){
+			//Whatever follows can't be trusted to be a response, let alone the rest of the connection
+			ProtocolException e = new ProtocolException("Unknown response status " + status + ".");
+			call.completeExceptionally(e);
+			Log.log(Level.WARNING, "Closing socket, " + e.getMessage());
+			kill(CloseReason.PROTOCOL);
+			return;
+		}
+		try{
+			call.complete(codec.decode(new ByteArrayInputStream(payload, buffer.position(), buffer.remaining())));
+		}catch(IOException | ClassNotFoundException e){
+			call.completeExceptionally(e);
+		}
+	}
+	
+	private void receiveChunk(byte[] payload){
+		ByteBuffer buffer = ByteBuffer.wrap(payload);
+		int id;
+		try{
+			id = Utils.getVarInt(buffer);
+		}catch(ProtocolException e){
+			Log.log(Level.WARNING, "Improper stream chunk received, " + e.getMessage());
+			return;
+		}
+		
+		StreamHandler handler = streams.computeIfAbsent(id, this::openStream);
+		if(handler == DISCARD){
+			return;
+		}
+		try{
+			handler.chunk(buffer.slice());
+		}catch(IOException e){
+			streams.put(id, DISCARD);
+			handler.abort(e);
+		}
+	}
+	
+	private void receiveStreamEnd(byte[] payload){
+		ByteBuffer buffer = ByteBuffer.wrap(payload);
+		int id;
+		try{
+			id = Utils.getVarInt(buffer);
+		}catch(ProtocolException e){
+			Log.log(Level.WARNING, "Improper stream end received, " + e.getMessage());
+			return;
+		}
 		
-		while(running){
-			read();
+		StreamHandler handler = streams.remove(id);
+		if(handler == null){
+			//Stream without a single chunk
+			handler = openStream(id);
+		}
+		if(buffer.hasRemaining() && buffer.get() == STREAM_COMPLETE){
+			try{
+				handler.end();
+			}catch(IOException e){
+				Log.log(Level.WARNING, "Failed to finish stream " + id + ", " + e.getMessage());
+			}
+		}else{
+			handler.abort(new IOException("Stream aborted by the foreign socket."));
 		}
 	}
 	
-	private boolean overLifeCycleTime(){
-		return socketLifeCycleTime != -1 && System.currentTimeMillis() - socketLifeCycleTime > creationTime;
+	/**
+	 * Starts on a file frame, whose bytes are then passed on by receiveFile.
+	 */
+	private void openFile(byte[] payload){
+		this.lastAssurance = System.currentTimeMillis();
+		this.fileStream = ByteBuffer.wrap(payload).getInt();
+		this.file = streams.computeIfAbsent(fileStream, this::openStream);
 	}
 	
-	private boolean overAssurance(){
-		return System.currentTimeMillis() - pingTime > lastAssurance;
+	/**
+	 * Passes the current file frame on to its stream, first whatever the decoder already read and then
+	 * straight from the connection.
+	 *
+	 * @return False if the connection has nothing more for now
+	 */
+	private boolean receiveFile(){
+		ByteBuffer buffered = decoder.rawBuffered();
+		if(buffered.hasRemaining()){
+			try{
+				file.chunk(buffered);
+			}catch(IOException e){
+				//The rest of the frame still has to be read past
+				streams.put(fileStream, DISCARD);
+				file.abort(e);
+				file = DISCARD;
+			}
+		}
+		
+		long count = Math.min(decoder.rawRemaining(), FILE_TRANSFER_SIZE);
+		if(count == 0){
+			return true;
+		}
+		try{
+			ReadableByteChannel source = source();
+			long transferred = file.transferFrom(source, count);
+			decoder.rawTransferred(transferred);
+			this.lastAssurance = System.currentTimeMillis();
+			if(transferred < count){
+				if(source instanceof TlsChannel tls ? tls.isBlocking() : !(source instanceof SelectableChannel channel) || channel.isBlocking()){
+					//Foreign socket closed mid frame
+					kill(CloseReason.CLOSED);
+				}
+				return false;
+			}
+			return true;
+		}catch(IOException e){
+			if(running){
+				Log.log(Level.WARNING, "Socket unexpectedly closed while receiving a file!");
+				e.printStackTrace();
+				kill(CloseReason.ERROR);
+			}
+			return false;
+		}
 	}
 	
-	private boolean overSubstance(){
-		return System.currentTimeMillis() - keepAliveTime > lastSubstance;
+	/**
+	 * @return Channel the raw bytes of file frames are read from
+	 */
+	ReadableByteChannel source() throws IOException{
+		if(readShared){
+			return shared;
+		}
+		if(tls != null){
+			return tls;
+		}
+		SocketChannel channel = socket.getChannel();
+		if(channel != null){
+			return channel;
+		}
+		if(source == null){
+			source = Channels.newChannel(socket.getInputStream());
+		}
+		return source;
 	}
 	
-	@Override
-	protected void read(){
-		try{
-			InputStream is = socket.getInputStream();
-			
-			byte[] headers = new byte[4];
-			int ret = is.read(headers);
-			
-			byte opcode = (byte) is.read();
-			
-			int size = Utils.bytesToInt(headers);
-			if(size <= 0) return;
-			byte[] payload = new byte[size];
-			is.read(payload);
-			
-			directMessage(opcode, payload);
-			
-		}catch(IOException e){
-			e.printStackTrace();
-		}
+	private StreamHandler openStream(int id){
+		StreamHandler handler = policy.receiveStream(id);
+		return handler != null ? handler : DISCARD;
 	}
 	
-	private void directMessage(byte opcode, byte[] payload){
-		this.lastAssurance = System.currentTimeMillis();
+	/**
+	 * Stands in for the handler of streams nobody wanted.
+	 */
+	private final static StreamHandler DISCARD = new StreamHandler(){
+		@Override
+		public void chunk(ByteBuffer chunk){
 		
-		switch(opcode){
-			case OPCODE_KILL:
-				confirmShutdown();
-				break;
-			case OPCODE_KILL_RET:
-				kill();
-				break;
-			case OPCODE_PING:
-				sendPong(payload);
-				break;
-			case OPCODE_NONE:
-				policy.receive(payload);
-				setLastSubstance();
-				break;
-			case OPCODE_STRING_ENC:
-			case OPCODE_STRING:
-				policy.receive(new String(payload));
-				setLastSubstance();
-				break;
-			case OPCODE_OBJECT:
-				ByteArrayInputStream bais = new ByteArrayInputStream(payload);
-				try{
-					ObjectInputStream ois = new ObjectInputStream(bais);
-					policy.receive(ois.readObject());
-				}catch(IOException e){
-					e.printStackTrace();
-				}catch(ClassNotFoundException e){
-					Log.log(Level.WARNING, "Improper object received.");
-					e.printStackTrace();
-				}
-				setLastSubstance();
-				break;
 		}
 		
-		policy.receive(opcode, payload);
-	}
+		@Override
+		public void end(){
+		
+		}
+	};
 	
+	/**
+	 * @return Amount of requests sent which haven't been answered, timed out or failed yet
+	 */
+	public int getPendingRequests(){
+		return calls.size();
+	}
 	
 	public int getSocketLifeCycleTime(){
 		return socketLifeCycleTime;
@@ -353,6 +2178,324 @@ public class RichSocket extends AbstractSocket{
 		this.pingTime = pingTime;
 	}
 	
+	public Codec getCodec(){
+		return codec;
+	}
+	
+	public Executor getHandlers(){
+		return handlers;
+	}
+	
+	/**
+	 * Sets the executor the policy's handlers run on, instead of the thread reading the connection. Control
+	 * messages (pings, pongs and shutdowns) are still handled as soon as they're read, so a slow handler
+	 * never holds up pongs. Every message is handed over in the order it arrived, the executor has to run
+	 * them in that order too, like a stripe of a StripedExecutor.
+	 *
+	 * @param handlers Executor to run handlers on, null to run them on the reading thread
+	 */
+	public void setHandlers(Executor handlers){
+		this.handlers = handlers;
+	}
+	
+	public int getMaxHandlerBacklog(){
+		return maxHandlerBacklog;
+	}
+	
+	/**
+	 * Sets how many bytes of received frames may wait on the handlers at most. Past it the socket stops
+	 * reading until they've caught up halfway.
+	 */
+	public void setMaxHandlerBacklog(int maxHandlerBacklog){
+		this.maxHandlerBacklog = maxHandlerBacklog;
+	}
+	
+	/**
+	 * @return Bytes of received frames handed to the handlers which they haven't finished with yet
+	 */
+	public long getHandlerBacklog(){
+		return handlerBacklog.get();
+	}
+	
+	/**
+	 * Encrypts the connection with the engine, which has to be in the right mode for this end. Must be
+	 * called before the socket runs, its read loop (or event loop) then starts with the TLS handshake, and
+	 * nothing is sent until the handshake has finished.
+	 *
+	 * @see TlsContext
+	 */
+	public void startTls(SSLEngine engine){
+		if(tls != null){
+			throw new IllegalStateException("TLS has already been started.");
+		}
+		try{
+			SocketChannel channel = socket.getChannel();
+			this.tls = channel != null
+					? new TlsChannel(engine, channel, channel)
+					: new TlsChannel(engine, Channels.newChannel(socket.getInputStream()), Channels.newChannel(socket.getOutputStream()));
+		}catch(IOException e){
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * @return Channel encrypting the connection, null if it isn't
+	 */
+	TlsChannel tls(){
+		return tls;
+	}
+	
+	/**
+	 * @return True if the connection is encrypted
+	 */
+	public boolean isSecure(){
+		return tls != null;
+	}
+	
+	/**
+	 * @return Session the connection is encrypted with (such as the foreign socket's certificates), null if
+	 * it isn't encrypted
+	 */
+	public SSLSession getTlsSession(){
+		TlsChannel tls = this.tls;
+		return tls != null ? tls.engine().getSession() : null;
+	}
+	
+	/**
+	 * Offers the foreign socket to carry the connection through memory shared between the two processes
+	 * instead of TCP, which saves the syscalls and copies of every frame. Must be called before the socket
+	 * runs. The connection starts out over TCP as usual and switches once the foreign socket has opened the
+	 * rings, foreign sockets which can't (such as ones on another host, NIO ones or older versions) carry
+	 * on over TCP.
+	 *
+	 * @return False if the connection can't be shared, such as an encrypted one or one to another host
+	 * @see SharedMemoryChannel
+	 */
+	public boolean offerSharedMemory(){
+		if(shared != null){
+			throw new IllegalStateException("Shared memory has already been offered.");
+		}
+		if(!canShareMemory()){
+			return false;
+		}
+		try{
+			this.shared = SharedMemoryChannel.create(socket);
+			return true;
+		}catch(IOException e){
+			Log.log(Level.WARNING, "Couldn't create a ring to share, carrying on over TCP. " + e.getMessage());
+			return false;
+		}
+	}
+	
+	/**
+	 * @return True if the foreign socket runs on the same host, and the connection isn't encrypted (the
+	 * rings aren't)
+	 */
+	boolean canShareMemory(){
+		return (CAPABILITIES & CAPABILITY_SHARED_MEMORY) != 0 && tls == null && SharedMemoryChannel.isLocal(socket.getInetAddress());
+	}
+	
+	/**
+	 * @return Rings offered or opened, null if there are none
+	 */
+	SharedMemoryChannel shared(){
+		return shared;
+	}
+	
+	/**
+	 * @return True once both directions of the connection go through shared memory
+	 */
+	public boolean isSharedMemory(){
+		return readShared && writeShared;
+	}
+	
+	/**
+	 * Opens the ring the foreign socket offered in its HELLO and switches writing to it, or gives up on our
+	 * own offer if the foreign socket can't share memory.
+	 */
+	private void negotiateSharedMemory(byte[] hello){
+		SharedMemoryChannel shared = this.shared;
+		if(shared != null){
+			//Our own offer, switched to once the foreign socket upgrades
+			if(!isNegotiated(CAPABILITY_SHARED_MEMORY)){
+				abandonSharedMemory();
+			}
+			return;
+		}
+		if(!isNegotiated(CAPABILITY_SHARED_MEMORY) || hello.length < 6 || hello.length < 6 + (hello[5] & 0xFF) || hello[5] == 0){
+			return;
+		}
+		
+		String ring = new String(hello, 6, hello[5] & 0xFF, StandardCharsets.UTF_8);
+		try{
+			this.shared = SharedMemoryChannel.open(ring, socket);
+		}catch(IOException e){
+			Log.log(Level.WARNING, "Couldn't open the ring offered, carrying on over TCP. " + e.getMessage());
+			packAndSend(OPCODE_UPGRADE, new byte[]{UPGRADE_REFUSED});
+			return;
+		}
+		switchWrites();
+	}
+	
+	/**
+	 * Reads the rest of the connection from the ring once the foreign socket has switched, switching writes
+	 * too if it opened our ring.
+	 */
+	private void upgraded(byte[] payload){
+		SharedMemoryChannel shared = this.shared;
+		if(shared == null || payload.length != 1 || readShared){
+			return;
+		}
+		if(payload[0] != UPGRADE_SWITCHED){
+			abandonSharedMemory();
+			return;
+		}
+		
+		//Nothing else comes over TCP after the upgrade, save for doorbells
+		readShared = true;
+		if(!writeShared){
+			//Both ends have it mapped, nobody needs the file anymore
+			shared.unlink();
+			switchWrites();
+		}
+	}
+	
+	private void abandonSharedMemory(){
+		SharedMemoryChannel shared = this.shared;
+		this.shared = null;
+		if(shared != null){
+			shared.close();
+		}
+	}
+	
+	/**
+	 * Writes everything queued so far over TCP followed by OPCODE_UPGRADE, every frame after which is
+	 * written to the ring instead.
+	 */
+	private void switchWrites(){
+		while(!writing.compareAndSet(false, true)){
+			if(!running){
+				return;
+			}
+			LockSupport.parkNanos(100_000);
+		}
+		try{
+			writeQueued();
+			ByteBuffer upgrade = ByteBuffer.allocate(Frame.HEADER_SIZE + 1);
+			upgrade.putInt(1).put(OPCODE_UPGRADE).put(UPGRADE_SWITCHED).flip();
+			write(new ByteBuffer[]{upgrade}, 1);
+			metrics.sent(OPCODE_UPGRADE, upgrade.limit());
+			writeShared = true;
+		}catch(IOException e){
+			writeFailed(e);
+		}finally{
+			writing.set(false);
+		}
+		drain();
+	}
+	
+	/**
+	 * Sets the codec objects are sent and received with, both ends have to use equivalent codecs.
+	 */
+	public void setCodec(Codec codec){
+		this.codec = codec;
+	}
+	
+	public int getMaxFrameSize(){
+		return decoder.getMaxFrameSize();
+	}
+	
+	/**
+	 * Sets the largest payload (in bytes) this socket accepts. A foreign socket sending anything larger is
+	 * disconnected.
+	 */
+	public void setMaxFrameSize(int maxFrameSize){
+		decoder.setMaxFrameSize(maxFrameSize);
+	}
+	
+	public int getHighWatermark(){
+		return highWatermark;
+	}
+	
+	public int getLowWatermark(){
+		return lowWatermark;
+	}
+	
+	/**
+	 * Sets how many queued bytes make the socket unwritable (high) and how far they have to drain before
+	 * it's writable again (low). Blocking sends wait while the queue is over the high watermark.
+	 */
+	public void setWatermarks(int lowWatermark, int highWatermark){
+		if(lowWatermark < 0 || lowWatermark > highWatermark){
+			throw new IllegalArgumentException("Low watermark " + lowWatermark + " must be between 0 and the high watermark " + highWatermark + ".");
+		}
+		this.lowWatermark = lowWatermark;
+		this.highWatermark = highWatermark;
+	}
+	
+	public int getMaxQueuedBytes(){
+		return maxQueuedBytes;
+	}
+	
+	/**
+	 * Sets how many bytes may be queued at most. Async frames which would take the queue past it are
+	 * rejected, blocking sends wait for it to drain to the low watermark first.
+	 */
+	public void setMaxQueuedBytes(int maxQueuedBytes){
+		this.maxQueuedBytes = maxQueuedBytes;
+	}
+	
+	/**
+	 * @return False while the queue hasn't drained since going over the high watermark, producers should
+	 * hold off until the policy is told it's writable again
+	 */
+	public boolean isWritable(){
+		return writable.get();
+	}
+	
+	/**
+	 * @return Bytes queued but not yet written
+	 */
+	public long getQueuedBytes(){
+		return outbound.bytes();
+	}
+	
+	public int getCompressionThreshold(){
+		return compressionThreshold;
+	}
+	
+	/**
+	 * Sets the payload size (in bytes) from which frames are sent compressed, -1 (the default) to never
+	 * compress. Only applies once the foreign socket has agreed to compression, older sockets are always
+	 * sent frames as is.
+	 */
+	public void setCompressionThreshold(int compressionThreshold){
+		this.compressionThreshold = compressionThreshold;
+	}
+	
+	/**
+	 * @return How much compression has saved this socket in both directions, and what it cost
+	 */
+	public CompressionStats getCompressionStats(){
+		return compressionStats;
+	}
+	
+	/**
+	 * @return Counters of everything this socket has sent and received
+	 */
+	public SocketMetrics getMetrics(){
+		return metrics;
+	}
+	
+	/**
+	 * Folds this socket's metrics into the server that accepted it, and has the server forget the socket
+	 * once it's killed.
+	 */
+	void attach(AbstractServer server){
+		this.server = server;
+		metrics.attach(server.getMetrics(), socket instanceof UnixDomainSocket ? socket.toString() : String.valueOf(socket.getRemoteSocketAddress()));
+	}
+	
 	private void setLastSubstance(){
 		this.lastSubstance = System.currentTimeMillis();
 	}
@@ -369,13 +2512,62 @@ public class RichSocket extends AbstractSocket{
 		return running;
 	}
 	
+	/**
+	 * Kills the connection without a handshake.
+	 */
+	void kill(){
+		kill(CloseReason.KILLED);
+	}
+	
 	/**
 	 * Called when the connection is closed, whether gracefully or unexpectedly.
 	 */
-	private void kill(){
+	void kill(CloseReason reason){
+		metrics.closed(reason);
 		running = false;
-		executor.shutdownNow();
-		
+		ensureConn.cancel();
+		if(blockedSenders.get() > 0){
+			wakeBlockedSenders();
+		}
+		if(readsPaused){
+			resumeReads();
+		}
+		for(HashedWheelTimer.Timeout timeout : timeouts){
+			timeout.cancel();
+		}
+		for(Integer id : calls.keySet()){
+			fail(id, new SocketException("Socket closed before a response arrived (" + reason + ")."));
+		}
+		for(Integer id : streams.keySet()){
+			StreamHandler handler = streams.remove(id);
+			if(handler != null){
+				handler.abort(new SocketException("Socket closed mid stream (" + reason + ")."));
+			}
+		}
+		AbstractServer server = this.server;
+		if(server != null){
+			server.detach(this);
+		}
+		close();
+	}
+	
+	/**
+	 * Releases the underlying connection once the socket has been killed.
+	 */
+	protected void close(){
+		TlsChannel tls = this.tls;
+		if(tls != null){
+			tls.close();
+		}
+		SharedMemoryChannel shared = this.shared;
+		if(shared != null){
+			shared.close();
+		}
+		try{
+			socket.close();
+		}catch(IOException e){
+			e.printStackTrace();
+		}
 	}
 	
 	@Override
@@ -2,8 +2,9 @@ package tech.stdev.core2;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.concurrent.Executors;
+import java.net.UnixDomainSocketAddress;
 import java.util.concurrent.ScheduledExecutorService;
 
 public class RichSocketBuilder{
@@ -30,6 +31,18 @@ public class RichSocketBuilder{
 		return null;
 	}
 	
+	/**
+	 * Connects to a server listening on a Unix domain socket, which skips the TCP stack altogether.
+	 */
+	public static RichSocketBuilder start(UnixDomainSocketAddress address){
+		try{
+			return start(UnixDomainSocket.connect(address));
+		}catch(IOException e){
+			e.printStackTrace();
+		}
+		return null;
+	}
+	
 	public static RichSocketBuilder start(Socket socket){
 		return new RichSocketBuilder(socket);
 	}
@@ -39,27 +52,101 @@ public class RichSocketBuilder{
 	}
 	
 	private Socket socket;
-
+	
 	private RichSocketDataForwardingPolicy forwardingPolicy = null;
 	
 	private ScheduledExecutorService service;
 	
+	private HashedWheelTimer timer = HashedWheelTimer.shared();
+	
+	private StripedExecutor handlers;
+	
+	private int maxHandlerBacklog = RichSocket.DEFAULT_MAX_HANDLER_BACKLOG;
+	
+	private TlsContext tls;
+	
+	private boolean sharedMemory;
+	
 	private int lifeCycle = -1;
 	
 	private int keepAliveTime = -1;
 	
 	private int pingTime = -1;
 	
+	private int maxFrameSize = -1;
+	
+	private Codec codec;
+	
+	private int compressionThreshold = -1;
+	
+	private int lowWatermark = RichSocket.DEFAULT_LOW_WATERMARK;
+	
+	private int highWatermark = RichSocket.DEFAULT_HIGH_WATERMARK;
+	
+	private int maxQueuedBytes = RichSocket.DEFAULT_MAX_QUEUED_BYTES;
+	
+	private boolean virtualThread = ServerDependencyFactory.VIRTUAL_THREADS;
+	
 	public RichSocketBuilder setForwardingPolicy(RichSocketDataForwardingPolicy forwardingPolicy){
 		this.forwardingPolicy = forwardingPolicy;
 		return this;
 	}
 	
+	/**
+	 * Sets the executor the socket's timer callbacks run on. The deadlines themselves always live on the
+	 * timer, this only decides which thread acts on them.
+	 */
 	public RichSocketBuilder setScheduledExecutor(ScheduledExecutorService service){
 		this.service = service;
 		return this;
 	}
 	
+	/**
+	 * Sets the timer the socket's deadlines are scheduled on, by default the process-wide shared timer.
+	 */
+	public RichSocketBuilder setTimer(HashedWheelTimer timer){
+		this.timer = timer;
+		return this;
+	}
+	
+	/**
+	 * Sets the executor the policy's handlers run on, the socket is given a stripe of its own. By default
+	 * handlers run on the thread reading the connection.
+	 */
+	public RichSocketBuilder setHandlers(StripedExecutor handlers){
+		this.handlers = handlers;
+		return this;
+	}
+	
+	/**
+	 * Sets how many bytes may wait on the handlers before the socket stops reading, by default
+	 * DEFAULT_MAX_HANDLER_BACKLOG.
+	 */
+	public RichSocketBuilder setMaxHandlerBacklog(int maxHandlerBacklog){
+		this.maxHandlerBacklog = maxHandlerBacklog;
+		return this;
+	}
+	
+	/**
+	 * Encrypts the connection with TLS, verifying the server against the context's trust. Sockets built
+	 * with the same context resume their sessions when reconnecting to the same server.
+	 */
+	public RichSocketBuilder setTls(TlsContext tls){
+		this.tls = tls;
+		return this;
+	}
+	
+	/**
+	 * Carries the connection through shared memory if the server runs on the same host, over TCP
+	 * otherwise. Ignored for encrypted connections.
+	 *
+	 * @see RichSocket#offerSharedMemory()
+	 */
+	public RichSocketBuilder setSharedMemory(boolean sharedMemory){
+		this.sharedMemory = sharedMemory;
+		return this;
+	}
+	
 	public void setLifeCycle(int lifeCycle){
 		this.lifeCycle = lifeCycle;
 	}
@@ -72,8 +159,67 @@ public class RichSocketBuilder{
 		this.pingTime = pingTime;
 	}
 	
+	/**
+	 * Sets the largest payload (in bytes) the socket accepts, by default FrameDecoder.DEFAULT_MAX_FRAME_SIZE.
+	 */
+	public RichSocketBuilder setMaxFrameSize(int maxFrameSize){
+		this.maxFrameSize = maxFrameSize;
+		return this;
+	}
+	
+	/**
+	 * Sets the codec objects are sent and received with, by default Codec.JAVA.
+	 */
+	public RichSocketBuilder setCodec(Codec codec){
+		this.codec = codec;
+		return this;
+	}
+	
+	/**
+	 * Sets the payload size (in bytes) from which frames are sent compressed, by default -1 (never). Foreign
+	 * sockets which don't support compression are always sent frames as is.
+	 */
+	public RichSocketBuilder setCompressionThreshold(int compressionThreshold){
+		this.compressionThreshold = compressionThreshold;
+		return this;
+	}
+	
+	/**
+	 * Sets how many queued bytes make the socket unwritable (high) and how far they have to drain before
+	 * it's writable again (low), by default DEFAULT_LOW_WATERMARK and DEFAULT_HIGH_WATERMARK.
+	 */
+	public RichSocketBuilder setWatermarks(int lowWatermark, int highWatermark){
+		this.lowWatermark = lowWatermark;
+		this.highWatermark = highWatermark;
+		return this;
+	}
+	
+	/**
+	 * Sets how many bytes may be queued at most, by default DEFAULT_MAX_QUEUED_BYTES.
+	 */
+	public RichSocketBuilder setMaxQueuedBytes(int maxQueuedBytes){
+		this.maxQueuedBytes = maxQueuedBytes;
+		return this;
+	}
+	
+	/**
+	 * Sets whether buildAndRun() reads on a virtual thread. Defaults to ServerDependencyFactory.VIRTUAL_THREADS.
+	 */
+	public RichSocketBuilder setVirtualThread(boolean virtualThread){
+		this.virtualThread = virtualThread;
+		return this;
+	}
+	
+	/**
+	 * Builds the socket and starts its read loop on a new thread, virtual if so configured.
+	 */
+	public RichSocket buildAndRun(){
+		RichSocket richSocket = build();
+		ServerDependencyFactory.connectionThreadFactory(virtualThread).newThread(richSocket).start();
+		return richSocket;
+	}
+	
 	public RichSocket build(){
-		ScheduledExecutorService service = this.service == null ? Executors.newSingleThreadScheduledExecutor() : this.service;
 		RichSocketDataForwardingPolicy policy = this.forwardingPolicy != null ? this.forwardingPolicy: new RichSocketDataForwardingPolicy(){
 			@Override
 			public void receive(String string){
@@ -91,7 +237,7 @@ public class RichSocketBuilder{
 			}
 		};
 		
-		RichSocket richSocket = new RichSocket(socket, policy, service);
+		RichSocket richSocket = new RichSocket(socket, policy, service, timer);
 		if(lifeCycle != -1){
 			richSocket.setSocketLifeCycleTime(lifeCycle);
 		}
@@ -104,6 +250,37 @@ public class RichSocketBuilder{
 			richSocket.setPingTime(pingTime);
 		}
 		
+		if(maxFrameSize != -1){
+			richSocket.setMaxFrameSize(maxFrameSize);
+		}
+		
+		if(codec != null){
+			richSocket.setCodec(codec);
+		}
+		
+		if(compressionThreshold != -1){
+			richSocket.setCompressionThreshold(compressionThreshold);
+		}
+		
+		if(handlers != null){
+			richSocket.setHandlers(handlers.stripe());
+			richSocket.setMaxHandlerBacklog(maxHandlerBacklog);
+		}
+		
+		if(tls != null){
+			//Unix domain sockets have no host to verify or key resumed sessions by, the peer is this one
+			if(socket.getRemoteSocketAddress() instanceof InetSocketAddress address){
+				richSocket.startTls(tls.clientEngine(address.getHostString(), address.getPort()));
+			}else{
+				richSocket.startTls(tls.clientEngine("localhost", -1));
+			}
+		}else if(sharedMemory){
+			richSocket.offerSharedMemory();
+		}
+		
+		richSocket.setWatermarks(lowWatermark, highWatermark);
+		richSocket.setMaxQueuedBytes(maxQueuedBytes);
+		
 		return richSocket;
 	}
 }
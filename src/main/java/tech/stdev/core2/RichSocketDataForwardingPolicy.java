@@ -6,6 +6,47 @@ public interface RichSocketDataForwardingPolicy extends SocketDataForwardingPoli
 	
 	void receive(Object deserialized);
 	
+	/**
+	 * Answers a request sent through the foreign socket's RichSocket.request, on the thread reading the
+	 * connection (or the socket's handlers, if it has any). Whatever is returned is sent back as the
+	 * response. Returning a CompletionStage sends its result once it completes instead, so slow requests
+	 * can be answered out of order without holding up the connection. Anything thrown fails the foreign
+	 * socket's request with a RemoteException.
+	 */
+	default Object respond(Object request) throws Exception{
+		throw new UnsupportedOperationException("Requests aren't answered by this socket.");
+	}
+	
+	/**
+	 * Called when the foreign socket starts sending a stream through RichSocket.sendStream, on the thread
+	 * reading the connection (or the socket's handlers, if it has any and the stream isn't a file).
+	 *
+	 * @param stream ID of the stream, unique among the streams the foreign socket is sending at once
+	 * @return Handler the stream's chunks are passed to as they arrive, null to discard the stream
+	 */
+	default StreamHandler receiveStream(int stream){
+		return null;
+	}
+	
+	/**
+	 * Receives a frame the foreign socket sent through RichSocket.sendUser, on the same thread as every
+	 * other message.
+	 *
+	 * @param opcode Between RichSocket.FIRST_USER_OPCODE and RichSocket.LAST_USER_OPCODE
+	 */
+	default void receiveUser(byte opcode, byte[] payload){
+	
+	}
+	
+	/**
+	 * Called when the socket's outbound queue goes over its high watermark (false) and once it has drained
+	 * back down to its low watermark (true). Producers should hold off sending while it isn't writable.
+	 * Called on whichever thread crossed the watermark, so keep it short.
+	 */
+	default void writabilityChanged(boolean writable){
+	
+	}
+	
 	//Method for testing, gets called every time
 	default void receive(byte opcode, byte[] payload){
 	
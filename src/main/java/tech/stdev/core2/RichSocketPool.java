@@ -0,0 +1,395 @@
+package tech.stdev.core2;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.UnaryOperator;
+
+/**
+ * RichSocketPool keeps warm connections to the endpoints a client calls over and over, so calls don't pay
+ * for a TCP handshake and a new read loop every time.
+ * <p>
+ * Every endpoint gets at most maxPerEndpoint connections. acquire leases one out, reusing the most
+ * recently returned idle connection if there is one and connecting otherwise. Once every connection is
+ * leased out callers wait their turn, first come first served. Leases are handed back by closing them.
+ * <p>
+ * Idle connections are checked before they're handed out. Dead ones and ones past their life cycle time
+ * are thrown away, ones idle for longer than validateAfter are pinged and only handed out once the pong
+ * arrives. Leased connections are never pinged by the pool. Every second idle connections which died or
+ * ran out their life cycle time are evicted as well, rather than waiting to be acquired.
+ * <p>
+ * Pooled connections still shut themselves down once their keep alive time runs out without a message of
+ * substance, pools of mostly idle connections should configure a longer keep alive time on both ends.
+ */
+public class RichSocketPool implements AutoCloseable{
+	
+	/**
+	 * Default time (in MS) a connection may sit idle before it's pinged ahead of being handed out again.
+	 */
+	public final static int DEFAULT_VALIDATE_AFTER = 5000;
+	
+	/**
+	 * Default time (in MS) to wait on the pong of an idle connection being validated.
+	 */
+	public final static int DEFAULT_VALIDATION_TIMEOUT = 1000;
+	
+	/**
+	 * Default time (in MS) to wait on a new connection being established.
+	 */
+	public final static int DEFAULT_CONNECT_TIMEOUT = 5000;
+	
+	public RichSocketPool(int maxPerEndpoint){
+		this(maxPerEndpoint, builder -> builder);
+	}
+	
+	/**
+	 * @param configure Applied to the builder of every new connection, for its policy, timeouts and the like
+	 */
+	public RichSocketPool(int maxPerEndpoint, UnaryOperator<RichSocketBuilder> configure){
+		this(maxPerEndpoint, configure, HashedWheelTimer.shared());
+	}
+	
+	public RichSocketPool(int maxPerEndpoint, UnaryOperator<RichSocketBuilder> configure, HashedWheelTimer timer){
+		if(maxPerEndpoint < 1){
+			throw new IllegalArgumentException("Pool needs room for at least one connection per endpoint.");
+		}
+		this.maxPerEndpoint = maxPerEndpoint;
+		this.configure = configure;
+		this.timer = timer;
+		scheduleEviction();
+	}
+	
+	private final int maxPerEndpoint;
+	
+	private final UnaryOperator<RichSocketBuilder> configure;
+	
+	private final HashedWheelTimer timer;
+	
+	private final ConcurrentHashMap<InetSocketAddress, Endpoint> endpoints = new ConcurrentHashMap<>();
+	
+	private volatile int validateAfter = DEFAULT_VALIDATE_AFTER;
+	
+	private volatile int validationTimeout = DEFAULT_VALIDATION_TIMEOUT;
+	
+	private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	
+	private final LongAdder created = new LongAdder();
+	
+	private final LongAdder evicted = new LongAdder();
+	
+	private volatile HashedWheelTimer.Timeout eviction;
+	
+	private volatile boolean closed = false;
+	
+	public Lease acquire(String host, int port) throws IOException, InterruptedException{
+		return acquire(new InetSocketAddress(host, port));
+	}
+	
+	/**
+	 * Leases a connection to the endpoint, waiting as long as it takes for one to be handed back if they're
+	 * all leased out.
+	 *
+	 * @throws IOException If a new connection had to be established and couldn't be
+	 */
+	public Lease acquire(InetSocketAddress address) throws IOException, InterruptedException{
+		Endpoint endpoint = endpoint(address);
+		endpoint.permits.acquire();
+		return lease(address, endpoint);
+	}
+	
+	/**
+	 * Leases a connection to the endpoint, waiting at most the given time for one to be handed back if
+	 * they're all leased out.
+	 *
+	 * @throws TimeoutException If every connection was still leased out once the time was up
+	 */
+	public Lease acquire(InetSocketAddress address, long timeout, TimeUnit unit) throws IOException, InterruptedException, TimeoutException{
+		Endpoint endpoint = endpoint(address);
+		if(!endpoint.permits.tryAcquire(timeout, unit)){
+			throw new TimeoutException("All " + maxPerEndpoint + " connections to " + address + " are leased out.");
+		}
+		return lease(address, endpoint);
+	}
+	
+	private Endpoint endpoint(InetSocketAddress address) throws IOException{
+		if(closed){
+			throw new IOException("Pool is closed.");
+		}
+		return endpoints.computeIfAbsent(address, a -> new Endpoint(maxPerEndpoint));
+	}
+	
+	/**
+	 * Hands out an idle connection, or a new one if none of them are usable. Must hold a permit, which is
+	 * given back if no connection can be handed out.
+	 */
+	private Lease lease(InetSocketAddress address, Endpoint endpoint) throws IOException, InterruptedException{
+		try{
+			Idle idle;
+			while((idle = endpoint.idle.pollFirst()) != null){
+				if(isUsable(idle)){
+					return new Lease(endpoint, idle.socket);
+				}
+				evict(idle.socket);
+			}
+			return new Lease(endpoint, connect(address));
+		}catch(IOException | InterruptedException | RuntimeException e){
+			endpoint.permits.release();
+			throw e;
+		}
+	}
+	
+	private RichSocket connect(InetSocketAddress address) throws IOException{
+		Socket socket = new Socket();
+		try{
+			socket.connect(address, connectTimeout);
+		}catch(IOException e){
+			socket.close();
+			throw e;
+		}
+		created.increment();
+		return configure.apply(RichSocketBuilder.start(socket)).buildAndRun();
+	}
+	
+	private boolean isUsable(Idle idle) throws InterruptedException{
+		RichSocket socket = idle.socket;
+		if(!socket.isRunning() || socket.overLifeCycleTime()){
+			return false;
+		}
+		return System.currentTimeMillis() - idle.since <= validateAfter || validate(socket);
+	}
+	
+	/**
+	 * Pings the connection, blocking until the pong arrives or the validation timeout runs out.
+	 */
+	private boolean validate(RichSocket socket) throws InterruptedException{
+		CompletableFuture<Void> pong = new CompletableFuture<>();
+		socket.await(new Await(){
+			@Override
+			public boolean await(byte[] payload, byte opcode){
+				pong.complete(null);
+				return true;
+			}
+			
+			@Override
+			public int opcode(){
+				return RichSocket.OPCODE_PONG;
+			}
+			
+			@Override
+			public HashedWheelTimer.Timeout schedule(HashedWheelTimer timer){
+				return timer.schedule(() -> pong.completeExceptionally(new TimeoutException("No pong.")), validationTimeout, TimeUnit.MILLISECONDS);
+			}
+		});
+		socket.sendPing();
+		try{
+			pong.get(validationTimeout, TimeUnit.MILLISECONDS);
+			return true;
+		}catch(ExecutionException | TimeoutException e){
+			return false;
+		}
+	}
+	
+	/**
+	 * Takes a connection handed back by its lease, keeping it around for the next acquire if it's still usable.
+	 */
+	private void release(Endpoint endpoint, RichSocket socket){
+		if(closed || !socket.isRunning() || socket.overLifeCycleTime()){
+			evict(socket);
+		}else{
+			endpoint.idle.offerFirst(new Idle(socket));
+		}
+		endpoint.permits.release();
+	}
+	
+	private void evict(RichSocket socket){
+		evicted.increment();
+		if(socket.isRunning()){
+			socket.shutdown();
+		}
+	}
+	
+	private void scheduleEviction(){
+		eviction = timer.schedule(() -> {
+			evictIdle();
+			if(!closed){
+				scheduleEviction();
+			}
+		}, 1, TimeUnit.SECONDS);
+		if(closed){
+			eviction.cancel();
+		}
+	}
+	
+	/**
+	 * Evicts idle connections which died or ran out their life cycle time.
+	 */
+	private void evictIdle(){
+		for(Endpoint endpoint : endpoints.values()){
+			for(Idle idle : endpoint.idle){
+				RichSocket socket = idle.socket;
+				//Only evicted if an acquire didn't just take it
+				if((!socket.isRunning() || socket.overLifeCycleTime()) && endpoint.idle.remove(idle)){
+					evict(socket);
+				}
+			}
+		}
+	}
+	
+	public int getValidateAfter(){
+		return validateAfter;
+	}
+	
+	/**
+	 * Sets how long (in MS) a connection may sit idle before it's pinged ahead of being handed out again.
+	 */
+	public void setValidateAfter(int validateAfter){
+		this.validateAfter = validateAfter;
+	}
+	
+	public int getValidationTimeout(){
+		return validationTimeout;
+	}
+	
+	public void setValidationTimeout(int validationTimeout){
+		this.validationTimeout = validationTimeout;
+	}
+	
+	public int getConnectTimeout(){
+		return connectTimeout;
+	}
+	
+	public void setConnectTimeout(int connectTimeout){
+		this.connectTimeout = connectTimeout;
+	}
+	
+	/**
+	 * @return Amount of connections established since the pool was created
+	 */
+	public long getCreatedCount(){
+		return created.sum();
+	}
+	
+	/**
+	 * @return Amount of connections thrown away since the pool was created
+	 */
+	public long getEvictedCount(){
+		return evicted.sum();
+	}
+	
+	/**
+	 * @return Amount of connections currently waiting to be leased, over every endpoint
+	 */
+	public int getIdleCount(){
+		int idle = 0;
+		for(Endpoint endpoint : endpoints.values()){
+			idle += endpoint.idle.size();
+		}
+		return idle;
+	}
+	
+	/**
+	 * @return Amount of connections currently leased out, over every endpoint
+	 */
+	public int getLeasedCount(){
+		int leased = 0;
+		for(Endpoint endpoint : endpoints.values()){
+			leased += maxPerEndpoint - endpoint.permits.availablePermits();
+		}
+		return leased;
+	}
+	
+	/**
+	 * Shuts down every idle connection. Leased connections are shut down as their leases are closed.
+	 */
+	@Override
+	public void close(){
+		closed = true;
+		eviction.cancel();
+		for(Endpoint endpoint : endpoints.values()){
+			Idle idle;
+			while((idle = endpoint.idle.pollFirst()) != null){
+				evict(idle.socket);
+			}
+		}
+	}
+	
+	/**
+	 * A connection handed out by acquire, to be closed once the caller is done with it.
+	 */
+	public final class Lease implements AutoCloseable{
+		
+		private Lease(Endpoint endpoint, RichSocket socket){
+			this.endpoint = endpoint;
+			this.socket = socket;
+		}
+		
+		private final Endpoint endpoint;
+		
+		private final RichSocket socket;
+		
+		private boolean released = false;
+		
+		public RichSocket getSocket(){
+			return socket;
+		}
+		
+		/**
+		 * Hands the connection back to the pool.
+		 */
+		@Override
+		public void close(){
+			if(!released){
+				released = true;
+				release(endpoint, socket);
+			}
+		}
+		
+		/**
+		 * Hands the connection back to the pool to be thrown away, for connections left in a state the next
+		 * lease shouldn't inherit.
+		 */
+		public void invalidate(){
+			if(!released){
+				released = true;
+				evict(socket);
+				endpoint.permits.release();
+			}
+		}
+	}
+	
+	private static class Endpoint{
+		
+		Endpoint(int maxConnections){
+			this.permits = new Semaphore(maxConnections, true);
+		}
+		
+		/**
+		 * One for every connection which may be leased out, handed out in the order they were asked for.
+		 */
+		private final Semaphore permits;
+		
+		/**
+		 * Connections waiting to be leased, most recently returned first so the warmest is reused.
+		 */
+		private final ConcurrentLinkedDeque<Idle> idle = new ConcurrentLinkedDeque<>();
+	}
+	
+	private static class Idle{
+		
+		Idle(RichSocket socket){
+			this.socket = socket;
+		}
+		
+		private final RichSocket socket;
+		
+		private final long since = System.currentTimeMillis();
+	}
+}
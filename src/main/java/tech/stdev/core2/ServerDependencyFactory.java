@@ -3,8 +3,15 @@ package tech.stdev.core2;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadFactory;
 
 public class ServerDependencyFactory{
 	
@@ -12,9 +19,80 @@ public class ServerDependencyFactory{
 	
 	public final static int DEFAULT_BACKLOG = 50;
 	
+	/**
+	 * Unix domain socket local servers listen on, in the temp directory and named after DEFAULT_PORT.
+	 */
+	public final static UnixDomainSocketAddress DEFAULT_PATH = UnixDomainSocketAddress.of(Path.of(System.getProperty("java.io.tmpdir"), "core2-" + DEFAULT_PORT + ".sock"));
+	
+	/**
+	 * When enabled, DefaultServer and RichSocketBuilder run every connection's blocking read loop on its
+	 * own virtual thread instead of a platform thread, so mostly idle connections cost next to nothing.
+	 * Defaults to the tech.stdev.virtualThreads system property.
+	 */
+	public static boolean VIRTUAL_THREADS = Boolean.getBoolean("tech.stdev.virtualThreads");
+	
+	/**
+	 * @return Factory for the threads running socket read loops, virtual or not depending on VIRTUAL_THREADS
+	 */
+	public static ThreadFactory connectionThreadFactory(){
+		return connectionThreadFactory(VIRTUAL_THREADS);
+	}
+	
+	public static ThreadFactory connectionThreadFactory(boolean virtual){
+		return virtual ? Thread.ofVirtual().name("RichSocket-", 0).factory() : Thread.ofPlatform().name("RichSocket-", 0).factory();
+	}
+	
 	public static ServerSocket localServerSocket(){
+		return localServerSocket(DEFAULT_BACKLOG);
+	}
+	
+	/**
+	 * @param backlog Maximum amount of connections waiting to be accepted. Servers taking on connections in
+	 *                large bursts need more than DEFAULT_BACKLOG, or the overflow has to retry its handshake.
+	 */
+	public static ServerSocket localServerSocket(int backlog){
+		try{
+			return new ServerSocket(DEFAULT_PORT, backlog, InetAddress.getLoopbackAddress());
+		}catch(IOException e){
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	public static ServerSocketChannel localServerSocketChannel(){
+		try{
+			ServerSocketChannel channel = ServerSocketChannel.open();
+			channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), DEFAULT_PORT), DEFAULT_BACKLOG);
+			return channel;
+		}catch(IOException e){
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	public static ServerSocketChannel localUnixServerSocket(){
+		return localUnixServerSocket(DEFAULT_PATH);
+	}
+	
+	/**
+	 * Binds a channel to the path, which servers take as is. A socket file left behind by a server that didn't
+	 * shut down cleanly is deleted first, binding fails as long as it exists.
+	 */
+	public static ServerSocketChannel localUnixServerSocket(UnixDomainSocketAddress path){
+		try{
+			Files.deleteIfExists(path.getPath());
+			ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+			channel.bind(path, DEFAULT_BACKLOG);
+			return channel;
+		}catch(IOException e){
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	public static Socket localUnixSocket(){
 		try{
-			return new ServerSocket(DEFAULT_PORT, DEFAULT_BACKLOG, InetAddress.getLoopbackAddress());
+			return UnixDomainSocket.connect(DEFAULT_PATH);
 		}catch(IOException e){
 			e.printStackTrace();
 			return null;
@@ -0,0 +1,269 @@
+package tech.stdev.core2;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * Totals over every connection a server has accepted.
+ * <p>
+ * Open connections keep their own counters, which are only summed up when read, and are folded into the
+ * server's totals once they close. Sockets never touch anything shared per frame except the handler time
+ * histogram. Registered with JMX by AbstractServer as tech.stdev.core2:type=Server, along with a
+ * tech.stdev.core2:type=Connection for every open connection.
+ */
+public class ServerMetrics implements ServerMetricsMXBean{
+	
+	/**
+	 * Whether every accepted connection registers its own SocketMetrics with JMX, on top of the server's totals.
+	 */
+	public static boolean REGISTER_CONNECTIONS = true;
+	
+	private final static String DOMAIN = "tech.stdev.core2";
+	
+	//Accept rate is averaged the same way as the load average, over one minute in five second ticks
+	private final static long TICK = TimeUnit.SECONDS.toNanos(5);
+	
+	private final static double ALPHA = 1 - Math.exp(-5 / 60d);
+	
+	public ServerMetrics(){
+		for(int i = 0; i < closed.length; i++){
+			closed[i] = new LongAdder();
+		}
+		for(int i = 0; i < retired.length; i++){
+			retired[i] = new LongAdder();
+		}
+	}
+	
+	private final Set<SocketMetrics> connections = ConcurrentHashMap.newKeySet();
+	
+	private final LongAdder accepted = new LongAdder();
+	
+	private final LongAdder[] closed = new LongAdder[CloseReason.values().length];
+	
+	/**
+	 * Counters of connections which have since closed, indexed the same as SocketMetrics' counters.
+	 */
+	private final LongAdder[] retired = new LongAdder[SocketMetrics.SLOTS];
+	
+	final LatencyHistogram handlerTime = new LatencyHistogram();
+	
+	final LatencyHistogram pingRtt = new LatencyHistogram();
+	
+	private final LongAdder uncounted = new LongAdder();
+	
+	private final AtomicLong lastTick = new AtomicLong(System.nanoTime());
+	
+	private volatile double acceptRate = 0;
+	
+	private String serverName;
+	
+	private ObjectName name;
+	
+	/**
+	 * Registers the metrics with JMX under the server's name, along with every connection opened from then on.
+	 */
+	synchronized void register(String serverName){
+		this.serverName = serverName;
+		this.name = register(this, "type=Server,name=" + ObjectName.quote(serverName));
+	}
+	
+	/**
+	 * Unregisters the server, and every connection still open, from JMX.
+	 */
+	synchronized void unregister(){
+		unregister(name);
+		name = null;
+		for(SocketMetrics connection : connections){
+			unregister(connection.name);
+			connection.name = null;
+		}
+		serverName = null;
+	}
+	
+	void accepted(){
+		tick();
+		accepted.increment();
+		uncounted.increment();
+	}
+	
+	void opened(SocketMetrics connection, String connectionName){
+		connections.add(connection);
+		synchronized(this){
+			if(REGISTER_CONNECTIONS && serverName != null){
+				connection.name = register(connection, "type=Connection,server=" + ObjectName.quote(serverName) + ",name=" + ObjectName.quote(connectionName));
+			}
+		}
+	}
+	
+	void closed(SocketMetrics connection){
+		if(!connections.remove(connection)){
+			return;
+		}
+		CloseReason reason = connection.closeReason();
+		closed[(reason != null ? reason : CloseReason.KILLED).ordinal()].increment();
+		for(int i = 0; i < retired.length; i++){
+			retired[i].add(connection.get(i));
+		}
+		synchronized(this){
+			unregister(connection.name);
+			connection.name = null;
+		}
+	}
+	
+	private static ObjectName register(Object mbean, String properties){
+		try{
+			ObjectName name = new ObjectName(DOMAIN + ":" + properties);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, name);
+			return name;
+		}catch(JMException e){
+			Log.log(Level.WARNING, "Unable to register " + properties + " with JMX, " + e.getMessage());
+			return null;
+		}
+	}
+	
+	private static void unregister(ObjectName name){
+		if(name == null){
+			return;
+		}
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try{
+			if(server.isRegistered(name)){
+				server.unregisterMBean(name);
+			}
+		}catch(JMException e){
+			Log.log(Level.WARNING, "Unable to unregister " + name + " from JMX, " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Folds every tick that's passed since the last into the accept rate.
+	 */
+	private void tick(){
+		long last = lastTick.get();
+		long age = System.nanoTime() - last;
+		if(age < TICK || !lastTick.compareAndSet(last, last + age - age % TICK)){
+			return;
+		}
+		
+		double rate = acceptRate;
+		long ticks = Math.min(age / TICK, 1000); //Anything idle that long has decayed to nothing anyway
+		for(long i = 0; i < ticks; i++){
+			double current = i == 0 ? uncounted.sumThenReset() / (double) TICK : 0;
+			rate += ALPHA * (current - rate);
+		}
+		acceptRate = rate;
+	}
+	
+	private long sum(int slot){
+		long sum = retired[slot].sum();
+		for(SocketMetrics connection : connections){
+			sum += connection.get(slot);
+		}
+		return sum;
+	}
+	
+	private long total(int offset){
+		long total = 0;
+		for(int i = 0; i < SocketMetrics.OPCODES; i++){
+			total += sum(offset + i);
+		}
+		return total;
+	}
+	
+	@Override
+	public int getActiveConnections(){
+		return connections.size();
+	}
+	
+	@Override
+	public long getAcceptedConnections(){
+		return accepted.sum();
+	}
+	
+	@Override
+	public double getAcceptRate(){
+		tick();
+		return acceptRate * TimeUnit.SECONDS.toNanos(1);
+	}
+	
+	@Override
+	public Map<String, Long> getClosedConnections(){
+		Map<String, Long> map = new LinkedHashMap<>();
+		for(CloseReason reason : CloseReason.values()){
+			long count = closed[reason.ordinal()].sum();
+			if(count != 0){
+				map.put(reason.name(), count);
+			}
+		}
+		return map;
+	}
+	
+	@Override
+	public long getFramesIn(){
+		return total(SocketMetrics.FRAMES_IN);
+	}
+	
+	@Override
+	public long getBytesIn(){
+		return total(SocketMetrics.BYTES_IN);
+	}
+	
+	@Override
+	public long getFramesOut(){
+		return total(SocketMetrics.FRAMES_OUT);
+	}
+	
+	@Override
+	public long getBytesOut(){
+		return total(SocketMetrics.BYTES_OUT);
+	}
+	
+	@Override
+	public Map<String, Long> getFramesInByOpcode(){
+		return SocketMetrics.byOpcode(SocketMetrics.FRAMES_IN, this::sum);
+	}
+	
+	@Override
+	public Map<String, Long> getBytesInByOpcode(){
+		return SocketMetrics.byOpcode(SocketMetrics.BYTES_IN, this::sum);
+	}
+	
+	@Override
+	public Map<String, Long> getFramesOutByOpcode(){
+		return SocketMetrics.byOpcode(SocketMetrics.FRAMES_OUT, this::sum);
+	}
+	
+	@Override
+	public Map<String, Long> getBytesOutByOpcode(){
+		return SocketMetrics.byOpcode(SocketMetrics.BYTES_OUT, this::sum);
+	}
+	
+	@Override
+	public long getQueueDepth(){
+		long depth = 0;
+		for(SocketMetrics connection : connections){
+			depth += connection.getQueueDepth();
+		}
+		return depth;
+	}
+	
+	@Override
+	public LatencyHistogram.Snapshot getHandlerTime(){
+		return handlerTime.snapshot();
+	}
+	
+	@Override
+	public LatencyHistogram.Snapshot getPingRtt(){
+		return pingRtt.snapshot();
+	}
+}
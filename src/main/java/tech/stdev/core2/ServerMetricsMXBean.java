@@ -0,0 +1,51 @@
+package tech.stdev.core2;
+
+import java.util.Map;
+
+/**
+ * Totals over every connection a server has accepted, as registered with JMX by the server.
+ */
+public interface ServerMetricsMXBean{
+	
+	int getActiveConnections();
+	
+	long getAcceptedConnections();
+	
+	/**
+	 * @return Connections accepted per second, averaged over roughly the last minute
+	 */
+	double getAcceptRate();
+	
+	/**
+	 * Connections closed so far, keyed by CloseReason.
+	 */
+	Map<String, Long> getClosedConnections();
+	
+	long getFramesIn();
+	
+	long getBytesIn();
+	
+	long getFramesOut();
+	
+	long getBytesOut();
+	
+	Map<String, Long> getFramesInByOpcode();
+	
+	Map<String, Long> getBytesInByOpcode();
+	
+	Map<String, Long> getFramesOutByOpcode();
+	
+	Map<String, Long> getBytesOutByOpcode();
+	
+	/**
+	 * @return Frames queued but not yet written, over every open connection
+	 */
+	long getQueueDepth();
+	
+	/**
+	 * Time spent handling each received frame in directMessage, including the forwarding policy.
+	 */
+	LatencyHistogram.Snapshot getHandlerTime();
+	
+	LatencyHistogram.Snapshot getPingRtt();
+}
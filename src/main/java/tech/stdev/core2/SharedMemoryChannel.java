@@ -0,0 +1,378 @@
+package tech.stdev.core2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Carries a connection's frames between two processes on the same host through a memory-mapped file,
+ * holding a single-producer/single-consumer ring buffer for each direction. Frames are copied straight
+ * into the foreign process's view of the ring, without a syscall per write or read.
+ * <p>
+ * The TCP connection the rings were set up over stays open: closing it is how either end notices the
+ * other is gone, and it doubles as a doorbell. A reader which finds its ring empty for a while flags
+ * that it's going to sleep and blocks reading the socket, the writer that next fills the ring sees the
+ * flag and wakes it with a single byte. Busy connections never sleep, so never pay for the socket.
+ * <p>
+ * Only ever read by one thread and written by one thread at a time, like the socket it replaces.
+ */
+class SharedMemoryChannel implements ByteChannel, GatheringByteChannel{
+	
+	/**
+	 * Directory ring files are created in and looked up from, /dev/shm where there is one so they never
+	 * touch the disk.
+	 */
+	public static Path DIRECTORY = Files.isDirectory(Path.of("/dev/shm")) ? Path.of("/dev/shm") : Path.of(System.getProperty("java.io.tmpdir"));
+	
+	/**
+	 * Size (in bytes) of each direction's ring, a power of two.
+	 */
+	public static int RING_SIZE = 1 << 20;
+	
+	/**
+	 * Times a reader checks an empty ring again before going to sleep, or a writer a full one before
+	 * parking. Never on a single processor, where the other end can't make progress while this one spins.
+	 */
+	static int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 200 : 0;
+	
+	/**
+	 * Longest time (in nanoseconds) a writer parks between checks for room in a full ring.
+	 */
+	static long MAX_PARK = 1_000_000;
+	
+	final static String PREFIX = "core2-";
+	
+	private final static int MAGIC = 0x43325242;
+	
+	private final static int VERSION = 1;
+	
+	//Header layout, followed by each ring's positions. Everything one end writes sits on a cache line of its own
+	private final static int CAPACITY = 8;
+	private final static int TAIL = 0;
+	private final static int HEAD = 64;
+	private final static int SLEEPING = 128;
+	private final static int RING_HEADER = 192;
+	private final static int HEADER_SIZE = 64 + 2 * RING_HEADER;
+	
+	private final static FileAttribute<?> OWNER_ONLY = PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"));
+	
+	private final static VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+	
+	private final static VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+	
+	private SharedMemoryChannel(Path file, MappedByteBuffer map, boolean creator, Socket socket) throws IOException{
+		this.file = file;
+		this.map = map;
+		this.creator = creator;
+		this.capacity = map.getInt(CAPACITY);
+		this.mask = capacity - 1;
+		//The creating end writes the first ring and reads the second
+		int out = creator ? 0 : 1;
+		int outHeader = 64 + out * RING_HEADER, inHeader = 64 + (1 - out) * RING_HEADER;
+		this.outTail = outHeader + TAIL;
+		this.outHead = outHeader + HEAD;
+		this.outSleeping = outHeader + SLEEPING;
+		this.inTail = inHeader + TAIL;
+		this.inHead = inHeader + HEAD;
+		this.inSleeping = inHeader + SLEEPING;
+		this.outData = HEADER_SIZE + out * capacity;
+		this.inData = HEADER_SIZE + (1 - out) * capacity;
+		this.doorbellIn = socket.getInputStream();
+		this.doorbellOut = socket.getOutputStream();
+	}
+	
+	/**
+	 * @return True if the address is one of this host's own
+	 */
+	static boolean isLocal(InetAddress address){
+		if(address == null){
+			return false;
+		}
+		if(address.isLoopbackAddress() || address.isAnyLocalAddress()){
+			return true;
+		}
+		try{
+			return NetworkInterface.getByInetAddress(address) != null;
+		}catch(SocketException e){
+			return false;
+		}
+	}
+	
+	/**
+	 * Creates a new ring file, for the foreign socket to open once it's been told the file's name.
+	 */
+	static SharedMemoryChannel create(Socket socket) throws IOException{
+		int size = RING_SIZE;
+		if(Integer.bitCount(size) != 1 || size < 4096){
+			throw new IllegalStateException("RING_SIZE must be a power of two of at least 4096 bytes.");
+		}
+		Path file = FileSystems.getDefault().supportedFileAttributeViews().contains("posix")
+				? Files.createTempFile(DIRECTORY, PREFIX, ".ring", OWNER_ONLY)
+				: Files.createTempFile(DIRECTORY, PREFIX, ".ring");
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)){
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + 2L * size);
+			map.putInt(CAPACITY, size);
+			map.putInt(4, VERSION);
+			INTS.setVolatile(map, 0, MAGIC);
+			return new SharedMemoryChannel(file, map, true, socket);
+		}catch(IOException | RuntimeException e){
+			Files.deleteIfExists(file);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Opens a ring file the foreign socket created. Only files of ours in DIRECTORY are opened, so a
+	 * foreign socket can't have just any file mapped.
+	 *
+	 * @param name Name of the file within DIRECTORY
+	 * @throws IOException If there's no such ring file, or it isn't one this process may share
+	 */
+	static SharedMemoryChannel open(String name, Socket socket) throws IOException{
+		Path file = DIRECTORY.resolve(name);
+		if(!name.startsWith(PREFIX) || !file.getParent().equals(DIRECTORY) || !Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS)){
+			throw new IOException("Not a ring file, " + name + ".");
+		}
+		if(FileSystems.getDefault().supportedFileAttributeViews().contains("posix")
+				&& !Files.getOwner(file, LinkOption.NOFOLLOW_LINKS).getName().equals(System.getProperty("user.name"))){
+			throw new IOException("Ring file " + name + " belongs to another user.");
+		}
+		
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, LinkOption.NOFOLLOW_LINKS)){
+			long size = channel.size();
+			if(size < HEADER_SIZE){
+				throw new IOException("Ring file " + name + " is too small.");
+			}
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			int capacity = map.getInt(CAPACITY);
+			if((int) INTS.getVolatile(map, 0) != MAGIC || map.getInt(4) != VERSION
+					|| Integer.bitCount(capacity) != 1 || size != HEADER_SIZE + 2L * capacity){
+				throw new IOException("Ring file " + name + " isn't one this version understands.");
+			}
+			return new SharedMemoryChannel(file, map, false, socket);
+		}
+	}
+	
+	private final Path file;
+	
+	private final boolean creator;
+	
+	private final MappedByteBuffer map;
+	
+	private final int capacity;
+	
+	private final int mask;
+	
+	private final int outTail, outHead, outSleeping;
+	
+	private final int inTail, inHead, inSleeping;
+	
+	private final int outData, inData;
+	
+	private final InputStream doorbellIn;
+	
+	private final OutputStream doorbellOut;
+	
+	private final byte[] doorbells = new byte[64];
+	
+	//Only touched by the reading thread
+	private long readPosition;
+	
+	private boolean eof;
+	
+	//Only touched by the writing thread
+	private long writePosition;
+	
+	private volatile boolean open = true;
+	
+	/**
+	 * Reads whatever the ring holds, blocking until it holds something.
+	 *
+	 * @return Amount of bytes read, -1 once the ring is empty and the foreign end has closed the connection
+	 */
+	@Override
+	public int read(ByteBuffer dst) throws IOException{
+		if(!open){
+			throw new ClosedChannelException();
+		}
+		if(!dst.hasRemaining()){
+			return 0;
+		}
+		
+		long available;
+		int idle = 0;
+		while((available = (long) LONGS.getAcquire(map, inTail) - readPosition) == 0){
+			if(eof){
+				return -1;
+			}
+			if(!open){
+				throw new AsynchronousCloseException();
+			}
+			if(idle++ < SPINS){
+				Thread.onSpinWait();
+			}else{
+				sleep();
+				idle = 0;
+			}
+		}
+		if(available < 0 || available > capacity){
+			throw new IOException("Ring corrupted, " + available + " bytes available.");
+		}
+		
+		int length = (int) Math.min(available, dst.remaining());
+		int index = (int) (readPosition & mask);
+		int first = Math.min(length, capacity - index);
+		dst.put(dst.position(), map, inData + index, first);
+		if(first < length){
+			dst.put(dst.position() + first, map, inData, length - first);
+		}
+		dst.position(dst.position() + length);
+		readPosition += length;
+		LONGS.setRelease(map, inHead, readPosition);
+		return length;
+	}
+	
+	/**
+	 * Blocks on the socket until the writer rings, unless something was written while going to sleep.
+	 */
+	private void sleep() throws IOException{
+		INTS.setVolatile(map, inSleeping, 1);
+		//Pairs with the writer publishing before checking the flag, one of the two always sees the other
+		if((long) LONGS.getVolatile(map, inTail) != readPosition){
+			INTS.setVolatile(map, inSleeping, 0);
+			return;
+		}
+		if(doorbellIn.read(doorbells) == -1){
+			eof = true;
+		}
+	}
+	
+	@Override
+	public int write(ByteBuffer src) throws IOException{
+		return (int) write(new ByteBuffer[]{src}, 0, 1);
+	}
+	
+	@Override
+	public long write(ByteBuffer[] srcs) throws IOException{
+		return write(srcs, 0, srcs.length);
+	}
+	
+	/**
+	 * Copies every buffer into the ring, blocking while it's full.
+	 *
+	 * @return Amount of bytes written, always everything the buffers held
+	 */
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException{
+		if(!open){
+			throw new ClosedChannelException();
+		}
+		
+		long written = 0;
+		for(int i = offset; i < offset + length; i++){
+			ByteBuffer src = srcs[i];
+			int idle = 0;
+			while(src.hasRemaining()){
+				long free = capacity - (writePosition - (long) LONGS.getAcquire(map, outHead));
+				if(free == 0){
+					publish();
+					awaitRoom(idle++);
+					continue;
+				}
+				
+				int count = (int) Math.min(free, src.remaining());
+				int index = (int) (writePosition & mask);
+				int first = Math.min(count, capacity - index);
+				map.put(outData + index, src, src.position(), first);
+				if(first < count){
+					map.put(outData, src, src.position() + first, count - first);
+				}
+				src.position(src.position() + count);
+				writePosition += count;
+				written += count;
+				idle = 0;
+			}
+		}
+		publish();
+		return written;
+	}
+	
+	/**
+	 * Makes everything written so far visible to the reader, waking it if it went to sleep.
+	 */
+	private void publish() throws IOException{
+		LONGS.setVolatile(map, outTail, writePosition);
+		if((int) INTS.getVolatile(map, outSleeping) == 1 && INTS.compareAndSet(map, outSleeping, 1, 0)){
+			doorbellOut.write(1);
+		}
+	}
+	
+	/**
+	 * Backs off while the reader catches up, spinning at first then parking for longer and longer.
+	 */
+	private void awaitRoom(int idle) throws IOException{
+		if(!open){
+			throw new AsynchronousCloseException();
+		}
+		if(idle < SPINS){
+			Thread.onSpinWait();
+		}else{
+			LockSupport.parkNanos(Math.min(MAX_PARK, 1000L << Math.min(idle - SPINS, 20)));
+		}
+	}
+	
+	/**
+	 * Deletes the ring file, which both ends keep mapped for as long as they need it. Called once the
+	 * foreign end has opened it, or given up on doing so.
+	 */
+	void unlink(){
+		try{
+			Files.deleteIfExists(file);
+		}catch(IOException e){
+			file.toFile().deleteOnExit();
+		}
+	}
+	
+	Path file(){
+		return file;
+	}
+	
+	@Override
+	public boolean isOpen(){
+		return open;
+	}
+	
+	/**
+	 * Stops reading and writing the ring, and deletes the file if this end created it. The mapping itself
+	 * goes once the channel is collected, the socket it was set up over has to be closed separately.
+	 */
+	@Override
+	public void close(){
+		open = false;
+		if(creator){
+			unlink();
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package tech.stdev.core2;
+
+/**
+ * What a server's broadcasts do with a subscriber which isn't writable, because its outbound queue has
+ * gone over the high watermark and not yet drained. Either way the broadcast carries on to everybody
+ * else without waiting on it.
+ */
+public enum SlowConsumerPolicy{
+	
+	/**
+	 * Leave the subscriber out of the message, it receives the next one it's caught up for.
+	 */
+	SKIP,
+	
+	/**
+	 * Kill the subscriber's connection, for subscribers which mustn't miss a message.
+	 */
+	DISCONNECT
+}
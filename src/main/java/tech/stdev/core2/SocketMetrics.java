@@ -0,0 +1,281 @@
+package tech.stdev.core2;
+
+import javax.management.ObjectName;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntSupplier;
+import java.util.function.IntToLongFunction;
+
+/**
+ * Counts everything a single RichSocket sends and receives, by opcode.
+ * <p>
+ * Counting costs next to nothing: incoming frames are only ever counted by the reading thread and
+ * outgoing frames by whichever thread is currently the writer, so each counter only ever has one thread
+ * updating it at a time and never needs an atomic increment. Once a server has accepted the socket its
+ * metrics are folded into the server's totals, and (by default) registered with JMX for as long as the
+ * connection lasts.
+ */
+public class SocketMetrics implements SocketMetricsMXBean{
+	
+	/**
+	 * Opcodes each get a counter up to this, anything higher shares the last one.
+	 */
+	final static int OPCODES = 16;
+	
+	//Offsets of each set of counters within counts
+	final static int FRAMES_IN = 0, BYTES_IN = OPCODES, FRAMES_OUT = OPCODES * 2, BYTES_OUT = OPCODES * 3;
+	
+	final static int SLOTS = OPCODES * 4;
+	
+	private final static String[] NAMES = new String[OPCODES];
+	
+	static{
+		String[] known = {"NONE", "STRING", "STRING_ENC", "OBJECT", "PING", "PONG", "KILL", "KILL_RET", "HELLO", "REQUEST", "RESPONSE", "STREAM_CHUNK", "STREAM_END", "FILE", "UPGRADE"};
+		for(int i = 0; i < OPCODES; i++){
+			NAMES[i] = i < known.length ? known[i] : String.valueOf(i);
+		}
+		NAMES[OPCODES - 1] = "OTHER";
+	}
+	
+	SocketMetrics(IntSupplier queueDepth){
+		this.queueDepth = queueDepth;
+	}
+	
+	private final AtomicLongArray counts = new AtomicLongArray(SLOTS);
+	
+	private final IntSupplier queueDepth;
+	
+	private volatile long pingRtt = -1;
+	
+	//Round trip time smoothed over every pong and its mean deviation (in NS) as TCP estimates them, -1 until the first
+	private volatile long smoothedRtt = -1;
+	
+	private volatile long rttDeviation;
+	
+	/**
+	 * Every round trip, only allocated once the first pong arrives.
+	 */
+	private volatile LatencyHistogram pingRtts;
+	
+	private volatile CloseReason closeReason;
+	
+	private boolean closed = false;
+	
+	/**
+	 * Server the socket was accepted by, if any.
+	 */
+	private volatile ServerMetrics server;
+	
+	/**
+	 * Name the metrics are registered with JMX under, null if they aren't.
+	 */
+	ObjectName name;
+	
+	/**
+	 * Only called by the reading thread.
+	 */
+	void received(byte opcode, long payloadSize){
+		int slot = slot(opcode);
+		add(FRAMES_IN + slot, 1);
+		add(BYTES_IN + slot, Frame.HEADER_SIZE + payloadSize);
+	}
+	
+	/**
+	 * Only called by the writer, once the frame has been written in full.
+	 */
+	void sent(ByteBuffer frame){
+		sent(frame.get(4), frame.limit());
+	}
+	
+	void sent(byte opcode, long frameSize){
+		int slot = slot(opcode);
+		add(FRAMES_OUT + slot, 1);
+		add(BYTES_OUT + slot, frameSize);
+	}
+	
+	private void add(int slot, long value){
+		counts.setRelease(slot, counts.getPlain(slot) + value);
+	}
+	
+	private static int slot(byte opcode){
+		int slot = opcode & ~RichSocket.OPCODE_COMPRESSED;
+		return Math.min(slot, OPCODES - 1);
+	}
+	
+	/**
+	 * Only called by the reading thread.
+	 */
+	void pinged(long rtt){
+		this.pingRtt = rtt;
+		long smoothed = smoothedRtt;
+		if(smoothed == -1){
+			this.rttDeviation = rtt / 2;
+			this.smoothedRtt = rtt;
+			this.pingRtts = new LatencyHistogram(1);
+		}else{
+			//Gains of 1/4 and 1/8, as in RFC 6298
+			this.rttDeviation += (Math.abs(smoothed - rtt) - rttDeviation) / 4;
+			this.smoothedRtt = smoothed + (rtt - smoothed) / 8;
+		}
+		pingRtts.record(rtt);
+		ServerMetrics server = this.server;
+		if(server != null){
+			server.pingRtt.record(rtt);
+		}
+	}
+	
+	/**
+	 * @return Longest (in NS) a round trip can reasonably be expected to take, the smoothed round trip time
+	 * plus four times its deviation. -1 before the first pong.
+	 */
+	long rttTimeout(){
+		long smoothed = smoothedRtt;
+		return smoothed == -1 ? -1 : smoothed + 4 * rttDeviation;
+	}
+	
+	/**
+	 * @return Histogram the time spent handling each received frame is recorded in, null if it isn't timed
+	 */
+	LatencyHistogram handlerTime(){
+		ServerMetrics server = this.server;
+		return server != null ? server.handlerTime : null;
+	}
+	
+	synchronized void attach(ServerMetrics server, String name){
+		this.server = server;
+		server.opened(this, name);
+		if(closed){
+			server.closed(this);
+		}
+	}
+	
+	/**
+	 * Remembers why the connection is ending, unless it already had a reason to.
+	 */
+	void reason(CloseReason reason){
+		if(closeReason == null){
+			synchronized(this){
+				if(closeReason == null){
+					closeReason = reason;
+				}
+			}
+		}
+	}
+	
+	synchronized void closed(CloseReason reason){
+		reason(reason);
+		if(closed){
+			return;
+		}
+		closed = true;
+		if(server != null){
+			server.closed(this);
+		}
+	}
+	
+	CloseReason closeReason(){
+		return closeReason;
+	}
+	
+	long get(int slot){
+		return counts.get(slot);
+	}
+	
+	private long total(int offset){
+		long total = 0;
+		for(int i = 0; i < OPCODES; i++){
+			total += counts.get(offset + i);
+		}
+		return total;
+	}
+	
+	/**
+	 * @return Every non-zero counter of the set, keyed by opcode name
+	 */
+	static Map<String, Long> byOpcode(int offset, IntToLongFunction counter){
+		Map<String, Long> map = new LinkedHashMap<>();
+		for(int i = 0; i < OPCODES; i++){
+			long count = counter.applyAsLong(offset + i);
+			if(count != 0){
+				map.put(NAMES[i], count);
+			}
+		}
+		return map;
+	}
+	
+	@Override
+	public long getFramesIn(){
+		return total(FRAMES_IN);
+	}
+	
+	@Override
+	public long getBytesIn(){
+		return total(BYTES_IN);
+	}
+	
+	@Override
+	public long getFramesOut(){
+		return total(FRAMES_OUT);
+	}
+	
+	@Override
+	public long getBytesOut(){
+		return total(BYTES_OUT);
+	}
+	
+	@Override
+	public Map<String, Long> getFramesInByOpcode(){
+		return byOpcode(FRAMES_IN, counts::get);
+	}
+	
+	@Override
+	public Map<String, Long> getBytesInByOpcode(){
+		return byOpcode(BYTES_IN, counts::get);
+	}
+	
+	@Override
+	public Map<String, Long> getFramesOutByOpcode(){
+		return byOpcode(FRAMES_OUT, counts::get);
+	}
+	
+	@Override
+	public Map<String, Long> getBytesOutByOpcode(){
+		return byOpcode(BYTES_OUT, counts::get);
+	}
+	
+	@Override
+	public double getPingRtt(){
+		long rtt = pingRtt;
+		return rtt == -1 ? -1 : rtt / 1000d;
+	}
+	
+	@Override
+	public double getSmoothedPingRtt(){
+		long rtt = smoothedRtt;
+		return rtt == -1 ? -1 : rtt / 1000d;
+	}
+	
+	@Override
+	public double getPingRttDeviation(){
+		return smoothedRtt == -1 ? -1 : rttDeviation / 1000d;
+	}
+	
+	@Override
+	public LatencyHistogram.Snapshot getPingRtts(){
+		LatencyHistogram rtts = pingRtts;
+		return rtts != null ? rtts.snapshot() : null;
+	}
+	
+	@Override
+	public int getQueueDepth(){
+		return queueDepth.getAsInt();
+	}
+	
+	@Override
+	public String getCloseReason(){
+		CloseReason reason = closeReason;
+		return reason != null ? reason.name() : null;
+	}
+}
@@ -0,0 +1,59 @@
+package tech.stdev.core2;
+
+import java.util.Map;
+
+/**
+ * A single connection's traffic, as registered with JMX by the server that accepted it.
+ */
+public interface SocketMetricsMXBean{
+	
+	long getFramesIn();
+	
+	long getBytesIn();
+	
+	long getFramesOut();
+	
+	long getBytesOut();
+	
+	/**
+	 * Frames received so far, keyed by opcode name.
+	 */
+	Map<String, Long> getFramesInByOpcode();
+	
+	Map<String, Long> getBytesInByOpcode();
+	
+	Map<String, Long> getFramesOutByOpcode();
+	
+	Map<String, Long> getBytesOutByOpcode();
+	
+	/**
+	 * @return Round trip time of the last answered ping in microseconds, -1 if none has been answered yet
+	 */
+	double getPingRtt();
+	
+	/**
+	 * @return Round trip time in microseconds smoothed over every answered ping, -1 if none has been answered yet
+	 */
+	double getSmoothedPingRtt();
+	
+	/**
+	 * @return Mean deviation of the round trip time from its smoothed value in microseconds, -1 if no ping
+	 * has been answered yet
+	 */
+	double getPingRttDeviation();
+	
+	/**
+	 * @return Round trip times of every answered ping, null if none has been answered yet
+	 */
+	LatencyHistogram.Snapshot getPingRtts();
+	
+	/**
+	 * @return Frames queued but not yet written
+	 */
+	int getQueueDepth();
+	
+	/**
+	 * @return Why the connection ended, null while it's still open
+	 */
+	String getCloseReason();
+}
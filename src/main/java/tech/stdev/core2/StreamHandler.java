@@ -0,0 +1,131 @@
+package tech.stdev.core2;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Receives a stream sent through RichSocket.sendStream a chunk at a time, so however large the stream is
+ * only a single chunk of it is ever held in memory. Every method is called in order on the thread reading
+ * the connection, or the socket's handlers if it has any. Files are the exception, their bytes are always
+ * passed on by the reading thread.
+ */
+public interface StreamHandler{
+	
+	/**
+	 * Largest buffer the default transferFrom reads through.
+	 */
+	int TRANSFER_BUFFER_SIZE = 65536;
+	
+	/**
+	 * @param chunk Next bytes of the stream, only valid for the length of the call. Throwing aborts the
+	 *              stream, the rest of it is discarded.
+	 */
+	void chunk(ByteBuffer chunk) throws IOException;
+	
+	/**
+	 * Moves bytes of a file sent through RichSocket.sendFile straight from the connection. By default
+	 * they're read into a buffer and handed to chunk, handlers able to take them without passing through
+	 * the heap (such as one writing to a FileChannel) should override this. Throwing closes the connection,
+	 * since the rest of the file can't be told apart from the frames after it.
+	 *
+	 * @param source Connection, non-blocking for NIO sockets
+	 * @param count  Most bytes to move
+	 * @return Bytes moved, fewer than count only if a non-blocking source ran dry or the source ended
+	 */
+	default long transferFrom(ReadableByteChannel source, long count) throws IOException{
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, TRANSFER_BUFFER_SIZE));
+		long transferred = 0;
+		while(transferred < count){
+			buffer.clear().limit((int) Math.min(buffer.capacity(), count - transferred));
+			int read = source.read(buffer);
+			if(read <= 0){
+				break;
+			}
+			transferred += read;
+			chunk(buffer.flip());
+		}
+		return transferred;
+	}
+	
+	/**
+	 * Called once the whole stream has been received.
+	 */
+	void end() throws IOException;
+	
+	/**
+	 * Called instead of end if the stream is cut short, whether by the sender, by chunk throwing or by the
+	 * connection closing.
+	 */
+	default void abort(IOException cause){
+	
+	}
+	
+	/**
+	 * @return Handler writing the stream to the channel, which is closed once the stream ends or is aborted
+	 */
+	static StreamHandler to(WritableByteChannel channel){
+		return new StreamHandler(){
+			@Override
+			public void chunk(ByteBuffer chunk) throws IOException{
+				while(chunk.hasRemaining()){
+					channel.write(chunk);
+				}
+			}
+			
+			@Override
+			public void end() throws IOException{
+				channel.close();
+			}
+			
+			@Override
+			public void abort(IOException cause){
+				try{
+					channel.close();
+				}catch(IOException e){
+					e.printStackTrace();
+				}
+			}
+		};
+	}
+	
+	/**
+	 * @return Handler writing the stream to the file from its current position, files sent through
+	 * sendFile are moved into it with transferFrom. The file is closed once the stream ends or is aborted.
+	 */
+	static StreamHandler to(FileChannel file){
+		StreamHandler writer = to((WritableByteChannel) file);
+		return new StreamHandler(){
+			@Override
+			public void chunk(ByteBuffer chunk) throws IOException{
+				writer.chunk(chunk);
+			}
+			
+			@Override
+			public long transferFrom(ReadableByteChannel source, long count) throws IOException{
+				long position = file.position();
+				long transferred = file.transferFrom(source, position, count);
+				file.position(position + transferred);
+				return transferred;
+			}
+			
+			@Override
+			public void end() throws IOException{
+				writer.end();
+			}
+			
+			@Override
+			public void abort(IOException cause){
+				writer.abort(cause);
+			}
+		};
+	}
+	
+	static StreamHandler to(OutputStream out){
+		return to(Channels.newChannel(out));
+	}
+}
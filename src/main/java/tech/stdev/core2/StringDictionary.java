@@ -0,0 +1,96 @@
+package tech.stdev.core2;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Both halves of a connection's string dictionary, which OPCODE_STRING_ENC frames are encoded against.
+ * <p>
+ * The first time a string is sent it's given an ID and sent along with it, every time after that only the
+ * ID is sent. The receiving end keeps the String it decoded under that ID and hands out the same instance
+ * for every repeat, without decoding anything.
+ * <p>
+ * An OPCODE_STRING_ENC payload is a varint holding the ID shifted left by one, with the low bit set if
+ * the UTF-8 encoded string follows.
+ */
+final class StringDictionary{
+	
+	/**
+	 * Maximum amount of strings either end will hold for a single connection.
+	 */
+	final static int MAX_ENTRIES = 4096;
+	
+	/**
+	 * Strings longer than this (in chars) are never worth caching and are just sent as is.
+	 */
+	final static int MAX_LENGTH = 1024;
+	
+	//Sending half, used by any thread sending on the socket
+	private final Map<String, Entry> ids = new ConcurrentHashMap<>();
+	
+	private final AtomicInteger nextId = new AtomicInteger();
+	
+	//Receiving half, touched by one thread at a time in frame order. That's the reading thread, or with
+	//handlers set the connection's stripe, which runs one task at a time and sees everything written
+	//before each task was handed to it
+	private String[] strings = new String[64];
+	
+	/**
+	 * @return The string's entry, or null if it shouldn't (or can no longer) be cached
+	 */
+	Entry entry(String string){
+		Entry entry = ids.get(string);
+		if(entry != null || string.length() > MAX_LENGTH || nextId.get() >= MAX_ENTRIES){
+			return entry;
+		}
+		return ids.computeIfAbsent(string, s -> {
+			int id = nextId.getAndIncrement();
+			return id < MAX_ENTRIES ? new Entry(id) : null;
+		});
+	}
+	
+	/**
+	 * Decodes a received OPCODE_STRING_ENC payload, remembering the string if it's being defined.
+	 */
+	String decode(byte[] payload) throws ProtocolException{
+		ByteBuffer buffer = ByteBuffer.wrap(payload);
+		int value = Utils.getVarInt(buffer);
+		
+		int id = value >>> 1;
+		if(id >= MAX_ENTRIES){
+			throw new ProtocolException("String ID " + id + " is out of range.");
+		}
+		if((value & 1) != 0){
+			if(id >= strings.length){
+				strings = Arrays.copyOf(strings, Math.min(MAX_ENTRIES, Math.max(id + 1, strings.length * 2)));
+			}
+			strings[id] = new String(payload, buffer.position(), buffer.remaining(), StandardCharsets.UTF_8);
+		}
+		
+		String string = id < strings.length ? strings[id] : null;
+		if(string == null){
+			throw new ProtocolException("String ID " + id + " was never defined.");
+		}
+		return string;
+	}
+	
+	static final class Entry{
+		
+		Entry(int id){
+			this.id = id;
+		}
+		
+		final int id;
+		
+		/**
+		 * Set once a frame defining the string has been queued. Until then every sender defines it, so
+		 * no frame referring to the ID can ever be written before the definition.
+		 */
+		volatile boolean defined = false;
+	}
+}
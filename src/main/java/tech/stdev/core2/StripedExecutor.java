@@ -0,0 +1,79 @@
+package tech.stdev.core2;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Runs handlers off the threads reading connections, on a fixed set of threads ("stripes") shared by
+ * every connection.
+ * <p>
+ * Each connection is pinned to a single stripe, handed out in turn by stripe(), so its messages are still
+ * handled one at a time and in the order they arrived. Connections are spread evenly over the stripes, so
+ * as long as there are more connections than stripes every core has handlers to run. A slow handler only
+ * holds up the connections sharing its stripe, never anyone's reads or pongs.
+ */
+public class StripedExecutor{
+	
+	/**
+	 * Process-wide executor with a stripe per core.
+	 */
+	public static StripedExecutor shared(){
+		return Shared.EXECUTOR;
+	}
+	
+	private static class Shared{
+		private final static StripedExecutor EXECUTOR = new StripedExecutor(Runtime.getRuntime().availableProcessors());
+	}
+	
+	public StripedExecutor(int stripes){
+		this(stripes, Thread.ofPlatform().daemon().name("Handler-", 0).factory());
+	}
+	
+	public StripedExecutor(int stripes, ThreadFactory factory){
+		if(stripes < 1){
+			throw new IllegalArgumentException("At least one stripe is needed.");
+		}
+		this.stripes = new ExecutorService[stripes];
+		for(int i = 0; i < stripes; i++){
+			this.stripes[i] = Executors.newSingleThreadExecutor(factory);
+		}
+	}
+	
+	private final ExecutorService[] stripes;
+	
+	private final AtomicInteger next = new AtomicInteger();
+	
+	/**
+	 * @return Executor running everything it's given in order on the next stripe in turn, meant to be kept by
+	 * a single connection. Tasks that throw are logged rather than killing the stripe.
+	 */
+	public Executor stripe(){
+		ExecutorService stripe = stripes[Math.floorMod(next.getAndIncrement(), stripes.length)];
+		return task -> stripe.execute(() -> {
+			try{
+				task.run();
+			}catch(RuntimeException e){
+				Log.log(Level.SEVERE, "Handler failed!");
+				e.printStackTrace();
+			}
+		});
+	}
+	
+	public int getStripes(){
+		return stripes.length;
+	}
+	
+	/**
+	 * Lets every stripe finish what it's been given, anything given afterwards is rejected with a
+	 * RejectedExecutionException.
+	 */
+	public void shutdown(){
+		for(ExecutorService stripe : stripes){
+			stripe.shutdown();
+		}
+	}
+}
@@ -0,0 +1,461 @@
+package tech.stdev.core2;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Encrypts a connection with an SSLEngine, reading and writing plain bytes on one side and TLS records on
+ * the other. Works over blocking streams and channels alike, as well as non-blocking channels driven by
+ * an EventLoop, where the handshake simply progresses a little every time the channel is read or written.
+ * <p>
+ * One thread may read while another writes. The packet buffers records are unwrapped from and wrapped
+ * into come out of the FramePool and go back as soon as they're empty, so idle connections hold on to none.
+ */
+class TlsChannel implements ByteChannel, GatheringByteChannel{
+	
+	/**
+	 * Longest (in MS) a blocking write waits on the handshake before failing.
+	 */
+	static int HANDSHAKE_TIMEOUT = 10000;
+	
+	/**
+	 * Records wrapped into the outgoing packet buffer before it's written out.
+	 */
+	private final static int RECORDS_PER_WRITE = 3;
+	
+	private final static ByteBuffer EMPTY = ByteBuffer.allocate(0);
+	
+	TlsChannel(SSLEngine engine, ReadableByteChannel in, WritableByteChannel out) throws SSLException{
+		this.engine = engine;
+		this.in = in;
+		this.out = out;
+		engine.beginHandshake();
+	}
+	
+	private final SSLEngine engine;
+	
+	private final ReadableByteChannel in;
+	
+	private final WritableByteChannel out;
+	
+	private final FramePool pool = FramePool.shared();
+	
+	/**
+	 * Completed once the initial handshake has finished, failed if it couldn't be.
+	 */
+	private final CompletableFuture<Void> handshaken = new CompletableFuture<>();
+	
+	//Only touched by the reading thread, null while empty
+	private Frame netIn, appIn;
+	
+	/**
+	 * Set once the records buffered in netIn are known to be incomplete, until more bytes are read.
+	 */
+	private boolean starved;
+	
+	//Only touched while holding writeLock, null while empty
+	private Frame netOut;
+	
+	private final ReentrantLock writeLock = new ReentrantLock();
+	
+	private volatile boolean open = true;
+	
+	/**
+	 * Runs the whole handshake on the calling thread, blocking until it's done. Only for blocking connections,
+	 * non-blocking ones handshake as they're read and written.
+	 */
+	void handshake() throws IOException{
+		try{
+			while(!handshaken.isDone()){
+				switch(engine.getHandshakeStatus()){
+					case NEED_WRAP -> wrapHandshake();
+					case NEED_TASK -> runTasks();
+					case NEED_UNWRAP, NEED_UNWRAP_AGAIN -> {
+						if(read(EMPTY) == -1){
+							throw new EOFException("Connection closed mid handshake.");
+						}
+					}
+					default -> handshaken.complete(null);
+				}
+			}
+			handshaken.get();
+			//Servers follow up with session tickets, sent straight away so clients can resume
+			if(engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP){
+				wrapHandshake();
+			}
+		}catch(IOException e){
+			handshaken.completeExceptionally(e);
+			throw e;
+		}catch(InterruptedException | ExecutionException e){
+			throw new SSLException("Handshake failed.", e);
+		}
+	}
+	
+	/**
+	 * Reads and decrypts whatever the connection has available. Blocking connections block until a record
+	 * arrives, but a record carrying no application data (such as a handshake message) reads nothing.
+	 *
+	 * @return Amount of bytes read, -1 once the foreign end has closed the connection or sent a close_notify
+	 */
+	@Override
+	public int read(ByteBuffer dst) throws IOException{
+		if(appIn != null){
+			return drainApp(dst);
+		}
+		
+		while(true){
+			if(engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP){
+				wrapHandshake();
+			}
+			
+			if(netIn != null && !starved){
+				SSLEngineResult result = unwrap();
+				switch(result.getStatus()){
+					case CLOSED:
+						return -1;
+					case BUFFER_UNDERFLOW:
+						starved = true;
+						break;
+					default:
+						return appIn != null ? drainApp(dst) : 0;
+				}
+			}
+			
+			if(netIn == null){
+				netIn = pool.acquire(engine.getSession().getPacketBufferSize());
+			}else if(!netIn.buffer.hasRemaining()){
+				throw new SSLException("Record larger than the packet buffer.");
+			}
+			int read = in.read(netIn.buffer);
+			if(read <= 0){
+				releaseNetIn();
+				return read;
+			}
+			starved = false;
+		}
+	}
+	
+	/**
+	 * Unwraps the next record out of netIn into appIn, releasing either of them if they end up empty.
+	 */
+	private SSLEngineResult unwrap() throws SSLException{
+		if(appIn == null){
+			appIn = pool.acquire(engine.getSession().getApplicationBufferSize());
+		}
+		
+		SSLEngineResult result;
+		ByteBuffer net = netIn.buffer.flip();
+		try{
+			result = engine.unwrap(net, appIn.buffer);
+		}finally{
+			net.compact();
+		}
+		releaseNetIn();
+		
+		if(result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW){
+			//The session's buffers grew, only ever happens to an empty appIn
+			pool.release(appIn);
+			appIn = pool.acquire(engine.getSession().getApplicationBufferSize());
+			return unwrap();
+		}
+		if(appIn.buffer.position() == 0){
+			pool.release(appIn);
+			appIn = null;
+		}
+		handshook(result);
+		return result;
+	}
+	
+	/**
+	 * Copies as much decrypted data as fits into dst.
+	 */
+	private int drainApp(ByteBuffer dst){
+		ByteBuffer app = appIn.buffer.flip();
+		int length = Math.min(app.remaining(), dst.remaining());
+		int limit = app.limit();
+		app.limit(app.position() + length);
+		dst.put(app);
+		app.limit(limit);
+		app.compact();
+		if(app.position() == 0){
+			pool.release(appIn);
+			appIn = null;
+		}
+		return length;
+	}
+	
+	private void releaseNetIn(){
+		if(netIn != null && netIn.buffer.position() == 0){
+			pool.release(netIn);
+			netIn = null;
+		}
+	}
+	
+	@Override
+	public int write(ByteBuffer src) throws IOException{
+		return (int) write(new ByteBuffer[]{src}, 0, 1);
+	}
+	
+	@Override
+	public long write(ByteBuffer[] srcs) throws IOException{
+		return write(srcs, 0, srcs.length);
+	}
+	
+	/**
+	 * Encrypts and writes as much of the buffers as the connection takes. Blocking connections wait for the
+	 * handshake to finish first, non-blocking ones write nothing until it has.
+	 *
+	 * @return Amount of plain bytes consumed from the buffers
+	 */
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException{
+		if(!open){
+			throw new ClosedChannelException();
+		}
+		boolean blocking = isBlocking();
+		if(blocking){
+			awaitHandshake();
+		}
+		
+		writeLock.lock();
+		try{
+			if(!flushLocked()){
+				return 0;
+			}
+			if(!handshaken.isDone() && !wrapHandshakeLocked()){
+				return 0;
+			}
+			
+			long consumed = 0;
+			while(hasRemaining(srcs, offset, length)){
+				if(netOut == null){
+					netOut = pool.acquire(RECORDS_PER_WRITE * engine.getSession().getPacketBufferSize());
+				}
+				SSLEngineResult result = engine.wrap(srcs, offset, length, netOut.buffer);
+				consumed += result.bytesConsumed();
+				handshook(result);
+				if(result.getStatus() == SSLEngineResult.Status.CLOSED){
+					throw new SSLException("Engine closed.");
+				}
+				if(result.getStatus() == SSLEngineResult.Status.OK && result.bytesProduced() == 0){
+					break;
+				}
+				
+				//Flushed once full, or once there's nothing left to wrap
+				if((result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW || !hasRemaining(srcs, offset, length)) && !flushLocked()){
+					break;
+				}
+			}
+			return consumed;
+		}finally{
+			writeLock.unlock();
+		}
+	}
+	
+	/**
+	 * Writes out any records wrapped but not yet written.
+	 *
+	 * @return True if nothing is left waiting to be written
+	 */
+	boolean flush() throws IOException{
+		writeLock.lock();
+		try{
+			return flushLocked();
+		}finally{
+			writeLock.unlock();
+		}
+	}
+	
+	private boolean flushLocked() throws IOException{
+		if(netOut == null){
+			return true;
+		}
+		
+		ByteBuffer net = netOut.buffer.flip();
+		try{
+			while(net.hasRemaining()){
+				if(out.write(net) == 0){
+					break;
+				}
+			}
+		}finally{
+			net.compact();
+		}
+		if(net.position() == 0){
+			pool.release(netOut);
+			netOut = null;
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * @return True if records are waiting for the connection to become writable
+	 */
+	boolean hasPendingOutput(){
+		writeLock.lock();
+		try{
+			return netOut != null;
+		}finally{
+			writeLock.unlock();
+		}
+	}
+	
+	/**
+	 * @return True if decrypted data, or complete records still to be decrypted, are buffered. Non-blocking
+	 * readers have to keep reading until they aren't, the channel won't be reported readable for them.
+	 */
+	boolean hasBuffered(){
+		return appIn != null || (netIn != null && !starved);
+	}
+	
+	boolean isHandshaking(){
+		return !handshaken.isDone();
+	}
+	
+	/**
+	 * @return True if the handshake failed, writes waiting on it fail along with it.
+	 */
+	boolean handshakeFailed(){
+		return handshaken.isCompletedExceptionally();
+	}
+	
+	boolean isBlocking(){
+		return !(in instanceof SelectableChannel channel) || channel.isBlocking();
+	}
+	
+	SSLEngine engine(){
+		return engine;
+	}
+	
+	private void wrapHandshake() throws IOException{
+		writeLock.lock();
+		try{
+			wrapHandshakeLocked();
+		}finally{
+			writeLock.unlock();
+		}
+	}
+	
+	/**
+	 * Wraps and writes handshake messages for as long as the engine has any.
+	 *
+	 * @return False if the handshake is waiting on the foreign end, or the connection to become writable
+	 */
+	private boolean wrapHandshakeLocked() throws IOException{
+		while(true){
+			switch(engine.getHandshakeStatus()){
+				case NEED_WRAP -> {
+					if(netOut == null){
+						netOut = pool.acquire(RECORDS_PER_WRITE * engine.getSession().getPacketBufferSize());
+					}
+					SSLEngineResult result = engine.wrap(EMPTY, netOut.buffer);
+					handshook(result);
+					if(result.getStatus() == SSLEngineResult.Status.CLOSED){
+						flushLocked();
+						throw new SSLException("Engine closed mid handshake.");
+					}
+					if(result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && !flushLocked()){
+						return false;
+					}
+				}
+				case NEED_TASK -> runTasks();
+				case NEED_UNWRAP, NEED_UNWRAP_AGAIN -> {
+					flushLocked();
+					return false;
+				}
+				default -> {
+					return flushLocked();
+				}
+			}
+		}
+	}
+	
+	private void runTasks(){
+		Runnable task;
+		while((task = engine.getDelegatedTask()) != null){
+			task.run();
+		}
+	}
+	
+	private void handshook(SSLEngineResult result){
+		if(result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK){
+			runTasks();
+		}
+		if(result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED){
+			handshaken.complete(null);
+		}
+	}
+	
+	private void awaitHandshake() throws IOException{
+		try{
+			handshaken.get(HANDSHAKE_TIMEOUT, TimeUnit.MILLISECONDS);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting on the handshake.");
+		}catch(ExecutionException e){
+			throw new SSLException("Handshake failed.", e.getCause());
+		}catch(TimeoutException e){
+			throw new SSLException("Handshake didn't finish within " + HANDSHAKE_TIMEOUT + "ms.");
+		}
+	}
+	
+	private static boolean hasRemaining(ByteBuffer[] srcs, int offset, int length){
+		for(int i = offset; i < offset + length; i++){
+			if(srcs[i].hasRemaining()){
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	@Override
+	public boolean isOpen(){
+		return open;
+	}
+	
+	/**
+	 * Sends a close_notify, unless a write is stuck on the connection. The connection itself is left for the
+	 * socket to close.
+	 */
+	@Override
+	public void close(){
+		if(!open){
+			return;
+		}
+		open = false;
+		handshaken.completeExceptionally(new ClosedChannelException());
+		
+		engine.closeOutbound();
+		if(!writeLock.tryLock()){
+			return;
+		}
+		try{
+			if(flushLocked()){
+				netOut = pool.acquire(engine.getSession().getPacketBufferSize());
+				engine.wrap(EMPTY, netOut.buffer);
+				flushLocked();
+			}
+		}catch(IOException ignored){
+			//The foreign end is going away regardless
+		}finally{
+			writeLock.unlock();
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package tech.stdev.core2;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * Keys, trust and session caches shared by every TLS connection set up with it, handed to
+ * RichSocketBuilder.setTls for clients and AbstractServer.setTls for servers.
+ * <p>
+ * Clients resume sessions: every engine is created for the host and port it connects to, so reconnecting
+ * to a server this context has connected to before picks up the cached session (or ticket) and skips the
+ * certificate exchange and key agreement of a full handshake. Only connections made through the same
+ * context share the cache, so keep one around for as long as the process connects.
+ */
+public class TlsContext{
+	
+	/**
+	 * Default amount of sessions each cache holds on to.
+	 */
+	public final static int DEFAULT_SESSION_CACHE_SIZE = 1024;
+	
+	/**
+	 * Default time (in seconds) a cached session may be resumed for.
+	 */
+	public final static int DEFAULT_SESSION_TIMEOUT = 3600;
+	
+	public TlsContext(SSLContext context){
+		this.context = context;
+		for(SSLSessionContext sessions : new SSLSessionContext[]{context.getClientSessionContext(), context.getServerSessionContext()}){
+			sessions.setSessionCacheSize(DEFAULT_SESSION_CACHE_SIZE);
+			sessions.setSessionTimeout(DEFAULT_SESSION_TIMEOUT);
+		}
+	}
+	
+	/**
+	 * Creates a context presenting the key store's key and trusting its certificates, such as a self-signed
+	 * certificate shared by both ends.
+	 *
+	 * @param keyStore PKCS12 key store
+	 */
+	public static TlsContext load(InputStream keyStore, char[] password) throws IOException, GeneralSecurityException{
+		KeyStore store = KeyStore.getInstance("PKCS12");
+		store.load(keyStore, password);
+		return load(store, password, store);
+	}
+	
+	public static TlsContext load(KeyStore keyStore, char[] password, KeyStore trustStore) throws GeneralSecurityException{
+		KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keys.init(keyStore, password);
+		TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trust.init(trustStore);
+		
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(keys.getKeyManagers(), trust.getTrustManagers(), null);
+		return new TlsContext(context);
+	}
+	
+	private final SSLContext context;
+	
+	private volatile boolean verifyHostname = true;
+	
+	private volatile boolean needClientAuth = false;
+	
+	/**
+	 * @return Engine for a client connecting to the host, resuming the session last used with it if it can
+	 */
+	public SSLEngine clientEngine(String host, int port){
+		SSLEngine engine = context.createSSLEngine(host, port);
+		engine.setUseClientMode(true);
+		if(verifyHostname){
+			SSLParameters parameters = engine.getSSLParameters();
+			parameters.setEndpointIdentificationAlgorithm("HTTPS");
+			engine.setSSLParameters(parameters);
+		}
+		return engine;
+	}
+	
+	public SSLEngine serverEngine(){
+		SSLEngine engine = context.createSSLEngine();
+		engine.setUseClientMode(false);
+		engine.setNeedClientAuth(needClientAuth);
+		return engine;
+	}
+	
+	/**
+	 * Sets whether clients check the server's certificate was issued for the host they connected to, true
+	 * by default.
+	 */
+	public void setVerifyHostname(boolean verifyHostname){
+		this.verifyHostname = verifyHostname;
+	}
+	
+	/**
+	 * Sets whether servers require clients to present a trusted certificate of their own, false by default.
+	 */
+	public void setNeedClientAuth(boolean needClientAuth){
+		this.needClientAuth = needClientAuth;
+	}
+	
+	/**
+	 * @return Sessions clients may resume, whose size and timeout can be tuned
+	 */
+	public SSLSessionContext getClientSessions(){
+		return context.getClientSessionContext();
+	}
+	
+	public SSLSessionContext getServerSessions(){
+		return context.getServerSessionContext();
+	}
+	
+	public SSLContext getContext(){
+		return context;
+	}
+}
@@ -0,0 +1,197 @@
+package tech.stdev.core2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Presents a Unix domain socket channel as a Socket, which is what every socket in this API is built
+ * around. The JDK only adapts TCP channels (SocketChannel.socket() throws for Unix domain ones), so
+ * this does it for the handful of Socket methods the API actually uses.
+ * <p>
+ * Unix domain peers are always on this host, and are reported as loopback so logs and checks built
+ * around IP addresses keep working. There's no Nagle's algorithm to turn off, setTcpNoDelay does
+ * nothing.
+ */
+final class UnixDomainSocket extends Socket{
+	
+	UnixDomainSocket(SocketChannel channel){
+		this.channel = channel;
+	}
+	
+	/**
+	 * @return Socket for the connected channel, the JDK's own adapter for TCP channels
+	 */
+	static Socket of(SocketChannel channel){
+		try{
+			return channel.getLocalAddress() instanceof UnixDomainSocketAddress ? new UnixDomainSocket(channel) : channel.socket();
+		}catch(IOException e){
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * Connects a new blocking channel to the path.
+	 */
+	static Socket connect(UnixDomainSocketAddress address) throws IOException{
+		return new UnixDomainSocket(SocketChannel.open(address));
+	}
+	
+	private final static AtomicInteger IDS = new AtomicInteger();
+	
+	private final SocketChannel channel;
+	
+	//Accepted sockets are all unnamed, this tells them apart in logs and JMX
+	private final int id = IDS.incrementAndGet();
+	
+	//Straight to the channel, unlike Channels.newInputStream a blocked read doesn't hold up writes
+	private final InputStream in = new InputStream(){
+		@Override
+		public int read() throws IOException{
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException{
+			if(len == 0){
+				return 0;
+			}
+			return channel.read(ByteBuffer.wrap(b, off, len));
+		}
+		
+		@Override
+		public void close() throws IOException{
+			UnixDomainSocket.this.close();
+		}
+	};
+	
+	private final OutputStream out = new OutputStream(){
+		@Override
+		public void write(int b) throws IOException{
+			write(new byte[]{(byte) b}, 0, 1);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException{
+			ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+			while(buffer.hasRemaining()){
+				channel.write(buffer);
+			}
+		}
+		
+		@Override
+		public void close() throws IOException{
+			UnixDomainSocket.this.close();
+		}
+	};
+	
+	@Override
+	public SocketChannel getChannel(){
+		return channel;
+	}
+	
+	@Override
+	public InputStream getInputStream(){
+		return in;
+	}
+	
+	@Override
+	public OutputStream getOutputStream(){
+		return out;
+	}
+	
+	@Override
+	public InetAddress getInetAddress(){
+		return InetAddress.getLoopbackAddress();
+	}
+	
+	@Override
+	public InetAddress getLocalAddress(){
+		return InetAddress.getLoopbackAddress();
+	}
+	
+	@Override
+	public int getPort(){
+		return 0;
+	}
+	
+	@Override
+	public int getLocalPort(){
+		return -1;
+	}
+	
+	/**
+	 * @return Path of the foreign socket, usually unnamed on the accepting end
+	 */
+	@Override
+	public SocketAddress getRemoteSocketAddress(){
+		try{
+			return channel.getRemoteAddress();
+		}catch(IOException e){
+			return null;
+		}
+	}
+	
+	@Override
+	public SocketAddress getLocalSocketAddress(){
+		try{
+			return channel.getLocalAddress();
+		}catch(IOException e){
+			return null;
+		}
+	}
+	
+	@Override
+	public void setTcpNoDelay(boolean on){
+	
+	}
+	
+	@Override
+	public boolean getTcpNoDelay(){
+		return true;
+	}
+	
+	@Override
+	public void shutdownInput() throws IOException{
+		channel.shutdownInput();
+	}
+	
+	@Override
+	public void shutdownOutput() throws IOException{
+		channel.shutdownOutput();
+	}
+	
+	@Override
+	public boolean isConnected(){
+		return channel.isConnected();
+	}
+	
+	@Override
+	public boolean isBound(){
+		return true;
+	}
+	
+	@Override
+	public boolean isClosed(){
+		return !channel.isOpen();
+	}
+	
+	@Override
+	public void close() throws IOException{
+		channel.close();
+	}
+	
+	@Override
+	public String toString(){
+		return "unix:" + getLocalSocketAddress() + "#" + id;
+	}
+}
@@ -1,5 +1,8 @@
 package tech.stdev.core2;
 
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
 public class Utils{
 	
 	public static byte[] intToBytes(int i){
@@ -19,4 +22,94 @@ public class Utils{
 		i |= (int)(bytes[3] & 0xFF);
 		return i;
 	}
+	
+	/**
+	 * Amount of bytes the string takes up UTF-8 encoded. Unpaired surrogates count as the single '?'
+	 * they're replaced with, same as String.getBytes.
+	 */
+	public static int utf8Length(String string){
+		int length = string.length();
+		int bytes = length;
+		for(int i = 0; i < length; i++){
+			char c = string.charAt(i);
+			if(c < 0x80){
+				continue;
+			}
+			if(c < 0x800){
+				bytes += 1;
+			}else if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(string.charAt(i + 1))){
+				bytes += 2; //Four bytes for the pair
+				i++;
+			}else if(!Character.isSurrogate(c)){
+				bytes += 2;
+			}
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Writes the string UTF-8 encoded into the buffer, which must have utf8Length(string) bytes remaining.
+	 */
+	public static void putUtf8(ByteBuffer buffer, String string){
+		int length = string.length();
+		for(int i = 0; i < length; i++){
+			char c = string.charAt(i);
+			if(c < 0x80){
+				buffer.put((byte) c);
+			}else if(c < 0x800){
+				buffer.put((byte) (0xC0 | c >> 6));
+				buffer.put((byte) (0x80 | c & 0x3F));
+			}else if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(string.charAt(i + 1))){
+				int codePoint = Character.toCodePoint(c, string.charAt(++i));
+				buffer.put((byte) (0xF0 | codePoint >> 18));
+				buffer.put((byte) (0x80 | codePoint >> 12 & 0x3F));
+				buffer.put((byte) (0x80 | codePoint >> 6 & 0x3F));
+				buffer.put((byte) (0x80 | codePoint & 0x3F));
+			}else if(Character.isSurrogate(c)){
+				buffer.put((byte) '?');
+			}else{
+				buffer.put((byte) (0xE0 | c >> 12));
+				buffer.put((byte) (0x80 | c >> 6 & 0x3F));
+				buffer.put((byte) (0x80 | c & 0x3F));
+			}
+		}
+	}
+	
+	/**
+	 * Amount of bytes putVarInt takes to write the value.
+	 */
+	public static int varIntLength(int value){
+		return value == 0 ? 1 : (38 - Integer.numberOfLeadingZeros(value)) / 7;
+	}
+	
+	/**
+	 * Writes a non-negative int in as few bytes as it fits in, seven bits at a time starting with the lowest.
+	 */
+	public static void putVarInt(ByteBuffer buffer, int value){
+		while((value & ~0x7F) != 0){
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+	
+	/**
+	 * Reads an int written by putVarInt, leaving the buffer positioned after it.
+	 *
+	 * @throws ProtocolException If the buffer ends partway through the value, or it's longer than an int
+	 */
+	public static int getVarInt(ByteBuffer buffer) throws ProtocolException{
+		int value = 0;
+		for(int shift = 0; shift < 32; shift += 7){
+			if(!buffer.hasRemaining()){
+				break;
+			}
+			byte b = buffer.get();
+			value |= (b & 0x7F) << shift;
+			if(b >= 0){
+				return value;
+			}
+		}
+		throw new ProtocolException("Malformed varint.");
+	}
 }
@@ -0,0 +1,161 @@
+package tech.stdev.core2;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinaryCodecTest{
+	
+	record Point(int x, int y) implements Serializable{
+	}
+	
+	record Shape(String name, Point origin, List<Point> points, byte[] colour, Long id, boolean filled){
+	}
+	
+	record Label(String text){
+	}
+	
+	record Count(Integer text){
+	}
+	
+	record Positive(int value){
+		
+		Positive{
+			if(value < 0){
+				throw new IllegalArgumentException("Negative value " + value + ".");
+			}
+		}
+	}
+	
+	record Signed(int value){
+	}
+	
+	static class Owner{
+		
+		String owner = "stdev";
+	}
+	
+	static class OwnerId{
+		
+		Integer owner = 41368;
+	}
+	
+	static class Account implements Serializable{
+		
+		private final long id;
+		
+		String owner;
+		
+		transient String session = "not sent";
+		
+		private Account(){
+			this(0, null);
+		}
+		
+		Account(long id, String owner){
+			this.id = id;
+			this.owner = owner;
+		}
+	}
+	
+	BinaryCodec codec = new BinaryCodec()
+			.register(1, TestSerializer.class)
+			.register(2, Point.class)
+			.register(3, Shape.class)
+			.register(4, Account.class);
+	
+	@Test
+	void testClass() throws Exception{
+		TestSerializer sent = new TestSerializer();
+		TestSerializer got = (TestSerializer) roundTrip(codec, sent);
+		assertEquals(sent, got);
+		assertEquals(sent.s, got.s);
+	}
+	
+	@Test
+	void testRecords() throws Exception{
+		Shape sent = new Shape("triangle", new Point(1, 2), List.of(new Point(3, 4), new Point(-5, 6)), new byte[]{1, 2, 3}, null, true);
+		Shape got = (Shape) roundTrip(codec, sent);
+		assertEquals(sent.name(), got.name());
+		assertEquals(sent.origin(), got.origin());
+		assertEquals(sent.points(), got.points()); //Unregistered List falls back to Java serialization
+		assertArrayEquals(sent.colour(), got.colour());
+		assertNull(got.id());
+		assertTrue(got.filled());
+	}
+	
+	@Test
+	void testFinalAndTransientFields() throws Exception{
+		Account got = (Account) roundTrip(codec, new Account(41368, "stdev"));
+		assertEquals(41368, got.id);
+		assertEquals("stdev", got.owner);
+		assertEquals("not sent", got.session);
+	}
+	
+	@Test
+	void testSmallerThanJava() throws Exception{
+		TestSerializer object = new TestSerializer();
+		int binary = encode(codec, object).length;
+		int java = encode(Codec.JAVA, object).length;
+		assertTrue(binary * 5 < java, binary + " bytes vs " + java);
+	}
+	
+	@Test
+	void testFallbackDisabled() throws Exception{
+		BinaryCodec strict = new BinaryCodec().register(2, Point.class).setJavaFallback(false);
+		assertEquals(new Point(1, 1), roundTrip(strict, new Point(1, 1)));
+		assertThrows(NotSerializableException.class, () -> encode(strict, List.of(1)));
+		
+		//A foreign socket still using the fallback can't make this end deserialize anything
+		byte[] fromFallback = encode(codec, List.of(1));
+		assertThrows(InvalidObjectException.class, () -> strict.decode(new ByteArrayInputStream(fromFallback)));
+	}
+	
+	@Test
+	void testCorruptLengths() throws Exception{
+		//A string of -1 bytes, then one of Integer.MAX_VALUE, neither may get as far as allocating
+		assertThrows(ProtocolException.class, () -> codec.decode(new ByteArrayInputStream(new byte[]{3, -1, -1, -1, -1, 0x0F})));
+		assertThrows(ProtocolException.class, () -> codec.decode(new ByteArrayInputStream(new byte[]{3, -1, -1, -1, -1, 0x07})));
+		
+		byte[] cut = encode(codec, "Hello World!");
+		assertThrows(ProtocolException.class, () -> codec.decode(new ByteArrayInputStream(cut, 0, cut.length - 1)));
+		byte[] point = encode(codec, new Point(1, 2));
+		assertThrows(EOFException.class, () -> codec.decode(new ByteArrayInputStream(point, 0, point.length - 1)));
+	}
+	
+	@Test
+	void testMismatchedTypes() throws Exception{
+		//The foreign socket registered different classes under the same IDs
+		BinaryCodec local = new BinaryCodec().register(5, Label.class).register(6, Positive.class);
+		BinaryCodec foreign = new BinaryCodec().register(5, Count.class).register(6, Signed.class);
+		
+		byte[] count = encode(foreign, new Count(7));
+		assertThrows(InvalidObjectException.class, () -> local.decode(new ByteArrayInputStream(count)));
+		byte[] signed = encode(foreign, new Signed(-1));
+		assertThrows(InvalidObjectException.class, () -> local.decode(new ByteArrayInputStream(signed)));
+		
+		//Classes set their fields one by one rather than through a constructor
+		byte[] owner = encode(new BinaryCodec().register(7, OwnerId.class), new OwnerId());
+		BinaryCodec named = new BinaryCodec().register(7, Owner.class);
+		assertThrows(InvalidObjectException.class, () -> named.decode(new ByteArrayInputStream(owner)));
+	}
+	
+	@Test
+	void testDuplicateId(){
+		assertThrows(IllegalArgumentException.class, () -> new BinaryCodec().register(1, Point.class).register(1, Shape.class));
+	}
+	
+	private static Object roundTrip(Codec codec, Object object) throws IOException, ClassNotFoundException{
+		return codec.decode(new ByteArrayInputStream(encode(codec, object)));
+	}
+	
+	private static byte[] encode(Codec codec, Object object) throws IOException{
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		codec.encode(object, baos);
+		return baos.toByteArray();
+	}
+}
@@ -0,0 +1,209 @@
+package tech.stdev.core2;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.Thread.sleep;
+import static org.junit.jupiter.api.Assertions.*;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class BroadcastTest{
+	
+	DefaultServer server;
+	
+	ScheduledExecutorService service;
+	
+	List<RichSocket> serverSockets = new CopyOnWriteArrayList<>();
+	
+	List<Client> clients = new ArrayList<>();
+	
+	/**
+	 * Server side policy, subscribes its socket to whatever topic it's sent.
+	 */
+	class SubscriberPolicy implements RichSocketDataForwardingPolicy{
+		
+		RichSocket socket;
+		
+		@Override
+		public void receive(String string){
+			server.subscribe(string, socket);
+		}
+		
+		@Override
+		public void receive(Object deserialized){
+		
+		}
+		
+		@Override
+		public void receive(byte[] payload){
+		
+		}
+	}
+	
+	static class Client implements RichSocketDataForwardingPolicy{
+		
+		RichSocket socket;
+		
+		List<String> strings = new CopyOnWriteArrayList<>();
+		
+		AtomicInteger payloads = new AtomicInteger();
+		
+		@Override
+		public void receive(String string){
+			strings.add(string);
+		}
+		
+		@Override
+		public void receive(Object deserialized){
+		
+		}
+		
+		@Override
+		public void receive(byte[] payload){
+			payloads.incrementAndGet();
+		}
+	}
+	
+	@BeforeAll
+	public void setup() throws InterruptedException{
+		this.service = Executors.newScheduledThreadPool(4);
+		this.server = new DefaultServer(ServerDependencyFactory.localServerSocket(), s -> {
+			SubscriberPolicy policy = new SubscriberPolicy();
+			policy.socket = new RichSocket(s, policy, service);
+			policy.socket.setWatermarks(512 * 1024, 1024 * 1024);
+			serverSockets.add(policy.socket);
+			return policy.socket;
+		}, true);
+		new Thread(server).start();
+		sleep(20);
+		for(int i = 0; i < 3; i++){
+			Client client = new Client();
+			client.socket = RichSocketBuilder.start(ServerDependencyFactory.localSocket()).setForwardingPolicy(client).buildAndRun();
+			clients.add(client);
+		}
+		awaitAccepted(3);
+	}
+	
+	private void awaitAccepted(int sockets) throws InterruptedException{
+		for(int i = 0; i < 100 && serverSockets.size() < sockets; i++){
+			sleep(50);
+		}
+		sleep(50);
+	}
+	
+	/**
+	 * Waits for whatever's still on its way to the clients, then forgets everything they've received.
+	 */
+	private void reset() throws InterruptedException{
+		int received = -1;
+		for(int i = 0; i < 50 && received != (received = received()); i++){
+			sleep(100);
+		}
+		for(Client client : clients){
+			client.strings.clear();
+			client.payloads.set(0);
+		}
+	}
+	
+	private int received(){
+		int received = 0;
+		for(Client client : clients){
+			received += client.strings.size() + client.payloads.get();
+		}
+		return received;
+	}
+	
+	@Test
+	void broadcastAndPublish() throws Exception{
+		reset();
+		assertEquals(3, server.broadcast("Hello everyone"));
+		clients.get(0).socket.send("prices");
+		clients.get(1).socket.send("prices");
+		sleep(100);
+		assertEquals(2, server.publish("prices", ByteBuffer.wrap(new byte[100])));
+		assertEquals(0, server.publish("news", "Nobody's listening"));
+		sleep(100);
+		
+		for(Client client : clients){
+			assertEquals(List.of("Hello everyone"), client.strings);
+		}
+		assertEquals(1, clients.get(0).payloads.get());
+		assertEquals(1, clients.get(1).payloads.get());
+		assertEquals(0, clients.get(2).payloads.get());
+		
+		//Every subscriber writes from its own view of the one buffer
+		ByteBuffer packed = RichSocket.packShared("shared");
+		assertTrue(serverSockets.get(0).sendShared(packed));
+		assertTrue(serverSockets.get(1).sendShared(packed));
+		assertEquals(0, packed.position());
+		sleep(100);
+		
+		//Closed connections are forgotten, topics included
+		Client leaving = clients.remove(1);
+		leaving.socket.shutdown();
+		sleep(200);
+		assertEquals(2, server.broadcast("Goodbye"));
+		assertEquals(1, server.publish("prices", ByteBuffer.wrap(new byte[100])));
+	}
+	
+	@Test
+	void slowConsumers() throws Exception{
+		//Connects and never reads, so the server's queue for it only ever grows
+		Socket slow = new Socket(InetAddress.getLoopbackAddress(), ServerDependencyFactory.DEFAULT_PORT);
+		awaitAccepted(4);
+		reset();
+		RichSocket slowSocket = serverSockets.get(serverSockets.size() - 1);
+		int live = server.broadcast("Count");
+		
+		int skipped = 0;
+		byte[] payload = new byte[16 * 1024];
+		for(int i = 0; i < 2000 && slowSocket.isWritable(); i++){
+			server.broadcast(payload);
+			sleep(1);
+		}
+		assertFalse(slowSocket.isWritable());
+		for(int i = 0; i < 10; i++){
+			skipped += live - server.broadcast(payload);
+			sleep(1);
+		}
+		assertEquals(10, skipped);
+		assertTrue(slowSocket.isRunning());
+		sleep(200);
+		
+		//Everybody else received every broadcast
+		int received = clients.get(0).payloads.get();
+		for(Client client : clients){
+			assertEquals(received, client.payloads.get());
+		}
+		
+		server.setSlowConsumerPolicy(SlowConsumerPolicy.DISCONNECT);
+		assertEquals(live - 1, server.broadcast("Count"));
+		assertFalse(slowSocket.isRunning());
+		assertEquals(1, (long) server.getMetrics().getClosedConnections().get("SLOW_CONSUMER"));
+		assertEquals(live - 1, server.broadcast("Count"));
+		server.setSlowConsumerPolicy(SlowConsumerPolicy.SKIP);
+		slow.close();
+	}
+	
+	@AfterAll
+	public void teardown() throws InterruptedException{
+		for(Client client : clients){
+			client.socket.shutdown();
+		}
+		sleep(100);
+		server.shutdown();
+		service.shutdownNow();
+	}
+}
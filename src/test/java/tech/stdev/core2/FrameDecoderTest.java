@@ -0,0 +1,162 @@
+package tech.stdev.core2;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FrameDecoderTest{
+	
+	Random random = new Random(41368);
+	
+	@Test
+	void testPartialReads() throws IOException{
+		List<byte[]> payloads = payloads(500);
+		InputStream is = new TricklingInputStream(pack(payloads), random);
+		
+		//Small buffer so plenty of frames have to grow it
+		FrameDecoder decoder = new FrameDecoder(64, FrameDecoder.DEFAULT_MAX_FRAME_SIZE);
+		List<byte[]> decoded = new ArrayList<>();
+		while(decoder.read(is) != -1){
+			while(decoder.next()){
+				assertEquals((byte) decoded.size(), decoder.opcode());
+				decoded.add(decoder.payload());
+			}
+		}
+		
+		assertEquals(payloads.size(), decoded.size());
+		for(int i = 0; i < payloads.size(); i++){
+			assertArrayEquals(payloads.get(i), decoded.get(i));
+		}
+	}
+	
+	@Test
+	void testChannel() throws IOException{
+		List<byte[]> payloads = payloads(200);
+		ReadableByteChannel channel = Channels.newChannel(new TricklingInputStream(pack(payloads), random));
+		
+		FrameDecoder decoder = new FrameDecoder();
+		int frames = 0;
+		while(decoder.read(channel) != -1){
+			while(decoder.next()){
+				assertArrayEquals(payloads.get(frames++), decoder.payload());
+			}
+		}
+		assertEquals(payloads.size(), frames);
+	}
+	
+	@Test
+	void testMaxFrameSize() throws IOException{
+		FrameDecoder decoder = new FrameDecoder(64, 1000);
+		InputStream is = new ByteArrayInputStream(pack(List.of(new byte[1000], new byte[1001])));
+		
+		while(decoder.read(is) != -1 && !decoder.next());
+		assertEquals(1000, decoder.payload().length);
+		assertThrows(ProtocolException.class, () -> {
+			while(decoder.read(is) != -1 && !decoder.next());
+		});
+	}
+	
+	@Test
+	void testNegativeSize() throws IOException{
+		FrameDecoder decoder = new FrameDecoder();
+		ByteBuffer header = ByteBuffer.allocate(Frame.HEADER_SIZE + 8).putInt(-8).put((byte) 1);
+		InputStream is = new ByteArrayInputStream(header.array());
+		decoder.read(is);
+		assertThrows(ProtocolException.class, decoder::next);
+	}
+	
+	@Test
+	void testFileFrames() throws IOException{
+		//Larger than the maximum frame size, file frames are never buffered whole
+		byte[] file = TestUtils.randomBytes(5000);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		baos.writeBytes(ByteBuffer.allocate(9).putInt(4 + file.length).put(RichSocket.OPCODE_FILE).putInt(7).array());
+		baos.writeBytes(file);
+		baos.writeBytes(pack(List.of(new byte[]{1, 2, 3})));
+		ReadableByteChannel channel = Channels.newChannel(new TricklingInputStream(baos.toByteArray(), random));
+		
+		FrameDecoder decoder = new FrameDecoder(64, 1000);
+		decoder.setRawOpcode(RichSocket.OPCODE_FILE);
+		ByteArrayOutputStream raw = new ByteArrayOutputStream();
+		List<byte[]> payloads = new ArrayList<>();
+		while(decoder.read(channel) != -1){
+			while(true){
+				if(decoder.rawRemaining() > 0){
+					ByteBuffer buffered = decoder.rawBuffered();
+					raw.write(buffered.array(), buffered.arrayOffset() + buffered.position(), buffered.remaining());
+					//Some of it straight from the channel, as a socket would
+					ByteBuffer direct = ByteBuffer.allocate((int) Math.min(decoder.rawRemaining(), 100));
+					int read = channel.read(direct);
+					if(read > 0){
+						raw.write(direct.array(), 0, read);
+						decoder.rawTransferred(read);
+					}
+					if(decoder.rawRemaining() > 0){
+						break;
+					}
+				}else if(decoder.next()){
+					payloads.add(decoder.payload());
+				}else{
+					break;
+				}
+			}
+		}
+		
+		assertEquals(2, payloads.size());
+		assertEquals(7, ByteBuffer.wrap(payloads.get(0)).getInt());
+		assertArrayEquals(file, raw.toByteArray());
+		assertArrayEquals(new byte[]{1, 2, 3}, payloads.get(1));
+	}
+	
+	private List<byte[]> payloads(int count){
+		List<byte[]> payloads = new ArrayList<>();
+		for(int i = 0; i < count; i++){
+			payloads.add(TestUtils.randomBytes(i % 10 == 0 ? 20000 : 200));
+		}
+		return payloads;
+	}
+	
+	private static byte[] pack(List<byte[]> payloads){
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		for(int i = 0; i < payloads.size(); i++){
+			byte[] payload = payloads.get(i);
+			baos.writeBytes(ByteBuffer.allocate(5).putInt(payload.length).put((byte) i).array());
+			baos.writeBytes(payload);
+			if(i % 7 == 0){
+				//Header only frames are skipped
+				baos.writeBytes(new byte[5]);
+			}
+		}
+		return baos.toByteArray();
+	}
+	
+	/**
+	 * Hands out at most a few hundred bytes per read, so headers and payloads get split up all over.
+	 */
+	private static class TricklingInputStream extends ByteArrayInputStream{
+		
+		TricklingInputStream(byte[] bytes, Random random){
+			super(bytes);
+			this.random = random;
+		}
+		
+		private final Random random;
+		
+		@Override
+		public synchronized int read(byte[] b, int off, int len){
+			return super.read(b, off, Math.min(len, 1 + random.nextInt(300)));
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package tech.stdev.core2;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class HashedWheelTimerTest{
+	
+	//Small wheel so a few hundred milliseconds already takes several turns
+	HashedWheelTimer timer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS, 8, null);
+	
+	@Test
+	void testExpiresAfterDelay() throws InterruptedException{
+		CountDownLatch latch = new CountDownLatch(1);
+		long start = System.nanoTime();
+		HashedWheelTimer.Timeout timeout = timer.schedule(latch::countDown, 250, TimeUnit.MILLISECONDS);
+		
+		assertTrue(latch.await(2, TimeUnit.SECONDS));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(250));
+		assertTrue(timeout.isExpired());
+		assertFalse(timeout.cancel());
+	}
+	
+	@Test
+	void testCleanup() throws InterruptedException{
+		AtomicInteger cleaned = new AtomicInteger();
+		HashedWheelTimer.Timeout expiring = timer.schedule(() -> {}, 50, TimeUnit.MILLISECONDS);
+		expiring.whenExpired(cleaned::incrementAndGet);
+		HashedWheelTimer.Timeout cancelled = timer.schedule(() -> {}, 50, TimeUnit.MILLISECONDS);
+		cancelled.whenExpired(() -> cleaned.addAndGet(100));
+		cancelled.cancel();
+		Thread.sleep(300);
+		assertEquals(1, cleaned.get());
+		
+		//Already expired, ran straight away
+		expiring.whenExpired(cleaned::incrementAndGet);
+		assertEquals(2, cleaned.get());
+	}
+	
+	@Test
+	void testCancel() throws InterruptedException{
+		AtomicInteger ran = new AtomicInteger();
+		List<HashedWheelTimer.Timeout> timeouts = new ArrayList<>();
+		for(int i = 0; i < 1000; i++){
+			timeouts.add(timer.schedule(ran::incrementAndGet, 200 + i % 200, TimeUnit.MILLISECONDS));
+		}
+		
+		//Cancel every other one, half of them before they've even made it into the wheel
+		for(int i = 0; i < timeouts.size(); i += 2){
+			assertTrue(timeouts.get(i).cancel());
+			if(i == timeouts.size() / 2){
+				Thread.sleep(30);
+			}
+		}
+		
+		Thread.sleep(900);
+		assertEquals(500, ran.get());
+		for(int i = 0; i < timeouts.size(); i++){
+			assertEquals(i % 2 == 0, timeouts.get(i).isCancelled());
+			assertTrue(timeouts.get(i).isDone());
+		}
+	}
+	
+	@Test
+	void testOrdering() throws InterruptedException{
+		List<Integer> order = new ArrayList<>();
+		CountDownLatch latch = new CountDownLatch(3);
+		timer.schedule(() -> {
+			order.add(3);
+			latch.countDown();
+		}, 300, TimeUnit.MILLISECONDS);
+		timer.schedule(() -> {
+			order.add(1);
+			latch.countDown();
+		}, 20, TimeUnit.MILLISECONDS);
+		timer.schedule(() -> {
+			order.add(2);
+			latch.countDown();
+		}, 150, TimeUnit.MILLISECONDS);
+		
+		assertTrue(latch.await(2, TimeUnit.SECONDS));
+		assertEquals(List.of(1, 2, 3), order);
+	}
+	
+	@AfterAll
+	void teardown(){
+		timer.stop();
+	}
+}
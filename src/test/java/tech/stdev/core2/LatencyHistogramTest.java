@@ -0,0 +1,47 @@
+package tech.stdev.core2;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyHistogramTest{
+	
+	@Test
+	void testBuckets(){
+		int last = -1;
+		for(long value = 0; value <= LatencyHistogram.MAX_VALUE; value = value < 1000 ? value + 1 : value + value / 7){
+			int index = LatencyHistogram.index(value);
+			assertTrue(index >= last && index < LatencyHistogram.BUCKETS);
+			long highest = LatencyHistogram.highestValue(index);
+			assertTrue(highest >= value, value + " counted in a bucket topping out at " + highest);
+			assertTrue(highest - value <= value / 32, value + " counted in a bucket topping out at " + highest);
+			last = index;
+		}
+		assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.index(LatencyHistogram.MAX_VALUE));
+	}
+	
+	@Test
+	void testPercentiles(){
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getValueAtPercentile(99));
+		for(long micros = 1; micros <= 10000; micros++){
+			histogram.record(micros * 1000);
+		}
+		
+		assertEquals(10000, histogram.getCount());
+		assertEquals(10_000_000, histogram.getMax());
+		assertEquals(5_000_500, histogram.getMean(), 1);
+		assertEquals(5_000_000, histogram.getValueAtPercentile(50), 5_000_000 / 32d);
+		assertEquals(9_900_000, histogram.getValueAtPercentile(99), 9_900_000 / 32d);
+		assertEquals(10_000_000, histogram.getValueAtPercentile(100));
+	}
+	
+	@Test
+	void testClamped(){
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(-5);
+		histogram.record(Long.MAX_VALUE);
+		assertEquals(0, histogram.getValueAtPercentile(50));
+		assertEquals(LatencyHistogram.MAX_VALUE, histogram.getValueAtPercentile(100));
+	}
+}
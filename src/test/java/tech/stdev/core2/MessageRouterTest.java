@@ -0,0 +1,127 @@
+package tech.stdev.core2;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static java.lang.Thread.sleep;
+import static org.junit.jupiter.api.Assertions.*;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class MessageRouterTest{
+	
+	DefaultServer server;
+	
+	RichSocket socket;
+	
+	ScheduledExecutorService service;
+	
+	List<String> routed = new CopyOnWriteArrayList<>();
+	
+	interface Event extends Serializable{
+	
+	}
+	
+	record Joined(String name) implements Event{
+	
+	}
+	
+	record Left(String name) implements Event{
+	
+	}
+	
+	static class Animal implements Serializable{
+	
+	}
+	
+	static class Dog extends Animal{
+	
+	}
+	
+	MessageRouter serverRouter = new MessageRouter()
+			.on(String.class, s -> routed.add("string " + s))
+			.on(byte[].class, b -> routed.add("bytes " + b.length))
+			.on(Joined.class, j -> routed.add("joined " + j.name()))
+			.on(Event.class, e -> routed.add("event " + e.getClass().getSimpleName()))
+			.on((byte) 0x40, b -> routed.add("opcode 64 " + new String(b)))
+			.on(RichSocket.LAST_USER_OPCODE, b -> routed.add("opcode 127 " + b.length));
+	
+	@BeforeAll
+	public void setup() throws InterruptedException{
+		this.service = Executors.newScheduledThreadPool(4);
+		this.server = new DefaultServer(ServerDependencyFactory.localServerSocket(), s -> new RichSocket(s, serverRouter, service));
+		new Thread(server).start();
+		sleep(20);
+		this.socket = new RichSocket(ServerDependencyFactory.localSocket(), new MessageRouter(), service);
+		new Thread(socket).start();
+		sleep(50);
+	}
+	
+	@Test
+	void routesOverConnection() throws Exception{
+		routed.clear();
+		socket.send("Hello");
+		socket.send(new byte[3]);
+		socket.send(new Joined("Ann"));
+		socket.send(new Left("Bob"));
+		socket.sendUser((byte) 0x40, "Custom".getBytes());
+		socket.sendUser(RichSocket.LAST_USER_OPCODE, new byte[5]);
+		//Unrouted opcodes and objects are dropped without harm
+		socket.sendUser((byte) 0x41, new byte[1]);
+		socket.send(new Dog());
+		socket.send("Done");
+		
+		for(int i = 0; i < 50 && routed.size() < 7; i++){
+			sleep(20);
+		}
+		assertEquals(List.of("string Hello", "bytes 3", "joined Ann", "event Left", "opcode 64 Custom", "opcode 127 5", "string Done"), routed);
+		assertTrue(socket.isRunning());
+	}
+	
+	@Test
+	void resolvesClosestType(){
+		List<String> handled = new CopyOnWriteArrayList<>();
+		MessageRouter router = new MessageRouter()
+				.on(Animal.class, a -> handled.add("animal"))
+				.otherwise(o -> handled.add("other " + o));
+		
+		router.route(new Dog());
+		router.route(1);
+		//Registering later replaces what was resolved so far
+		router.on(Dog.class, d -> handled.add("dog"));
+		router.on(Number.class, n -> handled.add("number " + n));
+		router.route(new Dog());
+		router.route(new Animal());
+		router.route(2);
+		//Interfaces count, after every superclass
+		router.on(Comparable.class, c -> handled.add("comparable"));
+		router.route(3L);
+		router.route("a");
+		
+		assertEquals(List.of("animal", "other 1", "dog", "animal", "number 2", "number 3", "comparable"), handled);
+	}
+	
+	@Test
+	void rejectsReservedOpcodes(){
+		MessageRouter router = new MessageRouter();
+		assertThrows(IllegalArgumentException.class, () -> router.on(RichSocket.OPCODE_STRING, b -> {}));
+		assertThrows(IllegalArgumentException.class, () -> router.on((byte) (RichSocket.FIRST_USER_OPCODE - 1), b -> {}));
+		assertThrows(IllegalArgumentException.class, () -> socket.sendUser(RichSocket.OPCODE_PING, new byte[0]));
+		assertThrows(IllegalArgumentException.class, () -> socket.sendUser((byte) 0x80, new byte[0]));
+	}
+	
+	@AfterAll
+	public void teardown() throws InterruptedException{
+		socket.shutdown();
+		sleep(100);
+		server.shutdown();
+		service.shutdownNow();
+	}
+}
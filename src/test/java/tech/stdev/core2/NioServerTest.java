@@ -0,0 +1,199 @@
+package tech.stdev.core2;
+
+import org.junit.jupiter.api.*;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.Thread.sleep;
+import static org.junit.jupiter.api.Assertions.*;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class NioServerTest{
+	
+	NioServer server;
+	
+	RichSocket socket;
+	
+	ScheduledExecutorService service;
+	
+	ScheduledExecutorService socketPool;
+	
+	AtomicInteger connectionMessages = new AtomicInteger();
+	
+	RichSocketDataForwardingPolicy serverPolicy = new RichSocketDataForwardingPolicy(){
+		@Override
+		public void receive(String string){
+			if(string.startsWith("Connection ")){
+				connectionMessages.incrementAndGet();
+			}else{
+				NioServerTest.this.gotString = string;
+			}
+		}
+		
+		@Override
+		public void receive(Object deserialized){
+			NioServerTest.this.gotSerializeable = (Serializable) deserialized;
+		}
+		
+		@Override
+		public void receive(byte[] payload){
+			NioServerTest.this.gotBytes = payload;
+		}
+		
+		@Override
+		public void receive(byte opcode, byte[] payload){
+			switch(opcode){
+				case RichSocket.OPCODE_PING:
+					NioServerTest.this.gotPinged = true;
+					break;
+				case RichSocket.OPCODE_KILL:
+					NioServerTest.this.gotShutdown = true;
+			}
+		}
+	};
+	
+	RichSocketDataForwardingPolicy socketPolicy = new RichSocketDataForwardingPolicy(){
+		@Override
+		public void receive(String string){
+		
+		}
+		
+		@Override
+		public void receive(Object deserialized){
+		
+		}
+		
+		@Override
+		public void receive(byte[] payload){
+		
+		}
+		
+		@Override
+		public void receive(byte opcode, byte[] payload){
+			switch(opcode){
+				case RichSocket.OPCODE_PONG:
+					NioServerTest.this.didPong = true;
+					break;
+				case RichSocket.OPCODE_KILL_RET:
+					NioServerTest.this.confirmedShutdown = true;
+			}
+		}
+	};
+	
+	@BeforeAll
+	public void setup() throws InterruptedException{
+		this.service = Executors.newScheduledThreadPool(4);
+		this.socketPool = Executors.newScheduledThreadPool(4);
+		this.server = new NioServer(ServerDependencyFactory.localServerSocketChannel(), (c, loop) -> new NioRichSocket(c, loop, serverPolicy, service), 1);
+		new Thread(server).start();
+		Thread.sleep(20);
+		this.socket = new RichSocket(ServerDependencyFactory.localSocket(), socketPolicy, socketPool);
+		new Thread(socket).start();
+		sleep(20);
+		
+		
+		socket.send((this.sendBytes = TestUtils.randomBytes(100000)));
+		sleep(5);
+		socket.send((this.sendString = "Hello World!"));
+		sleep(5);
+		socket.send((this.sendObject = new TestSerializer()));
+		sleep(5);
+		socket.sendPing();
+		sleep(50);
+		socket.sendShutdown();
+		sleep(500);
+	}
+	
+	private byte[] sendBytes;
+	private byte[] gotBytes;
+	
+	@Test
+	void send(){
+		assertArrayEquals(sendBytes, gotBytes);
+	}
+	
+	private String sendString;
+	private String gotString;
+	
+	@Test
+	void send1(){
+		assertEquals(gotString, this.sendString);
+	}
+	
+	private Serializable sendObject;
+	private Serializable gotSerializeable;
+	
+	@Test
+	void send2(){
+		assertEquals(gotSerializeable, sendObject);
+	}
+	
+	private boolean gotPinged = false;
+	
+	@Test
+	void sendPing(){
+		assertTrue(gotPinged);
+	}
+	
+	private boolean didPong = false;
+	
+	@Test
+	void sendPong(){
+		assertTrue(didPong);
+	}
+	
+	private boolean gotShutdown = false;
+	
+	@Test
+	void sendShutdown(){
+		assertTrue(gotShutdown);
+	}
+	
+	private boolean confirmedShutdown;
+	
+	@Test
+	void confirmShutdown(){
+		assertTrue(confirmedShutdown);
+	}
+	
+	/**
+	 * A single event loop has to service far more connections than DefaultServer has threads.
+	 */
+	@Test
+	void manyConnections() throws InterruptedException{
+		int connections = 200;
+		List<RichSocket> sockets = new ArrayList<>();
+		for(int i = 0; i < connections; i++){
+			RichSocket s = new RichSocket(ServerDependencyFactory.localSocket(), socketPolicy, socketPool);
+			new Thread(s).start();
+			sockets.add(s);
+		}
+		
+		for(int i = 0; i < connections; i++){
+			sockets.get(i).send("Connection " + i);
+		}
+		
+		for(int i = 0; i < 100 && connectionMessages.get() < connections; i++){
+			sleep(50);
+		}
+		assertEquals(connections, connectionMessages.get());
+		
+		for(RichSocket s : sockets){
+			s.shutdown();
+		}
+	}
+	
+	@AfterAll
+	public void shutdown() throws InterruptedException{
+		socket.shutdown();
+		server.shutdown();
+		sleep(100);
+		service.shutdownNow();
+		socketPool.shutdownNow();
+	}
+}
@@ -0,0 +1,134 @@
+package tech.stdev.core2;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Measures how much the sending thread allocates once the frame pool is warmed up. The thread also ends up
+ * doing the actual writes, so the whole way from send to the socket's stream is covered.
+ */
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class RichSocketAllocationTest{
+	
+	final static int WARMUP = 20000;
+	
+	final static int MESSAGES = 10000;
+	
+	/**
+	 * Allowance for whatever the JVM itself allocates on the thread, a single byte per send is already far more.
+	 */
+	final static long ALLOWED_BYTES = 4096;
+	
+	DefaultServer server;
+	
+	RichSocket socket;
+	
+	ScheduledExecutorService service;
+	
+	AtomicInteger received = new AtomicInteger();
+	
+	com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	
+	RichSocketDataForwardingPolicy serverPolicy = new RichSocketDataForwardingPolicy(){
+		@Override
+		public void receive(String string){
+			received.incrementAndGet();
+		}
+		
+		@Override
+		public void receive(Object deserialized){
+		
+		}
+		
+		@Override
+		public void receive(byte[] payload){
+			received.incrementAndGet();
+		}
+	};
+	
+	RichSocketDataForwardingPolicy socketPolicy = new RichSocketDataForwardingPolicy(){
+		@Override
+		public void receive(String string){
+		
+		}
+		
+		@Override
+		public void receive(Object deserialized){
+		
+		}
+		
+		@Override
+		public void receive(byte[] payload){
+		
+		}
+	};
+	
+	@BeforeAll
+	public void setup() throws InterruptedException{
+		this.service = Executors.newScheduledThreadPool(4);
+		this.server = new DefaultServer(ServerDependencyFactory.localServerSocket(), s -> new RichSocket(s, serverPolicy, service));
+		new Thread(server).start();
+		Thread.sleep(20);
+		this.socket = new RichSocket(ServerDependencyFactory.localSocket(), socketPolicy, service);
+		new Thread(socket).start();
+		Thread.sleep(20);
+	}
+	
+	@Test
+	void sendBytes(){
+		byte[] payload = new byte[64];
+		assertEquals(0, allocated(() -> socket.send(payload)));
+	}
+	
+	@Test
+	void sendBuffer(){
+		ByteBuffer payload = ByteBuffer.allocateDirect(64);
+		assertEquals(0, allocated(() -> {
+			payload.clear();
+			socket.send(payload);
+		}));
+	}
+	
+	@Test
+	void sendString(){
+		String payload = "Hello Wörld! 日本語";
+		assertEquals(0, allocated(() -> socket.send(payload)));
+	}
+	
+	/**
+	 * @return Bytes allocated per MESSAGES sends beyond the allowance, 0 if within it
+	 */
+	private long allocated(Runnable send){
+		for(int i = 0; i < WARMUP; i++){
+			send.run();
+		}
+		
+		long thread = Thread.currentThread().threadId();
+		long before = threads.getThreadAllocatedBytes(thread);
+		for(int i = 0; i < MESSAGES; i++){
+			send.run();
+		}
+		long allocated = threads.getThreadAllocatedBytes(thread) - before;
+		
+		assertTrue(socket.isRunning());
+		return Math.max(0, allocated - ALLOWED_BYTES);
+	}
+	
+	@AfterAll
+	public void teardown() throws InterruptedException{
+		socket.shutdown();
+		Thread.sleep(100);
+		server.shutdown();
+		service.shutdownNow();
+	}
+}
@@ -0,0 +1,155 @@
+package tech.stdev.core2;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.Thread.sleep;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Feeds frames straight to directMessage, the socket is never connected.
+ */
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class RichSocketAwaitTest{
+	
+	HashedWheelTimer timer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS, 64, null);
+	
+	RichSocket socket = new RichSocket(new Socket(), new RichSocketDataForwardingPolicy(){
+		@Override
+		public void receive(String string){
+		
+		}
+		
+		@Override
+		public void receive(Object deserialized){
+		
+		}
+		
+		@Override
+		public void receive(byte[] payload){
+		
+		}
+	}, null, timer);
+	
+	/**
+	 * Await on OPCODE_NONE frames starting with the given byte, counting how often it's offered a frame
+	 * and whether it timed out.
+	 */
+	class CountingAwait implements Await{
+		
+		CountingAwait(byte first, int opcode, long timeout){
+			this.first = first;
+			this.opcode = opcode;
+			this.timeout = timeout;
+		}
+		
+		final byte first;
+		
+		final int opcode;
+		
+		final long timeout;
+		
+		final AtomicInteger offered = new AtomicInteger();
+		
+		volatile boolean timedOut;
+		
+		@Override
+		public boolean await(byte[] payload, byte opcode){
+			offered.incrementAndGet();
+			return payload.length > 0 && payload[0] == first;
+		}
+		
+		@Override
+		public int opcode(){
+			return opcode;
+		}
+		
+		@Override
+		public HashedWheelTimer.Timeout schedule(HashedWheelTimer timer){
+			return timer.schedule(() -> timedOut = true, timeout, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	@Test
+	void satisfiedByMatchingFrame() throws InterruptedException{
+		CountingAwait await = new CountingAwait((byte) 7, 0, 200);
+		socket.await(await);
+		
+		socket.directMessage((byte) 1, new byte[]{7});
+		assertEquals(0, await.offered.get());
+		socket.directMessage((byte) 0, new byte[]{1});
+		assertEquals(1, await.offered.get());
+		socket.directMessage((byte) 0, new byte[]{7});
+		assertEquals(2, await.offered.get());
+		
+		//Satisfied, so it's forgotten and its timeout never fires
+		socket.directMessage((byte) 0, new byte[]{7});
+		assertEquals(2, await.offered.get());
+		sleep(400);
+		assertFalse(await.timedOut);
+	}
+	
+	@Test
+	void forgottenOnceTimedOut() throws InterruptedException{
+		//An opcode nothing else waits on, and no frame ever arrives for
+		CountingAwait idle = new CountingAwait((byte) 8, 0x33, 50);
+		socket.await(idle);
+		assertEquals(1, socket.pendingAwaits(0x33));
+		CountingAwait await = new CountingAwait((byte) 8, 0, 50);
+		socket.await(await);
+		sleep(200);
+		
+		assertTrue(await.timedOut);
+		assertTrue(idle.timedOut);
+		assertEquals(0, socket.pendingAwaits(0x33));
+		socket.directMessage((byte) 0, new byte[]{8});
+		assertEquals(0, await.offered.get());
+	}
+	
+	@Test
+	void anyOpcode(){
+		CountingAwait await = new CountingAwait((byte) 9, Await.ANY_OPCODE, 5000);
+		socket.await(await);
+		
+		socket.directMessage((byte) 1, new byte[]{1});
+		socket.directMessage((byte) 3, new byte[0]);
+		socket.directMessage((byte) 0, new byte[]{9});
+		socket.directMessage((byte) 0, new byte[]{9});
+		assertEquals(3, await.offered.get());
+	}
+	
+	@Test
+	void registeredConcurrently() throws InterruptedException{
+		CountingAwait[] awaits = new CountingAwait[4000];
+		Thread[] threads = new Thread[4];
+		for(int t = 0; t < threads.length; t++){
+			int offset = t;
+			threads[t] = new Thread(() -> {
+				for(int i = offset; i < awaits.length; i += threads.length){
+					socket.await(awaits[i] = new CountingAwait((byte) 10, 0x7F, 5000));
+				}
+			});
+			threads[t].start();
+		}
+		for(Thread thread : threads){
+			thread.join();
+		}
+		
+		socket.directMessage((byte) 0x7F, new byte[]{10});
+		socket.directMessage((byte) 0x7F, new byte[]{10});
+		for(CountingAwait await : awaits){
+			assertEquals(1, await.offered.get());
+		}
+	}
+	
+	@AfterAll
+	public void teardown(){
+		socket.kill();
+		timer.stop();
+	}
+}
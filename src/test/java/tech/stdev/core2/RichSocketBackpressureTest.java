@@ -0,0 +1,150 @@
+package tech.stdev.core2;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.Thread.sleep;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Sends to a foreign socket which doesn't read until told to, so the outbound queue backs up.
+ */
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class RichSocketBackpressureTest{
+	
+	ServerSocket serverSocket;
+	
+	Socket foreign;
+	
+	RichSocket socket;
+	
+	List<Boolean> writability = new CopyOnWriteArrayList<>();
+	
+	RichSocketDataForwardingPolicy policy = new RichSocketDataForwardingPolicy(){
+		@Override
+		public void receive(String string){
+		
+		}
+		
+		@Override
+		public void receive(Object deserialized){
+		
+		}
+		
+		@Override
+		public void receive(byte[] payload){
+		
+		}
+		
+		@Override
+		public void writabilityChanged(boolean writable){
+			writability.add(writable);
+		}
+	};
+	
+	@BeforeAll
+	public void setup() throws IOException{
+		this.serverSocket = new ServerSocket(0);
+		this.socket = RichSocketBuilder.start(serverSocket.getLocalPort())
+				.setForwardingPolicy(policy)
+				.setWatermarks(64 * 1024, 256 * 1024)
+				.setMaxQueuedBytes(1024 * 1024)
+				.build();
+		this.foreign = serverSocket.accept();
+	}
+	
+	@Test
+	void backsOffInsteadOfBlocking() throws Exception{
+		byte[] payload = new byte[1024];
+		List<CompletableFuture<Void>> accepted = new ArrayList<>();
+		CompletableFuture<Void> rejected = null;
+		long start = System.nanoTime();
+		//However full the connection gets sendAsync returns straight away, until the queue is full. Filled
+		//again until the connection's own buffers stop soaking up what was queued
+		for(int attempt = 0; attempt < 20 && (rejected == null || socket.isWritable()); attempt++){
+			rejected = null;
+			for(int i = 0; i < 100_000 && rejected == null; i++){
+				CompletableFuture<Void> future = socket.sendAsync(payload);
+				if(future.isCompletedExceptionally()){
+					rejected = future;
+				}else{
+					accepted.add(future);
+				}
+			}
+			sleep(100);
+		}
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+		
+		assertNotNull(rejected);
+		ExecutionException full = assertThrows(ExecutionException.class, rejected::get);
+		assertTrue(full.getCause() instanceof IOException);
+		//Flips back and forth while the connection's own buffers fill up, but always ends up unwritable
+		assertFalse(socket.isWritable());
+		assertAlternates(false);
+		assertTrue(socket.getQueuedBytes() <= 1024 * 1024);
+		
+		//Control frames are queued regardless, blocking sends park until there's room instead of being dropped
+		long queued = socket.getQueuedBytes();
+		assertTrue(socket.packAndSend(RichSocket.OPCODE_PONG, new byte[8]));
+		assertEquals(queued + Frame.HEADER_SIZE + 8, socket.getQueuedBytes());
+		CompletableFuture<Boolean> blocked = new CompletableFuture<>();
+		Thread sender = new Thread(() -> blocked.complete(socket.send(payload)));
+		sender.start();
+		sleep(200);
+		assertFalse(blocked.isDone());
+		Thread.State state = sender.getState();
+		assertTrue(state == Thread.State.WAITING || state == Thread.State.TIMED_WAITING, "Sender should be parked, not " + state);
+		
+		//Once the foreign socket starts reading everything accepted is written, and the socket is writable again
+		Thread reader = new Thread(() -> {
+			try(InputStream in = foreign.getInputStream()){
+				byte[] buffer = new byte[65536];
+				while(in.read(buffer) != -1);
+			}catch(IOException ignored){
+			}
+		});
+		reader.start();
+		for(CompletableFuture<Void> future : accepted){
+			future.get(5, TimeUnit.SECONDS);
+		}
+		assertTrue(blocked.get(5, TimeUnit.SECONDS));
+		sleep(50);
+		assertAlternates(true);
+		assertTrue(socket.isWritable());
+		assertEquals(0, socket.getQueuedBytes());
+	}
+	
+	/**
+	 * Writability is only ever reported when it changes, starting from writable.
+	 */
+	private void assertAlternates(boolean last){
+		assertFalse(writability.isEmpty());
+		for(int i = 0; i < writability.size(); i++){
+			assertEquals(i % 2 == 1, writability.get(i));
+		}
+		assertEquals(last, writability.get(writability.size() - 1));
+	}
+	
+	@AfterAll
+	public void teardown() throws Exception{
+		socket.kill();
+		ExecutionException closed = assertThrows(ExecutionException.class, () -> socket.sendAsync("Too late").get());
+		assertTrue(closed.getCause() instanceof java.net.SocketException);
+		
+		foreign.close();
+		serverSocket.close();
+	}
+}
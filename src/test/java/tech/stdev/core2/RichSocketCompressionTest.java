@@ -0,0 +1,141 @@
+package tech.stdev.core2;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static java.lang.Thread.sleep;
+import static org.junit.jupiter.api.Assertions.*;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class RichSocketCompressionTest{
+	
+	final static int THRESHOLD = 512;
+	
+	DefaultServer server;
+	
+	volatile RichSocket serverSocket;
+	
+	RichSocket socket;
+	
+	ScheduledExecutorService service;
+	
+	List<String> strings = new CopyOnWriteArrayList<>();
+	
+	List<byte[]> payloads = new CopyOnWriteArrayList<>();
+	
+	RichSocketDataForwardingPolicy serverPolicy = new RichSocketDataForwardingPolicy(){
+		@Override
+		public void receive(String string){
+			strings.add(string);
+		}
+		
+		@Override
+		public void receive(Object deserialized){
+		
+		}
+		
+		@Override
+		public void receive(byte[] payload){
+			payloads.add(payload);
+		}
+	};
+	
+	@BeforeAll
+	public void setup() throws InterruptedException{
+		this.service = Executors.newScheduledThreadPool(4);
+		this.server = new DefaultServer(ServerDependencyFactory.localServerSocket(), s -> {
+			serverSocket = new RichSocket(s, serverPolicy, service);
+			return serverSocket;
+		});
+		new Thread(server).start();
+		sleep(20);
+		this.socket = RichSocketBuilder.start(ServerDependencyFactory.localSocket())
+				.setScheduledExecutor(service)
+				.setCompressionThreshold(THRESHOLD)
+				.buildAndRun();
+		sleep(50);
+	}
+	
+	@Test
+	void compressesLargePayloads() throws InterruptedException{
+		assertTrue(socket.isNegotiated(RichSocket.CAPABILITY_COMPRESSION));
+		strings.clear();
+		CompressionStats stats = socket.getCompressionStats();
+		long before = stats.getFramesCompressed();
+		
+		StringBuilder json = new StringBuilder("[");
+		for(int i = 0; i < 100; i++){
+			json.append("{\"id\":").append(i).append(",\"name\":\"player ").append(i).append("\",\"online\":true},");
+		}
+		String string = json.append("]").toString();
+		for(int i = 0; i < 20; i++){
+			assertTrue(socket.send(string));
+		}
+		sleep(200);
+		
+		assertEquals(20, strings.size());
+		for(String received : strings){
+			assertEquals(string, received);
+		}
+		assertEquals(20, stats.getFramesCompressed() - before);
+		assertTrue(stats.getSentRatio() < 0.25, stats.toString());
+		assertEquals(stats.getFramesCompressed(), serverSocket.getCompressionStats().getFramesDecompressed());
+	}
+	
+	@Test
+	void roundTripsEverySize() throws InterruptedException{
+		payloads.clear();
+		byte[] pattern = "abcabcabdabcabe".getBytes();
+		List<byte[]> sent = new ArrayList<>();
+		for(int size = THRESHOLD - 8; size < 5000; size += 37){
+			byte[] payload = new byte[size];
+			for(int i = 0; i < size; i++){
+				payload[i] = pattern[i % pattern.length];
+			}
+			assertTrue(socket.send(payload));
+			sent.add(payload);
+		}
+		sleep(200);
+		
+		assertEquals(sent.size(), payloads.size());
+		for(int i = 0; i < sent.size(); i++){
+			assertArrayEquals(sent.get(i), payloads.get(i));
+		}
+	}
+	
+	@Test
+	void sendsSmallAndIncompressibleAsIs() throws InterruptedException{
+		payloads.clear();
+		CompressionStats stats = socket.getCompressionStats();
+		long compressed = stats.getFramesCompressed();
+		long incompressible = stats.getFramesIncompressible();
+		
+		byte[] random = new byte[4096];
+		new Random(41368).nextBytes(random);
+		assertTrue(socket.send(new byte[THRESHOLD - 1]));
+		assertTrue(socket.send(random));
+		sleep(100);
+		
+		assertEquals(2, payloads.size());
+		assertArrayEquals(random, payloads.get(1));
+		assertEquals(compressed, stats.getFramesCompressed());
+		assertEquals(incompressible + 1, stats.getFramesIncompressible());
+	}
+	
+	@AfterAll
+	public void teardown() throws InterruptedException{
+		socket.shutdown();
+		sleep(100);
+		server.shutdown();
+		service.shutdownNow();
+	}
+}
@@ -0,0 +1,136 @@
+package tech.stdev.core2;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Several threads hammering a single socket at once. Every frame has to arrive whole, and frames sent by
+ * the same thread have to arrive in the order they were sent.
+ */
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class RichSocketConcurrentSendTest{
+	
+	final static int THREADS = 8;
+	
+	final static int MESSAGES = 2000;
+	
+	DefaultServer server;
+	
+	RichSocket socket;
+	
+	ScheduledExecutorService service;
+	
+	AtomicInteger received = new AtomicInteger();
+	
+	AtomicInteger outOfOrder = new AtomicInteger();
+	
+	ConcurrentHashMap<Integer, Integer> lastSequence = new ConcurrentHashMap<>();
+	
+	RichSocketDataForwardingPolicy serverPolicy = new RichSocketDataForwardingPolicy(){
+		@Override
+		public void receive(String string){
+		
+		}
+		
+		@Override
+		public void receive(Object deserialized){
+		
+		}
+		
+		@Override
+		public void receive(byte[] payload){
+			ByteBuffer bb = ByteBuffer.wrap(payload);
+			int thread = bb.getInt();
+			int sequence = bb.getInt();
+			Integer last = lastSequence.put(thread, sequence);
+			if(payload.length != 64 || sequence != (last == null ? 0 : last + 1)){
+				outOfOrder.incrementAndGet();
+			}
+			received.incrementAndGet();
+		}
+	};
+	
+	RichSocketDataForwardingPolicy socketPolicy = new RichSocketDataForwardingPolicy(){
+		@Override
+		public void receive(String string){
+		
+		}
+		
+		@Override
+		public void receive(Object deserialized){
+		
+		}
+		
+		@Override
+		public void receive(byte[] payload){
+		
+		}
+	};
+	
+	@BeforeAll
+	public void setup() throws InterruptedException{
+		this.service = Executors.newScheduledThreadPool(4);
+		this.server = new DefaultServer(ServerDependencyFactory.localServerSocket(), s -> new RichSocket(s, serverPolicy, service));
+		new Thread(server).start();
+		Thread.sleep(20);
+		this.socket = new RichSocket(ServerDependencyFactory.localSocket(), socketPolicy, service);
+		new Thread(socket).start();
+		Thread.sleep(20);
+	}
+	
+	@Test
+	void concurrentSends() throws InterruptedException{
+		CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<>();
+		for(int t = 0; t < THREADS; t++){
+			int id = t;
+			Thread thread = new Thread(() -> {
+				try{
+					start.await();
+				}catch(InterruptedException e){
+					return;
+				}
+				for(int i = 0; i < MESSAGES; i++){
+					ByteBuffer payload = ByteBuffer.allocate(64);
+					payload.putInt(id).putInt(i);
+					assertTrue(socket.send(payload.array()));
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		
+		start.countDown();
+		for(Thread thread : threads){
+			thread.join();
+		}
+		
+		for(int i = 0; i < 100 && received.get() < THREADS * MESSAGES; i++){
+			Thread.sleep(50);
+		}
+		assertEquals(THREADS * MESSAGES, received.get());
+		assertEquals(0, outOfOrder.get());
+		assertTrue(socket.isRunning());
+	}
+	
+	@AfterAll
+	public void teardown() throws InterruptedException{
+		socket.shutdown();
+		Thread.sleep(100);
+		server.shutdown();
+		service.shutdownNow();
+	}
+}
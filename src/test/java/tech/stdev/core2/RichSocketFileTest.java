@@ -0,0 +1,237 @@
+package tech.stdev.core2;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.Thread.sleep;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Files sent by a blocking socket backed by a channel, so they go out through sendfile, to an NIO server
+ * moving them from its non-blocking channel.
+ */
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class RichSocketFileTest{
+	
+	NioServer server;
+	
+	RichSocket socket;
+	
+	ScheduledExecutorService service;
+	
+	Path directory;
+	
+	//Set to have the server write streams to files, otherwise they're kept in memory
+	volatile boolean toFile;
+	
+	Map<Integer, Received> streams = new ConcurrentHashMap<>();
+	
+	AtomicInteger strings = new AtomicInteger();
+	
+	/**
+	 * Everything received of a single stream, and how it ended.
+	 */
+	static class Received implements StreamHandler{
+		
+		Received(StreamHandler target){
+			this.target = target;
+		}
+		
+		final StreamHandler target;
+		
+		CompletableFuture<Boolean> ended = new CompletableFuture<>();
+		
+		@Override
+		public void chunk(ByteBuffer chunk) throws IOException{
+			target.chunk(chunk);
+		}
+		
+		@Override
+		public long transferFrom(ReadableByteChannel source, long count) throws IOException{
+			return target.transferFrom(source, count);
+		}
+		
+		@Override
+		public void end() throws IOException{
+			target.end();
+			ended.complete(true);
+		}
+		
+		@Override
+		public void abort(IOException cause){
+			target.abort(cause);
+			ended.complete(false);
+		}
+	}
+	
+	ByteArrayOutputStream received = new ByteArrayOutputStream();
+	
+	RichSocketDataForwardingPolicy serverPolicy = new RichSocketDataForwardingPolicy(){
+		@Override
+		public void receive(String string){
+			strings.incrementAndGet();
+		}
+		
+		@Override
+		public void receive(Object deserialized){
+		
+		}
+		
+		@Override
+		public void receive(byte[] payload){
+		
+		}
+		
+		@Override
+		public StreamHandler receiveStream(int stream){
+			StreamHandler target;
+			if(toFile){
+				try{
+					target = StreamHandler.to(FileChannel.open(directory.resolve("received-" + stream), StandardOpenOption.CREATE, StandardOpenOption.WRITE));
+				}catch(IOException e){
+					throw new UncheckedIOException(e);
+				}
+			}else{
+				target = StreamHandler.to(received);
+			}
+			Received handler = new Received(target);
+			streams.put(stream, handler);
+			return handler;
+		}
+	};
+	
+	RichSocketDataForwardingPolicy socketPolicy = new RichSocketDataForwardingPolicy(){
+		@Override
+		public void receive(String string){
+		
+		}
+		
+		@Override
+		public void receive(Object deserialized){
+		
+		}
+		
+		@Override
+		public void receive(byte[] payload){
+		
+		}
+	};
+	
+	@BeforeAll
+	public void setup() throws Exception{
+		this.directory = Files.createTempDirectory("files");
+		this.service = Executors.newScheduledThreadPool(4);
+		this.server = new NioServer(ServerDependencyFactory.localServerSocketChannel(), (c, loop) -> new NioRichSocket(c, loop, serverPolicy, service), 1);
+		new Thread(server).start();
+		sleep(20);
+		SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), ServerDependencyFactory.DEFAULT_PORT));
+		this.socket = new RichSocket(channel.socket(), socketPolicy, service);
+		new Thread(socket).start();
+		sleep(50);
+	}
+	
+	/**
+	 * Waits for the only stream the server received to end.
+	 *
+	 * @return ID the stream was received under
+	 */
+	private int ended() throws Exception{
+		for(int i = 0; i < 100 && streams.isEmpty(); i++){
+			sleep(20);
+		}
+		assertEquals(1, streams.size());
+		int id = streams.keySet().iterator().next();
+		streams.get(id).ended.get(5, TimeUnit.SECONDS);
+		return id;
+	}
+	
+	@Test
+	void sendsFile() throws Exception{
+		byte[] bytes = TestUtils.randomBytes(3 * 1024 * 1024);
+		Path file = Files.write(directory.resolve("sent"), bytes);
+		
+		int segmentSize = RichSocket.FILE_SEGMENT_SIZE;
+		RichSocket.FILE_SEGMENT_SIZE = 1024 * 1024;
+		long filesBefore = socket.getMetrics().getFramesOutByOpcode().getOrDefault("FILE", 0L);
+		try{
+			toFile = true;
+			streams.clear();
+			socket.sendFile(file).get(10, TimeUnit.SECONDS);
+			//Frames after the file are decoded as usual
+			socket.send("After");
+			
+			int id = ended();
+			assertTrue(streams.get(id).ended.get());
+			assertArrayEquals(bytes, Files.readAllBytes(directory.resolve("received-" + id)));
+			assertEquals((bytes.length - 1) / RichSocket.FILE_SEGMENT_SIZE + 1, socket.getMetrics().getFramesOutByOpcode().get("FILE") - filesBefore);
+		}finally{
+			RichSocket.FILE_SEGMENT_SIZE = segmentSize;
+			toFile = false;
+		}
+		
+		for(int i = 0; i < 50 && strings.get() == 0; i++){
+			sleep(20);
+		}
+		assertEquals(1, strings.getAndSet(0));
+	}
+	
+	@Test
+	void sendsFileToAnyHandler() throws Exception{
+		byte[] bytes = TestUtils.randomBytes(500_000);
+		Path file = Files.write(directory.resolve("small"), bytes);
+		
+		received.reset();
+		streams.clear();
+		socket.sendFile(file).get(5, TimeUnit.SECONDS);
+		assertTrue(streams.get(ended()).ended.get());
+		assertArrayEquals(bytes, received.toByteArray());
+	}
+	
+	@Test
+	void missingFile() throws Exception{
+		streams.clear();
+		ExecutionException failed = assertThrows(ExecutionException.class, () -> socket.sendFile(directory.resolve("missing")).get(5, TimeUnit.SECONDS));
+		assertTrue(failed.getCause() instanceof NoSuchFileException);
+		
+		assertFalse(streams.get(ended()).ended.get());
+		assertTrue(socket.isRunning());
+	}
+	
+	@AfterAll
+	public void teardown() throws Exception{
+		socket.shutdown();
+		sleep(100);
+		server.shutdown();
+		service.shutdownNow();
+		try(var files = Files.list(directory)){
+			for(Path file : files.toList()){
+				Files.delete(file);
+			}
+		}
+		Files.delete(directory);
+	}
+}
@@ -0,0 +1,210 @@
+package tech.stdev.core2;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.Thread.sleep;
+import static org.junit.jupiter.api.Assertions.*;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class RichSocketHandlersTest{
+	
+	DefaultServer server;
+	
+	RichSocket socket;
+	
+	ScheduledExecutorService service;
+	
+	StripedExecutor handlers = new StripedExecutor(2);
+	
+	List<String> received = new CopyOnWriteArrayList<>();
+	
+	List<String> threads = new CopyOnWriteArrayList<>();
+	
+	List<RichSocket> serverSockets = new CopyOnWriteArrayList<>();
+	
+	CountDownLatch gate = new CountDownLatch(0);
+	
+	AtomicInteger handledPayloads = new AtomicInteger();
+	
+	RichSocketDataForwardingPolicy serverPolicy = new RichSocketDataForwardingPolicy(){
+		@Override
+		public void receive(String string){
+			threads.add(Thread.currentThread().getName());
+			try{
+				//Slow handler, the connection mustn't wait on it
+				sleep(100);
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+			received.add(string);
+		}
+		
+		@Override
+		public void receive(Object deserialized){
+		
+		}
+		
+		@Override
+		public void receive(byte[] payload){
+			try{
+				gate.await();
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+			handledPayloads.incrementAndGet();
+		}
+	};
+	
+	RichSocketDataForwardingPolicy socketPolicy = new RichSocketDataForwardingPolicy(){
+		@Override
+		public void receive(String string){
+		
+		}
+		
+		@Override
+		public void receive(Object deserialized){
+		
+		}
+		
+		@Override
+		public void receive(byte[] payload){
+		
+		}
+	};
+	
+	@BeforeAll
+	public void setup() throws InterruptedException{
+		this.service = Executors.newScheduledThreadPool(4);
+		this.server = new DefaultServer(ServerDependencyFactory.localServerSocket(), s -> {
+			RichSocket socket = new RichSocket(s, serverPolicy, service);
+			socket.setHandlers(handlers.stripe());
+			socket.setMaxHandlerBacklog(64 * 1024);
+			serverSockets.add(socket);
+			return socket;
+		});
+		new Thread(server).start();
+		sleep(20);
+		this.socket = new RichSocket(ServerDependencyFactory.localSocket(), socketPolicy, service);
+		new Thread(socket).start();
+		sleep(50);
+	}
+	
+	@Test
+	void pongsDontWaitOnHandlers() throws Exception{
+		List<String> sent = new ArrayList<>();
+		for(int i = 0; i < 10; i++){
+			sent.add("Slow " + i);
+			socket.send("Slow " + i);
+		}
+		sleep(50);
+		socket.sendPing();
+		for(int i = 0; i < 50 && socket.getMetrics().getPingRtt() < 0; i++){
+			sleep(10);
+		}
+		
+		//Answered while the handlers still have most of a second to go
+		assertTrue(socket.getMetrics().getPingRtt() >= 0);
+		assertTrue(received.size() < 5, received.size() + " handled before the pong");
+		
+		for(int i = 0; i < 100 && received.size() < sent.size(); i++){
+			sleep(20);
+		}
+		assertEquals(sent, received);
+		for(String thread : threads){
+			assertTrue(thread.startsWith("Handler-"), thread);
+		}
+	}
+	
+	@Test
+	void readsPauseBehindHandlers() throws Exception{
+		gate = new CountDownLatch(1);
+		handledPayloads.set(0);
+		RichSocket serverSocket = serverSockets.get(0);
+		int count = 4000;
+		Thread sender = new Thread(() -> {
+			for(int i = 0; i < count; i++){
+				socket.send(new byte[4096]);
+			}
+		});
+		sender.start();
+		sleep(500);
+		
+		//Held at the maximum while the handler is stuck, everything else waits in TCP and the sender's queue
+		assertTrue(serverSocket.getHandlerBacklog() <= 64 * 1024 + Frame.HEADER_SIZE + 4096, serverSocket.getHandlerBacklog() + " bytes backlogged");
+		assertTrue(serverSocket.readsPaused);
+		assertTrue(serverSocket.isRunning());
+		
+		gate.countDown();
+		sender.join(10_000);
+		for(int i = 0; i < 250 && handledPayloads.get() < count; i++){
+			sleep(20);
+		}
+		assertEquals(count, handledPayloads.get());
+		assertEquals(0, serverSocket.getHandlerBacklog());
+	}
+	
+	@Test
+	void stripesKeepOrder() throws Exception{
+		StripedExecutor executor = new StripedExecutor(3);
+		List<Executor> stripes = new ArrayList<>();
+		List<List<Integer>> ran = new ArrayList<>();
+		List<Thread> threads = new CopyOnWriteArrayList<>();
+		for(int i = 0; i < 3; i++){
+			stripes.add(executor.stripe());
+			ran.add(new CopyOnWriteArrayList<>());
+		}
+		
+		CountDownLatch done = new CountDownLatch(3 * 1000);
+		for(int task = 0; task < 1000; task++){
+			for(int i = 0; i < 3; i++){
+				int stripe = i, value = task;
+				stripes.get(i).execute(() -> {
+					if(value == 0){
+						threads.add(Thread.currentThread());
+					}
+					ran.get(stripe).add(value);
+					done.countDown();
+				});
+			}
+		}
+		//A task throwing doesn't take its stripe down with it
+		stripes.get(0).execute(() -> {
+			throw new IllegalStateException("Handler on fire");
+		});
+		CountDownLatch after = new CountDownLatch(1);
+		stripes.get(0).execute(after::countDown);
+		
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertTrue(after.await(1, TimeUnit.SECONDS));
+		for(List<Integer> values : ran){
+			for(int i = 0; i < values.size(); i++){
+				assertEquals(i, (int) values.get(i));
+			}
+		}
+		//Consecutive stripes are spread over different threads
+		assertEquals(3, threads.stream().distinct().count());
+		executor.shutdown();
+	}
+	
+	@AfterAll
+	public void teardown() throws InterruptedException{
+		socket.shutdown();
+		sleep(100);
+		server.shutdown();
+		service.shutdownNow();
+		handlers.shutdown();
+	}
+}
@@ -0,0 +1,118 @@
+package tech.stdev.core2;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.Thread.sleep;
+import static org.junit.jupiter.api.Assertions.*;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class RichSocketHeartbeatTest{
+	
+	DefaultServer server;
+	
+	RichSocket busy, slow;
+	
+	ScheduledExecutorService service;
+	
+	RichSocketDataForwardingPolicy policy = new RichSocketDataForwardingPolicy(){
+		@Override
+		public void receive(String string){
+		
+		}
+		
+		@Override
+		public void receive(Object deserialized){
+		
+		}
+		
+		@Override
+		public void receive(byte[] payload){
+		
+		}
+	};
+	
+	@BeforeAll
+	public void setup() throws InterruptedException{
+		this.service = Executors.newScheduledThreadPool(4);
+		this.server = new DefaultServer(ServerDependencyFactory.localServerSocket(), s -> new RichSocket(s, policy, service));
+		new Thread(server).start();
+		sleep(20);
+		this.busy = new RichSocket(ServerDependencyFactory.localSocket(), policy, service);
+		busy.setPingTime(500);
+		new Thread(busy).start();
+		this.slow = new RichSocket(ServerDependencyFactory.localSocket(), policy, service);
+		new Thread(slow).start();
+		sleep(50);
+	}
+	
+	@Test
+	void estimatesRtt(){
+		SocketMetrics metrics = new SocketMetrics(() -> 0);
+		assertEquals(-1, metrics.getSmoothedPingRtt());
+		assertNull(metrics.getPingRtts());
+		
+		metrics.pinged(TimeUnit.MILLISECONDS.toNanos(10));
+		assertEquals(10_000, metrics.getSmoothedPingRtt());
+		assertEquals(5_000, metrics.getPingRttDeviation());
+		
+		metrics.pinged(TimeUnit.MILLISECONDS.toNanos(20));
+		assertEquals(11_250, metrics.getSmoothedPingRtt());
+		assertEquals(6_250, metrics.getPingRttDeviation());
+		assertEquals(TimeUnit.MICROSECONDS.toNanos(11_250 + 4 * 6_250), metrics.rttTimeout());
+		assertEquals(2, metrics.getPingRtts().getCount());
+		assertEquals(20_000, metrics.getPingRtts().getMax());
+	}
+	
+	@Test
+	void slowConnectionsWaitLonger(){
+		//Round trips over loopback don't change a thing
+		assertEquals(RichSocket.PONG_ACCEPTANCE_TIME, slow.pongAcceptanceTime());
+		assertEquals(slow.getPingTime(), slow.pingInterval());
+		
+		//Three second round trips
+		for(int i = 0; i < 10; i++){
+			slow.getMetrics().pinged(TimeUnit.SECONDS.toNanos(3));
+		}
+		long expected = RichSocket.RTT_MULTIPLIER * TimeUnit.NANOSECONDS.toMillis(slow.getMetrics().rttTimeout());
+		assertTrue(expected > RichSocket.RTT_MULTIPLIER * 2000);
+		assertEquals(expected, slow.pongAcceptanceTime());
+		assertEquals(expected, slow.pingInterval());
+	}
+	
+	@Test
+	void busyConnectionsSkipPings() throws Exception{
+		//Nothing comes back, but the socket keeps sending, pings are held off past the first checks
+		long start = System.currentTimeMillis();
+		while(System.currentTimeMillis() - start < 4500){
+			busy.send("Busy");
+			sleep(50);
+		}
+		assertEquals(0, pings());
+		
+		//Once quiet it goes back to pinging every ping time
+		sleep(2000);
+		assertTrue(pings() > 0);
+		assertTrue(busy.getMetrics().getSmoothedPingRtt() > 0);
+		assertTrue(busy.isRunning());
+	}
+	
+	private long pings(){
+		return busy.getMetrics().getFramesOutByOpcode().getOrDefault("PING", 0L);
+	}
+	
+	@AfterAll
+	public void teardown() throws InterruptedException{
+		busy.shutdown();
+		slow.shutdown();
+		sleep(100);
+		server.shutdown();
+		service.shutdownNow();
+	}
+}
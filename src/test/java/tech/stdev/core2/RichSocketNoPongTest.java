@@ -47,6 +47,11 @@ public class RichSocketNoPongTest{
 		this.service = Executors.newScheduledThreadPool(4);
 		ScheduledExecutorService socketPool = Executors.newScheduledThreadPool(4);
 		this.server = new DefaultServer(ServerDependencyFactory.localServerSocket(), s -> new RichSocket(s, policy, service){
+			{
+				//Only the client may ping, the server's own pings would otherwise count as assurance
+				setPingTime(60000);
+			}
+			
 			@Override
 			public void sendPong(byte[] payload){
 			
@@ -0,0 +1,174 @@
+package tech.stdev.core2;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.Thread.sleep;
+import static org.junit.jupiter.api.Assertions.*;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class RichSocketPoolTest{
+	
+	DefaultServer server;
+	
+	ScheduledExecutorService service;
+	
+	InetSocketAddress address = new InetSocketAddress("127.0.0.1", ServerDependencyFactory.DEFAULT_PORT);
+	
+	AtomicInteger pings = new AtomicInteger();
+	
+	RichSocketDataForwardingPolicy serverPolicy = new RichSocketDataForwardingPolicy(){
+		@Override
+		public void receive(String string){
+		
+		}
+		
+		@Override
+		public void receive(Object deserialized){
+		
+		}
+		
+		@Override
+		public void receive(byte[] payload){
+		
+		}
+		
+		@Override
+		public Object respond(Object request){
+			return request;
+		}
+		
+		@Override
+		public void receive(byte opcode, byte[] payload){
+			if(opcode == RichSocket.OPCODE_PING){
+				pings.incrementAndGet();
+			}
+		}
+	};
+	
+	@BeforeAll
+	public void setup() throws InterruptedException{
+		this.service = Executors.newScheduledThreadPool(4);
+		this.server = new DefaultServer(ServerDependencyFactory.localServerSocket(), s -> new RichSocket(s, serverPolicy, service));
+		new Thread(server).start();
+		sleep(20);
+	}
+	
+	@Test
+	void reusesConnections() throws Exception{
+		try(RichSocketPool pool = new RichSocketPool(2)){
+			RichSocket first = null;
+			for(int i = 0; i < 10; i++){
+				try(RichSocketPool.Lease lease = pool.acquire(address)){
+					assertEquals("call " + i, lease.getSocket().request("call " + i).get(1, TimeUnit.SECONDS));
+					if(first == null){
+						first = lease.getSocket();
+					}
+					assertSame(first, lease.getSocket());
+				}
+			}
+			assertEquals(1, pool.getCreatedCount());
+			assertEquals(1, pool.getIdleCount());
+			assertEquals(0, pool.getLeasedCount());
+		}
+	}
+	
+	@Test
+	void waitsForLease() throws Exception{
+		try(RichSocketPool pool = new RichSocketPool(2)){
+			RichSocketPool.Lease first = pool.acquire(address);
+			RichSocketPool.Lease second = pool.acquire(address);
+			assertNotSame(first.getSocket(), second.getSocket());
+			assertThrows(TimeoutException.class, () -> pool.acquire(address, 100, TimeUnit.MILLISECONDS));
+			
+			CompletableFuture<RichSocketPool.Lease> waiting = CompletableFuture.supplyAsync(() -> {
+				try{
+					return pool.acquire(address);
+				}catch(Exception e){
+					throw new RuntimeException(e);
+				}
+			});
+			sleep(100);
+			assertFalse(waiting.isDone());
+			
+			first.close();
+			RichSocketPool.Lease third = waiting.get(1, TimeUnit.SECONDS);
+			assertSame(first.getSocket(), third.getSocket());
+			assertEquals(2, pool.getCreatedCount());
+			
+			second.close();
+			third.close();
+		}
+	}
+	
+	@Test
+	void evictsDeadAndExpired() throws Exception{
+		try(RichSocketPool pool = new RichSocketPool(2, builder -> {
+			builder.setLifeCycle(300);
+			return builder;
+		})){
+			RichSocket dead;
+			try(RichSocketPool.Lease lease = pool.acquire(address)){
+				dead = lease.getSocket();
+				dead.kill();
+			}
+			assertEquals(0, pool.getIdleCount());
+			
+			RichSocket expired;
+			try(RichSocketPool.Lease lease = pool.acquire(address)){
+				expired = lease.getSocket();
+				assertNotSame(dead, expired);
+			}
+			sleep(400);
+			try(RichSocketPool.Lease lease = pool.acquire(address)){
+				assertNotSame(expired, lease.getSocket());
+				assertTrue(lease.getSocket().isRunning());
+			}
+			assertEquals(3, pool.getCreatedCount());
+			assertEquals(2, pool.getEvictedCount());
+		}
+	}
+	
+	@Test
+	void validatesIdle() throws Exception{
+		try(RichSocketPool pool = new RichSocketPool(1)){
+			pool.setValidateAfter(100);
+			RichSocket socket;
+			try(RichSocketPool.Lease lease = pool.acquire(address)){
+				socket = lease.getSocket();
+			}
+			int before = pings.get();
+			
+			//Handed straight back out, no ping
+			pool.acquire(address).close();
+			assertEquals(before, pings.get());
+			
+			sleep(200);
+			try(RichSocketPool.Lease lease = pool.acquire(address)){
+				assertSame(socket, lease.getSocket());
+			}
+			//The server's policy only hears of the ping once it's answered it
+			for(int i = 0; i < 50 && pings.get() == before; i++){
+				sleep(10);
+			}
+			assertEquals(before + 1, pings.get());
+		}
+	}
+	
+	@AfterAll
+	public void teardown() throws InterruptedException{
+		sleep(100);
+		server.shutdown();
+		service.shutdownNow();
+	}
+}
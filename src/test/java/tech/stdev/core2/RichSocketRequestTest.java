@@ -0,0 +1,192 @@
+package tech.stdev.core2;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static java.lang.Thread.sleep;
+import static org.junit.jupiter.api.Assertions.*;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class RichSocketRequestTest{
+	
+	DefaultServer server;
+	
+	RichSocket socket;
+	
+	ScheduledExecutorService service;
+	
+	RichSocketDataForwardingPolicy serverPolicy = new RichSocketDataForwardingPolicy(){
+		@Override
+		public void receive(String string){
+		
+		}
+		
+		@Override
+		public void receive(Object deserialized){
+		
+		}
+		
+		@Override
+		public void receive(byte[] payload){
+		
+		}
+		
+		@Override
+		public Object respond(Object request){
+			if(request instanceof Integer i){
+				return i * 2;
+			}
+			switch((String) request){
+				case "slow":
+					return CompletableFuture.supplyAsync(() -> "slow", CompletableFuture.delayedExecutor(300, TimeUnit.MILLISECONDS));
+				case "never":
+					return new CompletableFuture<>();
+				default:
+					throw new IllegalArgumentException("Unknown request " + request);
+			}
+		}
+	};
+	
+	RichSocketDataForwardingPolicy socketPolicy = new RichSocketDataForwardingPolicy(){
+		@Override
+		public void receive(String string){
+		
+		}
+		
+		@Override
+		public void receive(Object deserialized){
+		
+		}
+		
+		@Override
+		public void receive(byte[] payload){
+		
+		}
+	};
+	
+	@BeforeAll
+	public void setup() throws InterruptedException{
+		this.service = Executors.newScheduledThreadPool(4);
+		this.server = new DefaultServer(ServerDependencyFactory.localServerSocket(), s -> new RichSocket(s, serverPolicy, service));
+		new Thread(server).start();
+		sleep(20);
+		this.socket = new RichSocket(ServerDependencyFactory.localSocket(), socketPolicy, service);
+		new Thread(socket).start();
+		sleep(50);
+	}
+	
+	@Test
+	void manyInFlight() throws Exception{
+		List<CompletableFuture<Integer>> futures = new ArrayList<>();
+		for(int i = 0; i < 5000; i++){
+			futures.add(socket.request(i));
+		}
+		for(int i = 0; i < 5000; i++){
+			assertEquals(i * 2, (int) futures.get(i).get(5, TimeUnit.SECONDS));
+		}
+		assertEquals(0, socket.getPendingRequests());
+	}
+	
+	@Test
+	void answeredOutOfOrder() throws Exception{
+		CompletableFuture<String> slow = socket.request("slow");
+		CompletableFuture<Integer> fast = socket.request(21);
+		
+		assertEquals(42, (int) fast.get(1, TimeUnit.SECONDS));
+		assertFalse(slow.isDone());
+		assertEquals("slow", slow.get(2, TimeUnit.SECONDS));
+	}
+	
+	@Test
+	void failures() throws Exception{
+		ExecutionException remote = assertThrows(ExecutionException.class, () -> socket.request("unknown").get(1, TimeUnit.SECONDS));
+		assertTrue(remote.getCause() instanceof RemoteException);
+		assertTrue(remote.getCause().getMessage().contains("Unknown request unknown"));
+		
+		ExecutionException timeout = assertThrows(ExecutionException.class, () -> socket.request("never", 300, TimeUnit.MILLISECONDS).get(2, TimeUnit.SECONDS));
+		assertTrue(timeout.getCause() instanceof TimeoutException);
+		assertEquals(0, socket.getPendingRequests());
+	}
+	
+	@Test
+	void refusedByOlderPeers() throws Exception{
+		try(ServerSocket peer = new ServerSocket(0)){
+			RichSocket client = new RichSocket(new Socket(peer.getInetAddress(), peer.getLocalPort()), socketPolicy, service);
+			new Thread(client).start();
+			try(Socket foreign = peer.accept()){
+				//Sent before the HELLO arrives, so it's only failed once it does
+				CompletableFuture<Object> early = client.request(1);
+				DataOutputStream out = new DataOutputStream(foreign.getOutputStream());
+				frame(out, RichSocket.OPCODE_HELLO, ByteBuffer.allocate(5).put((byte) 1).putInt(RichSocket.CAPABILITY_COMPRESSION).array());
+				
+				ExecutionException refused = assertThrows(ExecutionException.class, () -> early.get(1, TimeUnit.SECONDS));
+				assertTrue(refused.getCause() instanceof ProtocolException);
+				refused = assertThrows(ExecutionException.class, () -> client.request(2).get(10, TimeUnit.MILLISECONDS));
+				assertTrue(refused.getCause() instanceof ProtocolException);
+				assertEquals(0, client.getPendingRequests());
+			}finally{
+				client.kill();
+			}
+		}
+	}
+	
+	@Test
+	void unknownStatus() throws Exception{
+		try(ServerSocket peer = new ServerSocket(0)){
+			RichSocket client = new RichSocket(new Socket(peer.getInetAddress(), peer.getLocalPort()), socketPolicy, service);
+			new Thread(client).start();
+			try(Socket foreign = peer.accept()){
+				CompletableFuture<Object> pending = client.request(1);
+				//Its ID is 0, the first this socket hands out
+				frame(new DataOutputStream(foreign.getOutputStream()), RichSocket.OPCODE_RESPONSE, new byte[]{0, 7, 1, 2});
+				
+				ExecutionException corrupt = assertThrows(ExecutionException.class, () -> pending.get(1, TimeUnit.SECONDS));
+				assertTrue(corrupt.getCause() instanceof ProtocolException);
+				for(int i = 0; i < 50 && client.isRunning(); i++){
+					sleep(10);
+				}
+				assertEquals(CloseReason.PROTOCOL.name(), client.getMetrics().getCloseReason());
+			}finally{
+				client.kill();
+			}
+		}
+	}
+	
+	private static void frame(DataOutputStream out, byte opcode, byte[] payload) throws IOException{
+		out.writeInt(payload.length);
+		out.writeByte(opcode);
+		out.write(payload);
+		out.flush();
+	}
+	
+	@AfterAll
+	public void teardown() throws InterruptedException{
+		CompletableFuture<Object> pending = socket.request("never");
+		socket.kill();
+		ExecutionException closed = assertThrows(ExecutionException.class, () -> pending.get(1, TimeUnit.SECONDS));
+		assertTrue(closed.getCause() instanceof SocketException);
+		assertEquals(0, socket.getPendingRequests());
+		
+		sleep(100);
+		server.shutdown();
+		service.shutdownNow();
+	}
+}
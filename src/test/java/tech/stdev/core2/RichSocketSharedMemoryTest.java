@@ -0,0 +1,247 @@
+package tech.stdev.core2;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.Thread.sleep;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Clients offering shared memory to a DefaultServer, which switches over to the rings, and to an NioServer
+ * on another port which keeps to TCP.
+ */
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class RichSocketSharedMemoryTest{
+	
+	final static int NIO_PORT = ServerDependencyFactory.DEFAULT_PORT + 1;
+	
+	DefaultServer server;
+	
+	NioServer nioServer;
+	
+	ScheduledExecutorService service;
+	
+	List<RichSocket> serverSockets = new CopyOnWriteArrayList<>();
+	
+	List<Object> received = new CopyOnWriteArrayList<>();
+	
+	ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+	
+	CompletableFuture<Void> streamEnded = new CompletableFuture<>();
+	
+	RichSocketDataForwardingPolicy serverPolicy = new RichSocketDataForwardingPolicy(){
+		@Override
+		public void receive(String string){
+			received.add(string);
+		}
+		
+		@Override
+		public void receive(Object deserialized){
+			received.add(deserialized);
+		}
+		
+		@Override
+		public void receive(byte[] payload){
+			received.add(payload);
+		}
+		
+		@Override
+		public Object respond(Object request){
+			return "Re: " + request;
+		}
+		
+		@Override
+		public StreamHandler receiveStream(int stream){
+			StreamHandler target = StreamHandler.to(streamed);
+			return new StreamHandler(){
+				@Override
+				public void chunk(ByteBuffer chunk) throws IOException{
+					target.chunk(chunk);
+				}
+				
+				@Override
+				public void end(){
+					streamEnded.complete(null);
+				}
+			};
+		}
+	};
+	
+	RichSocketDataForwardingPolicy socketPolicy = new RichSocketDataForwardingPolicy(){
+		@Override
+		public void receive(String string){
+		
+		}
+		
+		@Override
+		public void receive(Object deserialized){
+		
+		}
+		
+		@Override
+		public void receive(byte[] payload){
+		
+		}
+	};
+	
+	@BeforeAll
+	public void setup() throws Exception{
+		this.service = Executors.newScheduledThreadPool(4);
+		this.server = new DefaultServer(ServerDependencyFactory.localServerSocket(), s -> {
+			RichSocket socket = new RichSocket(s, serverPolicy, service);
+			serverSockets.add(socket);
+			return socket;
+		});
+		new Thread(server).start();
+		
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), NIO_PORT));
+		this.nioServer = new NioServer(channel, (c, loop) -> new NioRichSocket(c, loop, serverPolicy, service), 1);
+		new Thread(nioServer).start();
+		sleep(50);
+	}
+	
+	private RichSocket connect(int port) throws InterruptedException{
+		RichSocket socket = RichSocketBuilder.start(port).setSharedMemory(true).setForwardingPolicy(socketPolicy).setScheduledExecutor(service).buildAndRun();
+		//Whatever the foreign socket makes of the offer, it has answered once a request comes back
+		assertDoesNotThrow(() -> socket.request("Hello").get(5, TimeUnit.SECONDS));
+		for(int i = 0; i < 50 && socket.shared() != null && !socket.isSharedMemory(); i++){
+			sleep(20);
+		}
+		return socket;
+	}
+	
+	private void awaitReceived(int count) throws InterruptedException{
+		for(int i = 0; i < 250 && received.size() < count; i++){
+			sleep(20);
+		}
+		assertEquals(count, received.size());
+	}
+	
+	@Test
+	void exchangesOverRings() throws Exception{
+		RichSocket socket = connect(ServerDependencyFactory.DEFAULT_PORT);
+		assertTrue(socket.isSharedMemory());
+		//The server reads from the ring once the client's upgrade arrives
+		RichSocket serverSocket = serverSockets.get(serverSockets.size() - 1);
+		for(int i = 0; i < 50 && !serverSocket.isSharedMemory(); i++){
+			sleep(20);
+		}
+		assertTrue(serverSocket.isSharedMemory());
+		//Both ends mapped it, the file is gone
+		assertFalse(Files.exists(socket.shared().file()));
+		
+		received.clear();
+		//Larger than the ring, which wraps and fills up while it's read
+		byte[] large = TestUtils.randomBytes(3 * SharedMemoryChannel.RING_SIZE + 17);
+		socket.send("Hello");
+		socket.send(large);
+		TestSerializer object = new TestSerializer();
+		socket.send(object);
+		assertEquals("Re: Ping", socket.request("Ping").get(5, TimeUnit.SECONDS));
+		
+		awaitReceived(3);
+		assertEquals("Hello", received.get(0));
+		assertArrayEquals(large, (byte[]) received.get(1));
+		assertEquals(object, received.get(2));
+		socket.shutdown();
+	}
+	
+	@Test
+	void sendsFilesOverRings() throws Exception{
+		RichSocket socket = connect(ServerDependencyFactory.DEFAULT_PORT);
+		assertTrue(socket.isSharedMemory());
+		
+		byte[] bytes = TestUtils.randomBytes(2_500_000);
+		Path file = Files.createTempFile("shared", null);
+		try{
+			Files.write(file, bytes);
+			streamed.reset();
+			streamEnded = new CompletableFuture<>();
+			socket.sendFile(file).get(10, TimeUnit.SECONDS);
+			streamEnded.get(10, TimeUnit.SECONDS);
+			assertArrayEquals(bytes, streamed.toByteArray());
+		}finally{
+			Files.delete(file);
+		}
+		socket.shutdown();
+	}
+	
+	@Test
+	void smallRingsKeepOrder() throws Exception{
+		int ringSize = SharedMemoryChannel.RING_SIZE;
+		SharedMemoryChannel.RING_SIZE = 4096;
+		RichSocket socket;
+		try{
+			socket = connect(ServerDependencyFactory.DEFAULT_PORT);
+		}finally{
+			SharedMemoryChannel.RING_SIZE = ringSize;
+		}
+		assertTrue(socket.isSharedMemory());
+		
+		received.clear();
+		int count = 500;
+		for(int i = 0; i < count; i++){
+			socket.send(new byte[1 + (i * 37) % 9000]);
+		}
+		awaitReceived(count);
+		for(int i = 0; i < count; i++){
+			assertEquals(1 + (i * 37) % 9000, ((byte[]) received.get(i)).length);
+		}
+		socket.shutdown();
+	}
+	
+	@Test
+	void closesWithForeignSocket() throws Exception{
+		RichSocket socket = connect(ServerDependencyFactory.DEFAULT_PORT);
+		assertTrue(socket.isSharedMemory());
+		//Idle long enough for the reader to have gone to sleep on the socket
+		sleep(100);
+		
+		serverSockets.get(serverSockets.size() - 1).kill();
+		for(int i = 0; i < 100 && socket.isRunning(); i++){
+			sleep(20);
+		}
+		assertFalse(socket.isRunning());
+		assertEquals(CloseReason.CLOSED.name(), socket.getMetrics().getCloseReason());
+	}
+	
+	@Test
+	void nioServersKeepToTcp() throws Exception{
+		RichSocket socket = connect(NIO_PORT);
+		assertFalse(socket.isSharedMemory());
+		//The offer was turned down, so its file was deleted
+		assertNull(socket.shared());
+		
+		received.clear();
+		socket.send("Over TCP");
+		awaitReceived(1);
+		assertEquals("Over TCP", received.get(0));
+		socket.shutdown();
+	}
+	
+	@AfterAll
+	public void teardown() throws InterruptedException{
+		sleep(100);
+		server.shutdown();
+		nioServer.shutdown();
+		service.shutdownNow();
+	}
+}
@@ -0,0 +1,238 @@
+package tech.stdev.core2;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.Thread.sleep;
+import static org.junit.jupiter.api.Assertions.*;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class RichSocketStreamTest{
+	
+	DefaultServer server;
+	
+	RichSocket socket;
+	
+	ScheduledExecutorService service;
+	
+	Map<Integer, Received> streams = new ConcurrentHashMap<>();
+	
+	AtomicInteger strings = new AtomicInteger();
+	
+	/**
+	 * Everything received of a single stream, and how it ended.
+	 */
+	static class Received implements StreamHandler{
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		
+		int largestChunk;
+		
+		CompletableFuture<Boolean> ended = new CompletableFuture<>();
+		
+		@Override
+		public void chunk(ByteBuffer chunk){
+			largestChunk = Math.max(largestChunk, chunk.remaining());
+			byte[] copy = new byte[chunk.remaining()];
+			chunk.get(copy);
+			bytes.writeBytes(copy);
+		}
+		
+		@Override
+		public void end(){
+			ended.complete(true);
+		}
+		
+		@Override
+		public void abort(IOException cause){
+			ended.complete(false);
+		}
+	}
+	
+	RichSocketDataForwardingPolicy serverPolicy = new RichSocketDataForwardingPolicy(){
+		@Override
+		public void receive(String string){
+			strings.incrementAndGet();
+		}
+		
+		@Override
+		public void receive(Object deserialized){
+		
+		}
+		
+		@Override
+		public void receive(byte[] payload){
+		
+		}
+		
+		@Override
+		public StreamHandler receiveStream(int stream){
+			Received received = new Received();
+			streams.put(stream, received);
+			return received;
+		}
+	};
+	
+	RichSocketDataForwardingPolicy socketPolicy = new RichSocketDataForwardingPolicy(){
+		@Override
+		public void receive(String string){
+		
+		}
+		
+		@Override
+		public void receive(Object deserialized){
+		
+		}
+		
+		@Override
+		public void receive(byte[] payload){
+		
+		}
+	};
+	
+	@BeforeAll
+	public void setup() throws InterruptedException{
+		this.service = Executors.newScheduledThreadPool(4);
+		this.server = new DefaultServer(ServerDependencyFactory.localServerSocket(), s -> new RichSocket(s, serverPolicy, service));
+		new Thread(server).start();
+		sleep(20);
+		this.socket = new RichSocket(ServerDependencyFactory.localSocket(), socketPolicy, service);
+		new Thread(socket).start();
+		sleep(50);
+	}
+	
+	/**
+	 * Waits for the only stream the server received to end.
+	 */
+	private Received ended() throws Exception{
+		for(int i = 0; i < 100 && streams.isEmpty(); i++){
+			sleep(20);
+		}
+		assertEquals(1, streams.size());
+		Received received = streams.values().iterator().next();
+		received.ended.get(5, TimeUnit.SECONDS);
+		return received;
+	}
+	
+	@Test
+	void streamsInChunks() throws Exception{
+		byte[] large = TestUtils.randomBytes(5 * 1024 * 1024 + 123);
+		streams.clear();
+		CompletableFuture<Void> sent = socket.sendStream(new ByteArrayInputStream(large));
+		//Other messages go out while the stream is still being sent
+		for(int i = 0; i < 10; i++){
+			socket.send("In between");
+		}
+		sent.get(10, TimeUnit.SECONDS);
+		
+		Received received = ended();
+		assertTrue(received.ended.get());
+		assertArrayEquals(large, received.bytes.toByteArray());
+		assertEquals(RichSocket.STREAM_CHUNK_SIZE, received.largestChunk);
+		//Sent alongside the stream, not necessarily all before it ended
+		for(int i = 0; i < 50 && strings.get() < 10; i++){
+			sleep(20);
+		}
+		assertEquals(10, strings.get());
+		
+		//A stream without a single byte still ends
+		streams.clear();
+		socket.sendStream(new ByteArrayInputStream(new byte[0])).get(1, TimeUnit.SECONDS);
+		received = ended();
+		assertTrue(received.ended.get());
+		assertEquals(0, received.bytes.size());
+	}
+	
+	@Test
+	void abortedBySender() throws Exception{
+		InputStream failing = new InputStream(){
+			int read = 0;
+			
+			@Override
+			public int read() throws IOException{
+				if(read++ >= 200_000){
+					throw new IOException("Disk on fire");
+				}
+				return 7;
+			}
+		};
+		streams.clear();
+		ExecutionException failed = assertThrows(ExecutionException.class, () -> socket.sendStream(failing).get(5, TimeUnit.SECONDS));
+		assertEquals("Disk on fire", failed.getCause().getMessage());
+		
+		Received received = ended();
+		assertFalse(received.ended.get());
+		assertTrue(received.bytes.size() > 0);
+	}
+	
+	@Test
+	void endsThroughFullQueue() throws Exception{
+		try(ServerSocket serverSocket = new ServerSocket(0)){
+			RichSocket sender = RichSocketBuilder.start(serverSocket.getLocalPort())
+					.setForwardingPolicy(socketPolicy)
+					.setMaxQueuedBytes(256 * 1024)
+					.build();
+			try(Socket foreign = serverSocket.accept()){
+				//Nothing is read, so once the connection's own buffers are full so is the queue
+				byte[] payload = new byte[1024];
+				boolean full = false;
+				for(int attempt = 0; attempt < 20 && !full; attempt++){
+					for(int i = 0; i < 100_000 && !full; i++){
+						full = sender.sendAsync(payload).isCompletedExceptionally();
+					}
+					sleep(50);
+				}
+				assertTrue(full);
+				//Topped up until not even the smallest frame fits
+				for(int size = payload.length / 2; size > 0; size /= 2){
+					while(!sender.sendAsync(new byte[size]).isCompletedExceptionally());
+				}
+				
+				CompletableFuture<Void> sent = sender.sendStream(new ByteArrayInputStream(new byte[0]));
+				sleep(100);
+				assertFalse(sent.isCompletedExceptionally());
+				
+				//Once the foreign socket reads the end arrives behind everything else
+				DataInputStream in = new DataInputStream(foreign.getInputStream());
+				byte opcode;
+				byte[] last;
+				do{
+					last = new byte[in.readInt()];
+					opcode = in.readByte();
+					in.readFully(last);
+				}while(opcode != RichSocket.OPCODE_STREAM_END);
+				assertEquals(0, last[last.length - 1]);
+				sent.get(5, TimeUnit.SECONDS);
+			}finally{
+				sender.kill();
+			}
+		}
+	}
+	
+	@AfterAll
+	public void teardown() throws InterruptedException{
+		socket.shutdown();
+		sleep(100);
+		server.shutdown();
+		service.shutdownNow();
+	}
+}
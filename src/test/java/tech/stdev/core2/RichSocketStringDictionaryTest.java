@@ -0,0 +1,112 @@
+package tech.stdev.core2;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static java.lang.Thread.sleep;
+import static org.junit.jupiter.api.Assertions.*;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class RichSocketStringDictionaryTest{
+	
+	DefaultServer server;
+	
+	RichSocket socket;
+	
+	ScheduledExecutorService service;
+	
+	List<String> strings = new CopyOnWriteArrayList<>();
+	
+	List<Integer> encodedSizes = new CopyOnWriteArrayList<>();
+	
+	RichSocketDataForwardingPolicy serverPolicy = new RichSocketDataForwardingPolicy(){
+		@Override
+		public void receive(String string){
+			strings.add(string);
+		}
+		
+		@Override
+		public void receive(Object deserialized){
+		
+		}
+		
+		@Override
+		public void receive(byte[] payload){
+		
+		}
+		
+		@Override
+		public void receive(byte opcode, byte[] payload){
+			if(opcode == 0b10){
+				encodedSizes.add(payload.length);
+			}
+		}
+	};
+	
+	RichSocketDataForwardingPolicy socketPolicy = new RichSocketDataForwardingPolicy(){
+		@Override
+		public void receive(String string){
+		
+		}
+		
+		@Override
+		public void receive(Object deserialized){
+		
+		}
+		
+		@Override
+		public void receive(byte[] payload){
+		
+		}
+	};
+	
+	@BeforeAll
+	public void setup() throws InterruptedException{
+		this.service = Executors.newScheduledThreadPool(4);
+		this.server = new DefaultServer(ServerDependencyFactory.localServerSocket(), s -> new RichSocket(s, serverPolicy, service));
+		new Thread(server).start();
+		sleep(20);
+		this.socket = new RichSocket(ServerDependencyFactory.localSocket(), socketPolicy, service);
+		new Thread(socket).start();
+		sleep(50);
+	}
+	
+	@Test
+	void repeatsOnlySendId() throws InterruptedException{
+		assertTrue(socket.isNegotiated(RichSocket.CAPABILITY_STRING_DICTIONARY));
+		
+		String topic = "market/prices/ünïcode";
+		for(int i = 0; i < 100; i++){
+			assertTrue(socket.sendCached(topic));
+			assertTrue(socket.sendCached("status/" + (i % 3)));
+		}
+		sleep(200);
+		
+		assertEquals(200, strings.size());
+		assertEquals(200, encodedSizes.size());
+		for(int i = 0; i < 200; i += 2){
+			assertEquals(topic, strings.get(i));
+			assertEquals("status/" + (i / 2 % 3), strings.get(i + 1));
+			//Every repeat is the very same instance the first one was decoded into
+			assertSame(strings.get(0), strings.get(i));
+		}
+		
+		//Four definitions, everything else is a single byte ID
+		assertEquals(196, encodedSizes.stream().filter(size -> size == 1).count());
+	}
+	
+	@AfterAll
+	public void teardown() throws InterruptedException{
+		socket.shutdown();
+		sleep(100);
+		server.shutdown();
+		service.shutdownNow();
+	}
+}
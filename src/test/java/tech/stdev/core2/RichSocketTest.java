@@ -3,6 +3,7 @@ package tech.stdev.core2;
 import org.junit.jupiter.api.*;
 
 import java.io.Serializable;
+import java.net.Socket;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 
@@ -74,14 +75,25 @@ class RichSocketTest{
 		}
 	};
 	
+	/**
+	 * Overridden to run the same scenario over another transport.
+	 */
+	DefaultServer server(SocketFactory factory){
+		return new DefaultServer(ServerDependencyFactory.localServerSocket(), factory);
+	}
+	
+	Socket connect(){
+		return ServerDependencyFactory.localSocket();
+	}
+	
 	@BeforeAll
 	public void setup() throws InterruptedException{
 		this.service = Executors.newScheduledThreadPool(4);
 		ScheduledExecutorService socketPool = Executors.newScheduledThreadPool(4);
-		this.server = new DefaultServer(ServerDependencyFactory.localServerSocket(), s -> new RichSocket(s, serverPolicy, service));
+		this.server = server(s -> new RichSocket(s, serverPolicy, service));
 		new Thread(server).start();
 		Thread.sleep(20);
-		this.socket = new RichSocket(ServerDependencyFactory.localSocket(), socketPolicy, socketPool);
+		this.socket = new RichSocket(connect(), socketPolicy, socketPool);
 		new Thread(socket).start();
 		sleep(20);
 		
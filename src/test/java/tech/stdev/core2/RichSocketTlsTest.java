@@ -0,0 +1,250 @@
+package tech.stdev.core2;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+
+import javax.net.ssl.SSLSession;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.Thread.sleep;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Blocking clients talking TLS to a DefaultServer, and to an NioServer on another port which handshakes
+ * on its event loop.
+ */
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class RichSocketTlsTest{
+	
+	final static int NIO_PORT = ServerDependencyFactory.DEFAULT_PORT + 1;
+	
+	DefaultServer server;
+	
+	NioServer nioServer;
+	
+	ScheduledExecutorService service;
+	
+	TlsContext tls;
+	
+	List<Object> received = new CopyOnWriteArrayList<>();
+	
+	ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+	
+	CompletableFuture<Void> streamEnded = new CompletableFuture<>();
+	
+	RichSocketDataForwardingPolicy serverPolicy = new RichSocketDataForwardingPolicy(){
+		@Override
+		public void receive(String string){
+			received.add(string);
+		}
+		
+		@Override
+		public void receive(Object deserialized){
+			received.add(deserialized);
+		}
+		
+		@Override
+		public void receive(byte[] payload){
+			received.add(payload);
+		}
+		
+		@Override
+		public Object respond(Object request){
+			return "Re: " + request;
+		}
+		
+		@Override
+		public StreamHandler receiveStream(int stream){
+			StreamHandler target = StreamHandler.to(streamed);
+			return new StreamHandler(){
+				@Override
+				public void chunk(ByteBuffer chunk) throws IOException{
+					target.chunk(chunk);
+				}
+				
+				@Override
+				public void end(){
+					streamEnded.complete(null);
+				}
+			};
+		}
+	};
+	
+	RichSocketDataForwardingPolicy socketPolicy = new RichSocketDataForwardingPolicy(){
+		@Override
+		public void receive(String string){
+		
+		}
+		
+		@Override
+		public void receive(Object deserialized){
+		
+		}
+		
+		@Override
+		public void receive(byte[] payload){
+		
+		}
+	};
+	
+	static TlsContext load(String keyStore) throws Exception{
+		try(InputStream is = RichSocketTlsTest.class.getResourceAsStream("/tls/" + keyStore)){
+			return TlsContext.load(is, "changeit".toCharArray());
+		}
+	}
+	
+	@BeforeAll
+	public void setup() throws Exception{
+		this.service = Executors.newScheduledThreadPool(4);
+		this.tls = load("test.p12");
+		this.server = new DefaultServer(ServerDependencyFactory.localServerSocket(), s -> new RichSocket(s, serverPolicy, service));
+		server.setTls(tls);
+		new Thread(server).start();
+		
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), NIO_PORT));
+		this.nioServer = new NioServer(channel, (c, loop) -> new NioRichSocket(c, loop, serverPolicy, service), 1);
+		nioServer.setTls(tls);
+		new Thread(nioServer).start();
+		sleep(50);
+	}
+	
+	private RichSocket connect(int port, TlsContext tls){
+		return RichSocketBuilder.start(port).setTls(tls).setForwardingPolicy(socketPolicy).setScheduledExecutor(service).buildAndRun();
+	}
+	
+	private void exchange(RichSocket socket) throws Exception{
+		received.clear();
+		byte[] large = TestUtils.randomBytes(200_000);
+		socket.send("Hello");
+		socket.send(large);
+		TestSerializer object = new TestSerializer();
+		socket.send(object);
+		assertEquals("Re: Ping", socket.request("Ping").get(5, TimeUnit.SECONDS));
+		
+		for(int i = 0; i < 100 && received.size() < 3; i++){
+			sleep(20);
+		}
+		assertEquals(3, received.size());
+		assertEquals("Hello", received.get(0));
+		assertArrayEquals(large, (byte[]) received.get(1));
+		assertEquals(object, received.get(2));
+		assertTrue(socket.isSecure());
+		assertEquals("TLSv1.3", socket.getTlsSession().getProtocol());
+	}
+	
+	@Test
+	void blockingServer() throws Exception{
+		RichSocket socket = connect(ServerDependencyFactory.DEFAULT_PORT, tls);
+		exchange(socket);
+		socket.shutdown();
+	}
+	
+	@Test
+	void nioServer() throws Exception{
+		RichSocket socket = connect(NIO_PORT, tls);
+		exchange(socket);
+		
+		//Files can't be sent with sendfile through the engine, they're still received whole
+		byte[] bytes = TestUtils.randomBytes(1_000_000);
+		Path file = Files.createTempFile("tls", null);
+		try{
+			Files.write(file, bytes);
+			streamed.reset();
+			streamEnded = new CompletableFuture<>();
+			socket.sendFile(file).get(10, TimeUnit.SECONDS);
+			streamEnded.get(10, TimeUnit.SECONDS);
+			assertArrayEquals(bytes, streamed.toByteArray());
+		}finally{
+			Files.delete(file);
+		}
+		socket.shutdown();
+	}
+	
+	@Test
+	void channelClient() throws Exception{
+		//Channel backed blocking sockets write with gathering writes through the engine instead
+		SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), NIO_PORT));
+		RichSocket socket = RichSocketBuilder.start(channel.socket()).setTls(tls).setForwardingPolicy(socketPolicy).buildAndRun();
+		exchange(socket);
+		socket.shutdown();
+	}
+	
+	@Test
+	void resumesSessions() throws Exception{
+		TlsContext client = load("test.p12");
+		RichSocket first = connect(ServerDependencyFactory.DEFAULT_PORT, client);
+		first.request("First").get(5, TimeUnit.SECONDS);
+		SSLSession session = first.getTlsSession();
+		first.shutdown();
+		
+		RichSocket second = connect(ServerDependencyFactory.DEFAULT_PORT, client);
+		second.request("Second").get(5, TimeUnit.SECONDS);
+		//Resumed sessions carry on from the one they resumed
+		assertEquals(session.getCreationTime(), second.getTlsSession().getCreationTime());
+		second.shutdown();
+		
+		RichSocket fresh = connect(ServerDependencyFactory.DEFAULT_PORT, load("test.p12"));
+		fresh.request("Fresh").get(5, TimeUnit.SECONDS);
+		assertNotEquals(session.getCreationTime(), fresh.getTlsSession().getCreationTime());
+		fresh.shutdown();
+	}
+	
+	@Test
+	void rejectsUntrustedServer() throws Exception{
+		long failed = server.getMetrics().getClosedConnections().getOrDefault("HANDSHAKE", 0L);
+		RichSocket socket = connect(ServerDependencyFactory.DEFAULT_PORT, load("untrusted.p12"));
+		socket.send("Leaked");
+		for(int i = 0; i < 100 && socket.isRunning(); i++){
+			sleep(20);
+		}
+		assertFalse(socket.isRunning());
+		assertEquals(CloseReason.HANDSHAKE.name(), socket.getMetrics().getCloseReason());
+		
+		for(int i = 0; i < 100 && server.getMetrics().getClosedConnections().getOrDefault("HANDSHAKE", 0L) == failed; i++){
+			sleep(20);
+		}
+		Map<String, Long> closed = server.getMetrics().getClosedConnections();
+		assertTrue(closed.getOrDefault("HANDSHAKE", 0L) > failed || closed.getOrDefault("CLOSED", 0L) > 0, closed.toString());
+		assertFalse(received.contains("Leaked"));
+	}
+	
+	@Test
+	void plainClientsAreRefused() throws Exception{
+		try(Socket plain = new Socket(InetAddress.getLoopbackAddress(), ServerDependencyFactory.DEFAULT_PORT)){
+			plain.getOutputStream().write(new byte[]{0, 0, 0, 5, RichSocket.OPCODE_STRING, 'P', 'l', 'a', 'i', 'n'});
+			plain.setSoTimeout(5000);
+			//Answered with an alert at most, then hung up on
+			InputStream is = plain.getInputStream();
+			while(is.read() != -1);
+		}
+		assertFalse(received.contains("Plain"));
+	}
+	
+	@AfterAll
+	public void teardown() throws InterruptedException{
+		sleep(100);
+		server.shutdown();
+		nioServer.shutdown();
+		service.shutdownNow();
+	}
+}
@@ -0,0 +1,77 @@
+package tech.stdev.core2;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.Socket;
+import java.net.UnixDomainSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.Thread.sleep;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * RichSocketTest over a Unix domain socket, plus a builder connecting to an NioServer listening on one.
+ */
+class RichSocketUnixDomainTest extends RichSocketTest{
+	
+	@Override
+	DefaultServer server(SocketFactory factory){
+		return new DefaultServer(ServerDependencyFactory.localUnixServerSocket(), factory);
+	}
+	
+	@Override
+	Socket connect(){
+		return ServerDependencyFactory.localUnixSocket();
+	}
+	
+	@Test
+	void reportsLocalPeers(){
+		//The scenario has closed it by now, its address is gone along with the channel
+		assertEquals(UnixDomainSocket.class, socket.socket.getClass());
+		assertTrue(socket.socket.getInetAddress().isLoopbackAddress());
+	}
+	
+	@Test
+	void buildsForNioServers() throws Exception{
+		UnixDomainSocketAddress path = UnixDomainSocketAddress.of(Path.of(System.getProperty("java.io.tmpdir"), "core2-nio-" + ServerDependencyFactory.DEFAULT_PORT + ".sock"));
+		CompletableFuture<String> received = new CompletableFuture<>();
+		NioServer nioServer = new NioServer(ServerDependencyFactory.localUnixServerSocket(path), (c, loop) -> new NioRichSocket(c, loop, new RichSocketDataForwardingPolicy(){
+			@Override
+			public void receive(String string){
+				received.complete(string);
+			}
+			
+			@Override
+			public void receive(Object deserialized){
+			
+			}
+			
+			@Override
+			public void receive(byte[] payload){
+			
+			}
+			
+			@Override
+			public Object respond(Object request){
+				return "Re: " + request;
+			}
+		}, service), 1);
+		new Thread(nioServer).start();
+		sleep(20);
+		
+		RichSocket client = RichSocketBuilder.start(path).setForwardingPolicy(socketPolicy).setScheduledExecutor(service).buildAndRun();
+		try{
+			assertEquals("Re: Ping", client.request("Ping").get(5, TimeUnit.SECONDS));
+			client.send("Hello");
+			assertEquals("Hello", received.get(5, TimeUnit.SECONDS));
+		}finally{
+			client.shutdown();
+			nioServer.shutdown();
+		}
+		//Shutting down removes the socket file
+		assertFalse(Files.exists(path.getPath()));
+	}
+}
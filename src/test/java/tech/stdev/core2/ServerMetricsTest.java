@@ -0,0 +1,106 @@
+package tech.stdev.core2;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static java.lang.Thread.sleep;
+import static org.junit.jupiter.api.Assertions.*;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class ServerMetricsTest{
+	
+	DefaultServer server;
+	
+	RichSocket socket;
+	
+	ScheduledExecutorService service;
+	
+	MBeanServer jmx = ManagementFactory.getPlatformMBeanServer();
+	
+	ObjectName serverName;
+	
+	RichSocketDataForwardingPolicy policy = new RichSocketDataForwardingPolicy(){
+		@Override
+		public void receive(String string){
+		
+		}
+		
+		@Override
+		public void receive(Object deserialized){
+		
+		}
+		
+		@Override
+		public void receive(byte[] payload){
+		
+		}
+	};
+	
+	@BeforeAll
+	public void setup() throws Exception{
+		this.service = Executors.newScheduledThreadPool(4);
+		this.server = new DefaultServer(ServerDependencyFactory.localServerSocket(), s -> new RichSocket(s, policy, service));
+		new Thread(server).start();
+		sleep(20);
+		this.socket = new RichSocket(ServerDependencyFactory.localSocket(), policy, service);
+		new Thread(socket).start();
+		sleep(50);
+		this.serverName = new ObjectName("tech.stdev.core2:type=Server,name=\"127.0.0.1:" + ServerDependencyFactory.DEFAULT_PORT + "\"");
+	}
+	
+	@Test
+	void countsTraffic() throws Exception{
+		for(int i = 0; i < 10; i++){
+			socket.send("Hello World!");
+		}
+		for(int i = 0; i < 5; i++){
+			socket.send(new byte[100]);
+		}
+		sleep(100);
+		
+		ServerMetrics metrics = server.getMetrics();
+		assertEquals(1, jmx.getAttribute(serverName, "ActiveConnections"));
+		assertEquals(1L, jmx.getAttribute(serverName, "AcceptedConnections"));
+		Map<String, Long> frames = metrics.getFramesInByOpcode();
+		assertEquals(10, (long) frames.get("STRING"));
+		assertEquals(5, (long) frames.get("NONE"));
+		assertEquals(1, (long) frames.get("HELLO"));
+		assertEquals(10 * (5 + 12) + 5 * (5 + 100) + (5 + 5), metrics.getBytesIn());
+		assertEquals(1, (long) metrics.getFramesOutByOpcode().get("HELLO"));
+		assertEquals(socket.getMetrics().getFramesOut(), metrics.getFramesIn());
+		assertEquals(socket.getMetrics().getBytesOut(), metrics.getBytesIn());
+		
+		CompositeData handlerTime = (CompositeData) jmx.getAttribute(serverName, "HandlerTime");
+		assertEquals(16L, handlerTime.get("count"));
+		
+		assertEquals(1, jmx.queryNames(new ObjectName("tech.stdev.core2:type=Connection,*"), null).size());
+	}
+	
+	@AfterAll
+	public void teardown() throws Exception{
+		socket.shutdown();
+		sleep(100);
+		
+		//Graceful shutdown folds the connection into the server's totals and unregisters it
+		ServerMetrics metrics = server.getMetrics();
+		assertEquals(0, metrics.getActiveConnections());
+		assertEquals(Map.of("SHUTDOWN", 1L), metrics.getClosedConnections());
+		assertEquals(16, metrics.getFramesIn() - metrics.getFramesInByOpcode().getOrDefault("KILL", 0L));
+		assertEquals("SHUTDOWN", socket.getMetrics().getCloseReason());
+		assertTrue(jmx.queryNames(new ObjectName("tech.stdev.core2:type=Connection,*"), null).isEmpty());
+		
+		server.shutdown();
+		service.shutdownNow();
+		assertFalse(jmx.isRegistered(serverName));
+	}
+}
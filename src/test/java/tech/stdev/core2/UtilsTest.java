@@ -2,6 +2,9 @@ package tech.stdev.core2;
 
 import org.junit.jupiter.api.Test;
 
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Random;
 
@@ -17,6 +20,36 @@ class UtilsTest{
 		}
 	}
 	
+	@Test
+	void testUtf8(){
+		String[] strings = {"", "Hello World!", "h\u00e9llo w\u00f6rld", "\u65e5\u672c\u8a9e", "\ud83d\ude00 emoji", "lone \ud83d surrogate", "\ude00"};
+		for(String string : strings){
+			byte[] expected = string.getBytes(StandardCharsets.UTF_8);
+			assertEquals(expected.length, Utils.utf8Length(string));
+			
+			ByteBuffer buffer = ByteBuffer.allocate(expected.length);
+			Utils.putUtf8(buffer, string);
+			assertArrayEquals(expected, buffer.array());
+		}
+	}
+	
+	@Test
+	void testVarInt() throws ProtocolException{
+		int[] values = {0, 1, 127, 128, 16383, 16384, 2097151, 2097152, Integer.MAX_VALUE, -1};
+		for(int value : values){
+			ByteBuffer buffer = ByteBuffer.allocate(5);
+			Utils.putVarInt(buffer, value);
+			assertEquals(buffer.position(), Utils.varIntLength(value));
+			
+			buffer.flip();
+			assertEquals(value, Utils.getVarInt(buffer));
+			assertFalse(buffer.hasRemaining());
+		}
+		
+		assertThrows(ProtocolException.class, () -> Utils.getVarInt(ByteBuffer.wrap(new byte[]{(byte) 0x80})));
+		assertThrows(ProtocolException.class, () -> Utils.getVarInt(ByteBuffer.wrap(new byte[]{-1, -1, -1, -1, -1, 1})));
+	}
+	
 	byte[] intToBytes(int i){
 		return Utils.intToBytes(i);
 	}
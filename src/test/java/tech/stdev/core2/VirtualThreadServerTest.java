@@ -0,0 +1,130 @@
+package tech.stdev.core2;
+
+import com.sun.management.UnixOperatingSystemMXBean;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Holds 10k connections open at once against a DefaultServer running in virtual thread mode. Every
+ * connection costs two file descriptors in this JVM (client and server end), so on machines with a
+ * lower descriptor limit the test scales itself down to what fits. Heartbeats are pushed out past the
+ * length of the test, it's only concerned with the read loops.
+ */
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class VirtualThreadServerTest{
+	
+	final static int CONNECTIONS = 10000;
+	
+	DefaultServer server;
+	
+	ScheduledExecutorService service;
+	
+	List<RichSocket> sockets = new ArrayList<>();
+	
+	AtomicInteger accepted = new AtomicInteger();
+	
+	AtomicInteger received = new AtomicInteger();
+	
+	int connections;
+	
+	Level logLevel;
+	
+	RichSocketDataForwardingPolicy policy = new RichSocketDataForwardingPolicy(){
+		@Override
+		public void receive(String string){
+			received.incrementAndGet();
+		}
+		
+		@Override
+		public void receive(Object deserialized){
+		
+		}
+		
+		@Override
+		public void receive(byte[] payload){
+		
+		}
+	};
+	
+	@BeforeAll
+	public void setup() throws InterruptedException{
+		this.logLevel = Logger.getGlobal().getLevel();
+		Logger.getGlobal().setLevel(Level.WARNING);
+		
+		this.connections = Math.min(CONNECTIONS, availableDescriptors() / 2);
+		this.service = Executors.newScheduledThreadPool(2);
+		this.server = new DefaultServer(ServerDependencyFactory.localServerSocket(4096), s -> {
+			accepted.incrementAndGet();
+			RichSocket socket = new RichSocket(s, policy, service);
+			socket.setKeepAliveTime(60000);
+			socket.setPingTime(60000);
+			return socket;
+		}, true);
+		new Thread(server).start();
+		Thread.sleep(20);
+		
+		for(int i = 0; i < connections; i++){
+			RichSocketBuilder builder = RichSocketBuilder.start(ServerDependencyFactory.localSocket())
+					.setScheduledExecutor(service)
+					.setVirtualThread(true);
+			builder.setKeepAliveTime(60000);
+			builder.setPingTime(60000);
+			sockets.add(builder.buildAndRun());
+		}
+	}
+	
+	@Test
+	void holdsConnections() throws InterruptedException{
+		for(int i = 0; i < 200 && accepted.get() < connections; i++){
+			Thread.sleep(50);
+		}
+		assertEquals(connections, accepted.get());
+		
+		for(RichSocket socket : sockets){
+			assertTrue(socket.send("Still here"));
+		}
+		
+		for(int i = 0; i < 200 && received.get() < connections; i++){
+			Thread.sleep(50);
+		}
+		assertEquals(connections, received.get());
+		
+		for(RichSocket socket : sockets){
+			assertTrue(socket.isRunning());
+		}
+	}
+	
+	private static int availableDescriptors(){
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if(os instanceof UnixOperatingSystemMXBean){
+			UnixOperatingSystemMXBean unix = (UnixOperatingSystemMXBean) os;
+			return (int) Math.min(Integer.MAX_VALUE, unix.getMaxFileDescriptorCount() - unix.getOpenFileDescriptorCount() - 512);
+		}
+		return CONNECTIONS * 2;
+	}
+	
+	@AfterAll
+	public void shutdown() throws InterruptedException{
+		for(RichSocket socket : sockets){
+			socket.shutdown();
+		}
+		Thread.sleep(500);
+		server.shutdown();
+		service.shutdownNow();
+		Logger.getGlobal().setLevel(logLevel);
+	}
+}